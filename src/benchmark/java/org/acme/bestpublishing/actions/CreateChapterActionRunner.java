@@ -0,0 +1,44 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.actions;
+
+import org.alfresco.repo.action.ActionImpl;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.GUID;
+
+/**
+ * Runs {@link CreateChapterAction} directly, without the action service, so it can be
+ * benchmarked outside a running repository.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class CreateChapterActionRunner {
+    private final CreateChapterAction createChapterAction;
+
+    public CreateChapterActionRunner(CreateChapterAction createChapterAction) {
+        this.createChapterAction = createChapterAction;
+    }
+
+    public void createChapter(NodeRef isbnFolderNodeRef, int chapterNumber, String title, String author) {
+        ActionImpl action = new ActionImpl(null, GUID.generate(), "createChapter");
+        action.setParameterValue(CreateChapterAction.PARAM_CHAPTER_NUMBER, Integer.toString(chapterNumber));
+        action.setParameterValue(CreateChapterAction.PARAM_CHAPTER_TITLE, title);
+        action.setParameterValue(CreateChapterAction.PARAM_CHAPTER_AUTHOR, author);
+        createChapterAction.executeImpl(action, isbnFolderNodeRef);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares a JMH JSON result with the baseline committed in <code>src/benchmark/jmh-baseline.json</code>,
+ * and exits with status 1 if a benchmark regressed or there is no baseline to compare with.
+ * <p/>
+ * Benchmarks are matched on name, mode, and parameters. A benchmark regresses when its score is more
+ * than <code>maxRegression</code> worse than the baseline score, beyond the error margins of both, or
+ * when it allocates more than <code>maxRegression</code> more per operation, as measured by the gc
+ * profiler. Benchmarks that are not in the baseline are reported but not compared.
+ * <p/>
+ * Arguments are key=value: <code>result</code>, <code>baseline</code>, <code>maxRegression</code>
+ * (default 0.10), and <code>saveBaseline=true</code> to store the result as the new baseline instead.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BenchmarkBaseline {
+    private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("maxRegression", "0.10");
+        options.put("saveBaseline", "false");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals > 0) {
+                options.put(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+        if (!options.containsKey("result") || !options.containsKey("baseline")) {
+            System.out.println("Usage: BenchmarkBaseline result=<jmh json> baseline=<jmh json> " +
+                    "[maxRegression=0.10] [saveBaseline=true]");
+            System.exit(2);
+        }
+
+        File resultFile = new File(options.get("result"));
+        File baselineFile = new File(options.get("baseline"));
+        if (Boolean.parseBoolean(options.get("saveBaseline"))) {
+            Files.copy(resultFile.toPath(), baselineFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.out.println("Stored " + resultFile + " as the baseline " + baselineFile);
+            return;
+        }
+        if (!baselineFile.isFile()) {
+            System.out.println("No baseline at " + baselineFile + ", run on the reference machine with " +
+                    "-Djmh.saveBaseline=true to store one");
+            System.exit(1);
+        }
+
+        List<String> regressions = compare(read(resultFile), read(baselineFile),
+                Double.parseDouble(options.get("maxRegression")));
+        if (!regressions.isEmpty()) {
+            System.out.println("Regressions against " + baselineFile + ":");
+            for (String regression : regressions) {
+                System.out.println("  " + regression);
+            }
+            System.exit(1);
+        }
+        System.out.println("No regressions against the baseline");
+    }
+
+    /**
+     * @return the regressions of the result against the baseline, empty if there are none
+     */
+    static List<String> compare(Map<String, JSONObject> results, Map<String, JSONObject> baselines,
+                                double maxRegression) throws JSONException {
+        List<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, JSONObject> result : results.entrySet()) {
+            JSONObject baseline = baselines.get(result.getKey());
+            if (baseline == null) {
+                System.out.println("Not in the baseline: " + result.getKey());
+                continue;
+            }
+
+            // Throughput is better higher, average, sample, and single shot times are better lower
+            boolean higherIsBetter = result.getValue().getString("mode").equals("thrpt");
+            JSONObject metric = result.getValue().getJSONObject("primaryMetric");
+            JSONObject baseMetric = baseline.getJSONObject("primaryMetric");
+            double score = metric.getDouble("score");
+            double baseScore = baseMetric.getDouble("score");
+            double margin = errorMargin(metric) + errorMargin(baseMetric);
+            double worseBy = higherIsBetter ? baseScore - score : score - baseScore;
+            if (worseBy > baseScore * maxRegression && worseBy > margin) {
+                regressions.add(String.format("%s %.3f %s, baseline %.3f", result.getKey(),
+                        score, metric.getString("scoreUnit"), baseScore));
+            }
+
+            Double allocated = allocationPerOperation(result.getValue());
+            Double baseAllocated = allocationPerOperation(baseline);
+            if (allocated != null && baseAllocated != null && baseAllocated > 0 &&
+                    allocated > baseAllocated * (1 + maxRegression)) {
+                regressions.add(String.format("%s allocates %.0f B/op, baseline %.0f B/op", result.getKey(),
+                        allocated, baseAllocated));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Read a JMH JSON result, keyed on benchmark, mode, and parameters
+     */
+    static Map<String, JSONObject> read(File file) throws IOException, JSONException {
+        JSONArray benchmarks = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Map<String, JSONObject> byKey = new LinkedHashMap<>();
+        for (int i = 0; i < benchmarks.length(); i++) {
+            JSONObject benchmark = benchmarks.getJSONObject(i);
+            StringBuilder key = new StringBuilder(benchmark.getString("benchmark"))
+                    .append(" [").append(benchmark.getString("mode")).append("]");
+            JSONObject params = benchmark.optJSONObject("params");
+            if (params != null) {
+                Map<String, String> sortedParams = new TreeMap<>();
+                Iterator<?> names = params.keys();
+                while (names.hasNext()) {
+                    String name = (String) names.next();
+                    sortedParams.put(name, params.getString(name));
+                }
+                key.append(' ').append(sortedParams);
+            }
+            byKey.put(key.toString(), benchmark);
+        }
+        return byKey;
+    }
+
+    private static double errorMargin(JSONObject metric) {
+        double scoreError = metric.optDouble("scoreError", 0);
+        return Double.isNaN(scoreError) ? 0 : scoreError;
+    }
+
+    /**
+     * @return bytes allocated per operation, or null if the run did not use the gc profiler
+     */
+    private static Double allocationPerOperation(JSONObject benchmark) throws JSONException {
+        JSONObject secondaryMetrics = benchmark.optJSONObject("secondaryMetrics");
+        if (secondaryMetrics == null) {
+            return null;
+        }
+        Iterator<?> names = secondaryMetrics.keys();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            // JMH prefixes profiler metrics with a middle dot
+            if (name.endsWith(ALLOCATION_METRIC)) {
+                return secondaryMetrics.getJSONObject(name).getDouble("score");
+            }
+        }
+        return null;
+    }
+}
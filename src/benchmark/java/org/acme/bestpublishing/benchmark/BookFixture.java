@@ -0,0 +1,333 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.acme.bestpublishing.actions.CreateChapterAction;
+import org.acme.bestpublishing.actions.CreateChapterActionRunner;
+import org.acme.bestpublishing.chapters.BookNaming;
+import org.acme.bestpublishing.chapters.ChapterContentUpdater;
+import org.acme.bestpublishing.chapters.ChapterCountService;
+import org.acme.bestpublishing.chapters.ChapterIndex;
+import org.acme.bestpublishing.chapters.ChapterIndexBehaviour;
+import org.acme.bestpublishing.chapters.ChapterIndexService;
+import org.acme.bestpublishing.chapters.ChapterLockService;
+import org.acme.bestpublishing.chapters.ChapterRenumberingService;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.acme.bestpublishing.tracking.BookSummary;
+import org.acme.bestpublishing.tracking.BookSummaryService;
+import org.acme.bestpublishing.tracking.ContentChangeTrackingService;
+import org.acme.bestpublishing.tracking.IsbnFolderBookkeeping;
+import org.acme.bestpublishing.tracking.MetadataUpdateCache;
+import org.acme.bestpublishing.webscripts.CheckMetadataUpdatesWebscript;
+import org.acme.bestpublishing.webscripts.DeleteChapterFolderWebscript;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.DefaultSimpleCache;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * One book in an {@link InMemoryRepository}, with the chapter and publishing services wired
+ * up against {@link StandInServices} the same way as in the Spring context.
+ * <p/>
+ * The book has an ISBN folder under a year folder, the requested number of chapter folders, and
+ * the requested number of files spread evenly over the chapter folders.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BookFixture {
+    public static final String CHAPTER_FOLDER_NAME_PREFIX = "chapter";
+    public static final String ISBN = "9780000000002";
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final StandInServices services = new StandInServices(repository);
+    private final NodeRef isbnFolderNodeRef;
+
+    private final ChapterIndexService chapterIndexService;
+    private final EndOfOperationChapterCountService chapterCountService;
+    private final EndOfOperationBookSummaryService bookSummaryService;
+    private final CreateChapterActionRunner createChapterActionRunner;
+    private final DeleteChapterFolderWebscript deleteChapterFolderWebscript;
+    private final CheckMetadataUpdatesWebscript checkMetadataUpdatesWebscript;
+    private final DefaultSimpleCache<NodeRef, ChapterIndex> chapterIndexCache =
+            new DefaultSimpleCache<>(1000, "benchmarkChapterIndexCache");
+    private final DefaultSimpleCache<NodeRef, MetadataUpdateCache.CachedResponse> metadataUpdateResponseCache =
+            new DefaultSimpleCache<>(1000, "benchmarkMetadataUpdateResponseCache");
+    private final DefaultSimpleCache<NodeRef, BookSummary> bookSummaryCache =
+            new DefaultSimpleCache<>(1000, "benchmarkBookSummaryCache");
+
+    /**
+     * @param chapters number of chapter folders
+     * @param files number of files in the book
+     * @param tracked true if the ISBN folder has a content change marker
+     */
+    public BookFixture(int chapters, int files, boolean tracked) {
+        BestPubMetrics bestPubMetrics = new BestPubMetrics();
+        IoExecutorService ioExecutorService = new IoExecutorService();
+        ioExecutorService.init();
+
+        IsbnFolderBookkeeping isbnFolderBookkeeping = new IsbnFolderBookkeeping();
+        isbnFolderBookkeeping.setServiceRegistry(services.getServiceRegistry());
+        isbnFolderBookkeeping.setBehaviourFilter(services.getBehaviourFilter());
+
+        chapterIndexService = new ChapterIndexService();
+        chapterIndexService.setServiceRegistry(services.getServiceRegistry());
+        chapterIndexService.setNodeDAO(services.getNodeDAO());
+        chapterIndexService.setChapterIndexCache(chapterIndexCache);
+
+        chapterCountService = new EndOfOperationChapterCountService();
+        chapterCountService.setServiceRegistry(services.getServiceRegistry());
+        chapterCountService.setChapterIndexService(chapterIndexService);
+
+        bookSummaryService = new EndOfOperationBookSummaryService();
+        bookSummaryService.setServiceRegistry(services.getServiceRegistry());
+        bookSummaryService.setNodeDAO(services.getNodeDAO());
+        bookSummaryService.setIsbnFolderBookkeeping(isbnFolderBookkeeping);
+        bookSummaryService.setBookSummaryCache(bookSummaryCache);
+        bookSummaryService.setChapterIndexService(chapterIndexService);
+
+        ChapterIndexBehaviour chapterIndexBehaviour = new ChapterIndexBehaviour();
+        chapterIndexBehaviour.setServiceRegistry(services.getServiceRegistry());
+        chapterIndexBehaviour.setChapterIndexService(chapterIndexService);
+        chapterIndexBehaviour.setChapterCountService(chapterCountService);
+        repository.addListener(BestPubContentModel.ChapterFolderType.QNAME, new InMemoryRepository.NodeListener() {
+            @Override
+            public void onCreateNode(ChildAssociationRef childAssocRef) {
+                chapterIndexBehaviour.onCreateNode(childAssocRef);
+            }
+
+            @Override
+            public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before,
+                                           Map<QName, Serializable> after) {
+                chapterIndexBehaviour.onUpdateProperties(nodeRef, before, after);
+            }
+
+            @Override
+            public void onDeleteNode(ChildAssociationRef childAssocRef) {
+                chapterIndexBehaviour.onDeleteNode(childAssocRef, true);
+            }
+        });
+
+        ChapterLockService chapterLockService = new ChapterLockService();
+        chapterLockService.setJobLockService(services.getJobLockService());
+        chapterLockService.setBestPubMetrics(bestPubMetrics);
+        chapterLockService.init();
+
+        BookNaming bookNaming = new BookNaming();
+        bookNaming.setBestPubUtilsService(services.getBestPubUtilsService());
+        bookNaming.init();
+
+        ChapterRenumberingService chapterRenumberingService = new ChapterRenumberingService();
+        chapterRenumberingService.setServiceRegistry(services.getServiceRegistry());
+        chapterRenumberingService.setBookNaming(bookNaming);
+        chapterRenumberingService.setChapterContentUpdater(new InPlaceChapterContentUpdater());
+
+        CreateChapterAction createChapterAction = new CreateChapterAction();
+        createChapterAction.setServiceRegistry(services.getServiceRegistry());
+        createChapterAction.setBookNaming(bookNaming);
+        createChapterAction.setAlfrescoRepoUtilsService(services.getAlfrescoRepoUtilsService());
+        createChapterAction.setChapterRenumberingService(chapterRenumberingService);
+        createChapterAction.setChapterIndexService(chapterIndexService);
+        createChapterAction.setChapterLockService(chapterLockService);
+        createChapterAction.setBookSummaryService(bookSummaryService);
+        createChapterAction.setBestPubMetrics(bestPubMetrics);
+        createChapterActionRunner = new CreateChapterActionRunner(createChapterAction);
+
+        deleteChapterFolderWebscript = new DeleteChapterFolderWebscript();
+        deleteChapterFolderWebscript.setServiceRegistry(services.getServiceRegistry());
+        deleteChapterFolderWebscript.setAlfrescoRepoUtilsService(services.getAlfrescoRepoUtilsService());
+        deleteChapterFolderWebscript.setChapterRenumberingService(chapterRenumberingService);
+        deleteChapterFolderWebscript.setChapterIndexService(chapterIndexService);
+        deleteChapterFolderWebscript.setChapterLockService(chapterLockService);
+        deleteChapterFolderWebscript.setBookSummaryService(bookSummaryService);
+        deleteChapterFolderWebscript.setIoExecutorService(ioExecutorService);
+        deleteChapterFolderWebscript.setBestPubMetrics(bestPubMetrics);
+
+        ContentChangeTrackingService contentChangeTrackingService = new ContentChangeTrackingService();
+        contentChangeTrackingService.setServiceRegistry(services.getServiceRegistry());
+        contentChangeTrackingService.setBestPubUtilsService(services.getBestPubUtilsService());
+        contentChangeTrackingService.setIsbnFolderBookkeeping(isbnFolderBookkeeping);
+
+        MetadataUpdateCache metadataUpdateCache = new MetadataUpdateCache();
+        metadataUpdateCache.setResponseCache(metadataUpdateResponseCache);
+
+        checkMetadataUpdatesWebscript = new CheckMetadataUpdatesWebscript();
+        checkMetadataUpdatesWebscript.setServiceRegistry(services.getServiceRegistry());
+        checkMetadataUpdatesWebscript.setContentChangeTrackingService(contentChangeTrackingService);
+        checkMetadataUpdatesWebscript.setMetadataUpdateCache(metadataUpdateCache);
+        checkMetadataUpdatesWebscript.setIoExecutorService(ioExecutorService);
+        checkMetadataUpdatesWebscript.setBestPubMetrics(bestPubMetrics);
+
+        isbnFolderNodeRef = createBook(chapters, files, tracked);
+        chapterCountService.syncPending();
+        bookSummaryService.refreshPending();
+        repository.snapshot();
+    }
+
+    /**
+     * Put the book back the way it was created, and forget cached chapter indexes and call counts.
+     */
+    public void reset() {
+        repository.reset();
+        chapterIndexCache.clear();
+        metadataUpdateResponseCache.clear();
+        bookSummaryCache.clear();
+        services.resetCallCounts();
+    }
+
+    public NodeRef getIsbnFolderNodeRef() {
+        return isbnFolderNodeRef;
+    }
+
+    public StandInServices getServices() {
+        return services;
+    }
+
+    public ChapterIndex getChapterIndex() {
+        return chapterIndexService.getChapterIndex(isbnFolderNodeRef);
+    }
+
+    /**
+     * Benchmarked operations
+     */
+
+    public void createChapter(int chapterNumber) {
+        createChapterActionRunner.createChapter(isbnFolderNodeRef, chapterNumber, "New chapter", "Benchmark");
+        chapterCountService.syncPending();
+        bookSummaryService.refreshPending();
+    }
+
+    public void deleteChapter(int chapterNumber) throws IOException {
+        NodeRef chapterFolderNodeRef = getChapterIndex().getChapterFolder(chapterNumber);
+        deleteChapterFolderWebscript.execute(
+                StandInServices.createRequest(Collections.singletonMap("nodeRef", chapterFolderNodeRef.toString())),
+                StandInServices.createResponse());
+        chapterCountService.syncPending();
+        bookSummaryService.refreshPending();
+    }
+
+    public void checkMetadataUpdates() throws IOException {
+        checkMetadataUpdatesWebscript.execute(
+                StandInServices.createRequest(Collections.singletonMap("nodeRef", isbnFolderNodeRef.toString())),
+                StandInServices.createResponse());
+    }
+
+    /**
+     * Syncs chapter counts when told to, standing in for the background sync after commit,
+     * as the in-memory repository has no transactions
+     */
+    private static class EndOfOperationChapterCountService extends ChapterCountService {
+        private final Set<NodeRef> pendingIsbnFolders = new LinkedHashSet<>();
+
+        @Override
+        public void scheduleSync(NodeRef isbnFolderNodeRef) {
+            pendingIsbnFolders.add(isbnFolderNodeRef);
+        }
+
+        void syncPending() {
+            for (NodeRef isbnFolderNodeRef : pendingIsbnFolders) {
+                sync(isbnFolderNodeRef);
+            }
+            pendingIsbnFolders.clear();
+        }
+    }
+
+    /**
+     * Refreshes book summaries when told to, standing in for the background refresh after commit
+     */
+    private static class EndOfOperationBookSummaryService extends BookSummaryService {
+        private final Set<NodeRef> pendingIsbnFolders = new LinkedHashSet<>();
+
+        @Override
+        public void scheduleRefresh(NodeRef isbnFolderNodeRef) {
+            pendingIsbnFolders.add(isbnFolderNodeRef);
+        }
+
+        void refreshPending() {
+            for (NodeRef isbnFolderNodeRef : pendingIsbnFolders) {
+                refresh(isbnFolderNodeRef);
+            }
+            pendingIsbnFolders.clear();
+        }
+    }
+
+    private NodeRef createBook(int chapters, int files, boolean tracked) {
+        Date published = new Date(System.currentTimeMillis() - 60000);
+        Date modified = new Date(published.getTime() - 60000);
+
+        NodeRef yearFolderNodeRef = repository.createNode(null, ContentModel.TYPE_FOLDER, "2017", null);
+
+        Map<QName, Serializable> bookProps = new HashMap<>();
+        bookProps.put(BestPubContentModel.BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS, chapters);
+        bookProps.put(BestPubContentModel.WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE, published);
+        bookProps.put(ContentModel.PROP_MODIFIED, modified);
+        if (tracked) {
+            bookProps.put(BestPubActionsModel.ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE, modified);
+        }
+        NodeRef isbnNodeRef = repository.createNode(yearFolderNodeRef, ContentModel.TYPE_FOLDER, ISBN, bookProps);
+        repository.addAspect(isbnNodeRef, BestPubContentModel.BookInfoAspect.QNAME, null);
+
+        for (int chapterNumber = 1; chapterNumber <= chapters; chapterNumber++) {
+            Map<QName, Serializable> chapterProps = new HashMap<>();
+            chapterProps.put(BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER, chapterNumber);
+            chapterProps.put(BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_TITLE, "Chapter " + chapterNumber);
+            chapterProps.put(BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_AUTHOR_NAME, "Author");
+            chapterProps.put(ContentModel.PROP_MODIFIED, modified);
+            NodeRef chapterFolderNodeRef = repository.createNode(isbnNodeRef,
+                    BestPubContentModel.ChapterFolderType.QNAME, CHAPTER_FOLDER_NAME_PREFIX + chapterNumber,
+                    chapterProps);
+            repository.addAspect(chapterFolderNodeRef, BestPubContentModel.ChapterInfoAspect.QNAME, null);
+
+            int chapterFiles = files / chapters + (chapterNumber <= files % chapters ? 1 : 0);
+            for (int fileNumber = 1; fileNumber <= chapterFiles; fileNumber++) {
+                Map<QName, Serializable> fileProps = new HashMap<>();
+                fileProps.put(BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER, chapterNumber);
+                fileProps.put(ContentModel.PROP_MODIFIED, modified);
+                NodeRef fileNodeRef = repository.createNode(chapterFolderNodeRef, ContentModel.TYPE_CONTENT,
+                        "file" + fileNumber + ".xhtml", fileProps);
+                repository.addAspect(fileNodeRef, BestPubContentModel.ChapterInfoAspect.QNAME, null);
+            }
+        }
+
+        return isbnNodeRef;
+    }
+
+    /**
+     * Updates the chapter number of the files in a renumbered chapter folder straight away,
+     * instead of in batches after commit, so the file updates are part of the measured work
+     */
+    private class InPlaceChapterContentUpdater extends ChapterContentUpdater {
+        @Override
+        public void scheduleUpdate(NodeRef chapterFolderNodeRef, int chapterNumber) {
+            for (NodeRef fileNodeRef : repository.getChildren(chapterFolderNodeRef)) {
+                if (services.getServiceRegistry().getNodeService().hasAspect(
+                        fileNodeRef, BestPubContentModel.ChapterInfoAspect.QNAME)) {
+                    services.getServiceRegistry().getNodeService().setProperty(fileNodeRef,
+                            BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER, chapterNumber);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.acme.bestpublishing.chapters.BookNaming;
+import org.apache.commons.lang.math.NumberUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The ISBN check, chapter number parsing, and chapter folder naming done for every chapter on
+ * every renumbering and for every ISBN folder in the bulk web scripts, with {@link BookNaming}
+ * and the way it was done before. Run with the GC profiler (the default for the benchmark
+ * profile) and compare <code>gc.alloc.rate.norm</code>, the bytes allocated per call.
+ * <p/>
+ * The BestPub utils service is not part of this project, the <code>legacy</code> benchmarks
+ * use a regular expression ISBN check and String.format chapter folder names in its place.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BookNamingBenchmark {
+    private static final Pattern ISBN_PATTERN = Pattern.compile("^(97[89])?\\d{9}[\\dX]$");
+
+    @Param({"9780000000002", "978-0-00-000000-2", "080442957X"})
+    public String isbn;
+
+    @Param({"42"})
+    public String chapterNumber;
+
+    private BookNaming bookNaming;
+
+    @Setup(Level.Trial)
+    public void createBookNaming() {
+        bookNaming = new BookNaming();
+        bookNaming.setBestPubUtilsService(new StandInServices(new InMemoryRepository()).getBestPubUtilsService());
+        bookNaming.init();
+    }
+
+    @Benchmark
+    public boolean isISBN() {
+        return BookNaming.isISBN(isbn);
+    }
+
+    @Benchmark
+    public boolean legacyIsISBN() {
+        return ISBN_PATTERN.matcher(isbn.replace("-", "")).matches();
+    }
+
+    @Benchmark
+    public int parseChapterNumber() {
+        return BookNaming.parseChapterNumber(chapterNumber);
+    }
+
+    @Benchmark
+    public int legacyParseChapterNumber() {
+        return NumberUtils.isNumber(chapterNumber) ? Integer.parseInt(chapterNumber) : -1;
+    }
+
+    @Benchmark
+    public String getChapterFolderName() {
+        return bookNaming.getChapterFolderName(BookNaming.parseChapterNumber(chapterNumber));
+    }
+
+    @Benchmark
+    public String legacyGetChapterFolderName() {
+        return String.format("%s%d", BookFixture.CHAPTER_FOLDER_NAME_PREFIX, Integer.parseInt(chapterNumber));
+    }
+}
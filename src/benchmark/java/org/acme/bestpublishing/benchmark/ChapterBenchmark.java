@@ -0,0 +1,83 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chapter operations against books of different shapes. Each operation runs on a freshly
+ * reset book, so chapters are inserted into and deleted from the same book every time.
+ * <p/>
+ * Inserting and deleting the first chapter renumbers every other chapter folder and its files,
+ * which is the worst case. Appending a chapter renumbers nothing.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChapterBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int chapters;
+
+    @Param({"0", "1000", "10000"})
+    public int files;
+
+    private BookFixture book;
+
+    @Setup(Level.Trial)
+    public void createBook() {
+        book = new BookFixture(chapters, files, true);
+    }
+
+    @Setup(Level.Invocation)
+    public void resetBook() {
+        book.reset();
+    }
+
+    @Benchmark
+    public void createChapterFirst(ServiceCalls calls) {
+        book.createChapter(1);
+        calls.record(book);
+    }
+
+    @Benchmark
+    public void createChapterLast(ServiceCalls calls) {
+        book.createChapter(chapters + 1);
+        calls.record(book);
+    }
+
+    @Benchmark
+    public void deleteChapterFirst(ServiceCalls calls) throws IOException {
+        book.deleteChapter(1);
+        calls.record(book);
+    }
+
+    @Benchmark
+    public void deleteChapterLast(ServiceCalls calls) throws IOException {
+        book.deleteChapter(chapters);
+        calls.record(book);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.acme.bestpublishing.chapters.ChapterDeletionJob;
+import org.acme.bestpublishing.chapters.ChapterDeletionService;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background deletion of a chapter folder with nested sub folders, each level holding
+ * <code>subFolders</code> folders and <code>filesPerFolder</code> files. Each operation deletes
+ * a freshly reset chapter, on the benchmark thread.
+ * <p/>
+ * Whatever the nesting, no transaction may delete more than <code>batchSize</code> nodes, and
+ * the whole chapter must be gone afterwards, otherwise the operation fails.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChapterDeletionBenchmark {
+
+    @Param({"0", "3"})
+    public int depth;
+
+    @Param({"3"})
+    public int subFolders;
+
+    @Param({"10", "100"})
+    public int filesPerFolder;
+
+    @Param({"25"})
+    public int batchSize;
+
+    private final InMemoryRepository repository = new InMemoryRepository();
+    private final StandInServices services = new StandInServices(repository);
+    private ChapterDeletionService chapterDeletionService;
+    private NodeRef chapterFolderNodeRef;
+    private int chapterNodes;
+
+    @Setup(Level.Trial)
+    public void createChapter() {
+        chapterDeletionService = new ChapterDeletionService();
+        chapterDeletionService.setServiceRegistry(services.getServiceRegistry());
+        chapterDeletionService.setIoExecutorService(new InlineIoExecutorService());
+        chapterDeletionService.setBatchSize(batchSize);
+        chapterDeletionService.init();
+
+        NodeRef stagingFolderNodeRef = repository.createNode(
+                null, ContentModel.TYPE_FOLDER, ChapterDeletionService.STAGING_CONTAINER, null);
+        chapterFolderNodeRef = repository.createNode(
+                stagingFolderNodeRef, ContentModel.TYPE_FOLDER, "chapter1", null);
+        chapterNodes = 1 + fill(chapterFolderNodeRef, depth);
+        repository.snapshot();
+    }
+
+    @Setup(Level.Invocation)
+    public void resetChapter() {
+        repository.reset();
+        services.resetCallCounts();
+    }
+
+    @Benchmark
+    public int deleteNestedChapter(ServiceCalls calls) {
+        ChapterDeletionJob job = chapterDeletionService.submit(chapterFolderNodeRef, null, false);
+        if (job.getStatus() != ChapterDeletionJob.Status.DONE || repository.exists(chapterFolderNodeRef)) {
+            throw new IllegalStateException("Chapter not deleted " + job + ": " + job.getError());
+        }
+        if (job.getDeletedNodes() != chapterNodes) {
+            throw new IllegalStateException("Counted " + job.getDeletedNodes() + " of " + chapterNodes +
+                    " deleted chapter nodes, a sub folder went with its subtree");
+        }
+        if (services.getMaxNodesDeletedPerTransaction() > batchSize) {
+            throw new IllegalStateException("A transaction deleted " + services.getMaxNodesDeletedPerTransaction() +
+                    " nodes, the batch size is " + batchSize);
+        }
+        calls.record(services);
+        return job.getDeletedNodes();
+    }
+
+    /**
+     * @return the number of nodes created under the folder
+     */
+    private int fill(NodeRef folderNodeRef, int levels) {
+        int created = 0;
+        for (int file = 1; file <= filesPerFolder; file++) {
+            repository.createNode(folderNodeRef, ContentModel.TYPE_CONTENT, "file" + file + ".xml", null);
+            created++;
+        }
+        if (levels > 0) {
+            for (int folder = 1; folder <= subFolders; folder++) {
+                NodeRef subFolderNodeRef = repository.createNode(
+                        folderNodeRef, ContentModel.TYPE_FOLDER, "section" + folder, null);
+                created += 1 + fill(subFolderNodeRef, levels - 1);
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Runs the deletion job on the thread that submits it, the in-memory repository is not thread safe
+     */
+    private static class InlineIoExecutorService extends IoExecutorService {
+        @Override
+        public ExecutorService newExecutor(String name, int threads) {
+            return new AbstractExecutorService() {
+                private volatile boolean shutdown;
+
+                @Override
+                public void execute(Runnable command) {
+                    command.run();
+                }
+
+                @Override
+                public void shutdown() {
+                    shutdown = true;
+                }
+
+                @Override
+                public List<Runnable> shutdownNow() {
+                    shutdown = true;
+                    return Collections.emptyList();
+                }
+
+                @Override
+                public boolean isShutdown() {
+                    return shutdown;
+                }
+
+                @Override
+                public boolean isTerminated() {
+                    return shutdown;
+                }
+
+                @Override
+                public boolean awaitTermination(long timeout, TimeUnit unit) {
+                    return shutdown;
+                }
+            };
+        }
+    }
+}
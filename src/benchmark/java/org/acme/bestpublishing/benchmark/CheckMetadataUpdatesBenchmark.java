@@ -0,0 +1,62 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metadata update check for a published, unchanged book, which is the common case when
+ * the book list is shown. A tracked book has a content change marker, an untracked book is
+ * checked by walking all its chapter folders and files.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CheckMetadataUpdatesBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int chapters;
+
+    @Param({"0", "1000", "10000"})
+    public int files;
+
+    @Param({"true", "false"})
+    public boolean tracked;
+
+    private BookFixture book;
+
+    @Setup(Level.Trial)
+    public void createBook() {
+        book = new BookFixture(chapters, files, tracked);
+    }
+
+    @Benchmark
+    public void checkMetadataUpdates(ServiceCalls calls) throws IOException {
+        book.getServices().resetCallCounts();
+        book.checkMetadataUpdates();
+        calls.record(book);
+    }
+}
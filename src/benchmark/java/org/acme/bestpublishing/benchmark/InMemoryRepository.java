@@ -0,0 +1,240 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * A minimal node store kept in memory, standing in for the Alfresco repository in benchmarks.
+ * Nodes have a type, aspects, properties, and one primary parent. Changes are reported to
+ * registered {@link NodeListener}s, the way policies would be fired in the repository.
+ * <p/>
+ * Not thread safe, each benchmark thread uses its own repository.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class InMemoryRepository {
+    public static final StoreRef STORE_REF = StoreRef.STORE_REF_WORKSPACE_SPACESSTORE;
+
+    /**
+     * Receives node changes, the stand-in for node service policies
+     */
+    public interface NodeListener {
+        void onCreateNode(ChildAssociationRef childAssocRef);
+
+        void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after);
+
+        void onDeleteNode(ChildAssociationRef childAssocRef);
+    }
+
+    static class Node {
+        private final NodeRef nodeRef;
+        private final QName type;
+        private final NodeRef parentRef;
+        private final Set<QName> aspects;
+        private final Map<QName, Serializable> props;
+        private final List<NodeRef> children;
+
+        Node(NodeRef nodeRef, QName type, NodeRef parentRef,
+             Set<QName> aspects, Map<QName, Serializable> props, List<NodeRef> children) {
+            this.nodeRef = nodeRef;
+            this.type = type;
+            this.parentRef = parentRef;
+            this.aspects = aspects;
+            this.props = props;
+            this.children = children;
+        }
+
+        Node copy() {
+            return new Node(nodeRef, type, parentRef,
+                    new HashSet<>(aspects), new HashMap<>(props), new ArrayList<>(children));
+        }
+    }
+
+    private Map<NodeRef, Node> nodes = new HashMap<>();
+    private Map<NodeRef, Node> snapshot;
+    private final Map<QName, List<NodeListener>> listeners = new HashMap<>();
+    private long nextId = 1;
+
+    /**
+     * Report changes to nodes of the passed in type to the listener.
+     */
+    public void addListener(QName type, NodeListener listener) {
+        listeners.computeIfAbsent(type, t -> new ArrayList<>()).add(listener);
+    }
+
+    /**
+     * Remember the current content so it can be restored with {@link #reset()}.
+     */
+    public void snapshot() {
+        snapshot = copy(nodes);
+    }
+
+    /**
+     * Restore the content saved with {@link #snapshot()}.
+     */
+    public void reset() {
+        nodes = copy(snapshot);
+    }
+
+    public NodeRef createNode(NodeRef parentRef, QName type, String name, Map<QName, Serializable> props) {
+        NodeRef nodeRef = new NodeRef(STORE_REF, "node-" + nextId++);
+        Map<QName, Serializable> nodeProps = new HashMap<>();
+        if (props != null) {
+            nodeProps.putAll(props);
+        }
+        nodeProps.put(ContentModel.PROP_NAME, name);
+        nodeProps.put(ContentModel.PROP_NODE_UUID, nodeRef.getId());
+        nodeProps.putIfAbsent(ContentModel.PROP_MODIFIED, new Date());
+        nodes.put(nodeRef, new Node(nodeRef, type, parentRef, new HashSet<>(), nodeProps, new ArrayList<>()));
+
+        if (parentRef != null) {
+            Node parent = getNode(parentRef);
+            for (NodeRef siblingRef : parent.children) {
+                if (name.equals(nodes.get(siblingRef).props.get(ContentModel.PROP_NAME))) {
+                    throw new IllegalStateException("Duplicate child name " + name + " in " + parentRef);
+                }
+            }
+            parent.children.add(nodeRef);
+            for (NodeListener listener : getListeners(type)) {
+                listener.onCreateNode(getPrimaryParent(nodeRef));
+            }
+        }
+
+        return nodeRef;
+    }
+
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    public boolean exists(NodeRef nodeRef) {
+        return nodes.containsKey(nodeRef);
+    }
+
+    public QName getType(NodeRef nodeRef) {
+        return getNode(nodeRef).type;
+    }
+
+    public boolean hasAspect(NodeRef nodeRef, QName aspect) {
+        return getNode(nodeRef).aspects.contains(aspect);
+    }
+
+    public Serializable getProperty(NodeRef nodeRef, QName propName) {
+        return getNode(nodeRef).props.get(propName);
+    }
+
+    public Map<QName, Serializable> getProperties(NodeRef nodeRef) {
+        return new HashMap<>(getNode(nodeRef).props);
+    }
+
+    public void addProperties(NodeRef nodeRef, Map<QName, Serializable> props) {
+        Node node = getNode(nodeRef);
+        Map<QName, Serializable> before = new HashMap<>(node.props);
+        node.props.putAll(props);
+        fireUpdate(node, before);
+    }
+
+    public void addAspect(NodeRef nodeRef, QName aspect, Map<QName, Serializable> props) {
+        Node node = getNode(nodeRef);
+        Map<QName, Serializable> before = new HashMap<>(node.props);
+        node.aspects.add(aspect);
+        if (props != null) {
+            node.props.putAll(props);
+        }
+        fireUpdate(node, before);
+    }
+
+    public ChildAssociationRef getPrimaryParent(NodeRef nodeRef) {
+        Node node = getNode(nodeRef);
+        return new ChildAssociationRef(ContentModel.ASSOC_CONTAINS, node.parentRef,
+                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI,
+                        (String) node.props.get(ContentModel.PROP_NAME)), nodeRef);
+    }
+
+    /**
+     * @param types the child node types to include, or null for all children
+     */
+    public List<ChildAssociationRef> getChildAssocs(NodeRef parentRef, Set<QName> types) {
+        List<ChildAssociationRef> childAssocs = new ArrayList<>();
+        for (NodeRef childRef : getNode(parentRef).children) {
+            if (types == null || types.contains(nodes.get(childRef).type)) {
+                childAssocs.add(getPrimaryParent(childRef));
+            }
+        }
+        return childAssocs;
+    }
+
+    public List<NodeRef> getChildren(NodeRef parentRef) {
+        return new ArrayList<>(getNode(parentRef).children);
+    }
+
+    public void deleteNode(NodeRef nodeRef) {
+        Node node = getNode(nodeRef);
+        ChildAssociationRef childAssocRef = getPrimaryParent(nodeRef);
+        for (NodeRef childRef : new ArrayList<>(node.children)) {
+            deleteNode(childRef);
+        }
+        if (node.parentRef != null) {
+            getNode(node.parentRef).children.remove(nodeRef);
+        }
+        nodes.remove(nodeRef);
+        for (NodeListener listener : getListeners(node.type)) {
+            listener.onDeleteNode(childAssocRef);
+        }
+    }
+
+    private Node getNode(NodeRef nodeRef) {
+        Node node = nodes.get(nodeRef);
+        if (node == null) {
+            throw new IllegalArgumentException("Node does not exist " + nodeRef);
+        }
+        return node;
+    }
+
+    private void fireUpdate(Node node, Map<QName, Serializable> before) {
+        List<NodeListener> typeListeners = getListeners(node.type);
+        if (!typeListeners.isEmpty()) {
+            Map<QName, Serializable> after = new HashMap<>(node.props);
+            for (NodeListener listener : typeListeners) {
+                listener.onUpdateProperties(node.nodeRef, before, after);
+            }
+        }
+    }
+
+    private List<NodeListener> getListeners(QName type) {
+        List<NodeListener> typeListeners = listeners.get(type);
+        return typeListeners != null ? typeListeners : Collections.emptyList();
+    }
+
+    private static Map<NodeRef, Node> copy(Map<NodeRef, Node> from) {
+        Map<NodeRef, Node> to = new HashMap<>(from.size() * 2);
+        for (Node node : from.values()) {
+            to.put(node.nodeRef, node.copy());
+        }
+        return to;
+    }
+}
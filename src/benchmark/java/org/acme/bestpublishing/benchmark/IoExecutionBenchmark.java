@@ -0,0 +1,105 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sustained metadata update checks per second when every check is handed to an
+ * {@link IoExecutorService} executor and waited for, the way publishing hands books to its
+ * executor, with platform threads (the default) and with virtual threads.
+ * <p/>
+ * Each check runs the real web script against its own untracked book, walking all chapter
+ * folders and files through the stand-in services, and every node service and file folder
+ * service call waits <code>callLatencyMicros</code> in place of a database round trip.
+ * With platform threads the executor is a pool of <code>poolSize</code> threads, with virtual
+ * threads it runs up to <code>concurrency</code> checks at the same time. Both get more checks
+ * than the platform pool has threads, so the platform pool queues them where virtual threads
+ * do not. With virtual threads on a JDK before 21 the platform threads are measured at
+ * <code>concurrency</code> threads.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class IoExecutionBenchmark {
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"8"})
+    public int poolSize;
+
+    @Param({"64"})
+    public int concurrency;
+
+    @Param({"200"})
+    public long callLatencyMicros;
+
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void createExecutor() {
+        IoExecutorService ioExecutorService = new IoExecutorService();
+        ioExecutorService.setVirtualThreads(virtualThreads);
+        ioExecutorService.init();
+        executor = ioExecutorService.newExecutor("BenchmarkIo", virtualThreads ? concurrency : poolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * One book per benchmark thread, so checks never share a stand-in repository
+     */
+    @State(Scope.Thread)
+    public static class Book {
+        @Param({"10"})
+        public int chapters;
+
+        @Param({"100"})
+        public int files;
+
+        private BookFixture fixture;
+
+        @Setup(Level.Trial)
+        public void createBook(IoExecutionBenchmark benchmark) {
+            fixture = new BookFixture(chapters, files, false);
+            fixture.getServices().setCallLatencyMicros(benchmark.callLatencyMicros);
+        }
+    }
+
+    @Benchmark
+    public void checkMetadataUpdates(Book book) throws Exception {
+        executor.submit(() -> {
+            book.fixture.checkMetadataUpdates();
+            return null;
+        }).get();
+    }
+}
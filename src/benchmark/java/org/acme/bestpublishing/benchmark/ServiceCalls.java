@@ -0,0 +1,61 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Service call counts reported next to the benchmark score, summed per iteration.
+ * Divide by <code>operations</code> to get the number of calls per benchmarked operation.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class ServiceCalls {
+    public long operations;
+    public long nodeServiceCalls;
+    public long fileFolderServiceCalls;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+        operations = 0;
+        nodeServiceCalls = 0;
+        fileFolderServiceCalls = 0;
+    }
+
+    /**
+     * Add the calls made by one operation, the call counts are reset by {@link BookFixture#reset()}.
+     */
+    public void record(BookFixture book) {
+        record(book.getServices());
+    }
+
+    /**
+     * Add the calls made by one operation on the passed in services, reset their call counts before the operation.
+     */
+    public void record(StandInServices services) {
+        operations++;
+        nodeServiceCalls += services.getNodeServiceCalls();
+        fileFolderServiceCalls += services.getFileFolderServiceCalls();
+    }
+}
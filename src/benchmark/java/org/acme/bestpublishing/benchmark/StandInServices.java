@@ -0,0 +1,495 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.benchmark;
+
+import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
+import org.acme.bestpublishing.services.BestPubUtilsService;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.DictionaryService;
+import org.alfresco.service.cmr.model.FileFolderService;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.GUID;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dynamic proxy implementations of the Alfresco and BestPub service interfaces used by the
+ * chapter and publishing code, backed by an {@link InMemoryRepository}. Only the methods the
+ * benchmarked code calls are implemented, anything else throws {@link UnsupportedOperationException}.
+ * <p/>
+ * Every call to the node service and the file folder service is counted, and can be made to
+ * take a fixed time standing in for the database round trip.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class StandInServices {
+    private final InMemoryRepository repository;
+
+    private long nodeServiceCalls;
+    private long fileFolderServiceCalls;
+    private long callLatencyNanos;
+    private int maxNodesDeletedPerTransaction;
+
+    private final NodeService nodeService;
+    private final FileFolderService fileFolderService;
+    private final DictionaryService dictionaryService;
+    private final TransactionService transactionService;
+    private final PermissionService permissionService;
+    private final JobLockService jobLockService;
+    private final NodeDAO nodeDAO;
+    private final BehaviourFilter behaviourFilter;
+    private final ServiceRegistry serviceRegistry;
+    private final BestPubUtilsService bestPubUtilsService;
+    private final AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+
+    public StandInServices(InMemoryRepository repository) {
+        this.repository = repository;
+        nodeService = proxy(NodeService.class, this::invokeNodeService);
+        fileFolderService = proxy(FileFolderService.class, this::invokeFileFolderService);
+        dictionaryService = proxy(DictionaryService.class, this::invokeDictionaryService);
+        transactionService = proxy(TransactionService.class, this::invokeTransactionService);
+        permissionService = proxy(PermissionService.class, this::invokePermissionService);
+        jobLockService = proxy(JobLockService.class, this::invokeJobLockService);
+        nodeDAO = proxy(NodeDAO.class, this::invokeNodeDAO);
+        behaviourFilter = proxy(BehaviourFilter.class, this::invokeBehaviourFilter);
+        serviceRegistry = proxy(ServiceRegistry.class, this::invokeServiceRegistry);
+        bestPubUtilsService = proxy(BestPubUtilsService.class, this::invokeBestPubUtilsService);
+        alfrescoRepoUtilsService = proxy(AlfrescoRepoUtilsService.class, this::invokeAlfrescoRepoUtilsService);
+    }
+
+    public ServiceRegistry getServiceRegistry() {
+        return serviceRegistry;
+    }
+
+    public BestPubUtilsService getBestPubUtilsService() {
+        return bestPubUtilsService;
+    }
+
+    public AlfrescoRepoUtilsService getAlfrescoRepoUtilsService() {
+        return alfrescoRepoUtilsService;
+    }
+
+    public JobLockService getJobLockService() {
+        return jobLockService;
+    }
+
+    public NodeDAO getNodeDAO() {
+        return nodeDAO;
+    }
+
+    public BehaviourFilter getBehaviourFilter() {
+        return behaviourFilter;
+    }
+
+    public long getNodeServiceCalls() {
+        return nodeServiceCalls;
+    }
+
+    public long getFileFolderServiceCalls() {
+        return fileFolderServiceCalls;
+    }
+
+    /**
+     * Make every node service and file folder service call wait, the way a database round trip would.
+     *
+     * @param callLatencyMicros the time each call takes, 0 for no latency
+     */
+    public void setCallLatencyMicros(long callLatencyMicros) {
+        this.callLatencyNanos = TimeUnit.MICROSECONDS.toNanos(callLatencyMicros);
+    }
+
+    /**
+     * @return the most nodes, subtrees included, deleted by one read-write transaction since the counts were reset
+     */
+    public int getMaxNodesDeletedPerTransaction() {
+        return maxNodesDeletedPerTransaction;
+    }
+
+    public void resetCallCounts() {
+        nodeServiceCalls = 0;
+        fileFolderServiceCalls = 0;
+        maxNodesDeletedPerTransaction = 0;
+    }
+
+    /**
+     * A web script request with the passed in parameters.
+     */
+    public static WebScriptRequest createRequest(Map<String, String> parameters) {
+        return proxy(WebScriptRequest.class, (method, args) -> {
+            if (method.getName().equals("getParameter")) {
+                return parameters.get((String) args[0]);
+            }
+            if (method.getName().equals("getHeader")) {
+                return null;
+            }
+            throw unsupported(method);
+        });
+    }
+
+    /**
+     * A web script response that collects the written response in memory.
+     */
+    public static WebScriptResponse createResponse() {
+        StringWriter writer = new StringWriter();
+        return proxy(WebScriptResponse.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getWriter":
+                    return writer;
+                case "setContentType":
+                case "setContentEncoding":
+                case "setStatus":
+                case "setCache":
+                case "setHeader":
+                    return null;
+                default:
+                    throw unsupported(method);
+            }
+        });
+    }
+
+    /**
+     * Service implementations
+     */
+
+    @SuppressWarnings("unchecked")
+    private Object invokeNodeService(Method method, Object[] args) {
+        nodeServiceCalls++;
+        waitForCall();
+        switch (method.getName()) {
+            case "exists":
+                return repository.exists((NodeRef) args[0]);
+            case "getType":
+                return repository.getType((NodeRef) args[0]);
+            case "hasAspect":
+                return repository.hasAspect((NodeRef) args[0], (QName) args[1]);
+            case "getProperty":
+                return repository.getProperty((NodeRef) args[0], (QName) args[1]);
+            case "getProperties":
+                return repository.getProperties((NodeRef) args[0]);
+            case "setProperty":
+                repository.addProperties((NodeRef) args[0],
+                        Collections.singletonMap((QName) args[1], (Serializable) args[2]));
+                return null;
+            case "addProperties":
+                repository.addProperties((NodeRef) args[0], (Map<QName, Serializable>) args[1]);
+                return null;
+            case "addAspect":
+                repository.addAspect((NodeRef) args[0], (QName) args[1], (Map<QName, Serializable>) args[2]);
+                return null;
+            case "getPrimaryParent":
+                return repository.getPrimaryParent((NodeRef) args[0]);
+            case "getChildAssocs":
+                if (args.length == 1) {
+                    return repository.getChildAssocs((NodeRef) args[0], null);
+                }
+                if (args.length == 2 && args[1] instanceof Set) {
+                    return repository.getChildAssocs((NodeRef) args[0], (Set<QName>) args[1]);
+                }
+                if (args.length == 5 && args[1] == RegexQNamePattern.MATCH_ALL &&
+                        args[2] == RegexQNamePattern.MATCH_ALL) {
+                    List<ChildAssociationRef> childAssocs = repository.getChildAssocs((NodeRef) args[0], null);
+                    return childAssocs.subList(0, Math.min((Integer) args[3], childAssocs.size()));
+                }
+                throw unsupported(method);
+            case "deleteNode":
+                repository.deleteNode((NodeRef) args[0]);
+                return null;
+            default:
+                throw unsupported(method);
+        }
+    }
+
+    private Object invokeFileFolderService(Method method, Object[] args) {
+        fileFolderServiceCalls++;
+        waitForCall();
+        switch (method.getName()) {
+            case "create":
+                if (args.length != 3) {
+                    throw unsupported(method);
+                }
+                return createFileInfo(repository.createNode(
+                        (NodeRef) args[0], (QName) args[2], (String) args[1], null));
+            case "listFiles":
+                return listChildren((NodeRef) args[0], false);
+            case "listFolders":
+                return listChildren((NodeRef) args[0], true);
+            default:
+                throw unsupported(method);
+        }
+    }
+
+    private void waitForCall() {
+        long deadline = System.nanoTime() + callLatencyNanos;
+        for (long remaining = callLatencyNanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private Object invokeDictionaryService(Method method, Object[] args) {
+        if (method.getName().equals("isSubClass")) {
+            QName className = (QName) args[0];
+            QName ofClassName = (QName) args[1];
+            return className.equals(ofClassName) ||
+                    (ContentModel.TYPE_FOLDER.equals(ofClassName) && isFolderType(className));
+        }
+        throw unsupported(method);
+    }
+
+    private Object invokeServiceRegistry(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getNodeService":
+                return nodeService;
+            case "getFileFolderService":
+                return fileFolderService;
+            case "getDictionaryService":
+                return dictionaryService;
+            case "getTransactionService":
+                return transactionService;
+            case "getPermissionService":
+                return permissionService;
+            default:
+                throw unsupported(method);
+        }
+    }
+
+    private Object invokeTransactionService(Method method, Object[] args) {
+        if (method.getName().equals("getRetryingTransactionHelper")) {
+            return new InlineTransactionHelper(this);
+        }
+        throw unsupported(method);
+    }
+
+    /**
+     * Cluster locks are always free, there is only one benchmark thread per book
+     */
+    private Object invokeJobLockService(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getLock":
+                return GUID.generate();
+            case "releaseLock":
+                return true;
+            default:
+                throw unsupported(method);
+        }
+    }
+
+    /**
+     * All nodes are in memory already, so bulk loading them is a no-op
+     */
+    private Object invokeNodeDAO(Method method, Object[] args) {
+        if (method.getName().equals("cacheNodes")) {
+            return null;
+        }
+        throw unsupported(method);
+    }
+
+    /**
+     * The benchmark user may do anything
+     */
+    private Object invokePermissionService(Method method, Object[] args) {
+        if (method.getName().equals("hasPermission")) {
+            return AccessStatus.ALLOWED;
+        }
+        throw unsupported(method);
+    }
+
+    /**
+     * The in-memory repository has no auditable behaviour, so there is nothing to disable
+     */
+    private Object invokeBehaviourFilter(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "disableBehaviour":
+            case "enableBehaviour":
+                return null;
+            default:
+                throw unsupported(method);
+        }
+    }
+
+    private Object invokeBestPubUtilsService(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getChapterFolderName":
+                return BookFixture.CHAPTER_FOLDER_NAME_PREFIX + args[0];
+            case "checkModifiedDates":
+                // Walk the book the way the utils service does when no content change marker is available
+                NodeRef modifiedNodeRef = findModifiedAfter((NodeRef) args[0], (Date) args[1]);
+                return modifiedNodeRef == null ? null : toReturnType(method, modifiedNodeRef);
+            default:
+                throw unsupported(method);
+        }
+    }
+
+    private Object invokeAlfrescoRepoUtilsService(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "getDisplayPathForNode":
+                return String.valueOf(args[0]);
+            case "copyAspects":
+            case "writeJsonResponse":
+                return null;
+            default:
+                throw unsupported(method);
+        }
+    }
+
+    private List<FileInfo> listChildren(NodeRef parentRef, boolean folders) {
+        List<FileInfo> children = new ArrayList<>();
+        for (NodeRef childRef : repository.getChildren(parentRef)) {
+            if (isFolderType(repository.getType(childRef)) == folders) {
+                children.add(createFileInfo(childRef));
+            }
+        }
+        return children;
+    }
+
+    private FileInfo createFileInfo(NodeRef nodeRef) {
+        return proxy(FileInfo.class, (method, args) -> {
+            switch (method.getName()) {
+                case "getNodeRef":
+                    return nodeRef;
+                case "getName":
+                    return repository.getProperty(nodeRef, ContentModel.PROP_NAME);
+                case "getType":
+                    return repository.getType(nodeRef);
+                case "isFolder":
+                    return isFolderType(repository.getType(nodeRef));
+                case "getModifiedDate":
+                    return repository.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
+                case "getContentData":
+                    return repository.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+                case "getProperties":
+                    return repository.getProperties(nodeRef);
+                default:
+                    throw unsupported(method);
+            }
+        });
+    }
+
+    private NodeRef findModifiedAfter(NodeRef nodeRef, Date date) {
+        Date modified = (Date) repository.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
+        if (modified != null && modified.after(date)) {
+            return nodeRef;
+        }
+        for (NodeRef childRef : repository.getChildren(nodeRef)) {
+            NodeRef modifiedNodeRef = findModifiedAfter(childRef, date);
+            if (modifiedNodeRef != null) {
+                return modifiedNodeRef;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isFolderType(QName type) {
+        return !ContentModel.TYPE_CONTENT.equals(type);
+    }
+
+    private static Object toReturnType(Method method, NodeRef nodeRef) {
+        Class<?> returnType = method.getReturnType();
+        if (returnType.isInstance(nodeRef)) {
+            return nodeRef;
+        }
+        if (returnType == String.class) {
+            return nodeRef.toString();
+        }
+        if (returnType == Boolean.class || returnType == boolean.class) {
+            return Boolean.TRUE;
+        }
+        throw unsupported(method);
+    }
+
+    /**
+     * Proxy plumbing
+     */
+
+    private interface Invoker {
+        Object invoke(Method method, Object[] args) throws Throwable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Invoker invoker) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "StandIn" + type.getSimpleName();
+                }
+            }
+            return invoker.invoke(method, args != null ? args : new Object[0]);
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    private static UnsupportedOperationException unsupported(Method method) {
+        return new UnsupportedOperationException("Not implemented by the stand-in " +
+                method.getDeclaringClass().getSimpleName() + ": " + method);
+    }
+
+    /**
+     * Runs the callback straight away, there are no transactions in the in-memory repository.
+     * Read-write callbacks have the nodes they delete counted, as the size of a transaction.
+     */
+    private static class InlineTransactionHelper extends RetryingTransactionHelper {
+        private final StandInServices services;
+
+        InlineTransactionHelper(StandInServices services) {
+            this.services = services;
+        }
+
+        @Override
+        public <R> R doInTransaction(RetryingTransactionCallback<R> cb, boolean readOnly, boolean requiresNew) {
+            int nodeCount = services.repository.getNodeCount();
+            try {
+                return cb.execute();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            } finally {
+                if (!readOnly) {
+                    services.maxNodesDeletedPerTransaction = Math.max(services.maxNodesDeletedPerTransaction,
+                            nodeCount - services.repository.getNodeCount());
+                }
+            }
+        }
+    }
+}
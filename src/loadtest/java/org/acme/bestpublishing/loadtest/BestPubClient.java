@@ -0,0 +1,261 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.loadtest;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * HTTP client for the BestPub web scripts, and for the parts of the Alfresco public REST API
+ * the load test uses to set up the book tree. Requests are sent with preemptive basic
+ * authentication so no request is answered with a 401 challenge first.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BestPubClient implements Closeable {
+    private static final String WEBSCRIPTS = "/service/bestpub";
+    private static final String PUBLIC_API = "/api/-default-/public/alfresco/versions/1";
+    private static final String NODE_REF_PREFIX = "workspace://SpacesStore/";
+
+    private final String baseUrl;
+    private final String authorization;
+    private final CloseableHttpClient httpClient;
+
+    public BestPubClient(LoadTestConfig config) {
+        baseUrl = config.getBaseUrl();
+        authorization = "Basic " + Base64.getEncoder().encodeToString(
+                (config.getUser() + ":" + config.getPassword()).getBytes(StandardCharsets.UTF_8));
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.getClients() + 1);
+        connectionManager.setDefaultMaxPerRoute(config.getClients() + 1);
+        httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    /**
+     * BestPub web scripts
+     */
+
+    public Response checkMetadataUpdates(String isbnFolderNodeRef, String etag) throws IOException {
+        HttpGet get = new HttpGet(baseUrl + WEBSCRIPTS + "/checkMetadataUpdates?nodeRef=" + encode(isbnFolderNodeRef));
+        if (etag != null) {
+            get.setHeader("If-None-Match", etag);
+        }
+        return execute(get);
+    }
+
+    public Response createChapter(String isbnFolderNodeRef, int chapterNumber) throws IOException, JSONException {
+        return createChapters(isbnFolderNodeRef, chapterNumber, 1);
+    }
+
+    /**
+     * Create chapters <code>firstChapterNumber</code> and onwards, moving up existing chapters to make room.
+     */
+    public Response createChapters(String isbnFolderNodeRef, int firstChapterNumber, int count)
+            throws IOException, JSONException {
+        JSONArray chapters = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            chapters.put(new JSONObject()
+                    .put("chapterNumber", firstChapterNumber + i)
+                    .put("chapterTitle", "Load test chapter")
+                    .put("chapterAuthor", "Load Test"));
+        }
+        JSONObject body = new JSONObject().put("nodeRef", isbnFolderNodeRef).put("chapters", chapters);
+        return execute(post(baseUrl + WEBSCRIPTS + "/createChapters", body));
+    }
+
+    public Response deleteChapterFolder(String chapterFolderNodeRef, boolean async) throws IOException {
+        return execute(new HttpGet(baseUrl + WEBSCRIPTS + "/deleteChapterFolder?nodeRef=" +
+                encode(chapterFolderNodeRef) + "&async=" + async));
+    }
+
+    public Response publishBook(String isbnFolderNodeRef, String isbn) throws IOException {
+        return execute(new HttpGet(baseUrl + WEBSCRIPTS + "/publishBookToWeb?nodeRef=" +
+                encode(isbnFolderNodeRef) + "&bookIsbn=" + encode(isbn)));
+    }
+
+    /**
+     * Alfresco public REST API, node ids are turned into node references for the web scripts
+     */
+
+    /**
+     * @return the document library node reference of the site, created with the site if there is no such site
+     */
+    public String getOrCreateDocumentLibrary(String siteShortName) throws IOException, JSONException {
+        String containerUrl = baseUrl + PUBLIC_API + "/sites/" + encode(siteShortName) + "/containers/documentLibrary";
+        Response response = execute(new HttpGet(containerUrl));
+        if (response.getStatus() == 404) {
+            JSONObject site = new JSONObject().put("id", siteShortName).put("title", siteShortName)
+                    .put("visibility", "PUBLIC");
+            expect(execute(post(baseUrl + PUBLIC_API + "/sites", site)), 201, "create site " + siteShortName);
+            response = execute(new HttpGet(containerUrl));
+        }
+        expect(response, 200, "get document library of site " + siteShortName);
+        return toNodeRef(response.getJson().getJSONObject("entry").getString("id"));
+    }
+
+    /**
+     * @return the node reference of the named child, or null if there is none
+     */
+    public String getChild(String parentNodeRef, String name) throws IOException, JSONException {
+        Response response = execute(new HttpGet(baseUrl + PUBLIC_API + "/nodes/" + toId(parentNodeRef) +
+                "?relativePath=" + encode(name)));
+        if (response.getStatus() == 404) {
+            return null;
+        }
+        expect(response, 200, "get " + name);
+        return toNodeRef(response.getJson().getJSONObject("entry").getString("id"));
+    }
+
+    /**
+     * @return the node references of the child folders, in name order
+     */
+    public List<String> getChildFolders(String parentNodeRef) throws IOException, JSONException {
+        Response response = execute(new HttpGet(baseUrl + PUBLIC_API + "/nodes/" + toId(parentNodeRef) +
+                "/children?where=" + encode("(isFolder=true)") + "&orderBy=name&maxItems=10000"));
+        expect(response, 200, "list folders in " + parentNodeRef);
+        JSONArray entries = response.getJson().getJSONObject("list").getJSONArray("entries");
+        List<String> folders = new ArrayList<>(entries.length());
+        for (int i = 0; i < entries.length(); i++) {
+            folders.add(toNodeRef(entries.getJSONObject(i).getJSONObject("entry").getString("id")));
+        }
+        return folders;
+    }
+
+    public String createFolder(String parentNodeRef, String name) throws IOException, JSONException {
+        JSONObject folder = new JSONObject().put("name", name).put("nodeType", "cm:folder");
+        Response response = execute(post(baseUrl + PUBLIC_API + "/nodes/" + toId(parentNodeRef) + "/children", folder));
+        expect(response, 201, "create folder " + name);
+        return toNodeRef(response.getJson().getJSONObject("entry").getString("id"));
+    }
+
+    public void deleteNode(String nodeRef) throws IOException {
+        expect(execute(new HttpDelete(baseUrl + PUBLIC_API + "/nodes/" + toId(nodeRef) + "?permanent=true")),
+                204, "delete " + nodeRef);
+    }
+
+    private HttpPost post(String url, JSONObject body) {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(new StringEntity(body.toString(), ContentType.APPLICATION_JSON));
+        return post;
+    }
+
+    private Response execute(HttpRequestBase request) throws IOException {
+        request.setHeader("Authorization", authorization);
+        request.setHeader("Accept", "application/json");
+        long start = System.nanoTime();
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            String body = response.getEntity() != null ?
+                    EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : "";
+            return new Response(response, body, System.nanoTime() - start);
+        }
+    }
+
+    private static void expect(Response response, int status, String what) {
+        if (response.getStatus() != status) {
+            throw new IllegalStateException("Could not " + what + ", HTTP " + response.getStatus() + ": " +
+                    response.getBody());
+        }
+    }
+
+    private static String toNodeRef(String id) {
+        return NODE_REF_PREFIX + id;
+    }
+
+    private static String toId(String nodeRef) {
+        return nodeRef.substring(nodeRef.lastIndexOf('/') + 1);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+    /**
+     * A response that has been read in full
+     */
+    public static class Response {
+        private final int status;
+        private final String etag;
+        private final String body;
+        private final long durationNanos;
+
+        Response(HttpResponse response, String body, long durationNanos) {
+            this.status = response.getStatusLine().getStatusCode();
+            Header etagHeader = response.getFirstHeader("ETag");
+            this.etag = etagHeader != null ? etagHeader.getValue() : null;
+            this.body = body;
+            this.durationNanos = durationNanos;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public JSONObject getJson() throws JSONException {
+            return new JSONObject(body);
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public boolean isSuccess() {
+            return status >= 200 && status < 300 || status == 304;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.loadtest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic /{year}/{isbn}/{chapter} folders in the document library of the book management site.
+ * ISBN folders are plain folders named with a generated ISBN-13, and chapters are created with the
+ * createChapters web script, the same way the book management site creates them.
+ * <p/>
+ * The year folders are deleted and generated again before every run unless <code>resetTree=false</code>,
+ * so each run starts from a book tree of the configured size.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BookTree {
+    /**
+     * Chapters created per createChapters request while generating the tree
+     */
+    private static final int CHAPTER_BATCH_SIZE = 100;
+
+    private final List<Book> books;
+
+    private BookTree(List<Book> books) {
+        this.books = books;
+    }
+
+    public static BookTree generate(BestPubClient client, LoadTestConfig config) throws IOException, JSONException {
+        String documentLibrary = client.getOrCreateDocumentLibrary(config.getSiteShortName());
+
+        List<Book> books = new ArrayList<>();
+        List<String> years = config.getYears();
+        for (int yearIndex = 0; yearIndex < years.size(); yearIndex++) {
+            String year = years.get(yearIndex);
+            String yearFolder = client.getChild(documentLibrary, year);
+            if (yearFolder != null && config.isResetTree()) {
+                client.deleteNode(yearFolder);
+                yearFolder = null;
+            }
+            if (yearFolder == null) {
+                yearFolder = client.createFolder(documentLibrary, year);
+            }
+
+            for (int bookIndex = 0; bookIndex < config.getBooksPerYear(); bookIndex++) {
+                books.add(generateBook(client, config, yearFolder, createIsbn(yearIndex, bookIndex)));
+            }
+            System.out.println("Book tree for " + year + " ready, " + config.getBooksPerYear() + " books");
+        }
+        return new BookTree(books);
+    }
+
+    private static Book generateBook(BestPubClient client, LoadTestConfig config, String yearFolder, String isbn)
+            throws IOException, JSONException {
+        String isbnFolder = client.getChild(yearFolder, isbn);
+        if (isbnFolder == null) {
+            isbnFolder = client.createFolder(yearFolder, isbn);
+        }
+
+        Book book = new Book(isbn, isbnFolder);
+        for (String chapterFolder : client.getChildFolders(isbnFolder)) {
+            book.addChapter(chapterFolder);
+        }
+        while (book.getChapterCount() < config.getChaptersPerBook()) {
+            int count = Math.min(CHAPTER_BATCH_SIZE, config.getChaptersPerBook() - book.getChapterCount());
+            BestPubClient.Response response = client.createChapters(isbnFolder, book.getChapterCount() + 1, count);
+            if (!response.isSuccess()) {
+                throw new IllegalStateException("Could not create chapters for " + isbn + ", HTTP " +
+                        response.getStatus() + ": " + response.getBody());
+            }
+            JSONArray chapters = response.getJson().getJSONArray("chapters");
+            for (int i = 0; i < chapters.length(); i++) {
+                book.addChapter(chapters.getJSONObject(i).getString("nodeRef"));
+            }
+        }
+        return book;
+    }
+
+    /**
+     * @return a valid ISBN-13 in the 979 prefix, unique per year and book index
+     */
+    static String createIsbn(int yearIndex, int bookIndex) {
+        String digits = String.format("979%02d%07d", yearIndex % 100, bookIndex);
+        int sum = 0;
+        for (int i = 0; i < digits.length(); i++) {
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    public List<Book> getBooks() {
+        return Collections.unmodifiableList(books);
+    }
+
+    public Book getRandomBook(Random random) {
+        return books.get(random.nextInt(books.size()));
+    }
+
+    /**
+     * One ISBN folder and its chapter folders. Chapter folders keep their node reference when they
+     * are renumbered, so the order of the list does not matter.
+     */
+    public static class Book {
+        private final String isbn;
+        private final String nodeRef;
+
+        /**
+         * Guarded by this
+         */
+        private final List<String> chapters = new ArrayList<>();
+
+        Book(String isbn, String nodeRef) {
+            this.isbn = isbn;
+            this.nodeRef = nodeRef;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public String getNodeRef() {
+            return nodeRef;
+        }
+
+        public synchronized int getChapterCount() {
+            return chapters.size();
+        }
+
+        public synchronized void addChapter(String chapterNodeRef) {
+            chapters.add(chapterNodeRef);
+        }
+
+        /**
+         * Take a chapter out of the book so no other client deletes it too, it is put back
+         * with {@link #addChapter(String)} if the delete fails.
+         *
+         * @return a chapter folder, or null if the book is down to one chapter
+         */
+        public synchronized String takeRandomChapter(Random random) {
+            if (chapters.size() <= 1) {
+                return null;
+            }
+            int last = chapters.size() - 1;
+            Collections.swap(chapters, random.nextInt(chapters.size()), last);
+            return chapters.remove(last);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.loadtest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencies and outcomes of the requests to one web script during the measured part of a run.
+ * Every latency is kept so percentiles are exact, a run of a few minutes is well within memory.
+ * <p/>
+ * A request either succeeds (2xx or 304), is rejected by design (409 chapters locked by another
+ * request, 503 queue full or too many requests), or fails (any other status, or no response).
+ * Percentiles are over successful requests.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class EndpointStats {
+    public static final int NO_RESPONSE = -1;
+
+    private final String endpoint;
+
+    /**
+     * Guarded by this
+     */
+    private long[] latencies = new long[1024];
+    private int successes;
+    private int rejected;
+    private int errors;
+
+    public EndpointStats(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @param status the HTTP status, or {@link #NO_RESPONSE}
+     * @param durationNanos how long the request took
+     */
+    public synchronized void record(int status, long durationNanos) {
+        if (status >= 200 && status < 300 || status == 304) {
+            if (successes == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[successes++] = durationNanos;
+        } else if (status == 409 || status == 503) {
+            rejected++;
+        } else {
+            errors++;
+        }
+    }
+
+    /**
+     * @param measuredSeconds length of the measured part of the run
+     * @return the summary reported and compared against the baseline
+     */
+    public synchronized JSONObject summarize(double measuredSeconds) throws JSONException {
+        long[] sorted = Arrays.copyOf(latencies, successes);
+        Arrays.sort(sorted);
+        int requests = successes + rejected + errors;
+
+        JSONObject summary = new JSONObject();
+        summary.put("requests", requests);
+        summary.put("successes", successes);
+        summary.put("rejected", rejected);
+        summary.put("errors", errors);
+        summary.put("errorRate", requests > 0 ? errors / (double) requests : 0);
+        summary.put("rejectedRate", requests > 0 ? rejected / (double) requests : 0);
+        summary.put("throughputPerSecond", measuredSeconds > 0 ? successes / measuredSeconds : 0);
+        summary.put("p50Ms", percentileMillis(sorted, 50));
+        summary.put("p95Ms", percentileMillis(sorted, 95));
+        summary.put("p99Ms", percentileMillis(sorted, 99));
+        summary.put("maxMs", sorted.length > 0 ? toMillis(sorted[sorted.length - 1]) : 0);
+        return summary;
+    }
+
+    private static double percentileMillis(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(sorted.length * percentile / 100.0);
+        return toMillis(sorted[Math.max(0, rank - 1)]);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
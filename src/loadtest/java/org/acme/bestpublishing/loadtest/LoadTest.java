@@ -0,0 +1,73 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.loadtest;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Load test of the BestPub web scripts against a running repository, such as the one started
+ * by <code>run.sh</code>. Generates the book tree, runs the workload mix, reports latency
+ * percentiles, throughput and error rates per web script, and exits with status 1 if the run
+ * regressed against the stored baseline, or there is no baseline to compare with.
+ * <p/>
+ * Run with <code>mvn -Ploadtest test-compile exec:exec@run-loadtest -Dloadtest.args="clients=50"</code>,
+ * settings are read from <code>src/loadtest/loadtest.properties</code>.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = LoadTestConfig.fromArgs(args);
+
+        LoadTestReport report;
+        try (BestPubClient client = new BestPubClient(config)) {
+            System.out.println("Generating book tree at " + config.getBaseUrl());
+            BookTree bookTree = BookTree.generate(client, config);
+
+            System.out.println("Running " + config.getClients() + " clients for " + config.getWarmupSeconds() +
+                    "s warm up and " + config.getDurationSeconds() + "s measured");
+            Map<String, EndpointStats> stats = new Workload(client, bookTree, config).run();
+            report = new LoadTestReport(config, stats, bookTree.getBooks().size());
+        }
+
+        report.print();
+        report.write(config.getResultFile());
+
+        if (config.isSaveBaseline()) {
+            report.write(config.getBaselineFile());
+            return;
+        }
+
+        if (!config.getBaselineFile().isFile()) {
+            System.out.println("No baseline at " + config.getBaselineFile() + ", run against the reference " +
+                    "environment with saveBaseline=true to store one");
+            System.exit(1);
+        }
+        List<String> regressions = report.compareWithBaseline(config.getBaselineFile());
+        if (!regressions.isEmpty()) {
+            System.out.println("Regressions against " + config.getBaselineFile() + ":");
+            for (String regression : regressions) {
+                System.out.println("  " + regression);
+            }
+            System.exit(1);
+        }
+        System.out.println("No regressions against the baseline");
+    }
+}
@@ -0,0 +1,204 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.loadtest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Load test settings, read from <code>src/loadtest/loadtest.properties</code> (or the file passed
+ * as <code>config=...</code>) and overridden by <code>key=value</code> command line arguments.
+ * See the properties file for what each setting does.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class LoadTestConfig {
+    public static final String DEFAULT_CONFIG_FILE = "src/loadtest/loadtest.properties";
+
+    private final Properties props = new Properties();
+
+    /**
+     * @param args <code>key=value</code> pairs, <code>config=file</code> selects the properties file
+     */
+    public static LoadTestConfig fromArgs(String[] args) throws IOException {
+        Properties overrides = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            overrides.setProperty(arg.substring(0, separator).trim(), arg.substring(separator + 1).trim());
+        }
+
+        LoadTestConfig config = new LoadTestConfig();
+        File configFile = new File(overrides.getProperty("config", DEFAULT_CONFIG_FILE));
+        if (configFile.isFile()) {
+            try (InputStream in = new FileInputStream(configFile)) {
+                config.props.load(in);
+            }
+        }
+        config.props.putAll(overrides);
+        return config;
+    }
+
+    public String getBaseUrl() {
+        return get("baseUrl", "http://localhost:8080/alfresco");
+    }
+
+    public String getUser() {
+        return get("user", "admin");
+    }
+
+    public String getPassword() {
+        return get("password", "admin");
+    }
+
+    public String getSiteShortName() {
+        return get("siteShortName", "book-management");
+    }
+
+    public List<String> getYears() {
+        List<String> years = new ArrayList<>();
+        for (String year : get("years", "2099").split(",")) {
+            if (!year.trim().isEmpty()) {
+                years.add(year.trim());
+            }
+        }
+        return years;
+    }
+
+    public int getBooksPerYear() {
+        return getInt("booksPerYear", 20);
+    }
+
+    public int getChaptersPerBook() {
+        return getInt("chaptersPerBook", 10);
+    }
+
+    public boolean isResetTree() {
+        return Boolean.parseBoolean(get("resetTree", "true"));
+    }
+
+    public int getClients() {
+        return getInt("clients", 20);
+    }
+
+    public int getWarmupSeconds() {
+        return getInt("warmupSeconds", 30);
+    }
+
+    public int getDurationSeconds() {
+        return getInt("durationSeconds", 120);
+    }
+
+    public int getThinkTimeMs() {
+        return getInt("thinkTimeMs", 0);
+    }
+
+    /**
+     * @return relative weight of the operation in the workload mix, 0 leaves it out
+     */
+    public int getMixWeight(Operation operation) {
+        return getInt("mix." + operation.getKey(), 0);
+    }
+
+    public boolean isAsyncDelete() {
+        return Boolean.parseBoolean(get("asyncDelete", "false"));
+    }
+
+    public File getResultFile() {
+        return new File(get("result", "target/loadtest-result.json"));
+    }
+
+    public File getBaselineFile() {
+        return new File(get("baseline", "src/loadtest/baseline.json"));
+    }
+
+    public boolean isSaveBaseline() {
+        return Boolean.parseBoolean(get("saveBaseline", "false"));
+    }
+
+    public double getMaxLatencyRegression() {
+        return getDouble("maxLatencyRegression", 0.20);
+    }
+
+    public double getMinLatencyRegressionMs() {
+        return getDouble("minLatencyRegressionMs", 5);
+    }
+
+    public double getMaxThroughputRegression() {
+        return getDouble("maxThroughputRegression", 0.20);
+    }
+
+    public double getMaxErrorRateIncrease() {
+        return getDouble("maxErrorRateIncrease", 0.01);
+    }
+
+    /**
+     * @return all settings, for the report
+     */
+    public Properties getProperties() {
+        return props;
+    }
+
+    private String get(String key, String defaultValue) {
+        return props.getProperty(key, defaultValue).trim();
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return Integer.parseInt(get(key, Integer.toString(defaultValue)));
+    }
+
+    private double getDouble(String key, double defaultValue) {
+        return Double.parseDouble(get(key, Double.toString(defaultValue)));
+    }
+
+    /**
+     * The operations in the workload mix
+     */
+    public enum Operation {
+        POLL("poll", "checkMetadataUpdates"),
+        CHAPTER_INSERT("chapterInsert", "createChapters"),
+        CHAPTER_DELETE("chapterDelete", "deleteChapterFolder"),
+        PUBLISH("publish", "publishBookToWeb");
+
+        private final String key;
+        private final String endpoint;
+
+        Operation(String key, String endpoint) {
+            this.key = key;
+            this.endpoint = endpoint;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the web script the operation calls, results are reported per web script
+         */
+        public String getEndpoint() {
+            return endpoint;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.loadtest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of a load test run, and its comparison against the stored baseline.
+ * <p/>
+ * Per web script, a run regresses when:
+ * <ul>
+ *     <li>p95 or p99 latency is more than <code>maxLatencyRegression</code> above the baseline, and by
+ *     at least <code>minLatencyRegressionMs</code> so noise on fast requests does not fail the run</li>
+ *     <li>throughput is more than <code>maxThroughputRegression</code> below the baseline</li>
+ *     <li>the error rate is more than <code>maxErrorRateIncrease</code> above the baseline</li>
+ * </ul>
+ * Web scripts that are not in the baseline are reported but not compared.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class LoadTestReport {
+    private static final String[] LATENCY_METRICS = {"p95Ms", "p99Ms"};
+
+    private final LoadTestConfig config;
+    private final JSONObject result;
+
+    public LoadTestReport(LoadTestConfig config, Map<String, EndpointStats> stats, int bookCount)
+            throws JSONException {
+        this.config = config;
+
+        double measuredSeconds = config.getDurationSeconds();
+        JSONObject endpoints = new JSONObject();
+        for (EndpointStats endpointStats : stats.values()) {
+            endpoints.put(endpointStats.getEndpoint(), endpointStats.summarize(measuredSeconds));
+        }
+
+        JSONObject settings = new JSONObject();
+        for (String key : config.getProperties().stringPropertyNames()) {
+            if (!key.equals("password")) {
+                settings.put(key, config.getProperties().getProperty(key));
+            }
+        }
+
+        result = new JSONObject();
+        result.put("settings", settings);
+        result.put("books", bookCount);
+        result.put("measuredSeconds", measuredSeconds);
+        result.put("endpoints", endpoints);
+    }
+
+    public void print() throws JSONException {
+        System.out.println();
+        System.out.println(String.format("%-22s %9s %9s %9s %9s %9s %9s %9s %9s",
+                "Endpoint", "Requests", "Req/s", "p50 ms", "p95 ms", "p99 ms", "max ms", "Errors", "Rejected"));
+        JSONObject endpoints = result.getJSONObject("endpoints");
+        Iterator<?> names = endpoints.keys();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            JSONObject summary = endpoints.getJSONObject(name);
+            System.out.println(String.format("%-22s %9d %9.1f %9.1f %9.1f %9.1f %9.1f %8.2f%% %8.2f%%",
+                    name, summary.getInt("requests"), summary.getDouble("throughputPerSecond"),
+                    summary.getDouble("p50Ms"), summary.getDouble("p95Ms"), summary.getDouble("p99Ms"),
+                    summary.getDouble("maxMs"), summary.getDouble("errorRate") * 100,
+                    summary.getDouble("rejectedRate") * 100));
+        }
+        System.out.println();
+    }
+
+    public void write(File file) throws IOException, JSONException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        Files.write(file.toPath(), result.toString(2).getBytes(StandardCharsets.UTF_8));
+        System.out.println("Wrote " + file);
+    }
+
+    /**
+     * @return the regressions against the baseline, empty if there are none
+     * @throws IOException if the baseline cannot be read, a missing baseline is not taken as a pass
+     */
+    public List<String> compareWithBaseline(File baselineFile) throws IOException, JSONException {
+        List<String> regressions = new ArrayList<>();
+        JSONObject baselineEndpoints = new JSONObject(new String(
+                Files.readAllBytes(baselineFile.toPath()), StandardCharsets.UTF_8)).getJSONObject("endpoints");
+        JSONObject endpoints = result.getJSONObject("endpoints");
+        Iterator<?> names = endpoints.keys();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            if (!baselineEndpoints.has(name)) {
+                continue;
+            }
+            JSONObject summary = endpoints.getJSONObject(name);
+            JSONObject baseline = baselineEndpoints.getJSONObject(name);
+            if (summary.getInt("requests") == 0 || baseline.getInt("requests") == 0) {
+                continue;
+            }
+
+            for (String metric : LATENCY_METRICS) {
+                double value = summary.getDouble(metric);
+                double baseValue = baseline.getDouble(metric);
+                if (value > baseValue * (1 + config.getMaxLatencyRegression()) &&
+                        value - baseValue > config.getMinLatencyRegressionMs()) {
+                    regressions.add(String.format("%s %s %.1f ms, baseline %.1f ms", name, metric, value, baseValue));
+                }
+            }
+
+            double throughput = summary.getDouble("throughputPerSecond");
+            double baseThroughput = baseline.getDouble("throughputPerSecond");
+            if (throughput < baseThroughput * (1 - config.getMaxThroughputRegression())) {
+                regressions.add(String.format("%s throughput %.1f/s, baseline %.1f/s",
+                        name, throughput, baseThroughput));
+            }
+
+            double errorRate = summary.getDouble("errorRate");
+            double baseErrorRate = baseline.getDouble("errorRate");
+            if (errorRate > baseErrorRate + config.getMaxErrorRateIncrease()) {
+                regressions.add(String.format("%s error rate %.2f%%, baseline %.2f%%",
+                        name, errorRate * 100, baseErrorRate * 100));
+            }
+        }
+        return regressions;
+    }
+}
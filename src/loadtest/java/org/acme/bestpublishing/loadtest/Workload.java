@@ -0,0 +1,188 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.loadtest;
+
+import org.acme.bestpublishing.loadtest.LoadTestConfig.Operation;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the configured number of clients against the book tree, each picking its next operation
+ * at random according to the workload mix:
+ * <ul>
+ *     <li>poll: check metadata updates for a book, sending the ETag from the last check of the
+ *     book as If-None-Match, the way the book list polls</li>
+ *     <li>chapterInsert: create a chapter at a random position, renumbering the chapters after it</li>
+ *     <li>chapterDelete: delete a random chapter, renumbering the chapters after it</li>
+ *     <li>publish: queue the book for publishing</li>
+ * </ul>
+ * Requests during the warm up are not recorded.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class Workload {
+    private final BestPubClient client;
+    private final BookTree bookTree;
+    private final LoadTestConfig config;
+
+    private final Operation[] operations = Operation.values();
+    private final int[] cumulativeWeights = new int[operations.length];
+    private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+
+    private long measureFromNanos;
+    private long endNanos;
+
+    public Workload(BestPubClient client, BookTree bookTree, LoadTestConfig config) {
+        this.client = client;
+        this.bookTree = bookTree;
+        this.config = config;
+
+        int totalWeight = 0;
+        for (int i = 0; i < operations.length; i++) {
+            totalWeight += config.getMixWeight(operations[i]);
+            cumulativeWeights[i] = totalWeight;
+            stats.put(operations[i].getEndpoint(), new EndpointStats(operations[i].getEndpoint()));
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("The workload mix is empty, set at least one mix.* weight");
+        }
+    }
+
+    /**
+     * Run the clients for the warm up and the measured duration.
+     *
+     * @return the stats for each web script, in operation order
+     */
+    public Map<String, EndpointStats> run() throws InterruptedException {
+        long start = System.nanoTime();
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        endNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+
+        List<Thread> clients = new ArrayList<>(config.getClients());
+        for (int i = 0; i < config.getClients(); i++) {
+            // Seeded per client so the same configuration replays the same sequence of operations
+            Random random = new Random(i);
+            Thread thread = new Thread(() -> runClient(random), "LoadTestClient-" + (clients.size() + 1));
+            thread.start();
+            clients.add(thread);
+        }
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        return stats;
+    }
+
+    private void runClient(Random random) {
+        Map<String, String> etags = new HashMap<>();
+        while (System.nanoTime() < endNanos) {
+            BookTree.Book book = bookTree.getRandomBook(random);
+            Operation operation = nextOperation(random);
+            String chapter = null;
+            if (operation == Operation.CHAPTER_DELETE) {
+                chapter = book.takeRandomChapter(random);
+                if (chapter == null) {
+                    // Keep at least one chapter, grow the book instead
+                    operation = Operation.CHAPTER_INSERT;
+                }
+            }
+
+            long start = System.nanoTime();
+            int status;
+            try {
+                status = execute(operation, book, chapter, random, etags);
+            } catch (IOException | JSONException | RuntimeException e) {
+                status = EndpointStats.NO_RESPONSE;
+            }
+            long end = System.nanoTime();
+            if (start >= measureFromNanos && end <= endNanos) {
+                stats.get(operation.getEndpoint()).record(status, end - start);
+            }
+
+            if (config.getThinkTimeMs() > 0) {
+                try {
+                    Thread.sleep(config.getThinkTimeMs());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private Operation nextOperation(Random random) {
+        int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < operations.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        throw new IllegalStateException("No operation for " + pick);
+    }
+
+    /**
+     * @return the HTTP status of the request
+     */
+    private int execute(Operation operation, BookTree.Book book, String chapter, Random random,
+                        Map<String, String> etags) throws IOException, JSONException {
+        switch (operation) {
+            case POLL: {
+                BestPubClient.Response response = client.checkMetadataUpdates(
+                        book.getNodeRef(), etags.get(book.getNodeRef()));
+                if (response.getEtag() != null) {
+                    etags.put(book.getNodeRef(), response.getEtag());
+                }
+                return response.getStatus();
+            }
+            case CHAPTER_INSERT: {
+                int chapterNumber = 1 + random.nextInt(book.getChapterCount() + 1);
+                BestPubClient.Response response = client.createChapter(book.getNodeRef(), chapterNumber);
+                if (response.isSuccess()) {
+                    JSONArray chapters = response.getJson().getJSONArray("chapters");
+                    for (int i = 0; i < chapters.length(); i++) {
+                        book.addChapter(chapters.getJSONObject(i).getString("nodeRef"));
+                    }
+                }
+                return response.getStatus();
+            }
+            case CHAPTER_DELETE: {
+                BestPubClient.Response response = null;
+                try {
+                    response = client.deleteChapterFolder(chapter, config.isAsyncDelete());
+                    return response.getStatus();
+                } finally {
+                    if (response == null || !response.isSuccess()) {
+                        book.addChapter(chapter);
+                    }
+                }
+            }
+            case PUBLISH:
+                return client.publishBook(book.getNodeRef(), book.getIsbn()).getStatus();
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+}
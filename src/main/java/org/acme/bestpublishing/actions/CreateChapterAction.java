@@ -16,11 +16,16 @@ limitations under the License.
 */
 package org.acme.bestpublishing.actions;
 
+import org.acme.bestpublishing.chapters.BookNaming;
+import org.acme.bestpublishing.chapters.ChapterIndex;
+import org.acme.bestpublishing.chapters.ChapterIndexService;
+import org.acme.bestpublishing.chapters.ChapterLockService;
+import org.acme.bestpublishing.chapters.ChapterRenumberingPlan;
+import org.acme.bestpublishing.chapters.ChapterRenumberingService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
 import org.acme.bestpublishing.model.BestPubContentModel;
-import org.acme.bestpublishing.model.BestPubMetadataFileModel;
-import org.acme.bestpublishing.props.ChapterFolderProperties;
 import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
-import org.acme.bestpublishing.services.BestPubUtilsService;
+import org.acme.bestpublishing.tracking.BookSummaryService;
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
@@ -32,7 +37,6 @@ import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
 import org.alfresco.service.cmr.model.FileInfo;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.namespace.QName;
-import org.apache.commons.lang.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,11 +62,18 @@ public class CreateChapterAction extends ActionExecuterAbstractBase {
     public static final String PARAM_CHAPTER_TITLE = "chapterTitle";
     public static final String PARAM_CHAPTER_AUTHOR = "chapterAuthor";
 
+    private static final String METRICS_OPERATION = "createChapter";
+
     /**
      * BestPub Services
      */
-    private BestPubUtilsService bestPubUtilsService;
+    private BookNaming bookNaming;
     private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private ChapterRenumberingService chapterRenumberingService;
+    private ChapterIndexService chapterIndexService;
+    private ChapterLockService chapterLockService;
+    private BookSummaryService bookSummaryService;
+    private BestPubMetrics bestPubMetrics;
 
     /**
      * Alfresco Services
@@ -73,14 +84,34 @@ public class CreateChapterAction extends ActionExecuterAbstractBase {
      * Spring DI
      */
 
-    public void setBestPubUtilsService(final BestPubUtilsService bestPubUtilsService) {
-        this.bestPubUtilsService = bestPubUtilsService;
+    public void setBookNaming(BookNaming bookNaming) {
+        this.bookNaming = bookNaming;
     }
 
     public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
         this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
     }
 
+    public void setChapterRenumberingService(ChapterRenumberingService chapterRenumberingService) {
+        this.chapterRenumberingService = chapterRenumberingService;
+    }
+
+    public void setChapterIndexService(ChapterIndexService chapterIndexService) {
+        this.chapterIndexService = chapterIndexService;
+    }
+
+    public void setChapterLockService(ChapterLockService chapterLockService) {
+        this.chapterLockService = chapterLockService;
+    }
+
+    public void setBookSummaryService(BookSummaryService bookSummaryService) {
+        this.bookSummaryService = bookSummaryService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
     public void setServiceRegistry(ServiceRegistry serviceRegistry) {
         this.serviceRegistry = serviceRegistry;
     }
@@ -99,13 +130,25 @@ public class CreateChapterAction extends ActionExecuterAbstractBase {
 
     @Override
     protected void executeImpl(Action action, NodeRef actionedUponNodeRef) {
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            // Lock the chapters of the book before anything is read, so concurrent chapter changes
+            // to the same book wait for this one to commit
+            chapterLockService.doWithLock(actionedUponNodeRef, () -> {
+                createChapter(action, actionedUponNodeRef);
+                return null;
+            });
+            timer.success();
+        }
+    }
+
+    private void createChapter(Action action, NodeRef actionedUponNodeRef) {
         if (serviceRegistry.getNodeService().exists(actionedUponNodeRef) == true) {
             // Get the new chapter folder's number, title, and author
             String chapterNumberString = (String)action.getParameterValue(PARAM_CHAPTER_NUMBER);
-            if (!NumberUtils.isNumber(chapterNumberString)) {
+            int newChapterNumber = BookNaming.parseChapterNumber(chapterNumberString);
+            if (newChapterNumber == BookNaming.NOT_A_NUMBER) {
                 throw new AlfrescoRuntimeException("Provided chapter number is not a number: " + chapterNumberString);
             }
-            int newChapterNumber = Integer.parseInt(chapterNumberString);
             if (newChapterNumber < 1) {
                 // Set it to 1, so the new chapter is inserted as first
                 newChapterNumber = 1;
@@ -121,47 +164,31 @@ public class CreateChapterAction extends ActionExecuterAbstractBase {
                 throw new AlfrescoRuntimeException("ISBN Folder node name is null");
             }
             String isbn = (String) nodeName;
-            if (!bestPubUtilsService.isISBN(isbn)) {
+            if (!BookNaming.isISBN(isbn)) {
                 throw new AlfrescoRuntimeException("ISBN Folder node name is not and ISBN number");
             }
 
             // Get the existing chapter folders for the ISBN sorted on chapter number (1, 2, 3, ...)
-            Map<ChapterFolderProperties, NodeRef> chapterFolders =
-                    bestPubUtilsService.getSortedChapterFolders(isbnFolderNodeRef);
+            ChapterIndex chapterIndex = chapterIndexService.getChapterIndex(isbnFolderNodeRef);
+            bestPubMetrics.lap("lookup");
 
             // Adjust existing chapter folders if we are inserting a new chapter (i.e. it is not added last)
-            if (newChapterNumber > chapterFolders.size()) {
-                // Make sure we are adding the new chapter right after the last existing chapter number
-                newChapterNumber = chapterFolders.size() + 1;
+            int lastChapterNumber = chapterIndex.getLastChapterNumber();
+            if (newChapterNumber > lastChapterNumber) {
+                // Make sure we are adding the new chapter right after the last existing chapter number,
+                // the same place as ChapterCreationService puts it when chapter numbers have gaps
+                newChapterNumber = lastChapterNumber + 1;
             } else {
                 // The new chapter should go in between existing chapters so we need to update chapter folder names
-                // and numbers before adding the new chapter
-                Map<ChapterFolderProperties, NodeRef> reverseChapters = ((TreeMap)chapterFolders).descendingMap();
-                for (Map.Entry<ChapterFolderProperties, NodeRef> existingChapterFolder : reverseChapters.entrySet()) {
-                    NodeRef existingChapterFolderNodeRef = existingChapterFolder.getValue();
-
-                    Integer existingFolderChapterNumber = (Integer)existingChapterFolder.getKey().get(
-                            BestPubMetadataFileModel.CHAPTER_METADATA_NUMBER_PROP_NAME);
-                    int updatedChapterNumber = existingFolderChapterNumber + 1;
-                    String updatedChapterFolderName = bestPubUtilsService.getChapterFolderName(updatedChapterNumber);
-                    serviceRegistry.getNodeService().setProperty(
-                            existingChapterFolderNodeRef, ContentModel.PROP_NAME, updatedChapterFolderName);
-                    serviceRegistry.getNodeService().setProperty(existingChapterFolderNodeRef,
-                            ChapterInfoAspect.Prop.CHAPTER_NUMBER, updatedChapterNumber);
-
-                    // Update chapter number metadata for any files in chapter folder
-                    // TODO:
-
-                    // Check if we are at the position where we should add the new chapter folder, if so break out of loop
-                    // as we don't need to update chapter folders that are coming before the new chapter in order
-                    if (existingFolderChapterNumber == newChapterNumber) {
-                        break;
-                    }
-                }
+                // and numbers before adding the new chapter, all chapters from the new position are moved one up
+                ChapterRenumberingPlan renumberingPlan = chapterRenumberingService.planInsert(
+                        isbnFolderNodeRef, chapterIndex, newChapterNumber);
+                chapterRenumberingService.apply(renumberingPlan);
             }
+            bestPubMetrics.lap("renumber");
 
             // Now create the new chapter folder with basic chapter metadata
-            String chapterFolderName = bestPubUtilsService.getChapterFolderName(newChapterNumber);
+            String chapterFolderName = bookNaming.getChapterFolderName(newChapterNumber);
             FileInfo chapterFileInfo = serviceRegistry.getFileFolderService().create(
                     isbnFolderNodeRef, chapterFolderName, ChapterFolderType.QNAME);
             Map<QName, Serializable> chapterMetadataAspectProps = new HashMap<>();
@@ -175,18 +202,17 @@ public class CreateChapterAction extends ActionExecuterAbstractBase {
             LOG.debug("Added chapter folder {} [chapterTitle={}]",
                     alfrescoRepoUtilsService.getDisplayPathForNode(chapterFileInfo.getNodeRef()),
                     newChapterTitle);
-
+            bestPubMetrics.lap("create");
 
             // Copy book info metadata to the new chapter folder
             Set<QName> aspects = new HashSet<>();
             aspects.add(BestPubContentModel.BookInfoAspect.QNAME);
             alfrescoRepoUtilsService.copyAspects(isbnFolderNodeRef, chapterFileInfo.getNodeRef(), aspects);
+            bestPubMetrics.lap("copyAspects");
 
-            // Update ISBN folder metadata and set the number of chapters to one more
-            int currenNumberOfChapters = (Integer) serviceRegistry.getNodeService().getProperty(
-                    isbnFolderNodeRef, BestPubContentModel.BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS);
-            serviceRegistry.getNodeService().setProperty(isbnFolderNodeRef,
-                    BestPubContentModel.BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS, currenNumberOfChapters + 1);
+            // The number of chapters on the ISBN folder is synced after commit, see ChapterCountService,
+            // and so is the book summary
+            bookSummaryService.scheduleRefresh(isbnFolderNodeRef);
 
         } else {
             LOG.error("Cannot create chapter folder, ISBN node reference does not exist {}", actionedUponNodeRef);
@@ -0,0 +1,122 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.actions;
+
+import org.acme.bestpublishing.chapters.ChapterCreationService;
+import org.acme.bestpublishing.chapters.NewChapter;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.action.ParameterDefinitionImpl;
+import org.alfresco.repo.action.executer.ActionExecuterAbstractBase;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ParameterDefinition;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Alfresco repo action that creates many chapter folders for an ISBN in one go,
+ * re-ordering existing chapter folders if necessary. Bulk version of {@link CreateChapterAction},
+ * the chapters are passed in as a JSON array:
+ * <pre>
+ * [{"chapterNumber": "1", "chapterTitle": "...", "chapterAuthor": "..."}, ...]
+ * </pre>
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class CreateChaptersAction extends ActionExecuterAbstractBase {
+    private static final Logger LOG = LoggerFactory.getLogger(CreateChaptersAction.class);
+
+    /**
+     * Repo action parameters
+     */
+    public static final String PARAM_CHAPTERS = "chapters";
+
+    private static final String METRICS_OPERATION = "createChapters";
+
+    /**
+     * BestPub Services
+     */
+    private ChapterCreationService chapterCreationService;
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Spring DI
+     */
+
+    public void setChapterCreationService(ChapterCreationService chapterCreationService) {
+        this.chapterCreationService = chapterCreationService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    /**
+     * Repo Action Interface implementation
+     */
+
+    @Override
+    protected void addParameterDefinitions(List<ParameterDefinition> paramList) {
+        paramList.add(new ParameterDefinitionImpl(
+                PARAM_CHAPTERS, DataTypeDefinition.TEXT, true, getParamDisplayLabel(PARAM_CHAPTERS)));
+    }
+
+    @Override
+    protected void executeImpl(Action action, NodeRef actionedUponNodeRef) {
+        if (!serviceRegistry.getNodeService().exists(actionedUponNodeRef)) {
+            LOG.error("Cannot create chapter folders, ISBN node reference does not exist {}", actionedUponNodeRef);
+            return;
+        }
+
+        String chapters = (String) action.getParameterValue(PARAM_CHAPTERS);
+        if (StringUtils.isBlank(chapters)) {
+            throw new AlfrescoRuntimeException("No chapters provided");
+        }
+        List<NewChapter> newChapters;
+        try {
+            newChapters = NewChapter.fromJson(new JSONArray(chapters));
+        } catch (JSONException e) {
+            throw new AlfrescoRuntimeException("Provided chapters are not a JSON array of chapters: " + chapters, e);
+        }
+
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            SortedMap<Integer, NodeRef> createdChapters =
+                    chapterCreationService.createChapters(actionedUponNodeRef, newChapters);
+            timer.success();
+            LOG.debug("Created chapter folders {} [isbnNodeRef={}]", createdChapters, actionedUponNodeRef);
+        }
+    }
+}
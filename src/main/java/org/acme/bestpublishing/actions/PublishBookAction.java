@@ -16,10 +16,15 @@ limitations under the License.
 */
 package org.acme.bestpublishing.actions;
 
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.publishing.EPubPublishingService;
+import org.acme.bestpublishing.publishing.PublishPreflight;
 import org.acme.bestpublishing.services.PublishingService;
+import org.alfresco.repo.action.ParameterDefinitionImpl;
 import org.alfresco.repo.action.executer.ActionExecuterAbstractBase;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
+import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +34,10 @@ import java.util.List;
 /**
  * Repository action that creates the book EPub package and publishes it to the web
  * (fictive publishing, not actually publishing to a web server).
+ * <p/>
+ * A {@link PublishPreflight} check runs first, if the published EPub is already current the book
+ * is not packaged again and the action result is {@link #RESULT_CURRENT}, unless the
+ * {@link #PARAM_FORCE} parameter is true.
  *
  * @author martin.bergljung@marversolutions.org
  * @version 1.0
@@ -38,10 +47,26 @@ public class PublishBookAction extends ActionExecuterAbstractBase {
 
 	public static final String NAME = "org.acme.bestpublishing.actions.publishBookAction";
 
+    /**
+     * Repo action parameters
+     */
+    public static final String PARAM_FORCE = "force";
+
+    /**
+     * Repo action results, in the {@link #PARAM_RESULT} parameter
+     */
+    public static final String RESULT_PUBLISHED = "published";
+    public static final String RESULT_CURRENT = "current";
+
+    private static final String METRICS_OPERATION = "publishBook";
+
     /**
      *  Best Publishing services
      */
     private PublishingService publishingService;
+    private EPubPublishingService epubPublishingService;
+    private PublishPreflight publishPreflight;
+    private BestPubMetrics bestPubMetrics;
 
     /**
      * Spring DI
@@ -51,9 +76,22 @@ public class PublishBookAction extends ActionExecuterAbstractBase {
         this.publishingService = publishingService;
     }
 
+    public void setEpubPublishingService(EPubPublishingService epubPublishingService) {
+        this.epubPublishingService = epubPublishingService;
+    }
+
+    public void setPublishPreflight(PublishPreflight publishPreflight) {
+        this.publishPreflight = publishPreflight;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
     @Override
     protected void addParameterDefinitions(List<ParameterDefinition> paramList) {
-        // No parameters are passed to action
+        paramList.add(new ParameterDefinitionImpl(
+                PARAM_FORCE, DataTypeDefinition.BOOLEAN, false, getParamDisplayLabel(PARAM_FORCE)));
     }
 
     /**
@@ -62,9 +100,36 @@ public class PublishBookAction extends ActionExecuterAbstractBase {
 
     @Override
     protected void executeImpl(Action action, NodeRef actionedUponNodeRef) {
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            publishBook(action, actionedUponNodeRef);
+            timer.success();
+        }
+    }
+
+    private void publishBook(Action action, NodeRef actionedUponNodeRef) {
+        // Skip the EPub build if the book has not changed since it was last published
+        boolean force = Boolean.TRUE.equals(action.getParameterValue(PARAM_FORCE));
+        PublishPreflight.Result preflight = publishPreflight.check(actionedUponNodeRef, force);
+        bestPubMetrics.lap("preflight");
+        if (preflight.isCurrent()) {
+            LOG.info("Published EPub for {} is current, not publishing again {}", actionedUponNodeRef, preflight);
+            bestPubMetrics.count("bestpub_publish_current_total", 1);
+            action.setParameterValue(PARAM_RESULT, RESULT_CURRENT);
+            return;
+        }
+
         // Write content of /Company Home/Sites/book-management/documentLibrary/{year}/{isbn}
         // folder directly to EPub file (i.e. ZIP file) on disk.
         // The resulting EPub file is stored in local directory configured in alfresco-globals.properties.
-        publishingService.createAndStoreEPubArtifact(actionedUponNodeRef);
+        if (epubPublishingService.isEnabled()) {
+            // Stream chapter files from the content store straight into the EPub
+            epubPublishingService.createAndStoreEPubArtifact(actionedUponNodeRef, preflight.getEntries());
+        } else {
+            publishingService.createAndStoreEPubArtifact(actionedUponNodeRef);
+            epubPublishingService.discardStoredArtifact(actionedUponNodeRef);
+            bestPubMetrics.lap("package");
+        }
+        publishPreflight.recordPublished(actionedUponNodeRef, preflight);
+        action.setParameterValue(PARAM_RESULT, RESULT_PUBLISHED);
     }
 }
@@ -0,0 +1,191 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.services.BestPubUtilsService;
+
+/**
+ * ISBN checks, chapter number parsing, and chapter folder names for the code that runs once per
+ * chapter or file, such as chapter renumbering and the ISBN folder checks of the bulk web scripts.
+ * <p/>
+ * The ISBN check and the chapter number parser make a single pass over the characters and do
+ * not allocate. Chapter folder names are looked up in a table made with
+ * {@link BestPubUtilsService#getChapterFolderName(int)} at startup, so the names are exactly the
+ * ones the utils service makes, numbers beyond the table are passed on to the utils service.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BookNaming {
+
+    /**
+     * Returned by {@link #parseChapterNumber(CharSequence)} when the value is not a whole number
+     */
+    public static final int NOT_A_NUMBER = Integer.MIN_VALUE;
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int maxChapterNumber = 1000;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubUtilsService bestPubUtilsService;
+
+    /**
+     * Chapter folder names by chapter number, index 0 is not used
+     */
+    private String[] chapterFolderNames = new String[0];
+
+    /**
+     * Spring DI
+     */
+
+    public void setBestPubUtilsService(BestPubUtilsService bestPubUtilsService) {
+        this.bestPubUtilsService = bestPubUtilsService;
+    }
+
+    public void setMaxChapterNumber(int maxChapterNumber) {
+        this.maxChapterNumber = maxChapterNumber;
+    }
+
+    public void init() {
+        String[] names = new String[Math.max(0, maxChapterNumber) + 1];
+        for (int chapterNumber = 1; chapterNumber < names.length; chapterNumber++) {
+            names[chapterNumber] = bestPubUtilsService.getChapterFolderName(chapterNumber).intern();
+        }
+        chapterFolderNames = names;
+    }
+
+    /**
+     * Get the name of the chapter folder for a chapter number.
+     *
+     * @param chapterNumber the chapter number
+     * @return the chapter folder name, the same String instance every time for numbers in the table
+     */
+    public String getChapterFolderName(int chapterNumber) {
+        if (chapterNumber > 0 && chapterNumber < chapterFolderNames.length) {
+            return chapterFolderNames[chapterNumber];
+        }
+        return bestPubUtilsService.getChapterFolderName(chapterNumber);
+    }
+
+    /**
+     * Check if a value is an ISBN-10 or ISBN-13 with a correct check digit. Hyphens and spaces
+     * between the digits are allowed, such as in 978-0-00-000000-2.
+     *
+     * @param value the value to check, such as an ISBN folder name
+     * @return true if the value is an ISBN
+     */
+    public static boolean isISBN(CharSequence value) {
+        if (value == null) {
+            return false;
+        }
+
+        int digits = 0;
+        int prefix = 0;
+        int isbn10Sum = 0;
+        int isbn13Sum = 0;
+        boolean checkDigitX = false;
+        boolean afterSeparator = true;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '-' || c == ' ') {
+                // Separators only between digits, one at a time
+                if (afterSeparator) {
+                    return false;
+                }
+                afterSeparator = true;
+                continue;
+            }
+            afterSeparator = false;
+
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if ((c == 'X' || c == 'x') && digits == 9) {
+                // Check digit 10 of an ISBN-10
+                digit = 10;
+            } else {
+                return false;
+            }
+            if (checkDigitX || digits == 13) {
+                return false;
+            }
+            checkDigitX = digit == 10;
+
+            if (digits < 3) {
+                prefix = prefix * 10 + digit;
+            }
+            if (digits < 10) {
+                isbn10Sum += (10 - digits) * digit;
+            }
+            isbn13Sum += (digits % 2 == 0 ? 1 : 3) * digit;
+            digits++;
+        }
+
+        if (afterSeparator) {
+            return false;
+        }
+        if (digits == 10) {
+            return isbn10Sum % 11 == 0;
+        }
+        return digits == 13 && (prefix == 978 || prefix == 979) && isbn13Sum % 10 == 0;
+    }
+
+    /**
+     * Parse a chapter number, such as a repo action parameter, in one pass. Unlike checking with
+     * {@link org.apache.commons.lang.math.NumberUtils#isNumber(String)} and then parsing, values
+     * such as "1.5" or "1e3" are rejected instead of failing in the parse.
+     *
+     * @param value an optionally signed whole number
+     * @return the number, or {@link #NOT_A_NUMBER} if the value is null, not a whole number, or out of int range
+     */
+    public static int parseChapterNumber(CharSequence value) {
+        if (value == null || value.length() == 0) {
+            return NOT_A_NUMBER;
+        }
+
+        int i = 0;
+        boolean negative = false;
+        char first = value.charAt(0);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+            if (value.length() == 1) {
+                return NOT_A_NUMBER;
+            }
+        }
+
+        // Accumulate negatively, as Integer.parseInt does, so Integer.MIN_VALUE + 1 fits
+        int limit = negative ? Integer.MIN_VALUE + 1 : -Integer.MAX_VALUE;
+        int result = 0;
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return NOT_A_NUMBER;
+            }
+            int digit = c - '0';
+            if (result < (limit + digit) / 10) {
+                return NOT_A_NUMBER;
+            }
+            result = result * 10 - digit;
+        }
+        return negative ? result : -result;
+    }
+}
@@ -0,0 +1,538 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.LogFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Propagates new chapter numbers to the files in renumbered chapter folders.
+ * <p/>
+ * Updates are collected during the transaction that renumbers the chapter folders and are only
+ * started after that transaction has committed, so the renumbering transaction stays small no
+ * matter how many files there are. The files are then paged from each chapter folder with the
+ * canned paging query behind {@link org.alfresco.service.cmr.model.FileFolderService#list(NodeRef,
+ * boolean, boolean, String, Set, List, PagingRequest)} and updated by an Alfresco
+ * {@link BatchProcessor}, with every batch in its own retrying transaction on a bounded worker pool.
+ * <p/>
+ * Updates are never dropped and never run in the thread that committed the renumbering. Each
+ * renumbered chapter folder gets the <code>bpa:chapterFileUpdatePending</code> marker in the
+ * renumbering transaction, and loses it once its files have been updated. When <code>queueSize</code>
+ * renumberings are already waiting, further updates are deferred and merged into one update that the
+ * worker runs when it is done with the queue. At shutdown waiting updates get
+ * <code>shutdownWaitSeconds</code> to finish, any chapter folder still marked when the repository
+ * starts again is updated to its current chapter number.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterContentUpdater extends AbstractLifecycleBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterContentUpdater.class);
+
+    private static final String PROCESS_NAME = "BestPubChapterContentUpdater";
+    private static final String TXN_KEY_PENDING_UPDATES = ChapterContentUpdater.class.getName() + ".pendingUpdates";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int batchSize = 100;
+    private int workerThreads = 4;
+    private int pageSize = 1000;
+    private int loggingInterval = 1000;
+    private int queueSize = 100;
+    private int shutdownWaitSeconds = 30;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private BehaviourFilter behaviourFilter;
+
+    /**
+     * Runs the batch processors, one renumbering at a time, the batch processor itself fans out
+     */
+    private ExecutorService executor;
+
+    /**
+     * Updates that did not fit in the queue, chapter folder -> new chapter number, guarded by this
+     */
+    private final Map<NodeRef, Integer> deferredUpdates = new LinkedHashMap<>();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setLoggingInterval(int loggingInterval) {
+        this.loggingInterval = loggingInterval;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setShutdownWaitSeconds(int shutdownWaitSeconds) {
+        this.shutdownWaitSeconds = shutdownWaitSeconds;
+    }
+
+    public void init() {
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, PROCESS_NAME);
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, rejectingExecutor) -> {
+                    // Never update in the committing thread, the chapter folders stay marked until updated
+                    Map<NodeRef, Integer> chapterNumbers = ((ChapterFileUpdate) runnable).chapterNumbers;
+                    if (rejectingExecutor.isShutdown()) {
+                        LOG.warn("Chapter file update not queued at shutdown, {} will be updated at next startup",
+                                chapterNumbers.keySet());
+                        return;
+                    }
+                    LOG.warn("Chapter file update queue is full, deferring the update of {}", chapterNumbers.keySet());
+                    defer(chapterNumbers);
+                });
+    }
+
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(shutdownWaitSeconds, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (Runnable notRun : executor.shutdownNow()) {
+            LOG.warn("Chapter file update not run at shutdown, {} will be updated at next startup",
+                    ((ChapterFileUpdate) notRun).chapterNumbers.keySet());
+        }
+    }
+
+    @Override
+    protected void onBootstrap(ApplicationEvent event) {
+        try {
+            resumePendingUpdates();
+        } catch (RuntimeException re) {
+            LOG.warn("Could not resume pending chapter file updates: {}", re.getMessage());
+        }
+    }
+
+    @Override
+    protected void onShutdown(ApplicationEvent event) {
+        // Nothing to do, the worker is stopped by shutdown()
+    }
+
+    /**
+     * Schedule an update of the chapter number metadata for all files in a chapter folder.
+     * The update runs after the current transaction has committed, if the transaction
+     * rolls back nothing is updated. The chapter folder is marked as part of the current
+     * transaction, so the update is not lost if it cannot run before the repository stops.
+     *
+     * @param chapterFolderNodeRef the chapter folder that got a new chapter number
+     * @param chapterNumber the new chapter number
+     */
+    public void scheduleUpdate(NodeRef chapterFolderNodeRef, int chapterNumber) {
+        PendingUpdates pendingUpdates = AlfrescoTransactionSupport.getResource(TXN_KEY_PENDING_UPDATES);
+        if (pendingUpdates == null) {
+            pendingUpdates = new PendingUpdates();
+            AlfrescoTransactionSupport.bindResource(TXN_KEY_PENDING_UPDATES, pendingUpdates);
+            AlfrescoTransactionSupport.bindListener(pendingUpdates);
+        }
+        if (pendingUpdates.chapterNumbers.put(chapterFolderNodeRef, chapterNumber) == null) {
+            // The renumbering user may write the chapter folder, but the marker is not theirs to manage
+            AuthenticationUtil.runAsSystem(() -> {
+                serviceRegistry.getNodeService().addAspect(chapterFolderNodeRef,
+                        BestPubActionsModel.ChapterFileUpdatePendingAspect.QNAME, null);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Update the chapter number metadata for all files in the passed in chapter folders,
+     * blocks until all batches have been processed.
+     *
+     * @param chapterNumbers chapter folder -> new chapter number
+     * @return a summary of the update
+     */
+    public UpdateReport updateChapterFiles(final Map<NodeRef, Integer> chapterNumbers) {
+        return AuthenticationUtil.runAsSystem(() -> {
+            RetryingTransactionHelper txnHelper =
+                    serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+            ChapterFileWorkProvider workProvider = new ChapterFileWorkProvider(chapterNumbers, txnHelper);
+            BatchProcessor<ChapterFile> batchProcessor = new BatchProcessor<>(
+                    PROCESS_NAME, txnHelper, workProvider, workerThreads, batchSize,
+                    null, LogFactory.getLog(ChapterContentUpdater.class), loggingInterval);
+
+            long start = System.currentTimeMillis();
+            batchProcessor.process(new ChapterFileWorker(), true);
+            long durationMs = Math.max(1, System.currentTimeMillis() - start);
+
+            UpdateReport report = new UpdateReport(chapterNumbers.size(),
+                    batchProcessor.getSuccessfullyProcessedEntries(), batchProcessor.getTotalErrors(),
+                    durationMs, batchProcessor.getLastError());
+            if (report.getFailedFiles() > 0) {
+                // The chapter folders stay marked, so the update is tried again at next startup
+                LOG.error("Chapter file update finished with errors {} [lastError={}]",
+                        report, batchProcessor.getLastErrorEntryId());
+            } else {
+                LOG.info("Chapter file update finished {}", report);
+                clearPendingMarkers(chapterNumbers.keySet(), txnHelper);
+            }
+            return report;
+        });
+    }
+
+    /**
+     * Take the pending marker off chapter folders whose files are up to date. The marker is bookkeeping,
+     * so it is not a change of the chapter folder as far as cm:modified and the change tracking go.
+     */
+    private void clearPendingMarkers(final Collection<NodeRef> chapterFolderNodeRefs,
+                                     RetryingTransactionHelper txnHelper) {
+        txnHelper.doInTransaction(() -> {
+            NodeService nodeService = serviceRegistry.getNodeService();
+            for (NodeRef chapterFolderNodeRef : chapterFolderNodeRefs) {
+                if (nodeService.exists(chapterFolderNodeRef) && nodeService.hasAspect(
+                        chapterFolderNodeRef, BestPubActionsModel.ChapterFileUpdatePendingAspect.QNAME)) {
+                    behaviourFilter.disableBehaviour(chapterFolderNodeRef);
+                    try {
+                        nodeService.removeAspect(chapterFolderNodeRef,
+                                BestPubActionsModel.ChapterFileUpdatePendingAspect.QNAME);
+                    } finally {
+                        behaviourFilter.enableBehaviour(chapterFolderNodeRef);
+                    }
+                }
+            }
+            return null;
+        }, false, true);
+    }
+
+    /**
+     * Merge an update that did not fit in the queue into the deferred update
+     */
+    private synchronized void defer(Map<NodeRef, Integer> chapterNumbers) {
+        deferredUpdates.putAll(chapterNumbers);
+    }
+
+    /**
+     * @return the deferred update, or null if there is none
+     */
+    private synchronized Map<NodeRef, Integer> takeDeferred() {
+        if (deferredUpdates.isEmpty()) {
+            return null;
+        }
+        Map<NodeRef, Integer> chapterNumbers = new LinkedHashMap<>(deferredUpdates);
+        deferredUpdates.clear();
+        return chapterNumbers;
+    }
+
+    /**
+     * Queue an update for the chapter folders still marked as pending, e.g. after a restart
+     * with updates waiting, each to the chapter number the folder has now
+     */
+    private void resumePendingUpdates() {
+        Map<NodeRef, Integer> chapterNumbers = AuthenticationUtil.runAsSystem(() ->
+                serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(() -> {
+                    SearchParameters searchParameters = new SearchParameters();
+                    searchParameters.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+                    searchParameters.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+                    searchParameters.setQuery("ASPECT:\"" + BestPubActionsModel.NAMESPACE_PREFIX + ":" +
+                            BestPubActionsModel.ChapterFileUpdatePendingAspect.QNAME.getLocalName() + "\"");
+                    searchParameters.setQueryConsistency(QueryConsistency.TRANSACTIONAL);
+
+                    Map<NodeRef, Integer> pending = new LinkedHashMap<>();
+                    ResultSet results = serviceRegistry.getSearchService().query(searchParameters);
+                    try {
+                        for (NodeRef chapterFolderNodeRef : results.getNodeRefs()) {
+                            Serializable chapterNumber = serviceRegistry.getNodeService().getProperty(
+                                    chapterFolderNodeRef, BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER);
+                            if (chapterNumber instanceof Integer) {
+                                pending.put(chapterFolderNodeRef, (Integer) chapterNumber);
+                            }
+                        }
+                    } finally {
+                        results.close();
+                    }
+                    return pending;
+                }, true, false));
+
+        if (!chapterNumbers.isEmpty()) {
+            LOG.info("Resuming chapter file update of {} chapter folders", chapterNumbers.size());
+            executor.execute(new ChapterFileUpdate(chapterNumbers));
+        }
+    }
+
+    /**
+     * Summary of one chapter file update run
+     */
+    public static class UpdateReport {
+        private final int chapterFolders;
+        private final long updatedFiles;
+        private final long failedFiles;
+        private final long durationMs;
+        private final String lastError;
+
+        UpdateReport(int chapterFolders, long updatedFiles, long failedFiles, long durationMs, String lastError) {
+            this.chapterFolders = chapterFolders;
+            this.updatedFiles = updatedFiles;
+            this.failedFiles = failedFiles;
+            this.durationMs = durationMs;
+            this.lastError = lastError;
+        }
+
+        public int getChapterFolders() {
+            return chapterFolders;
+        }
+
+        public long getUpdatedFiles() {
+            return updatedFiles;
+        }
+
+        public long getFailedFiles() {
+            return failedFiles;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+
+        public double getFilesPerSecond() {
+            return (updatedFiles + failedFiles) * 1000.0 / durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[chapterFolders=%d][updatedFiles=%d][failedFiles=%d][durationMs=%d][filesPerSec=%.1f]",
+                    chapterFolders, updatedFiles, failedFiles, durationMs, getFilesPerSecond());
+        }
+    }
+
+    /**
+     * A file in a chapter folder together with the chapter number it should get
+     */
+    private static class ChapterFile {
+        private final NodeRef nodeRef;
+        private final int chapterNumber;
+
+        ChapterFile(NodeRef nodeRef, int chapterNumber) {
+            this.nodeRef = nodeRef;
+            this.chapterNumber = chapterNumber;
+        }
+    }
+
+    /**
+     * Collects the chapter folders renumbered in a transaction and hands them off after commit
+     */
+    private class PendingUpdates extends TransactionListenerAdapter {
+        private final Map<NodeRef, Integer> chapterNumbers = new LinkedHashMap<>();
+
+        @Override
+        public void afterCommit() {
+            executor.execute(new ChapterFileUpdate(new LinkedHashMap<>(chapterNumbers)));
+        }
+    }
+
+    /**
+     * The update of one committed renumbering, kept as a named task so updates that never ran can be logged
+     */
+    private class ChapterFileUpdate implements Runnable {
+        private final Map<NodeRef, Integer> chapterNumbers;
+
+        ChapterFileUpdate(Map<NodeRef, Integer> chapterNumbers) {
+            this.chapterNumbers = chapterNumbers;
+        }
+
+        @Override
+        public void run() {
+            updateChapterFiles(chapterNumbers);
+
+            // Whatever did not fit in the queue meanwhile, on this worker rather than the committing thread
+            Map<NodeRef, Integer> deferred = takeDeferred();
+            if (deferred != null) {
+                updateChapterFiles(deferred);
+            }
+        }
+    }
+
+    /**
+     * Pages through the files of each chapter folder, one page per call
+     */
+    private class ChapterFileWorkProvider implements BatchProcessWorkProvider<ChapterFile> {
+        private final Iterator<Map.Entry<NodeRef, Integer>> chapterFolders;
+        private final RetryingTransactionHelper txnHelper;
+        private Map.Entry<NodeRef, Integer> currentChapterFolder;
+        private int chapterNumber;
+        private int skipCount;
+
+        ChapterFileWorkProvider(Map<NodeRef, Integer> chapterNumbers, RetryingTransactionHelper txnHelper) {
+            this.chapterFolders = chapterNumbers.entrySet().iterator();
+            this.txnHelper = txnHelper;
+        }
+
+        @Override
+        public int getTotalEstimatedWorkSize() {
+            // Not known up front without counting the files, which is what we are trying to avoid
+            return -1;
+        }
+
+        @Override
+        public Collection<ChapterFile> getNextWork() {
+            while (true) {
+                if (currentChapterFolder == null) {
+                    if (!chapterFolders.hasNext()) {
+                        return Collections.emptyList();
+                    }
+                    currentChapterFolder = chapterFolders.next();
+                    skipCount = 0;
+                }
+
+                final NodeRef chapterFolderNodeRef = currentChapterFolder.getKey();
+                PagingResults<FileInfo> page = txnHelper.doInTransaction(() -> {
+                    if (!serviceRegistry.getNodeService().exists(chapterFolderNodeRef)) {
+                        return null;
+                    }
+                    if (skipCount == 0) {
+                        // Deferred and resumed updates can run out of order, the folder has the latest number
+                        Serializable folderChapterNumber = serviceRegistry.getNodeService().getProperty(
+                                chapterFolderNodeRef, BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER);
+                        if (folderChapterNumber instanceof Integer) {
+                            chapterNumber = (Integer) folderChapterNumber;
+                        } else {
+                            chapterNumber = currentChapterFolder.getValue();
+                        }
+                    }
+                    return serviceRegistry.getFileFolderService().list(chapterFolderNodeRef, true, false,
+                            null, null, null, new PagingRequest(skipCount, pageSize));
+                }, true, true);
+
+                if (page == null || !page.hasMoreItems()) {
+                    currentChapterFolder = null;
+                }
+                if (page == null || page.getPage().isEmpty()) {
+                    continue;
+                }
+
+                skipCount += page.getPage().size();
+                List<ChapterFile> work = new ArrayList<>(page.getPage().size());
+                for (FileInfo fileInfo : page.getPage()) {
+                    work.add(new ChapterFile(fileInfo.getNodeRef(), chapterNumber));
+                }
+                return work;
+            }
+        }
+    }
+
+    /**
+     * Sets the chapter number on one file, running as the system user
+     */
+    private class ChapterFileWorker extends BatchProcessor.BatchProcessWorkerAdaptor<ChapterFile> {
+
+        @Override
+        public String getIdentifier(ChapterFile chapterFile) {
+            return chapterFile.nodeRef.toString();
+        }
+
+        @Override
+        public void beforeProcess() throws Throwable {
+            AuthenticationUtil.setRunAsUserSystem();
+        }
+
+        @Override
+        public void afterProcess() throws Throwable {
+            AuthenticationUtil.clearCurrentSecurityContext();
+        }
+
+        @Override
+        public void process(ChapterFile chapterFile) throws Throwable {
+            NodeService nodeService = serviceRegistry.getNodeService();
+            if (!nodeService.exists(chapterFile.nodeRef) ||
+                    !nodeService.hasAspect(chapterFile.nodeRef, BestPubContentModel.ChapterInfoAspect.QNAME)) {
+                return;
+            }
+
+            Serializable currentChapterNumber = nodeService.getProperty(
+                    chapterFile.nodeRef, BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER);
+            if (currentChapterNumber instanceof Integer && (Integer) currentChapterNumber == chapterFile.chapterNumber) {
+                return;
+            }
+
+            Map<QName, Serializable> props = new HashMap<>();
+            props.put(BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER, chapterFile.chapterNumber);
+            nodeService.addProperties(chapterFile.nodeRef, props);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.execution.AfterCommitBookUpdater;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.model.BestPubContentModel.BookInfoAspect;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+
+/**
+ * Keeps the number of chapters of a book (BOOK_NUMBER_OF_CHAPTERS on the ISBN folder) in step with
+ * the chapter folders that actually exist.
+ * <p/>
+ * The chapter count is derived from the {@link ChapterIndex}, it is never incremented or decremented.
+ * {@link ChapterIndexBehaviour} schedules a sync whenever a chapter folder is created, deleted, or moved,
+ * and the sync writes the count after the transaction has committed, in the background and only if it
+ * changed. The ISBN folder is not written in the transaction that changed the chapters, so concurrent
+ * chapter changes in one book do not queue up on it, and syncs asked for by many transactions before
+ * the sync starts are done once. A failed operation cannot leave the count off by one.
+ * <p/>
+ * {@link #getChapterCount(NodeRef)} is the cheap read, served from the cached chapter index, so it is
+ * right even before the stored count has caught up. If the stored count is out of step when read,
+ * e.g. it was written by older code or the repository stopped before the sync, a sync is scheduled.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterCountService {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterCountService.class);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private ChapterIndexService chapterIndexService;
+    private IoExecutorService ioExecutorService;
+
+    private AfterCommitBookUpdater chapterCountUpdater;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setChapterIndexService(ChapterIndexService chapterIndexService) {
+        this.chapterIndexService = chapterIndexService;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    public void init() {
+        chapterCountUpdater = new AfterCommitBookUpdater("Chapter count sync", serviceRegistry,
+                ioExecutorService.newExecutor("BestPubChapterCountSync", 1), this::sync);
+    }
+
+    public void shutdown() {
+        if (chapterCountUpdater != null) {
+            chapterCountUpdater.shutdown();
+        }
+    }
+
+    /**
+     * Get the number of chapters of a book, and have the stored chapter count corrected if it is out of step.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return the number of chapter folders in the ISBN folder
+     */
+    public int getChapterCount(NodeRef isbnFolderNodeRef) {
+        int chapterCount = chapterIndexService.getChapterIndex(isbnFolderNodeRef).size();
+        Object storedChapterCount = serviceRegistry.getNodeService().getProperty(
+                isbnFolderNodeRef, BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS);
+        if (!Objects.equals(storedChapterCount, chapterCount)) {
+            // Expected for a moment after chapters change, the sync runs after commit
+            LOG.debug("Chapter count {} of {} is out of step, there are {} chapter folders",
+                    storedChapterCount, isbnFolderNodeRef, chapterCount);
+            scheduleSync(isbnFolderNodeRef);
+        }
+        return chapterCount;
+    }
+
+    /**
+     * Update the stored chapter count of a book in the background once the current transaction
+     * has committed, or as soon as possible if there is no transaction.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     */
+    public void scheduleSync(NodeRef isbnFolderNodeRef) {
+        chapterCountUpdater.schedule(isbnFolderNodeRef);
+    }
+
+    /**
+     * Set the stored chapter count of a book to the number of chapter folders, if it differs.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return true if the stored chapter count was changed
+     */
+    public boolean sync(NodeRef isbnFolderNodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        if (!nodeService.exists(isbnFolderNodeRef) || !nodeService.hasAspect(isbnFolderNodeRef, BookInfoAspect.QNAME)) {
+            return false;
+        }
+
+        int chapterCount = chapterIndexService.getChapterIndex(isbnFolderNodeRef).size();
+        Object storedChapterCount = nodeService.getProperty(isbnFolderNodeRef, BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS);
+        if (Objects.equals(storedChapterCount, chapterCount)) {
+            return false;
+        }
+
+        nodeService.setProperty(isbnFolderNodeRef, BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS, chapterCount);
+        LOG.debug("Chapter count of {} set to {}, was {}", isbnFolderNodeRef, chapterCount, storedChapterCount);
+        return true;
+    }
+}
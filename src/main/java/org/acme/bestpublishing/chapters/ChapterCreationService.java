@@ -0,0 +1,237 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubContentModel.BookInfoAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterFolderType;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterInfoAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterMetadataStatus;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.AspectDefinition;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Creates many chapter folders for an ISBN folder in one retrying transaction, e.g. when the
+ * skeleton for a new book is set up.
+ * <p/>
+ * The final chapter numbers of the new and existing chapters are worked out once, the existing
+ * chapter folders are renumbered with a single {@link ChapterRenumberingPlan}, and the book info
+ * metadata is read once from the ISBN folder and set on every new chapter folder. The number of
+ * chapters for the book is updated once, by the {@link ChapterCountService}.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterCreationService {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterCreationService.class);
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int maxChapters = 500;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private BookNaming bookNaming;
+    private ChapterIndexService chapterIndexService;
+    private ChapterRenumberingService chapterRenumberingService;
+    private ChapterLockService chapterLockService;
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setBookNaming(BookNaming bookNaming) {
+        this.bookNaming = bookNaming;
+    }
+
+    public void setChapterIndexService(ChapterIndexService chapterIndexService) {
+        this.chapterIndexService = chapterIndexService;
+    }
+
+    public void setChapterRenumberingService(ChapterRenumberingService chapterRenumberingService) {
+        this.chapterRenumberingService = chapterRenumberingService;
+    }
+
+    public void setChapterLockService(ChapterLockService chapterLockService) {
+        this.chapterLockService = chapterLockService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setMaxChapters(int maxChapters) {
+        this.maxChapters = maxChapters;
+    }
+
+    /**
+     * Create chapter folders in an ISBN folder, in one retrying transaction. Joins the current
+     * transaction if there is one.
+     * <p/>
+     * The new chapters are placed as if they were created one at a time in ascending chapter number
+     * order. A chapter number that is already taken moves the existing chapter, and every chapter
+     * after it, one step up. Chapter numbers past the end are added last, and two new chapters
+     * asking for the same chapter number are placed one after the other in the passed in order.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param newChapters the chapters to create
+     * @return the created chapter folders keyed on their chapter number
+     * @throws InvalidChaptersException if the node is not an ISBN folder or too many chapters are passed in
+     * @throws ChapterLockService.ChapterLockedException if the chapters of the book are being changed by someone else
+     */
+    public SortedMap<Integer, NodeRef> createChapters(final NodeRef isbnFolderNodeRef,
+                                                      final List<NewChapter> newChapters) {
+        if (newChapters.isEmpty()) {
+            return new TreeMap<>();
+        }
+        if (newChapters.size() > maxChapters) {
+            throw new InvalidChaptersException("Cannot create " + newChapters.size() +
+                    " chapters in one go, the limit is " + maxChapters);
+        }
+
+        // Stable sort, so chapters asking for the same number keep their order
+        final List<NewChapter> sortedChapters = new ArrayList<>(newChapters);
+        sortedChapters.sort(Comparator.comparingInt(NewChapter::getChapterNumber));
+
+        // Lock outside the transaction when possible, so retries are only for real conflicts
+        return chapterLockService.doWithLock(isbnFolderNodeRef, () ->
+                serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                        () -> doCreateChapters(isbnFolderNodeRef, sortedChapters), false, false));
+    }
+
+    private SortedMap<Integer, NodeRef> doCreateChapters(NodeRef isbnFolderNodeRef, List<NewChapter> sortedChapters) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+
+        // One read of the ISBN folder gives us the ISBN and the book info to copy
+        Map<QName, Serializable> isbnFolderProps = nodeService.getProperties(isbnFolderNodeRef);
+        String isbn = (String) isbnFolderProps.get(ContentModel.PROP_NAME);
+        if (isbn == null || !BookNaming.isISBN(isbn)) {
+            throw new InvalidChaptersException("ISBN Folder node name is not and ISBN number: " + isbn);
+        }
+        Map<QName, Serializable> bookInfoProps = getBookInfoProperties(isbnFolderProps);
+
+        ChapterIndex chapterIndex = chapterIndexService.getChapterIndex(isbnFolderNodeRef);
+        int[] newChapterNumbers = placeNewChapters(chapterIndex, sortedChapters);
+        bestPubMetrics.lap("lookup");
+
+        ChapterRenumberingPlan renumberingPlan = chapterRenumberingService.planInsert(
+                isbnFolderNodeRef, chapterIndex, newChapterNumbers);
+        chapterRenumberingService.apply(renumberingPlan);
+        bestPubMetrics.lap("renumber");
+
+        SortedMap<Integer, NodeRef> createdChapters = new TreeMap<>();
+        for (int i = 0; i < sortedChapters.size(); i++) {
+            NewChapter newChapter = sortedChapters.get(i);
+            int chapterNumber = newChapterNumbers[i];
+            NodeRef chapterFolderNodeRef = serviceRegistry.getFileFolderService().create(isbnFolderNodeRef,
+                    bookNaming.getChapterFolderName(chapterNumber), ChapterFolderType.QNAME).getNodeRef();
+
+            Map<QName, Serializable> chapterInfoProps = new HashMap<>();
+            chapterInfoProps.put(ChapterInfoAspect.Prop.CHAPTER_NUMBER, chapterNumber);
+            chapterInfoProps.put(ChapterInfoAspect.Prop.CHAPTER_TITLE, newChapter.getTitle());
+            chapterInfoProps.put(ChapterInfoAspect.Prop.CHAPTER_AUTHOR_NAME, newChapter.getAuthorName());
+            chapterInfoProps.put(ChapterInfoAspect.Prop.CHAPTER_METADATA_STATUS,
+                    ChapterMetadataStatus.COMPLETED.toString());
+            nodeService.addAspect(chapterFolderNodeRef, ChapterInfoAspect.QNAME, chapterInfoProps);
+            nodeService.addAspect(chapterFolderNodeRef, BookInfoAspect.QNAME, bookInfoProps);
+
+            createdChapters.put(chapterNumber, chapterFolderNodeRef);
+        }
+        bestPubMetrics.lap("create");
+
+        // The number of chapters is synced once after commit by the ChapterCountService
+
+        LOG.debug("Created {} chapter folders and renumbered {} [isbn={}]",
+                sortedChapters.size(), renumberingPlan.getSteps().size(), isbn);
+
+        return createdChapters;
+    }
+
+    /**
+     * Work out the final chapter number of each new chapter, the same numbers as when the chapters
+     * are created one at a time in the passed in order.
+     *
+     * @param chapterIndex the existing chapters
+     * @param sortedChapters the new chapters, sorted on wanted chapter number
+     * @return the chapter number for each new chapter, ascending and distinct
+     */
+    static int[] placeNewChapters(ChapterIndex chapterIndex, List<NewChapter> sortedChapters) {
+        int[] chapterNumbers = new int[sortedChapters.size()];
+        int lastChapterNumber = chapterIndex.getLastChapterNumber();
+        int previousChapterNumber = 0;
+        for (int i = 0; i < chapterNumbers.length; i++) {
+            int chapterNumber = Math.max(sortedChapters.get(i).getChapterNumber(), previousChapterNumber + 1);
+            if (chapterNumber > lastChapterNumber) {
+                // Added after the last chapter
+                chapterNumber = lastChapterNumber + 1;
+                lastChapterNumber = chapterNumber;
+            } else {
+                // Inserted, the last chapter moves one up
+                lastChapterNumber++;
+            }
+            chapterNumbers[i] = chapterNumber;
+            previousChapterNumber = chapterNumber;
+        }
+        return chapterNumbers;
+    }
+
+    /**
+     * Pick out the properties of the book info aspect from the ISBN folder properties.
+     */
+    private Map<QName, Serializable> getBookInfoProperties(Map<QName, Serializable> isbnFolderProps) {
+        AspectDefinition bookInfoAspect = serviceRegistry.getDictionaryService().getAspect(BookInfoAspect.QNAME);
+        Map<QName, Serializable> bookInfoProps = new HashMap<>();
+        for (QName propName : bookInfoAspect.getProperties().keySet()) {
+            Serializable value = isbnFolderProps.get(propName);
+            if (value != null) {
+                bookInfoProps.put(propName, value);
+            }
+        }
+        return bookInfoProps;
+    }
+
+    /**
+     * Thrown when the chapters cannot be created as asked, because of the request rather than the repository
+     */
+    public static class InvalidChaptersException extends AlfrescoRuntimeException {
+        public InvalidChaptersException(String msg) {
+            super(msg);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background deletion of a chapter folder subtree, as tracked by the {@link ChapterDeletionService}.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterDeletionJob {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String id;
+    private final NodeRef chapterFolderNodeRef;
+    private final NodeRef isbnFolderNodeRef;
+    private final boolean purge;
+    private final Date queuedAt;
+    private final AtomicInteger deletedNodes = new AtomicInteger();
+    private volatile Status status = Status.QUEUED;
+    private volatile Date startedAt;
+    private volatile Date finishedAt;
+    private volatile String error;
+
+    ChapterDeletionJob(String id, NodeRef chapterFolderNodeRef, NodeRef isbnFolderNodeRef, boolean purge) {
+        this.id = id;
+        this.chapterFolderNodeRef = chapterFolderNodeRef;
+        this.isbnFolderNodeRef = isbnFolderNodeRef;
+        this.purge = purge;
+        this.queuedAt = new Date();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public NodeRef getChapterFolderNodeRef() {
+        return chapterFolderNodeRef;
+    }
+
+    /**
+     * @return the book the chapter was deleted from, or null if not known (resumed after a restart)
+     */
+    public NodeRef getIsbnFolderNodeRef() {
+        return isbnFolderNodeRef;
+    }
+
+    /**
+     * @return true if the deleted nodes bypass the archive store
+     */
+    public boolean isPurge() {
+        return purge;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Date getQueuedAt() {
+        return queuedAt;
+    }
+
+    public Date getStartedAt() {
+        return startedAt;
+    }
+
+    public Date getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * @return number of nodes of the chapter folder subtree deleted so far, the chapter folder included
+     */
+    public int getDeletedNodes() {
+        return deletedNodes.get();
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void started() {
+        startedAt = new Date();
+        status = Status.RUNNING;
+    }
+
+    void deleted(int nodes) {
+        deletedNodes.addAndGet(nodes);
+    }
+
+    void finished(String error) {
+        this.error = error;
+        finishedAt = new Date();
+        status = error == null ? Status.DONE : Status.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "ChapterDeletionJob[id=" + id + ", chapterFolder=" + chapterFolderNodeRef + ", purge=" + purge +
+                ", status=" + status + ", deletedNodes=" + deletedNodes + "]";
+    }
+}
@@ -0,0 +1,399 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.alfresco.util.GUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Deletes chapter folders with very large subtrees in the background, so the request deleting the
+ * chapter does not have to archive the whole subtree in one transaction.
+ * <p/>
+ * The chapter folder is first staged, as part of the transaction that renumbers the other chapters:
+ * it is renamed to its node id and moved out of the book into a staging container of the book
+ * management site, so the book no longer has the chapter. A {@link ChapterDeletionJob} then deletes
+ * the subtree of the staged folder in batches, bottom up, each batch in its own transaction, and finally
+ * the folder itself. A batch only holds files and emptied folders, so sub folders nested in the chapter
+ * do not make a transaction any larger. Each node is archived on its own, unless the deletion is a purge,
+ * in which case the nodes are marked <code>sys:temporary</code> and bypass the archive store.
+ * <p/>
+ * Job state is kept in memory on the repository node that received the request. Folders still
+ * in the staging container when the repository starts, e.g. after a restart mid deletion, are
+ * picked up again.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterDeletionService extends AbstractLifecycleBean {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterDeletionService.class);
+
+    /**
+     * Site container holding chapter folders waiting to be deleted
+     */
+    public static final String STAGING_CONTAINER = "bestpubChapterDeletions";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int threads = 1;
+    private int batchSize = 100;
+    private int maxFinishedJobs = 1000;
+    private String bookManagementSiteName;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubMetrics bestPubMetrics;
+    private IoExecutorService ioExecutorService;
+
+    private ExecutorService executor;
+
+    /**
+     * Job bookkeeping, guarded by this
+     */
+    private final Map<String, ChapterDeletionJob> activeJobs = new HashMap<>();
+    private final Map<NodeRef, ChapterDeletionJob> activeJobsByChapterFolder = new HashMap<>();
+    private final LinkedHashMap<String, ChapterDeletionJob> finishedJobs = new LinkedHashMap<String, ChapterDeletionJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChapterDeletionJob> eldest) {
+            return size() > maxFinishedJobs;
+        }
+    };
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxFinishedJobs(int maxFinishedJobs) {
+        this.maxFinishedJobs = maxFinishedJobs;
+    }
+
+    public void setBookManagementSiteName(String bookManagementSiteName) {
+        this.bookManagementSiteName = bookManagementSiteName;
+    }
+
+    public void init() {
+        executor = ioExecutorService.newExecutor("BestPubChapterDeleter", threads);
+
+        if (bestPubMetrics != null) {
+            bestPubMetrics.registerGauge("bestpub_chapter_deletion_active_jobs",
+                    "Chapter deletion jobs queued or running", this::getActiveJobCount);
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    protected void onBootstrap(ApplicationEvent event) {
+        try {
+            resumeStagedDeletions();
+        } catch (RuntimeException re) {
+            LOG.warn("Could not resume staged chapter deletions: {}", re.getMessage());
+        }
+    }
+
+    @Override
+    protected void onShutdown(ApplicationEvent event) {
+        // Nothing to do, the thread pool is stopped by shutdown()
+    }
+
+    /**
+     * Take a chapter folder out of its book, as part of the current transaction, so it can be deleted
+     * in the background with {@link #submit(NodeRef, NodeRef, boolean)} once the transaction has committed.
+     *
+     * @param chapterFolderNodeRef the chapter folder to delete
+     * @param purge true if the chapter should bypass the archive store when deleted
+     * @throws AccessDeniedException if the current user is not allowed to delete the chapter folder
+     */
+    public void stage(final NodeRef chapterFolderNodeRef, final boolean purge) {
+        if (serviceRegistry.getPermissionService().hasPermission(
+                chapterFolderNodeRef, PermissionService.DELETE) != AccessStatus.ALLOWED) {
+            throw new AccessDeniedException("Not allowed to delete chapter folder " + chapterFolderNodeRef);
+        }
+
+        // The user may delete the chapter, but cannot be expected to have access to the staging container
+        AuthenticationUtil.runAsSystem(() -> {
+            NodeService nodeService = serviceRegistry.getNodeService();
+            NodeRef stagingFolderNodeRef = getStagingFolder(true);
+            String stagedName = chapterFolderNodeRef.getId();
+            nodeService.setProperty(chapterFolderNodeRef, ContentModel.PROP_NAME, stagedName);
+            if (purge) {
+                nodeService.addAspect(chapterFolderNodeRef, ContentModel.ASPECT_TEMPORARY, null);
+            }
+            nodeService.moveNode(chapterFolderNodeRef, stagingFolderNodeRef, ContentModel.ASSOC_CONTAINS,
+                    QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, stagedName));
+            return null;
+        });
+        LOG.debug("Staged chapter folder {} for deletion [purge={}]", chapterFolderNodeRef, purge);
+    }
+
+    /**
+     * Delete a staged chapter folder in the background.
+     *
+     * @param chapterFolderNodeRef the chapter folder, staged with {@link #stage(NodeRef, boolean)}
+     * @param isbnFolderNodeRef the book the chapter folder was deleted from
+     * @param purge true if the deleted nodes should bypass the archive store
+     * @return the job deleting the chapter folder, an already active one if there is one
+     */
+    public synchronized ChapterDeletionJob submit(NodeRef chapterFolderNodeRef, NodeRef isbnFolderNodeRef,
+                                                  boolean purge) {
+        ChapterDeletionJob activeJob = activeJobsByChapterFolder.get(chapterFolderNodeRef);
+        if (activeJob != null) {
+            return activeJob;
+        }
+
+        final ChapterDeletionJob job = new ChapterDeletionJob(GUID.generate(), chapterFolderNodeRef,
+                isbnFolderNodeRef, purge);
+        activeJobs.put(job.getId(), job);
+        activeJobsByChapterFolder.put(chapterFolderNodeRef, job);
+        executor.execute(() -> run(job));
+        LOG.debug("Queued chapter deletion {}", job);
+        return job;
+    }
+
+    /**
+     * @param jobId the job id as returned from {@link #submit(NodeRef, NodeRef, boolean)}
+     * @return the job, or null if there is no such job or it finished a long time ago
+     */
+    public synchronized ChapterDeletionJob getJob(String jobId) {
+        ChapterDeletionJob job = activeJobs.get(jobId);
+        return job != null ? job : finishedJobs.get(jobId);
+    }
+
+    /**
+     * @return the number of jobs queued or running
+     */
+    public synchronized int getActiveJobCount() {
+        return activeJobs.size();
+    }
+
+    private void run(final ChapterDeletionJob job) {
+        job.started();
+        String error = null;
+        try {
+            AuthenticationUtil.runAsSystem(() -> {
+                deleteInBatches(job);
+                return null;
+            });
+        } catch (Throwable t) {
+            LOG.error("Chapter deletion " + job + " failed", t);
+            error = t.getMessage() != null ? t.getMessage() : t.getClass().getName();
+        }
+        job.finished(error);
+        LOG.debug("Chapter deletion finished {} [durationMs={}]", job,
+                job.getFinishedAt().getTime() - job.getStartedAt().getTime());
+
+        synchronized (this) {
+            activeJobs.remove(job.getId());
+            activeJobsByChapterFolder.remove(job.getChapterFolderNodeRef());
+            finishedJobs.put(job.getId(), job);
+        }
+    }
+
+    /**
+     * Delete the subtree of the chapter folder a batch per transaction, then the chapter folder.
+     * Each batch holds nodes that have no children left, so a transaction never deletes more than
+     * batchSize nodes, however deep sub folders are nested. A folder whose children have all been
+     * deleted is picked up by a later batch.
+     */
+    private void deleteInBatches(final ChapterDeletionJob job) {
+        final NodeService nodeService = serviceRegistry.getNodeService();
+        final RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+        final NodeRef chapterFolderNodeRef = job.getChapterFolderNodeRef();
+
+        while (true) {
+            List<NodeRef> batch = txnHelper.doInTransaction(() -> {
+                if (!nodeService.exists(chapterFolderNodeRef)) {
+                    return null;
+                }
+                List<NodeRef> leaves = new ArrayList<>(batchSize);
+                collectLeaves(getPrimaryChildren(chapterFolderNodeRef), leaves);
+                return leaves;
+            }, true, true);
+
+            if (batch == null) {
+                // Deleted by someone else
+                return;
+            }
+
+            if (batch.isEmpty()) {
+                txnHelper.doInTransaction(() -> {
+                    if (nodeService.exists(chapterFolderNodeRef)) {
+                        deleteNode(chapterFolderNodeRef, job.isPurge());
+                    }
+                    return null;
+                }, false, true);
+                job.deleted(1);
+                if (bestPubMetrics != null) {
+                    bestPubMetrics.count("bestpub_chapter_deletion_nodes_total", 1);
+                }
+                return;
+            }
+
+            int deleted = txnHelper.doInTransaction(() -> {
+                int count = 0;
+                for (NodeRef leafNodeRef : batch) {
+                    if (nodeService.exists(leafNodeRef)) {
+                        deleteNode(leafNodeRef, job.isPurge());
+                        count++;
+                    }
+                }
+                return count;
+            }, false, true);
+            job.deleted(deleted);
+            if (bestPubMetrics != null) {
+                bestPubMetrics.count("bestpub_chapter_deletion_nodes_total", deleted);
+            }
+        }
+    }
+
+    /**
+     * Walk down depth first and add the nodes without children of their own, until the batch is full
+     */
+    private void collectLeaves(List<NodeRef> nodeRefs, List<NodeRef> leaves) {
+        for (NodeRef nodeRef : nodeRefs) {
+            if (leaves.size() >= batchSize) {
+                return;
+            }
+            List<NodeRef> children = getPrimaryChildren(nodeRef);
+            if (children.isEmpty()) {
+                leaves.add(nodeRef);
+            } else {
+                collectLeaves(children, leaves);
+            }
+        }
+    }
+
+    /**
+     * @return at most batchSize children the node is the primary parent of
+     */
+    private List<NodeRef> getPrimaryChildren(NodeRef nodeRef) {
+        List<ChildAssociationRef> childAssocs = serviceRegistry.getNodeService().getChildAssocs(nodeRef,
+                RegexQNamePattern.MATCH_ALL, RegexQNamePattern.MATCH_ALL, batchSize, false);
+        List<NodeRef> children = new ArrayList<>(childAssocs.size());
+        for (ChildAssociationRef childAssoc : childAssocs) {
+            if (childAssoc.isPrimary()) {
+                children.add(childAssoc.getChildRef());
+            }
+        }
+        return children;
+    }
+
+    private void deleteNode(NodeRef nodeRef, boolean purge) {
+        if (purge) {
+            serviceRegistry.getNodeService().addAspect(nodeRef, ContentModel.ASPECT_TEMPORARY, null);
+        }
+        serviceRegistry.getNodeService().deleteNode(nodeRef);
+    }
+
+    /**
+     * @return the staging container, or null if it does not exist and should not be created
+     */
+    private NodeRef getStagingFolder(boolean create) {
+        NodeRef stagingFolderNodeRef = serviceRegistry.getSiteService().getContainer(
+                bookManagementSiteName, STAGING_CONTAINER);
+        if (stagingFolderNodeRef == null && create) {
+            stagingFolderNodeRef = serviceRegistry.getSiteService().createContainer(
+                    bookManagementSiteName, STAGING_CONTAINER, ContentModel.TYPE_FOLDER, null);
+        }
+        return stagingFolderNodeRef;
+    }
+
+    /**
+     * Queue deletion of the chapter folders left in the staging container
+     */
+    private void resumeStagedDeletions() {
+        // Staged chapter folder -> purge
+        Map<NodeRef, Boolean> stagedFolders = AuthenticationUtil.runAsSystem(() ->
+                serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(() -> {
+                    Map<NodeRef, Boolean> folders = new LinkedHashMap<>();
+                    if (serviceRegistry.getSiteService().getSite(bookManagementSiteName) == null) {
+                        return folders;
+                    }
+                    NodeRef stagingFolderNodeRef = getStagingFolder(false);
+                    if (stagingFolderNodeRef == null) {
+                        return folders;
+                    }
+                    for (ChildAssociationRef childAssoc : serviceRegistry.getNodeService().getChildAssocs(
+                            stagingFolderNodeRef, ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL)) {
+                        NodeRef chapterFolderNodeRef = childAssoc.getChildRef();
+                        folders.put(chapterFolderNodeRef, serviceRegistry.getNodeService().hasAspect(
+                                chapterFolderNodeRef, ContentModel.ASPECT_TEMPORARY));
+                    }
+                    return folders;
+                }, true, false));
+
+        for (Map.Entry<NodeRef, Boolean> stagedFolder : stagedFolders.entrySet()) {
+            ChapterDeletionJob job = submit(stagedFolder.getKey(), null, stagedFolder.getValue());
+            LOG.info("Resumed staged chapter deletion {}", job);
+        }
+    }
+}
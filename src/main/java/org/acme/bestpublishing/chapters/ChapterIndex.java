@@ -0,0 +1,130 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The chapter folders of one ISBN folder ordered on chapter number (1, 2, 3, ...).
+ * <p/>
+ * Immutable, and held in parallel arrays indexed by position so it is cheap to keep in the
+ * (cluster) chapter index cache and to walk forwards or backwards. Only what is needed to order
+ * and name the chapter folders is kept, other chapter properties are read from the node when needed.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterIndex implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final int[] chapterNumbers;
+    private final NodeRef[] nodeRefs;
+    private final String[] names;
+
+    /**
+     * @param chapterNumbers the chapter number of each chapter folder, in any order
+     * @param nodeRefs the chapter folders, in the same order as the chapter numbers
+     * @param names the chapter folder names, in the same order as the chapter numbers
+     * @param size the number of chapter folders, the arrays can be longer
+     */
+    public ChapterIndex(int[] chapterNumbers, NodeRef[] nodeRefs, String[] names, int size) {
+        // Sort positions on chapter number by packing both into a long, no boxing or comparator needed
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) chapterNumbers[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        this.chapterNumbers = new int[size];
+        this.nodeRefs = new NodeRef[size];
+        this.names = new String[size];
+        for (int i = 0; i < size; i++) {
+            int from = (int) keys[i];
+            this.chapterNumbers[i] = chapterNumbers[from];
+            this.nodeRefs[i] = nodeRefs[from];
+            this.names[i] = names[from];
+        }
+    }
+
+    public int size() {
+        return chapterNumbers.length;
+    }
+
+    public boolean isEmpty() {
+        return chapterNumbers.length == 0;
+    }
+
+    public int getChapterNumber(int position) {
+        return chapterNumbers[position];
+    }
+
+    public NodeRef getNodeRef(int position) {
+        return nodeRefs[position];
+    }
+
+    public String getName(int position) {
+        return names[position];
+    }
+
+    /**
+     * @return the position of the chapter folder with the chapter number, or a negative value if there is none
+     */
+    public int indexOf(int chapterNumber) {
+        return Arrays.binarySearch(chapterNumbers, chapterNumber);
+    }
+
+    /**
+     * @return the chapter folder with the chapter number, or null if there is none
+     */
+    public NodeRef getChapterFolder(int chapterNumber) {
+        int position = indexOf(chapterNumber);
+        return position >= 0 ? nodeRefs[position] : null;
+    }
+
+    /**
+     * @return the highest chapter number, or 0 if there are no chapters
+     */
+    public int getLastChapterNumber() {
+        return chapterNumbers.length > 0 ? chapterNumbers[chapterNumbers.length - 1] : 0;
+    }
+
+    /**
+     * @return the chapter folders in chapter number order
+     */
+    public List<NodeRef> getChapterFolders() {
+        return Collections.unmodifiableList(Arrays.asList(nodeRefs));
+    }
+
+    /**
+     * @return chapter number for each chapter folder
+     */
+    public Map<NodeRef, Integer> getChapterNumbers() {
+        Map<NodeRef, Integer> numbers = new HashMap<>(chapterNumbers.length * 2);
+        for (int i = 0; i < chapterNumbers.length; i++) {
+            numbers.put(nodeRefs[i], chapterNumbers[i]);
+        }
+        return numbers;
+    }
+
+    @Override
+    public String toString() {
+        return "ChapterIndex" + Arrays.toString(chapterNumbers);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterFolderType;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterInfoAspect;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Removes the cached {@link ChapterIndex} of an ISBN folder when one of its chapter folders is
+ * created, deleted, moved, or gets a new name, number, title, or author. When chapter folders
+ * come or go the chapter count of the book is synced with the {@link ChapterCountService}.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterIndexBehaviour implements
+        NodeServicePolicies.OnCreateNodePolicy,
+        NodeServicePolicies.OnUpdatePropertiesPolicy,
+        NodeServicePolicies.OnDeleteNodePolicy,
+        NodeServicePolicies.OnMoveNodePolicy {
+
+    /**
+     * Chapter folder properties held in the chapter index
+     */
+    private static final List<QName> INDEXED_PROPERTIES = Arrays.asList(
+            ContentModel.PROP_NAME, ChapterInfoAspect.Prop.CHAPTER_NUMBER,
+            ChapterInfoAspect.Prop.CHAPTER_TITLE, ChapterInfoAspect.Prop.CHAPTER_AUTHOR_NAME);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private PolicyComponent policyComponent;
+
+    /**
+     * BestPub Services
+     */
+    private ChapterIndexService chapterIndexService;
+    private ChapterCountService chapterCountService;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setPolicyComponent(PolicyComponent policyComponent) {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setChapterIndexService(ChapterIndexService chapterIndexService) {
+        this.chapterIndexService = chapterIndexService;
+    }
+
+    public void setChapterCountService(ChapterCountService chapterCountService) {
+        this.chapterCountService = chapterCountService;
+    }
+
+    public void init() {
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnCreateNodePolicy.QNAME, ChapterFolderType.QNAME,
+                new JavaBehaviour(this, "onCreateNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, ChapterFolderType.QNAME,
+                new JavaBehaviour(this, "onUpdateProperties", Behaviour.NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnDeleteNodePolicy.QNAME, ChapterFolderType.QNAME,
+                new JavaBehaviour(this, "onDeleteNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ChapterFolderType.QNAME,
+                new JavaBehaviour(this, "onMoveNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Behaviour implementations
+     */
+
+    @Override
+    public void onCreateNode(ChildAssociationRef childAssocRef) {
+        chapterIndexService.invalidate(childAssocRef.getParentRef());
+        chapterCountService.scheduleSync(childAssocRef.getParentRef());
+    }
+
+    @Override
+    public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+        for (QName propName : INDEXED_PROPERTIES) {
+            if (!Objects.equals(before.get(propName), after.get(propName))) {
+                chapterIndexService.invalidate(
+                        serviceRegistry.getNodeService().getPrimaryParent(nodeRef).getParentRef());
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived) {
+        chapterIndexService.invalidate(childAssocRef.getParentRef());
+        chapterCountService.scheduleSync(childAssocRef.getParentRef());
+    }
+
+    @Override
+    public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+        chapterIndexService.invalidate(oldChildAssocRef.getParentRef());
+        chapterIndexService.invalidate(newChildAssocRef.getParentRef());
+        chapterCountService.scheduleSync(oldChildAssocRef.getParentRef());
+        chapterCountService.scheduleSync(newChildAssocRef.getParentRef());
+    }
+}
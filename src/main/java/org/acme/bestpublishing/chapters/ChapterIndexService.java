@@ -0,0 +1,209 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterFolderType;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterInfoAspect;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a {@link ChapterIndex} per ISBN folder in a transactional cache, so chapter operations
+ * do not have to list and sort the chapter folders every time. This replaces
+ * {@link org.acme.bestpublishing.services.BestPubUtilsService#getSortedChapterFolders(NodeRef)}
+ * for code in this module.
+ * <p/>
+ * The cache is cluster aware, and entries are removed by {@link ChapterIndexBehaviour} whenever
+ * a chapter folder is created, renamed, renumbered, moved, or deleted.
+ * <p/>
+ * An index is built from the chapter number and name of each chapter folder only, the chapter
+ * folders are loaded in bulk and their other properties are not read.
+ * <p/>
+ * The cached index is shared by all users, so it is built as the system user and always holds every
+ * chapter folder of the book, whoever happened to ask first. The chapter count and the renumbering
+ * depend on that. Reading an index takes read permission on the ISBN folder, code that hands chapter
+ * folders from the index on to the user has to check each chapter folder itself.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterIndexService {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterIndexService.class);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private NodeDAO nodeDAO;
+    private SimpleCache<NodeRef, ChapterIndex> chapterIndexCache;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Chapter index lookups on this repository node, and how often a change dropped a cached index
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setNodeDAO(NodeDAO nodeDAO) {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void setChapterIndexCache(SimpleCache<NodeRef, ChapterIndex> chapterIndexCache) {
+        this.chapterIndexCache = chapterIndexCache;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void init() {
+        if (bestPubMetrics != null) {
+            bestPubMetrics.registerGauge("bestpub_chapter_index_cache_hits",
+                    "Chapter index lookups served from the cache", this::getHits);
+            bestPubMetrics.registerGauge("bestpub_chapter_index_cache_misses",
+                    "Chapter index lookups that listed the chapter folders", this::getMisses);
+            bestPubMetrics.registerGauge("bestpub_chapter_index_cache_invalidations",
+                    "Chapter indexes removed from the cache because the chapter folders changed",
+                    this::getInvalidations);
+        }
+    }
+
+    /**
+     * Get the chapter folders of a book ordered on chapter number.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return the chapter index with all chapter folders of the book, from the cache if possible
+     * @throws AccessDeniedException if the current user cannot read the ISBN folder
+     */
+    public ChapterIndex getChapterIndex(final NodeRef isbnFolderNodeRef) {
+        if (serviceRegistry.getPermissionService().hasPermission(
+                isbnFolderNodeRef, PermissionService.READ) != AccessStatus.ALLOWED) {
+            throw new AccessDeniedException("Not allowed to read the chapters of " + isbnFolderNodeRef);
+        }
+
+        ChapterIndex chapterIndex = chapterIndexCache.get(isbnFolderNodeRef);
+        if (chapterIndex != null) {
+            hits.incrementAndGet();
+            return chapterIndex;
+        }
+
+        misses.incrementAndGet();
+        chapterIndex = AuthenticationUtil.runAsSystem(() -> buildChapterIndex(isbnFolderNodeRef));
+        chapterIndexCache.put(isbnFolderNodeRef, chapterIndex);
+        return chapterIndex;
+    }
+
+    /**
+     * Remove the cached chapter index for a book, it is rebuilt on next use.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     */
+    public void invalidate(NodeRef isbnFolderNodeRef) {
+        if (chapterIndexCache.contains(isbnFolderNodeRef)) {
+            invalidations.incrementAndGet();
+        }
+        chapterIndexCache.remove(isbnFolderNodeRef);
+    }
+
+    /**
+     * @return number of chapter index lookups served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of chapter index lookups that had to list the chapter folders
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of cached chapter indexes removed because the chapter folders changed, entries
+     * the cache drops on its own to stay within its size are not counted
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    private ChapterIndex buildChapterIndex(NodeRef isbnFolderNodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        List<ChildAssociationRef> chapterFolderAssocs = nodeService.getChildAssocs(
+                isbnFolderNodeRef, Collections.singleton(ChapterFolderType.QNAME));
+
+        // Load the chapter folders in bulk, the property reads below are then served from the node cache
+        List<NodeRef> chapterFolderNodeRefs = new ArrayList<>(chapterFolderAssocs.size());
+        for (ChildAssociationRef chapterFolderAssoc : chapterFolderAssocs) {
+            chapterFolderNodeRefs.add(chapterFolderAssoc.getChildRef());
+        }
+        nodeDAO.cacheNodes(chapterFolderNodeRefs);
+
+        // Only read the two properties the index needs, not the full property map of each chapter folder
+        int size = 0;
+        int[] chapterNumbers = new int[chapterFolderNodeRefs.size()];
+        NodeRef[] nodeRefs = new NodeRef[chapterFolderNodeRefs.size()];
+        String[] names = new String[chapterFolderNodeRefs.size()];
+        for (NodeRef chapterFolderNodeRef : chapterFolderNodeRefs) {
+            Integer chapterNumber = (Integer) nodeService.getProperty(
+                    chapterFolderNodeRef, ChapterInfoAspect.Prop.CHAPTER_NUMBER);
+            if (chapterNumber == null) {
+                LOG.warn("Chapter folder {} has no chapter number, leaving it out of the chapter index",
+                        chapterFolderNodeRef);
+                continue;
+            }
+            chapterNumbers[size] = chapterNumber;
+            nodeRefs[size] = chapterFolderNodeRef;
+            names[size] = (String) nodeService.getProperty(chapterFolderNodeRef, ContentModel.PROP_NAME);
+            size++;
+        }
+
+        ChapterIndex chapterIndex = new ChapterIndex(chapterNumbers, nodeRefs, names, size);
+        LOG.debug("Built chapter index for {} {}", isbnFolderNodeRef, chapterIndex);
+        return chapterIndex;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serializes changes to the chapter structure (create, delete, renumber) of a book, so two editors
+ * working on the same book do not read the same chapter folders and chapter count and then write
+ * conflicting chapter folder names and counts. Changes to different books run in parallel.
+ * <p/>
+ * A book is locked on two levels, keyed on the ISBN folder. First a striped in-JVM lock, so
+ * requests for the same book on this repository node queue up without touching the database.
+ * Then a {@link JobLockService} lock, so requests on other repository nodes in the cluster wait too.
+ * Both waits are bounded, if the lock cannot be had in time a {@link ChapterLockedException} is
+ * thrown straight away instead of running into transaction retries.
+ * <p/>
+ * Locks are re-entrant for the current thread. A lock taken within a transaction is held until
+ * the transaction has committed or rolled back, so the next editor sees the committed chapters.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterLockService {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterLockService.class);
+
+    private static final String LOCK_NAME_PREFIX = "chapterStructure-";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int stripes = 64;
+    private long maxWaitMs = 2000;
+    private long clusterLockTimeToLiveMs = 60000;
+    private long clusterLockRetryWaitMs = 50;
+
+    /**
+     * Alfresco Services
+     */
+    private JobLockService jobLockService;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubMetrics bestPubMetrics;
+
+    private ReentrantLock[] stripeLocks;
+
+    /**
+     * Books locked by the current thread
+     */
+    private final ThreadLocal<Map<NodeRef, HeldLock>> heldLocks = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * Spring DI
+     */
+
+    public void setJobLockService(JobLockService jobLockService) {
+        this.jobLockService = jobLockService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setStripes(int stripes) {
+        this.stripes = stripes;
+    }
+
+    public void setMaxWaitMs(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    public void setClusterLockTimeToLiveMs(long clusterLockTimeToLiveMs) {
+        this.clusterLockTimeToLiveMs = clusterLockTimeToLiveMs;
+    }
+
+    public void setClusterLockRetryWaitMs(long clusterLockRetryWaitMs) {
+        this.clusterLockRetryWaitMs = clusterLockRetryWaitMs;
+    }
+
+    public void init() {
+        // Round up to a power of two so the stripe can be picked with a mask
+        int stripeCount = 1;
+        while (stripeCount < stripes) {
+            stripeCount <<= 1;
+        }
+        stripeLocks = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripeLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock the chapter structure of a book until the current transaction completes.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @throws ChapterLockedException if the book is being changed by someone else and did not
+     *                                become free within the maximum wait time
+     * @throws AlfrescoRuntimeException if there is no transaction
+     */
+    public void lockForTransaction(NodeRef isbnFolderNodeRef) {
+        if (AlfrescoTransactionSupport.getTransactionReadState() == AlfrescoTransactionSupport.TxnReadState.TXN_NONE) {
+            throw new AlfrescoRuntimeException("Cannot lock chapters of " + isbnFolderNodeRef + " outside a transaction");
+        }
+
+        final HeldLock heldLock = acquire(isbnFolderNodeRef);
+        AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+            @Override
+            public void afterCommit() {
+                release(heldLock);
+            }
+
+            @Override
+            public void afterRollback() {
+                release(heldLock);
+            }
+        });
+    }
+
+    /**
+     * Run some work with the chapter structure of a book locked. If there is a transaction the lock
+     * is held until it completes, otherwise until the work returns, so work that starts its own
+     * transaction is locked until that transaction has committed.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param work the work to do
+     * @return the result of the work
+     * @throws ChapterLockedException if the book did not become free within the maximum wait time
+     */
+    public <R> R doWithLock(NodeRef isbnFolderNodeRef, RetryingTransactionCallback<R> work) {
+        if (AlfrescoTransactionSupport.getTransactionReadState() != AlfrescoTransactionSupport.TxnReadState.TXN_NONE) {
+            lockForTransaction(isbnFolderNodeRef);
+            return execute(work);
+        }
+
+        HeldLock heldLock = acquire(isbnFolderNodeRef);
+        try {
+            return execute(work);
+        } finally {
+            release(heldLock);
+        }
+    }
+
+    private <R> R execute(RetryingTransactionCallback<R> work) {
+        try {
+            return work.execute();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new AlfrescoRuntimeException("Chapter work failed", t);
+        }
+    }
+
+    private HeldLock acquire(NodeRef isbnFolderNodeRef) {
+        Map<NodeRef, HeldLock> locks = heldLocks.get();
+        HeldLock heldLock = locks.get(isbnFolderNodeRef);
+        if (heldLock != null) {
+            heldLock.holds++;
+            return heldLock;
+        }
+
+        long start = System.nanoTime();
+        ReentrantLock stripeLock = stripeLocks[(isbnFolderNodeRef.hashCode() * 0x9E3779B9 >>> 16) & (stripeLocks.length - 1)];
+        try {
+            if (!stripeLock.tryLock(maxWaitMs, TimeUnit.MILLISECONDS)) {
+                throw locked(isbnFolderNodeRef, "another request on this server is changing its chapters");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw locked(isbnFolderNodeRef, "interrupted while waiting");
+        }
+
+        QName lockQName = QName.createQName(BestPubActionsModel.NAMESPACE_URI,
+                LOCK_NAME_PREFIX + isbnFolderNodeRef.getId());
+        String lockToken;
+        try {
+            long remainingMs = maxWaitMs - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            int retryCount = (int) Math.max(0, remainingMs / Math.max(1, clusterLockRetryWaitMs));
+            lockToken = jobLockService.getLock(lockQName, clusterLockTimeToLiveMs, clusterLockRetryWaitMs, retryCount);
+        } catch (LockAcquisitionException lae) {
+            stripeLock.unlock();
+            throw locked(isbnFolderNodeRef, "another server in the cluster is changing its chapters");
+        } catch (RuntimeException re) {
+            stripeLock.unlock();
+            throw re;
+        }
+
+        heldLock = new HeldLock(isbnFolderNodeRef, stripeLock, lockQName, lockToken);
+        locks.put(isbnFolderNodeRef, heldLock);
+        bestPubMetrics.lap("lock");
+        return heldLock;
+    }
+
+    private void release(HeldLock heldLock) {
+        if (--heldLock.holds > 0) {
+            return;
+        }
+
+        heldLocks.get().remove(heldLock.isbnFolderNodeRef);
+        try {
+            jobLockService.releaseLock(heldLock.lockToken, heldLock.lockQName);
+        } catch (RuntimeException re) {
+            // It expires after its time to live
+            LOG.warn("Could not release chapter lock for {}: {}", heldLock.isbnFolderNodeRef, re.getMessage());
+        } finally {
+            heldLock.stripeLock.unlock();
+        }
+    }
+
+    private ChapterLockedException locked(NodeRef isbnFolderNodeRef, String reason) {
+        bestPubMetrics.count("bestpub_chapter_lock_timeouts_total", 1);
+        LOG.debug("Could not lock chapters of {} within {}ms, {}", isbnFolderNodeRef, maxWaitMs, reason);
+        return new ChapterLockedException("The chapters of this book are being changed by someone else, " +
+                "try again shortly [isbnFolderNodeRef=" + isbnFolderNodeRef + "]");
+    }
+
+    /**
+     * A book locked by the current thread
+     */
+    private static class HeldLock {
+        private final NodeRef isbnFolderNodeRef;
+        private final ReentrantLock stripeLock;
+        private final QName lockQName;
+        private final String lockToken;
+        private int holds = 1;
+
+        HeldLock(NodeRef isbnFolderNodeRef, ReentrantLock stripeLock, QName lockQName, String lockToken) {
+            this.isbnFolderNodeRef = isbnFolderNodeRef;
+            this.stripeLock = stripeLock;
+            this.lockQName = lockQName;
+            this.lockToken = lockToken;
+        }
+    }
+
+    /**
+     * Thrown when the chapters of a book could not be locked within the maximum wait time
+     */
+    public static class ChapterLockedException extends AlfrescoRuntimeException {
+        public ChapterLockedException(String msg) {
+            super(msg);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The complete set of chapter folder moves needed to renumber the chapters of an ISBN folder,
+ * ordered so that applying them one by one never produces a duplicate chapter folder name.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterRenumberingPlan {
+
+    /**
+     * A single write against a chapter folder, either the final rename to its new chapter number,
+     * or a temporary rename used to break a cycle of moves (e.g. two chapters swapping places).
+     */
+    public static class Step {
+        private final NodeRef chapterFolderNodeRef;
+        private final int fromChapterNumber;
+        private final int toChapterNumber;
+        private final boolean temporary;
+
+        Step(NodeRef chapterFolderNodeRef, int fromChapterNumber, int toChapterNumber, boolean temporary) {
+            this.chapterFolderNodeRef = chapterFolderNodeRef;
+            this.fromChapterNumber = fromChapterNumber;
+            this.toChapterNumber = toChapterNumber;
+            this.temporary = temporary;
+        }
+
+        public NodeRef getChapterFolderNodeRef() {
+            return chapterFolderNodeRef;
+        }
+
+        public int getFromChapterNumber() {
+            return fromChapterNumber;
+        }
+
+        public int getToChapterNumber() {
+            return toChapterNumber;
+        }
+
+        public boolean isTemporary() {
+            return temporary;
+        }
+
+        @Override
+        public String toString() {
+            return "Step[" + chapterFolderNodeRef + ": " + fromChapterNumber + " -> " + toChapterNumber +
+                    (temporary ? " (temporary)" : "") + "]";
+        }
+    }
+
+    private final NodeRef isbnFolderNodeRef;
+    private final List<Step> steps;
+
+    ChapterRenumberingPlan(NodeRef isbnFolderNodeRef, List<Step> steps) {
+        this.isbnFolderNodeRef = isbnFolderNodeRef;
+        this.steps = Collections.unmodifiableList(steps);
+    }
+
+    public NodeRef getIsbnFolderNodeRef() {
+        return isbnFolderNodeRef;
+    }
+
+    /**
+     * @return the writes to apply, in order
+     */
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ChapterRenumberingPlan[isbnFolder=" + isbnFolderNodeRef + ", steps=" + steps + "]";
+    }
+}
@@ -0,0 +1,294 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Renumbers the chapter folders of an ISBN folder in one go.
+ * <p/>
+ * The renumbering is done in two phases. First a {@link ChapterRenumberingPlan} is computed for the whole
+ * shift, leaving out chapter folders whose number does not change, and ordering the moves so that a
+ * chapter folder is only renamed when its new name has already been vacated. Then the plan is applied
+ * with a single {@link NodeService#addProperties} call per chapter folder, updating both
+ * {@link ContentModel#PROP_NAME} and the chapter number, so no duplicate name checks are ever triggered.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterRenumberingService {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterRenumberingService.class);
+
+    /**
+     * Suffix used for the temporary chapter folder name when a cycle of moves has to be broken
+     */
+    private static final String TEMP_NAME_SUFFIX = "-renumbering-";
+
+    /**
+     * BestPub Services
+     */
+    private BookNaming bookNaming;
+    private ChapterContentUpdater chapterContentUpdater;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Spring DI
+     */
+
+    public void setBookNaming(BookNaming bookNaming) {
+        this.bookNaming = bookNaming;
+    }
+
+    public void setChapterContentUpdater(ChapterContentUpdater chapterContentUpdater) {
+        this.chapterContentUpdater = chapterContentUpdater;
+    }
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    /**
+     * Plan the renumbering needed to insert a new chapter at the passed in position,
+     * all chapters from that position and onwards are moved one step up.
+     *
+     * @param isbnFolderNodeRef the ISBN folder containing the chapter folders
+     * @param chapterIndex the existing chapter folders
+     * @param newChapterNumber the chapter number the new chapter will get
+     * @return the renumbering plan, empty if the new chapter is added last
+     */
+    public ChapterRenumberingPlan planInsert(NodeRef isbnFolderNodeRef,
+                                             ChapterIndex chapterIndex,
+                                             int newChapterNumber) {
+        Map<NodeRef, Integer> currentNumbers = chapterIndex.getChapterNumbers();
+        Map<NodeRef, Integer> targetNumbers = new HashMap<>();
+        for (Map.Entry<NodeRef, Integer> chapter : currentNumbers.entrySet()) {
+            int chapterNumber = chapter.getValue();
+            targetNumbers.put(chapter.getKey(), chapterNumber >= newChapterNumber ? chapterNumber + 1 : chapterNumber);
+        }
+
+        return plan(isbnFolderNodeRef, currentNumbers, targetNumbers);
+    }
+
+    /**
+     * Plan the renumbering needed to insert several new chapters in one go. The result is the same
+     * as inserting the new chapters one at a time in ascending chapter number order, but each
+     * existing chapter folder is moved at most once.
+     *
+     * @param isbnFolderNodeRef the ISBN folder containing the chapter folders
+     * @param chapterIndex the existing chapter folders
+     * @param newChapterNumbers the chapter numbers the new chapters will get, ascending and distinct
+     * @return the renumbering plan, empty if all new chapters are added last
+     */
+    public ChapterRenumberingPlan planInsert(NodeRef isbnFolderNodeRef,
+                                             ChapterIndex chapterIndex,
+                                             int[] newChapterNumbers) {
+        Map<NodeRef, Integer> currentNumbers = chapterIndex.getChapterNumbers();
+        Map<NodeRef, Integer> targetNumbers = new HashMap<>();
+        for (Map.Entry<NodeRef, Integer> chapter : currentNumbers.entrySet()) {
+            int chapterNumber = chapter.getValue();
+            for (int newChapterNumber : newChapterNumbers) {
+                if (chapterNumber >= newChapterNumber) {
+                    chapterNumber++;
+                }
+            }
+            targetNumbers.put(chapter.getKey(), chapterNumber);
+        }
+
+        return plan(isbnFolderNodeRef, currentNumbers, targetNumbers);
+    }
+
+    /**
+     * Plan the renumbering needed after a chapter has been deleted,
+     * all chapters after the deleted one are moved one step down.
+     *
+     * @param isbnFolderNodeRef the ISBN folder containing the chapter folders
+     * @param chapterIndex the remaining chapter folders, any entry for the deleted chapter folder is ignored
+     * @param deletedChapterNumber the chapter number of the deleted chapter
+     * @return the renumbering plan, empty if the last chapter was deleted
+     */
+    public ChapterRenumberingPlan planDelete(NodeRef isbnFolderNodeRef,
+                                             ChapterIndex chapterIndex,
+                                             int deletedChapterNumber) {
+        Map<NodeRef, Integer> currentNumbers = chapterIndex.getChapterNumbers();
+        Map<NodeRef, Integer> targetNumbers = new HashMap<>();
+        for (Iterator<Map.Entry<NodeRef, Integer>> it = currentNumbers.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<NodeRef, Integer> chapter = it.next();
+            int chapterNumber = chapter.getValue();
+            if (chapterNumber == deletedChapterNumber) {
+                // Deleted chapter folder still showing up, leave it alone
+                it.remove();
+                continue;
+            }
+            targetNumbers.put(chapter.getKey(), chapterNumber > deletedChapterNumber ? chapterNumber - 1 : chapterNumber);
+        }
+
+        return plan(isbnFolderNodeRef, currentNumbers, targetNumbers);
+    }
+
+    /**
+     * Plan an arbitrary renumbering of chapter folders.
+     * <p/>
+     * Moves are ordered so that each chapter folder is renamed only after the chapter folder currently
+     * holding its target name has moved out of the way. If the moves form a cycle one chapter folder in
+     * the cycle is first given a temporary name.
+     *
+     * @param isbnFolderNodeRef the ISBN folder containing the chapter folders
+     * @param currentNumbers the current chapter number of each chapter folder
+     * @param targetNumbers the wanted chapter number of each chapter folder, missing entries are left as is
+     * @return the renumbering plan
+     * @throws AlfrescoRuntimeException if two chapter folders would end up with the same chapter number
+     */
+    public ChapterRenumberingPlan plan(NodeRef isbnFolderNodeRef,
+                                       Map<NodeRef, Integer> currentNumbers,
+                                       Map<NodeRef, Integer> targetNumbers) {
+        // Chapter number -> chapter folder currently holding that chapter folder name
+        Map<Integer, NodeRef> occupants = new HashMap<>();
+        for (Map.Entry<NodeRef, Integer> chapter : currentNumbers.entrySet()) {
+            occupants.put(chapter.getValue(), chapter.getKey());
+        }
+
+        // Only chapter folders that actually change number need to be touched,
+        // keep them in chapter number order so the plan is deterministic
+        SortedMap<Integer, NodeRef> moves = new TreeMap<>();
+        Set<Integer> usedTargets = new HashSet<>();
+        for (Map.Entry<NodeRef, Integer> chapter : currentNumbers.entrySet()) {
+            Integer targetNumber = targetNumbers.get(chapter.getKey());
+            int finalNumber = targetNumber == null ? chapter.getValue() : targetNumber;
+            if (!usedTargets.add(finalNumber)) {
+                throw new AlfrescoRuntimeException("Cannot renumber chapters in " + isbnFolderNodeRef +
+                        ", more than one chapter folder would get chapter number " + finalNumber);
+            }
+            if (finalNumber != chapter.getValue()) {
+                moves.put(chapter.getValue(), chapter.getKey());
+            }
+        }
+
+        // Target chapter number -> move waiting for that chapter folder name to be vacated
+        Map<Integer, NodeRef> waitingFor = new HashMap<>();
+        Deque<NodeRef> ready = new ArrayDeque<>();
+        for (NodeRef chapterFolderNodeRef : moves.values()) {
+            int targetNumber = targetNumbers.get(chapterFolderNodeRef);
+            if (occupants.containsKey(targetNumber)) {
+                waitingFor.put(targetNumber, chapterFolderNodeRef);
+            } else {
+                ready.add(chapterFolderNodeRef);
+            }
+        }
+
+        List<ChapterRenumberingPlan.Step> steps = new ArrayList<>(moves.size());
+        Set<NodeRef> pending = new LinkedHashSet<>(moves.values());
+        Set<NodeRef> tempRenamed = new HashSet<>();
+        while (!pending.isEmpty()) {
+            if (ready.isEmpty()) {
+                // Only cycles left, move one chapter folder out of the way with a temporary name,
+                // it then waits for its target name like any other move
+                NodeRef chapterFolderNodeRef = null;
+                for (NodeRef pendingChapterFolderNodeRef : pending) {
+                    if (!tempRenamed.contains(pendingChapterFolderNodeRef)) {
+                        chapterFolderNodeRef = pendingChapterFolderNodeRef;
+                        break;
+                    }
+                }
+                if (chapterFolderNodeRef == null) {
+                    throw new AlfrescoRuntimeException("Cannot renumber chapters in " + isbnFolderNodeRef +
+                            ", unable to order chapter folder moves " + pending);
+                }
+                int currentNumber = currentNumbers.get(chapterFolderNodeRef);
+                int targetNumber = targetNumbers.get(chapterFolderNodeRef);
+                steps.add(new ChapterRenumberingPlan.Step(chapterFolderNodeRef, currentNumber, targetNumber, true));
+                tempRenamed.add(chapterFolderNodeRef);
+                vacate(currentNumber, occupants, waitingFor, ready);
+                continue;
+            }
+
+            NodeRef chapterFolderNodeRef = ready.poll();
+            int currentNumber = currentNumbers.get(chapterFolderNodeRef);
+            int targetNumber = targetNumbers.get(chapterFolderNodeRef);
+            steps.add(new ChapterRenumberingPlan.Step(chapterFolderNodeRef, currentNumber, targetNumber, false));
+            pending.remove(chapterFolderNodeRef);
+            if (chapterFolderNodeRef.equals(occupants.get(currentNumber))) {
+                vacate(currentNumber, occupants, waitingFor, ready);
+            }
+            occupants.put(targetNumber, chapterFolderNodeRef);
+        }
+
+        return new ChapterRenumberingPlan(isbnFolderNodeRef, steps);
+    }
+
+    /**
+     * Apply a renumbering plan, each step is one property write against the chapter folder.
+     * When a chapter folder gets its final chapter number an update of the chapter number metadata
+     * for the files in the chapter folder is scheduled with the {@link ChapterContentUpdater}.
+     *
+     * @param plan the plan to apply
+     * @return the number of chapter folders that got a new chapter number
+     */
+    public int apply(ChapterRenumberingPlan plan) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        int renumberedChapters = 0;
+        for (ChapterRenumberingPlan.Step step : plan.getSteps()) {
+            NodeRef chapterFolderNodeRef = step.getChapterFolderNodeRef();
+            Map<QName, Serializable> props = new HashMap<>();
+            if (step.isTemporary()) {
+                props.put(ContentModel.PROP_NAME, bookNaming.getChapterFolderName(
+                        step.getFromChapterNumber()) + TEMP_NAME_SUFFIX + chapterFolderNodeRef.getId());
+                nodeService.addProperties(chapterFolderNodeRef, props);
+                continue;
+            }
+
+            props.put(ContentModel.PROP_NAME, bookNaming.getChapterFolderName(step.getToChapterNumber()));
+            props.put(BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER, step.getToChapterNumber());
+            nodeService.addProperties(chapterFolderNodeRef, props);
+            renumberedChapters++;
+
+            // Update chapter number metadata for any files in chapter folder, done in batches after commit
+            chapterContentUpdater.scheduleUpdate(chapterFolderNodeRef, step.getToChapterNumber());
+        }
+
+        LOG.debug("Renumbered {} chapter folders in {} steps [isbnFolderNodeRef={}]",
+                renumberedChapters, plan.getSteps().size(), plan.getIsbnFolderNodeRef());
+
+        return renumberedChapters;
+    }
+
+    /**
+     * Mark a chapter number as free and release any move that was waiting for it.
+     */
+    private void vacate(int chapterNumber, Map<Integer, NodeRef> occupants,
+                        Map<Integer, NodeRef> waitingFor, Deque<NodeRef> ready) {
+        occupants.remove(chapterNumber);
+        NodeRef waitingChapterFolderNodeRef = waitingFor.remove(chapterNumber);
+        if (waitingChapterFolderNodeRef != null) {
+            ready.add(waitingChapterFolderNodeRef);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.chapters;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chapter to be created by the {@link ChapterCreationService}.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class NewChapter {
+    private final int chapterNumber;
+    private final String title;
+    private final String authorName;
+
+    /**
+     * @param chapterNumber the wanted chapter number, existing chapters from this number and onwards are moved up
+     * @param title the chapter title
+     * @param authorName the chapter author
+     */
+    public NewChapter(int chapterNumber, String title, String authorName) {
+        this.chapterNumber = chapterNumber;
+        this.title = title;
+        this.authorName = authorName;
+    }
+
+    /**
+     * Read new chapters from a JSON array of objects with <code>chapterNumber</code>,
+     * <code>chapterTitle</code>, and <code>chapterAuthor</code>, the same names as the
+     * parameters of the create chapter action.
+     *
+     * @param chapters the JSON array
+     * @return the new chapters, in array order
+     * @throws JSONException if an entry is not an object or has no chapter number
+     */
+    public static List<NewChapter> fromJson(JSONArray chapters) throws JSONException {
+        List<NewChapter> newChapters = new ArrayList<>(chapters.length());
+        for (int i = 0; i < chapters.length(); i++) {
+            JSONObject chapter = chapters.getJSONObject(i);
+            newChapters.add(new NewChapter(chapter.getInt("chapterNumber"),
+                    chapter.optString("chapterTitle", null), chapter.optString("chapterAuthor", null)));
+        }
+        return newChapters;
+    }
+
+    public int getChapterNumber() {
+        return chapterNumber;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getAuthorName() {
+        return authorName;
+    }
+
+    @Override
+    public String toString() {
+        return "NewChapter[" + chapterNumber + ", " + title + ", " + authorName + "]";
+    }
+}
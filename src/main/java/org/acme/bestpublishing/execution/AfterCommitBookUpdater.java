@@ -0,0 +1,152 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.execution;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a bookkeeping update of ISBN folders, such as storing the chapter count, on a background
+ * thread once the transaction that asked for it has committed, as the system user and in a
+ * transaction per book.
+ * <p/>
+ * Updates are coalesced per book: a book asked for by many transactions before its update starts
+ * is updated once, so concurrent chapter changes in the same book do not each write the ISBN folder.
+ * A book asked for while its update runs is queued again, so the last change is always picked up.
+ * Nothing is written in the transaction of the user, and a rolled back transaction queues nothing.
+ * <p/>
+ * Updates still queued when the repository stops are not run, the values they maintain must be
+ * such that they are corrected when next read.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class AfterCommitBookUpdater {
+    private static final Logger LOG = LoggerFactory.getLogger(AfterCommitBookUpdater.class);
+
+    /**
+     * The update of one book, run in a read-write transaction of its own
+     */
+    public interface BookUpdate {
+        void update(NodeRef isbnFolderNodeRef);
+    }
+
+    private final String name;
+    private final String txnKey;
+    private final ServiceRegistry serviceRegistry;
+    private final ExecutorService executor;
+    private final BookUpdate bookUpdate;
+
+    /**
+     * Books queued and not yet started
+     */
+    private final Set<NodeRef> queuedBooks = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param name names the update in the logs and the transaction resources
+     * @param serviceRegistry the services to start transactions with
+     * @param executor runs the updates, e.g. from {@link IoExecutorService#newExecutor(String, int)}
+     * @param bookUpdate the update of one book
+     */
+    public AfterCommitBookUpdater(String name, ServiceRegistry serviceRegistry, ExecutorService executor,
+                                  BookUpdate bookUpdate) {
+        this.name = name;
+        this.txnKey = AfterCommitBookUpdater.class.getName() + "." + name;
+        this.serviceRegistry = serviceRegistry;
+        this.executor = executor;
+        this.bookUpdate = bookUpdate;
+    }
+
+    /**
+     * Update the book after the current transaction has committed, or as soon as possible
+     * if there is no transaction.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     */
+    public void schedule(NodeRef isbnFolderNodeRef) {
+        if (AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_NONE) {
+            queue(isbnFolderNodeRef);
+            return;
+        }
+
+        CommittedBooks committedBooks = AlfrescoTransactionSupport.getResource(txnKey);
+        if (committedBooks == null) {
+            committedBooks = new CommittedBooks();
+            AlfrescoTransactionSupport.bindResource(txnKey, committedBooks);
+            AlfrescoTransactionSupport.bindListener(committedBooks);
+        }
+        committedBooks.isbnFolders.add(isbnFolderNodeRef);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void queue(final NodeRef isbnFolderNodeRef) {
+        if (!queuedBooks.add(isbnFolderNodeRef)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                // Taken off before the update, so a change committed meanwhile queues the book again
+                queuedBooks.remove(isbnFolderNodeRef);
+                run(isbnFolderNodeRef);
+            });
+        } catch (RejectedExecutionException ree) {
+            queuedBooks.remove(isbnFolderNodeRef);
+            LOG.debug("{} of {} not queued, the repository is stopping", name, isbnFolderNodeRef);
+        }
+    }
+
+    private void run(final NodeRef isbnFolderNodeRef) {
+        try {
+            AuthenticationUtil.runAsSystem(() ->
+                    serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(() -> {
+                        bookUpdate.update(isbnFolderNodeRef);
+                        return null;
+                    }, false, true));
+        } catch (RuntimeException re) {
+            LOG.warn("{} of {} failed: {}", name, isbnFolderNodeRef, re.getMessage());
+        }
+    }
+
+    /**
+     * The books asked for in the current transaction, queued once it has committed
+     */
+    private class CommittedBooks extends TransactionListenerAdapter {
+        private final Set<NodeRef> isbnFolders = new LinkedHashSet<>();
+
+        @Override
+        public void afterCommit() {
+            for (NodeRef isbnFolderNodeRef : isbnFolders) {
+                queue(isbnFolderNodeRef);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.execution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every task on a new thread from the thread factory, a virtual thread factory in practice,
+ * with at most a fixed number of tasks running at the same time. Tasks over the limit wait for
+ * a permit on their own, parked, thread, so submitting never blocks.
+ * <p/>
+ * Shutting down now interrupts running tasks and cancels the tasks that are still waiting for a permit.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+class BoundedVirtualThreadExecutor extends AbstractExecutorService {
+    private final ThreadFactory threadFactory;
+    private final Semaphore permits;
+
+    /**
+     * Started threads that have not finished yet, and the shutdown flag, guarded by this
+     */
+    private final Set<Thread> threads = new HashSet<>();
+    private boolean shutdown;
+
+    BoundedVirtualThreadExecutor(ThreadFactory threadFactory, int maxRunningTasks) {
+        this.threadFactory = threadFactory;
+        this.permits = new Semaphore(maxRunningTasks);
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        Thread thread = threadFactory.newThread(() -> run(task));
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void run(Runnable task) {
+        try {
+            permits.acquire();
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        } catch (InterruptedException ie) {
+            // Shut down before the task got to run
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        } finally {
+            synchronized (this) {
+                threads.remove(Thread.currentThread());
+                if (threads.isEmpty()) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        for (Thread thread : new ArrayList<>(threads)) {
+            thread.interrupt();
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && threads.isEmpty();
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.execution;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the executors for the I/O bound BestPub background work, publishing, EPub chapter
+ * compression, bulk publishing, chapter deletion and bulk metadata checks, and limits how many
+ * BestPub web script requests run at the same time.
+ * <p/>
+ * By default every executor is a fixed pool of platform threads. With virtual threads enabled, and
+ * running on a JDK that has them (21 or later), every task runs on its own virtual thread instead,
+ * and a semaphore holds the number of running tasks to the same limit as the pool size would. A task
+ * waiting on the database or the content store then parks its virtual thread instead of holding a
+ * platform thread, so the limits can be raised without a platform thread per task. The JDK is probed
+ * by reflection, on older JDKs the setting is logged and platform threads are used.
+ * <p/>
+ * Web scripts are run synchronously by the web script runtime, with their transaction and
+ * authentication bound to the request thread, so the request thread is not freed by handing the
+ * work to another thread. Instead at most <code>maxConcurrentRequests</code> BestPub requests run
+ * at the same time, further requests wait <code>requestWaitMs</code> for a turn and are then
+ * rejected, so a polling storm cannot take every connector thread.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class IoExecutorService {
+    private static final Logger LOG = LoggerFactory.getLogger(IoExecutorService.class);
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private boolean virtualThreads = false;
+    private int maxConcurrentRequests = 0;
+    private long requestWaitMs = 1000;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Creates a virtual thread builder, null when virtual threads are not used
+     */
+    private Method virtualThreadBuilderFactory;
+    private Method virtualThreadBuilderName;
+    private Method virtualThreadBuilderFactoryMethod;
+
+    /**
+     * Request limit, null when requests are not limited
+     */
+    private Semaphore requestPermits;
+    private final AtomicInteger runningRequests = new AtomicInteger();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    /**
+     * Spring DI
+     */
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @param maxConcurrentRequests BestPub web script requests running at the same time, 0 = no limit
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public void setRequestWaitMs(long requestWaitMs) {
+        this.requestWaitMs = requestWaitMs;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void init() {
+        if (virtualThreads) {
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                virtualThreadBuilderFactory = Thread.class.getMethod("ofVirtual");
+                virtualThreadBuilderName = builderClass.getMethod("name", String.class, long.class);
+                virtualThreadBuilderFactoryMethod = builderClass.getMethod("factory");
+                LOG.info("BestPub background work runs on virtual threads");
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                virtualThreadBuilderFactory = null;
+                LOG.warn("Virtual threads are enabled but not supported by Java {}, using platform threads",
+                        System.getProperty("java.version"));
+            }
+        }
+
+        if (maxConcurrentRequests > 0) {
+            requestPermits = new Semaphore(maxConcurrentRequests, true);
+        }
+
+        if (bestPubMetrics != null) {
+            bestPubMetrics.registerGauge("bestpub_requests_running",
+                    "BestPub web script requests running", runningRequests::get);
+            bestPubMetrics.registerGauge("bestpub_requests_rejected",
+                    "BestPub web script requests rejected because too many were running", rejectedRequests::get);
+        }
+    }
+
+    /**
+     * @return true if executors run their tasks on virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreadBuilderFactory != null;
+    }
+
+    /**
+     * Create an executor that runs at most <code>threads</code> tasks at the same time, and queues the rest.
+     * Tasks run on daemon threads named <code>{name}-{n}</code>.
+     *
+     * @param name the thread name prefix
+     * @param threads the number of tasks run at the same time
+     * @return a platform thread pool, or a semaphore bounded virtual thread executor
+     */
+    public ExecutorService newExecutor(String name, int threads) {
+        if (isVirtualThreads()) {
+            return new BoundedVirtualThreadExecutor(newVirtualThreadFactory(name), threads);
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Run the work of a web script request, waiting for a turn if the request limit is reached.
+     *
+     * @param work the request work, run on the calling thread
+     * @throws TooManyRequestsException if no turn came up within the configured wait
+     */
+    public void runRequest(RequestWork work) throws IOException {
+        if (requestPermits == null) {
+            runningRequests.incrementAndGet();
+            try {
+                work.run();
+            } finally {
+                runningRequests.decrementAndGet();
+            }
+            return;
+        }
+
+        boolean acquired;
+        try {
+            acquired = requestPermits.tryAcquire(requestWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            rejectedRequests.incrementAndGet();
+            throw new TooManyRequestsException("More than " + maxConcurrentRequests +
+                    " BestPub requests are running, try again later");
+        }
+
+        runningRequests.incrementAndGet();
+        try {
+            work.run();
+        } finally {
+            runningRequests.decrementAndGet();
+            requestPermits.release();
+        }
+    }
+
+    private ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Object builder = virtualThreadBuilderFactory.invoke(null);
+            builder = virtualThreadBuilderName.invoke(builder, name + "-", 1L);
+            return (ThreadFactory) virtualThreadBuilderFactoryMethod.invoke(builder);
+        } catch (ReflectiveOperationException roe) {
+            throw new AlfrescoRuntimeException("Could not create virtual thread factory for " + name, roe);
+        }
+    }
+
+    /**
+     * The work of one web script request
+     */
+    public interface RequestWork {
+        void run() throws IOException;
+    }
+
+    /**
+     * Thrown when a request has waited too long for one of the running requests to finish
+     */
+    public static class TooManyRequestsException extends AlfrescoRuntimeException {
+        public TooManyRequestsException(String msg) {
+            super(msg);
+        }
+    }
+}
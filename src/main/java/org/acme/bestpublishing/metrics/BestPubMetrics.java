@@ -0,0 +1,421 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.metrics;
+
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histograms, counters, and gauges for the BestPub actions and web scripts.
+ * <p/>
+ * An operation (e.g. <code>createChapter</code>) is timed with a {@link Timer}, which also records
+ * the time spent in each phase of the operation (e.g. <code>lookup</code>, <code>renumber</code>).
+ * The timer is bound to the current thread, so services called by the operation can mark phases
+ * with {@link #lap(String)} and have node service calls attributed to the operation, without
+ * having the timer passed to them.
+ * <p/>
+ * Node service calls are counted by handing out a {@link ServiceRegistry} from {@link #meter(ServiceRegistry)}
+ * whose node service counts every call.
+ * <p/>
+ * Metrics are exposed through JMX, see {@link BestPubMetricsMXBean}, and in Prometheus text
+ * format with {@link #toPrometheusText()}. Recording is lock free, a disabled metrics bean records nothing.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BestPubMetrics implements BestPubMetricsMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(BestPubMetrics.class);
+
+    private static final String OBJECT_NAME = "org.acme.bestpublishing:type=Metrics";
+    private static final String NO_OPERATION = "none";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private boolean enabled = true;
+
+    private final Map<String, LatencyHistogram> operationLatencies = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> phaseLatencies = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<Timer> currentTimer = new ThreadLocal<>();
+
+    /**
+     * Spring DI
+     */
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void init() {
+        help.put("bestpub_operation_duration_seconds", "Duration of BestPub operations");
+        help.put("bestpub_phase_duration_seconds", "Duration of the phases of BestPub operations");
+        help.put("bestpub_operation_errors_total", "BestPub operations that failed");
+        help.put("bestpub_nodeservice_calls_total", "Node service calls made by BestPub operations");
+        help.put("bestpub_bytes_written_total", "Bytes written by BestPub operations");
+
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(objectName)) {
+                mBeanServer.registerMBean(this, objectName);
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not register BestPub metrics with JMX: {}", e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not unregister BestPub metrics from JMX: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Start timing an operation on the current thread. Use with try-with-resources, and call
+     * {@link Timer#success()} when the operation completed, otherwise it is counted as failed.
+     *
+     * @param operation the operation name, e.g. <code>createChapter</code>
+     * @return the timer, bound to the current thread until it is closed
+     */
+    public Timer start(String operation) {
+        Timer timer = new Timer(operation, currentTimer.get());
+        if (enabled) {
+            currentTimer.set(timer);
+        }
+        return timer;
+    }
+
+    /**
+     * Record the time since the start, or the previous phase, of the operation timed on the current
+     * thread as the passed in phase. Does nothing if no operation is timed on the current thread.
+     *
+     * @param phase the phase that just ended, e.g. <code>renumber</code>
+     */
+    public void lap(String phase) {
+        Timer timer = currentTimer.get();
+        if (timer != null) {
+            timer.lap(phase);
+        }
+    }
+
+    /**
+     * Add to a counter, labelled with the operation timed on the current thread.
+     *
+     * @param name the counter name, e.g. <code>bestpub_bytes_written_total</code>
+     * @param delta the amount to add
+     */
+    public void count(String name, long delta) {
+        if (enabled) {
+            getCounter(name, getCurrentOperation()).add(delta);
+        }
+    }
+
+    /**
+     * Register a gauge that is sampled when the metrics are read.
+     *
+     * @param name the gauge name, e.g. <code>bestpub_publish_queue_depth</code>
+     * @param description the help text
+     * @param value supplies the current value
+     */
+    public void registerGauge(String name, String description, LongSupplier value) {
+        gauges.put(name, value);
+        help.put(name, description);
+    }
+
+    /**
+     * Wrap a service registry so that calls to its node service are counted against the operation
+     * timed on the calling thread. All other services are passed through.
+     *
+     * @param serviceRegistry the Alfresco service registry
+     * @return the metered service registry
+     */
+    public ServiceRegistry meter(final ServiceRegistry serviceRegistry) {
+        final NodeService nodeService = serviceRegistry.getNodeService();
+        final NodeService meteredNodeService = (NodeService) Proxy.newProxyInstance(
+                NodeService.class.getClassLoader(), new Class<?>[] {NodeService.class},
+                (proxy, method, args) -> {
+                    count("bestpub_nodeservice_calls_total", 1);
+                    return invoke(nodeService, method, args);
+                });
+
+        return (ServiceRegistry) Proxy.newProxyInstance(
+                ServiceRegistry.class.getClassLoader(), new Class<?>[] {ServiceRegistry.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getNodeService") && method.getParameterCount() == 0) {
+                        return meteredNodeService;
+                    }
+                    return invoke(serviceRegistry, method, args);
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+
+    private String getCurrentOperation() {
+        Timer timer = currentTimer.get();
+        return timer != null ? timer.operation : NO_OPERATION;
+    }
+
+    private LongAdder getCounter(String name, String operation) {
+        Map<String, LongAdder> counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, n -> new ConcurrentHashMap<>());
+        }
+        LongAdder adder = counter.get(operation);
+        if (adder == null) {
+            adder = counter.computeIfAbsent(operation, o -> new LongAdder());
+        }
+        return adder;
+    }
+
+    private LatencyHistogram getHistogram(Map<String, LatencyHistogram> histograms, String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(key, k -> new LatencyHistogram());
+        }
+        return histogram;
+    }
+
+    /**
+     * Times one operation and its phases
+     */
+    public class Timer implements AutoCloseable {
+        private final String operation;
+        private final Timer parent;
+        private final long startNanos;
+        private long lapNanos;
+        private boolean success;
+
+        private Timer(String operation, Timer parent) {
+            this.operation = operation;
+            this.parent = parent;
+            this.startNanos = System.nanoTime();
+            this.lapNanos = startNanos;
+        }
+
+        /**
+         * Record the time since the start, or the previous phase, as the passed in phase.
+         */
+        public void lap(String phase) {
+            long now = System.nanoTime();
+            if (enabled) {
+                getHistogram(phaseLatencies, operation + "/" + phase).record(now - lapNanos);
+            }
+            lapNanos = now;
+        }
+
+        /**
+         * Mark the operation as successful, it is counted as failed if closed without this.
+         */
+        public void success() {
+            success = true;
+        }
+
+        @Override
+        public void close() {
+            if (!enabled) {
+                return;
+            }
+            getHistogram(operationLatencies, operation).record(System.nanoTime() - startNanos);
+            if (!success) {
+                getCounter("bestpub_operation_errors_total", operation).increment();
+            }
+            if (parent != null) {
+                currentTimer.set(parent);
+            } else {
+                currentTimer.remove();
+            }
+        }
+    }
+
+    /**
+     * Exposition
+     */
+
+    /**
+     * @return all metrics in the Prometheus text exposition format, version 0.0.4
+     */
+    @Override
+    public String getPrometheusText() {
+        return toPrometheusText();
+    }
+
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        writeHistograms(text, "bestpub_operation_duration_seconds", operationLatencies, false);
+        writeHistograms(text, "bestpub_phase_duration_seconds", phaseLatencies, true);
+
+        for (Map.Entry<String, Map<String, LongAdder>> counter : new TreeMap<>(counters).entrySet()) {
+            writeHeader(text, counter.getKey(), "counter");
+            for (Map.Entry<String, LongAdder> series : new TreeMap<>(counter.getValue()).entrySet()) {
+                text.append(counter.getKey()).append("{operation=\"").append(series.getKey()).append("\"} ")
+                        .append(series.getValue().sum()).append('\n');
+            }
+        }
+
+        for (Map.Entry<String, Long> gauge : getGauges().entrySet()) {
+            writeHeader(text, gauge.getKey(), "gauge");
+            text.append(gauge.getKey()).append(' ').append(gauge.getValue()).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    private void writeHistograms(StringBuilder text, String name, Map<String, LatencyHistogram> histograms,
+                                 boolean phases) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+        writeHeader(text, name, "histogram");
+        for (Map.Entry<String, LatencyHistogram> histogram : new TreeMap<>(histograms).entrySet()) {
+            String labels;
+            if (phases) {
+                int separator = histogram.getKey().indexOf('/');
+                labels = "operation=\"" + histogram.getKey().substring(0, separator) +
+                        "\",phase=\"" + histogram.getKey().substring(separator + 1) + "\"";
+            } else {
+                labels = "operation=\"" + histogram.getKey() + "\"";
+            }
+
+            long[] counts = histogram.getValue().getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < LatencyHistogram.BUCKET_BOUNDS_SECONDS.length ?
+                        Double.toString(LatencyHistogram.BUCKET_BOUNDS_SECONDS[i]) : "+Inf";
+                text.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            text.append(name).append("_sum{").append(labels).append("} ")
+                    .append(histogram.getValue().getSumSeconds()).append('\n');
+            text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    private void writeHeader(StringBuilder text, String name, String type) {
+        String description = help.get(name);
+        if (description != null) {
+            text.append("# HELP ").append(name).append(' ').append(description).append('\n');
+        }
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * JMX implementation
+     */
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Map<String, LongAdder>> counter : counters.entrySet()) {
+            for (Map.Entry<String, LongAdder> series : counter.getValue().entrySet()) {
+                values.put(counter.getKey() + "/" + series.getKey(), series.getValue().sum());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            try {
+                values.put(gauge.getKey(), gauge.getValue().getAsLong());
+            } catch (RuntimeException re) {
+                LOG.debug("Could not read gauge {}: {}", gauge.getKey(), re.getMessage());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getLatencyCounts() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> histogram : getAllHistograms().entrySet()) {
+            values.put(histogram.getKey(), histogram.getValue().getCount());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMeanMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> histogram : getAllHistograms().entrySet()) {
+            long count = histogram.getValue().getCount();
+            values.put(histogram.getKey(), count == 0 ? 0 : histogram.getValue().getSumSeconds() * 1000 / count);
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP95Millis() {
+        return getPercentiles(95);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        return getPercentiles(99);
+    }
+
+    private Map<String, Double> getPercentiles(double percentile) {
+        Map<String, Double> values = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> histogram : getAllHistograms().entrySet()) {
+            values.put(histogram.getKey(), histogram.getValue().getPercentileMillis(percentile));
+        }
+        return values;
+    }
+
+    private Map<String, LatencyHistogram> getAllHistograms() {
+        Map<String, LatencyHistogram> histograms = new TreeMap<>(operationLatencies);
+        histograms.putAll(phaseLatencies);
+        return histograms;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link BestPubMetrics}, registered as <code>org.acme.bestpublishing:type=Metrics</code>.
+ * Latency maps are keyed on <code>operation</code> or <code>operation/phase</code>.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public interface BestPubMetricsMXBean {
+    boolean isEnabled();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    Map<String, Long> getLatencyCounts();
+
+    Map<String, Double> getLatencyMeanMillis();
+
+    Map<String, Double> getLatencyP95Millis();
+
+    Map<String, Double> getLatencyP99Millis();
+
+    String getPrometheusText();
+}
@@ -0,0 +1,110 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed bucket boundaries, in the cumulative form used by Prometheus.
+ * Recording is lock free, one {@link LongAdder} increment per bucket hit.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class LatencyHistogram {
+    /**
+     * Upper bucket boundaries in seconds, the last bucket (+Inf) is implicit
+     */
+    static final double[] BUCKET_BOUNDS_SECONDS = {
+            0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    private static final long[] BUCKET_BOUNDS_NANOS = new long[BUCKET_BOUNDS_SECONDS.length];
+    static {
+        for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+            BUCKET_BOUNDS_NANOS[i] = (long) (BUCKET_BOUNDS_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_SECONDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long durationNanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && durationNanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(durationNanos);
+    }
+
+    /**
+     * @return the number of recorded durations in each bucket, not cumulative, the last one is +Inf
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Estimate a percentile from the buckets, as the upper bound of the bucket it falls in.
+     *
+     * @param percentile between 0 and 100
+     * @return the estimated duration in milliseconds, or 0 if nothing has been recorded
+     */
+    public double getPercentileMillis(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_SECONDS.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BUCKET_BOUNDS_SECONDS[i] * 1000;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+}
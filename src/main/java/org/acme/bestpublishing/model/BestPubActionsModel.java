@@ -0,0 +1,90 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.model;
+
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Constants for the book management actions content model (bestpub-actions-model.xml),
+ * holding the bookkeeping metadata maintained by this module.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public final class BestPubActionsModel {
+    public static final String NAMESPACE_URI = "http://www.acme.org/model/bestpub/actions/1.0";
+    public static final String NAMESPACE_PREFIX = "bpa";
+
+    private BestPubActionsModel() {
+    }
+
+    /**
+     * Applied to ISBN folders, keeps track of when the book or anything in it was last changed
+     */
+    public static final class ContentChangeTrackingAspect {
+        public static final QName QNAME = QName.createQName(NAMESPACE_URI, "contentChangeTracking");
+
+        public static final class Prop {
+            public static final QName LAST_CONTENT_CHANGE = QName.createQName(NAMESPACE_URI, "lastContentChange");
+        }
+    }
+
+    /**
+     * Applied to ISBN folders next to the web publishing info, records the EPub in the artifact store
+     * that is currently published for the book
+     */
+    public static final class PublishedArtifactAspect {
+        public static final QName QNAME = QName.createQName(NAMESPACE_URI, "publishedArtifact");
+
+        public static final class Prop {
+            public static final QName ARTIFACT_SHA256 = QName.createQName(NAMESPACE_URI, "artifactSha256");
+            public static final QName ARTIFACT_SIZE = QName.createQName(NAMESPACE_URI, "artifactSize");
+        }
+    }
+
+    /**
+     * Applied to ISBN folders, the stored book summary that backs the book summary cache
+     */
+    public static final class BookSummaryAspect {
+        public static final QName QNAME = QName.createQName(NAMESPACE_URI, "bookSummary");
+
+        public static final class Prop {
+            public static final QName SUMMARY = QName.createQName(NAMESPACE_URI, "summary");
+        }
+    }
+
+    /**
+     * Applied to ISBN folders when the book is published, the fingerprint of the chapter files the
+     * published EPub was built from, and the content change marker when the fingerprint was taken
+     */
+    public static final class PublishFingerprintAspect {
+        public static final QName QNAME = QName.createQName(NAMESPACE_URI, "publishFingerprint");
+
+        public static final class Prop {
+            public static final QName CONTENT_FINGERPRINT = QName.createQName(NAMESPACE_URI, "contentFingerprint");
+            public static final QName CONTENT_CHANGE = QName.createQName(NAMESPACE_URI, "fingerprintContentChange");
+        }
+    }
+
+    /**
+     * Applied to chapter folders that got a new chapter number, until the chapter number of the
+     * files in the folder has been updated to match
+     */
+    public static final class ChapterFileUpdatePendingAspect {
+        public static final QName QNAME = QName.createQName(NAMESPACE_URI, "chapterFileUpdatePending");
+    }
+}
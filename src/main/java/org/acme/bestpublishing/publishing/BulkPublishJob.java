@@ -0,0 +1,59 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduled job that starts a bulk publish of a year folder, see {@link BulkPublishService#startForYear(String)}.
+ * The job returns as soon as the run has been started, the books are published in the background.
+ * <p/>
+ * Job data: <code>bulkPublishService</code>, and optionally <code>year</code>, the current year if not set.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BulkPublishJob implements Job {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkPublishJob.class);
+
+    public static final String JOB_DATA_BULK_PUBLISH_SERVICE = "bulkPublishService";
+    public static final String JOB_DATA_YEAR = "year";
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        JobDataMap jobData = context.getJobDetail().getJobDataMap();
+        Object bulkPublishService = jobData.get(JOB_DATA_BULK_PUBLISH_SERVICE);
+        if (!(bulkPublishService instanceof BulkPublishService)) {
+            throw new AlfrescoRuntimeException("BulkPublishJob data must contain a valid '" +
+                    JOB_DATA_BULK_PUBLISH_SERVICE + "' reference");
+        }
+
+        try {
+            BulkPublishRun run = ((BulkPublishService) bulkPublishService).startForYear(
+                    (String) jobData.get(JOB_DATA_YEAR));
+            LOG.info("Scheduled bulk publish started {}", run);
+        } catch (BulkPublishService.BulkPublishRunningException bpre) {
+            LOG.info("Scheduled bulk publish not started: {}", bpre.getMessage());
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Progress and outcome of publishing all books in a year folder, as run by the {@link BulkPublishService}.
+ * <p/>
+ * The run is checkpointed to a JSON file as books are done, so a run that was interrupted by a
+ * restart picks up where it left off. Once the run has finished the same file is the run report,
+ * with the duration and EPub size of every book.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BulkPublishRun {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkPublishRun.class);
+
+    public enum Status {
+        RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    public enum BookStatus {
+        PUBLISHED, SKIPPED, FAILED
+    }
+
+    /**
+     * Outcome for one book
+     */
+    public static class BookResult {
+        private final String isbn;
+        private final NodeRef isbnFolderNodeRef;
+        private final BookStatus status;
+        private final long durationMs;
+        private final long bytes;
+        private final String error;
+
+        public BookResult(String isbn, NodeRef isbnFolderNodeRef, BookStatus status, long durationMs, long bytes,
+                          String error) {
+            this.isbn = isbn;
+            this.isbnFolderNodeRef = isbnFolderNodeRef;
+            this.status = status;
+            this.durationMs = durationMs;
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        public NodeRef getIsbnFolderNodeRef() {
+            return isbnFolderNodeRef;
+        }
+
+        public BookStatus getStatus() {
+            return status;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        /**
+         * @return size of the published EPub, or -1 if not known (legacy packaging)
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private final String id;
+    private final NodeRef yearFolderNodeRef;
+    private final String requestedBy;
+    private volatile boolean force;
+    private final long startedAt;
+    private volatile long finishedAt;
+    private volatile Status status = Status.RUNNING;
+    private volatile int totalBooks = -1;
+    private volatile String error;
+    private final Map<String, BookResult> results = new LinkedHashMap<>();
+
+    BulkPublishRun(String id, NodeRef yearFolderNodeRef, String requestedBy, boolean force, long startedAt) {
+        this.id = id;
+        this.yearFolderNodeRef = yearFolderNodeRef;
+        this.requestedBy = requestedBy;
+        this.force = force;
+        this.startedAt = startedAt;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public NodeRef getYearFolderNodeRef() {
+        return yearFolderNodeRef;
+    }
+
+    public String getRequestedBy() {
+        return requestedBy;
+    }
+
+    /**
+     * @return true if books are published even if they have not changed since they were last published
+     */
+    public boolean isForce() {
+        return force;
+    }
+
+    /**
+     * Publish the remaining books even if they have not changed, for a forced start that resumes this run
+     */
+    void force() {
+        force = true;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the number of ISBN folders in the year folder, or -1 if they have not all been listed yet
+     */
+    public int getTotalBooks() {
+        return totalBooks;
+    }
+
+    void setTotalBooks(int totalBooks) {
+        this.totalBooks = totalBooks;
+    }
+
+    /**
+     * @return why the run failed, or null if it has not failed
+     */
+    public String getError() {
+        return error;
+    }
+
+    void finished(Status status) {
+        this.status = status;
+        this.finishedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * The run cannot go on, it is not resumed again
+     */
+    void failed(String error) {
+        this.error = error;
+        finished(Status.FAILED);
+    }
+
+    /**
+     * @return true if the book was published or skipped already, failed books are tried again on resume,
+     * and so are skipped books when the run has been forced since
+     */
+    public synchronized boolean isDone(String isbn) {
+        BookResult result = results.get(isbn);
+        return result != null && result.getStatus() != BookStatus.FAILED &&
+                !(force && result.getStatus() == BookStatus.SKIPPED);
+    }
+
+    /**
+     * @return the number of books with a result, including books done before a resume
+     */
+    synchronized int addResult(BookResult result) {
+        results.put(result.getIsbn(), result);
+        return results.size();
+    }
+
+    public synchronized List<BookResult> getResults() {
+        return new ArrayList<>(results.values());
+    }
+
+    public synchronized int count(BookStatus bookStatus) {
+        int count = 0;
+        for (BookResult result : results.values()) {
+            if (result.getStatus() == bookStatus) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized long getPublishedBytes() {
+        long bytes = 0;
+        for (BookResult result : results.values()) {
+            if (result.getStatus() == BookStatus.PUBLISHED && result.getBytes() > 0) {
+                bytes += result.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the run as JSON, the summary and the result of every book
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONArray jsonBooks = new JSONArray();
+        for (BookResult result : results.values()) {
+            JSONObject jsonBook = new JSONObject();
+            jsonBook.put("isbn", result.getIsbn());
+            jsonBook.put("nodeRef", result.getIsbnFolderNodeRef().toString());
+            jsonBook.put("status", result.getStatus().toString());
+            jsonBook.put("durationMs", result.getDurationMs());
+            jsonBook.put("bytes", result.getBytes());
+            if (result.getError() != null) {
+                jsonBook.put("error", result.getError());
+            }
+            jsonBooks.put(jsonBook);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("id", id);
+        json.put("yearFolderNodeRef", yearFolderNodeRef.toString());
+        json.put("requestedBy", requestedBy);
+        json.put("force", force);
+        json.put("status", status.toString());
+        json.put("startedAt", startedAt);
+        json.put("finishedAt", finishedAt);
+        json.put("totalBooks", totalBooks);
+        if (error != null) {
+            json.put("error", error);
+        }
+        json.put("published", count(BookStatus.PUBLISHED));
+        json.put("skipped", count(BookStatus.SKIPPED));
+        json.put("failed", count(BookStatus.FAILED));
+        json.put("publishedBytes", getPublishedBytes());
+        json.put("books", jsonBooks);
+        return json;
+    }
+
+    /**
+     * Save the run, replacing any previous checkpoint atomically.
+     */
+    public void save(File checkpointFile) throws IOException {
+        try {
+            File tempFile = new File(checkpointFile.getParentFile(), checkpointFile.getName() + ".tmp");
+            Files.write(tempFile.toPath(), toJson().toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), checkpointFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (JSONException je) {
+            throw new IOException("Could not write bulk publish checkpoint " + checkpointFile, je);
+        }
+    }
+
+    /**
+     * Load a run.
+     *
+     * @return the run, or null if there is no checkpoint or it could not be read
+     */
+    public static BulkPublishRun load(File checkpointFile) {
+        if (!checkpointFile.isFile()) {
+            return null;
+        }
+
+        try {
+            JSONObject json = new JSONObject(new String(
+                    Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8));
+            BulkPublishRun run = new BulkPublishRun(json.getString("id"),
+                    new NodeRef(json.getString("yearFolderNodeRef")), json.getString("requestedBy"),
+                    json.getBoolean("force"), json.getLong("startedAt"));
+            run.status = Status.valueOf(json.getString("status"));
+            run.finishedAt = json.getLong("finishedAt");
+            run.totalBooks = json.getInt("totalBooks");
+            run.error = json.optString("error", null);
+            JSONArray jsonBooks = json.getJSONArray("books");
+            for (int i = 0; i < jsonBooks.length(); i++) {
+                JSONObject jsonBook = jsonBooks.getJSONObject(i);
+                run.results.put(jsonBook.getString("isbn"), new BookResult(jsonBook.getString("isbn"),
+                        new NodeRef(jsonBook.getString("nodeRef")), BookStatus.valueOf(jsonBook.getString("status")),
+                        jsonBook.getLong("durationMs"), jsonBook.getLong("bytes"), jsonBook.optString("error", null)));
+            }
+            return run;
+        } catch (IOException | JSONException | RuntimeException e) {
+            LOG.warn("Could not read bulk publish checkpoint {}, ignoring it: {}", checkpointFile, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BulkPublishRun[id=" + id + ", yearFolder=" + yearFolderNodeRef + ", status=" + status +
+                ", published=" + count(BookStatus.PUBLISHED) + ", skipped=" + count(BookStatus.SKIPPED) +
+                ", failed=" + count(BookStatus.FAILED) + ", totalBooks=" + totalBooks + "]";
+    }
+}
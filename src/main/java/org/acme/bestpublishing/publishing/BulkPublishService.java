@@ -0,0 +1,690 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.acme.bestpublishing.actions.PublishBookAction;
+import org.acme.bestpublishing.chapters.BookNaming;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.acme.bestpublishing.tracking.ContentChangeTrackingService;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.InvalidNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.site.SiteService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.GUID;
+import org.alfresco.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Publishes all books in a year folder (/{year}/{isbn} in the book management site), on demand
+ * or on a schedule via {@link BulkPublishJob}.
+ * <p/>
+ * The ISBN folders are listed a page at a time. Books that have not changed since they were last
+ * web published are skipped, unless the run is forced, and so are books whose chapter files turn out to
+ * be the published ones in the {@link PublishPreflight} check. The rest are published with
+ * {@link PublishBookAction}, each in its own transaction, on a bounded {@link IoExecutorService} executor. The number of
+ * books published at the same time is configurable, and so is the average number of EPub bytes
+ * written per second, so a bulk run does not starve interactive use of the repository. The byte limit
+ * is applied after each book from the size of the EPub the streaming packager stored. The legacy
+ * packager's output cannot be measured here, so with legacy packaging only the concurrency limits a run.
+ * <p/>
+ * Progress is checkpointed to {@code bulk-publish-{yearFolderId}.json} in the checkpoint directory.
+ * A run that was interrupted, e.g. by a restart, is resumed at bootstrap, or the next time the year
+ * folder is published, and skips books that were already published or skipped. Failed books are
+ * tried again. A run whose year folder has been deleted is marked failed and not resumed again.
+ * When the run has finished the checkpoint is the run report.
+ * <p/>
+ * Only one run per year folder is active in the cluster at a time, guarded by a {@link JobLockService}
+ * lock that is refreshed in the background for as long as the run is active. A run that loses its
+ * lock stops and is resumed from its checkpoint the next time it is started. Checkpoints are kept
+ * on the local disk of the repository node that ran the run.
+ * <p/>
+ * Runs are started, and their status read, by users with write permission on the year folder.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BulkPublishService extends AbstractLifecycleBean {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkPublishService.class);
+
+    private static final String LOCK_NAME_PREFIX = "bulkPublish-";
+    private static final String CHECKPOINT_FILE_PREFIX = "bulk-publish-";
+    private static final String CHECKPOINT_FILE_SUFFIX = ".json";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int concurrency = 2;
+    private long maxBytesPerSecond = 0;
+    private int pageSize = 100;
+    private int checkpointInterval = 10;
+    private String checkpointDir;
+    private boolean resumeOnStartup = true;
+    private long clusterLockTimeToLiveMs = 300000;
+    private String bookManagementSiteName;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private JobLockService jobLockService;
+
+    /**
+     * BestPub Services
+     */
+    private ContentChangeTrackingService contentChangeTrackingService;
+    private EPubPublishingService epubPublishingService;
+    private BestPubMetrics bestPubMetrics;
+    private IoExecutorService ioExecutorService;
+
+    private ExecutorService coordinator;
+    private ExecutorService workers;
+    private IoThrottle ioThrottle;
+    private volatile boolean stopping;
+
+    /**
+     * Runs started or resumed on this repository node, guarded by this
+     */
+    private final Map<NodeRef, BulkPublishRun> activeRuns = new HashMap<>();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setJobLockService(JobLockService jobLockService) {
+        this.jobLockService = jobLockService;
+    }
+
+    public void setContentChangeTrackingService(ContentChangeTrackingService contentChangeTrackingService) {
+        this.contentChangeTrackingService = contentChangeTrackingService;
+    }
+
+    public void setEpubPublishingService(EPubPublishingService epubPublishingService) {
+        this.epubPublishingService = epubPublishingService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public void setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    public void setResumeOnStartup(boolean resumeOnStartup) {
+        this.resumeOnStartup = resumeOnStartup;
+    }
+
+    public void setClusterLockTimeToLiveMs(long clusterLockTimeToLiveMs) {
+        this.clusterLockTimeToLiveMs = clusterLockTimeToLiveMs;
+    }
+
+    public void setBookManagementSiteName(String bookManagementSiteName) {
+        this.bookManagementSiteName = bookManagementSiteName;
+    }
+
+    public void init() {
+        if (concurrency < 1) {
+            concurrency = 1;
+        }
+        if (checkpointInterval < 1) {
+            checkpointInterval = 1;
+        }
+        ioThrottle = new IoThrottle(maxBytesPerSecond);
+        if (maxBytesPerSecond > 0 && !epubPublishingService.isEnabled()) {
+            LOG.warn("Bulk publish maxBytesPerSecond={} has no effect with legacy EPub packaging, " +
+                    "only concurrency={} limits a bulk run", maxBytesPerSecond, concurrency);
+        }
+
+        coordinator = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BestPubBulkPublishCoordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers = ioExecutorService.newExecutor("BestPubBulkPublisher", concurrency);
+
+        if (bestPubMetrics != null) {
+            bestPubMetrics.registerGauge("bestpub_bulk_publish_active_runs",
+                    "Bulk publish runs active on this repository node", this::getActiveRunCount);
+        }
+    }
+
+    public void shutdown() {
+        // Leave checkpoints as they are, interrupted runs are resumed at the next start
+        stopping = true;
+        if (coordinator != null) {
+            coordinator.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    protected void onBootstrap(ApplicationEvent event) {
+        if (resumeOnStartup) {
+            resumeInterruptedRuns();
+        }
+    }
+
+    @Override
+    protected void onShutdown(ApplicationEvent event) {
+        // Nothing to do, the thread pools are stopped by shutdown()
+    }
+
+    /**
+     * @param yearFolderNodeRef the year folder
+     * @return true if the current user may start bulk publish runs for the year folder and read their status
+     */
+    public boolean isAllowedToStart(NodeRef yearFolderNodeRef) {
+        return serviceRegistry.getPermissionService().hasPermission(
+                yearFolderNodeRef, PermissionService.WRITE) == AccessStatus.ALLOWED;
+    }
+
+    /**
+     * Publish all books in a year folder, as the current user. If the year folder has an
+     * unfinished checkpoint the run is resumed from it, forced if this start is forced.
+     *
+     * @param yearFolderNodeRef the year folder containing the ISBN folders
+     * @param force true if books should be published even if they have not changed since last published
+     * @return the run, the one already active if the year folder is being published on this node
+     * @throws BulkPublishRunningException if the year folder is being published on another repository node,
+     * or, when this start is forced, by a run on this node that is not forced
+     */
+    public BulkPublishRun start(NodeRef yearFolderNodeRef, boolean force) {
+        synchronized (this) {
+            BulkPublishRun activeRun = getActiveRun(yearFolderNodeRef, force);
+            if (activeRun != null) {
+                return activeRun;
+            }
+        }
+
+        BulkPublishRun run = BulkPublishRun.load(getCheckpointFile(yearFolderNodeRef));
+        if (run != null && run.getStatus() == BulkPublishRun.Status.RUNNING) {
+            if (force && !run.isForce()) {
+                run.force();
+            }
+            LOG.info("Resuming bulk publish {}", run);
+        } else {
+            run = new BulkPublishRun(GUID.generate(), yearFolderNodeRef, AuthenticationUtil.getRunAsUser(),
+                    force, System.currentTimeMillis());
+        }
+
+        return submit(run);
+    }
+
+    /**
+     * Publish all books in the year folder with the passed in name in the book management site,
+     * as the system user. Called by the scheduled {@link BulkPublishJob}.
+     *
+     * @param year the year folder name, the current year if blank
+     * @return the run, or null if there is no such year folder
+     */
+    public BulkPublishRun startForYear(String year) {
+        final String yearFolderName = (year == null || year.trim().isEmpty()) ?
+                Integer.toString(Calendar.getInstance().get(Calendar.YEAR)) : year.trim();
+
+        return AuthenticationUtil.runAsSystem(() -> {
+            NodeRef yearFolderNodeRef = serviceRegistry.getTransactionService().getRetryingTransactionHelper()
+                    .doInTransaction(() -> {
+                        NodeRef docLibNodeRef = serviceRegistry.getSiteService().getContainer(
+                                bookManagementSiteName, SiteService.DOCUMENT_LIBRARY);
+                        return docLibNodeRef == null ? null : serviceRegistry.getNodeService().getChildByName(
+                                docLibNodeRef, ContentModel.ASSOC_CONTAINS, yearFolderName);
+                    }, true, false);
+            if (yearFolderNodeRef == null) {
+                LOG.warn("No year folder {} in site {}, nothing to bulk publish", yearFolderName,
+                        bookManagementSiteName);
+                return null;
+            }
+
+            return start(yearFolderNodeRef, false);
+        });
+    }
+
+    /**
+     * @param yearFolderNodeRef the year folder
+     * @return the active run for the year folder, or the last one from its checkpoint, or null if never run
+     */
+    public BulkPublishRun getRun(NodeRef yearFolderNodeRef) {
+        synchronized (this) {
+            BulkPublishRun activeRun = activeRuns.get(yearFolderNodeRef);
+            if (activeRun != null) {
+                return activeRun;
+            }
+        }
+
+        return BulkPublishRun.load(getCheckpointFile(yearFolderNodeRef));
+    }
+
+    /**
+     * @return the number of bulk publish runs active on this repository node
+     */
+    public synchronized int getActiveRunCount() {
+        return activeRuns.size();
+    }
+
+    /**
+     * @return the run active on this node for the year folder, or null if there is none
+     * @throws BulkPublishRunningException if a forced start finds a run that is not forced
+     */
+    private BulkPublishRun getActiveRun(NodeRef yearFolderNodeRef, boolean force) {
+        BulkPublishRun activeRun = activeRuns.get(yearFolderNodeRef);
+        if (activeRun == null) {
+            return null;
+        }
+        if (force && !activeRun.isForce()) {
+            throw new BulkPublishRunningException("Year folder " + yearFolderNodeRef +
+                    " is already being published on this repository node without force by run " +
+                    activeRun.getId() + ", start again with force when it has finished");
+        }
+        LOG.debug("Bulk publish of {} already active {}", yearFolderNodeRef, activeRun);
+        return activeRun;
+    }
+
+    private BulkPublishRun submit(final BulkPublishRun run) {
+        QName lockQName = QName.createQName(BestPubActionsModel.NAMESPACE_URI,
+                LOCK_NAME_PREFIX + run.getYearFolderNodeRef().getId());
+        final RunLock runLock = new RunLock(run);
+        String lockToken;
+
+        // Lock and register under the same monitor as the release, so a lock held by a run on this
+        // node is always found as an active run here and never reported as another node's
+        synchronized (this) {
+            BulkPublishRun activeRun = getActiveRun(run.getYearFolderNodeRef(), run.isForce());
+            if (activeRun != null) {
+                return activeRun;
+            }
+            try {
+                lockToken = jobLockService.getLock(lockQName, clusterLockTimeToLiveMs);
+            } catch (LockAcquisitionException lae) {
+                throw new BulkPublishRunningException("Year folder " + run.getYearFolderNodeRef() +
+                        " is being published on another repository node");
+            }
+            activeRuns.put(run.getYearFolderNodeRef(), run);
+        }
+
+        jobLockService.refreshLock(lockToken, lockQName, clusterLockTimeToLiveMs, runLock);
+        checkpoint(run);
+        coordinator.execute(() -> {
+            try {
+                AuthenticationUtil.runAs(() -> {
+                    execute(run, runLock);
+                    return null;
+                }, run.getRequestedBy());
+            } catch (Throwable t) {
+                LOG.error("Bulk publish " + run + " stopped", t);
+            } finally {
+                synchronized (this) {
+                    runLock.active = false;
+                    activeRuns.remove(run.getYearFolderNodeRef());
+                    try {
+                        if (!runLock.lost) {
+                            jobLockService.releaseLock(lockToken, lockQName);
+                        }
+                    } catch (LockAcquisitionException lae) {
+                        LOG.warn("Cluster lock of bulk publish {} expired before it was released", run);
+                    }
+                }
+            }
+        });
+
+        return run;
+    }
+
+    /**
+     * List the ISBN folders a page at a time and hand the books that need publishing to the
+     * workers, at most as many in flight as there are workers.
+     */
+    private void execute(BulkPublishRun run, RunLock runLock) {
+        if (!yearFolderExists(run)) {
+            yearFolderDeleted(run);
+            return;
+        }
+
+        Semaphore inFlight = new Semaphore(concurrency);
+        int isbnFolderCount = 0;
+        try {
+            isbnFolderCount = publishPages(run, runLock, inFlight);
+
+            // Wait for the last books to be published
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException ie) {
+            // Shutdown interrupts the coordinator, books still being published are tried again on resume
+            Thread.currentThread().interrupt();
+        } catch (InvalidNodeRefException inre) {
+            if (yearFolderExists(run)) {
+                throw inre;
+            }
+            // Deleted while it was being listed, let the books in flight finish before the final checkpoint
+            inFlight.acquireUninterruptibly(concurrency);
+            yearFolderDeleted(run);
+            return;
+        }
+
+        if (stopping || runLock.lost || Thread.currentThread().isInterrupted()) {
+            LOG.info("Bulk publish {}, will resume from checkpoint {}",
+                    runLock.lost ? "lost its cluster lock" : "interrupted by shutdown", run);
+            checkpoint(run);
+            return;
+        }
+
+        run.setTotalBooks(isbnFolderCount);
+        run.finished(BulkPublishRun.Status.DONE);
+        checkpoint(run);
+        LOG.info("Bulk publish finished {} [publishedBytes={}, durationMs={}]", run, run.getPublishedBytes(),
+                run.getFinishedAt() - run.getStartedAt());
+    }
+
+    private boolean yearFolderExists(BulkPublishRun run) {
+        return serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(() ->
+                serviceRegistry.getNodeService().exists(run.getYearFolderNodeRef()), true, true);
+    }
+
+    /**
+     * A run for a year folder that is gone can never finish, fail it so it is not resumed again
+     */
+    private void yearFolderDeleted(BulkPublishRun run) {
+        run.failed("Year folder " + run.getYearFolderNodeRef() + " no longer exists");
+        checkpoint(run);
+        LOG.warn("Bulk publish failed, the year folder no longer exists {}", run);
+    }
+
+    /**
+     * @return the number of ISBN folders listed
+     */
+    private int publishPages(BulkPublishRun run, RunLock runLock, Semaphore inFlight) throws InterruptedException {
+        int isbnFolderCount = 0;
+        int skipCount = 0;
+        boolean moreItems = true;
+        while (moreItems && !stopping && !runLock.lost) {
+            final int pageSkipCount = skipCount;
+            Pair<List<Pair<FileInfo, Boolean>>, Boolean> page = serviceRegistry.getTransactionService()
+                    .getRetryingTransactionHelper().doInTransaction(() -> {
+                        PagingResults<FileInfo> results = listIsbnFolders(run.getYearFolderNodeRef(), pageSkipCount);
+                        List<Pair<FileInfo, Boolean>> books = new ArrayList<>();
+                        for (FileInfo folder : results.getPage()) {
+                            if (BookNaming.isISBN(folder.getName())) {
+                                boolean changed = run.isForce() || contentChangeTrackingService
+                                        .isChangedSincePublished(folder.getNodeRef(), folder.getProperties());
+                                books.add(new Pair<>(folder, changed));
+                            }
+                        }
+                        return new Pair<>(books, results.hasMoreItems());
+                    }, true, true);
+            moreItems = page.getSecond();
+            skipCount += pageSize;
+
+            for (Pair<FileInfo, Boolean> book : page.getFirst()) {
+                isbnFolderCount++;
+                final String isbn = book.getFirst().getName();
+                final NodeRef isbnFolderNodeRef = book.getFirst().getNodeRef();
+                if (run.isDone(isbn)) {
+                    continue;
+                }
+                if (!book.getSecond()) {
+                    record(run, new BulkPublishRun.BookResult(isbn, isbnFolderNodeRef,
+                            BulkPublishRun.BookStatus.SKIPPED, 0, -1, null));
+                    continue;
+                }
+
+                inFlight.acquire();
+                if (stopping || runLock.lost) {
+                    inFlight.release();
+                    break;
+                }
+                try {
+                    workers.execute(() -> {
+                        try {
+                            AuthenticationUtil.runAs(() -> {
+                                record(run, publish(isbn, isbnFolderNodeRef, run.isForce()));
+                                return null;
+                            }, run.getRequestedBy());
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException ree) {
+                    inFlight.release();
+                    break;
+                }
+            }
+        }
+        return isbnFolderCount;
+    }
+
+    private PagingResults<FileInfo> listIsbnFolders(NodeRef yearFolderNodeRef, int skipCount) {
+        PagingRequest pagingRequest = new PagingRequest(skipCount, pageSize);
+        List<Pair<QName, Boolean>> sortProps = Collections.singletonList(
+                new Pair<>(ContentModel.PROP_NAME, true));
+        return serviceRegistry.getFileFolderService().list(
+                yearFolderNodeRef, false, true, null, null, sortProps, pagingRequest);
+    }
+
+    /**
+     * Publish one book in its own transaction, then hold the worker back if the bulk run is
+     * writing faster than the configured I/O limit. Only streaming packaging leaves an EPub
+     * whose size is known, a book packaged the legacy way is not throttled.
+     */
+    private BulkPublishRun.BookResult publish(String isbn, NodeRef isbnFolderNodeRef, boolean force) {
+        long start = System.currentTimeMillis();
+        String result;
+        try {
+            result = serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(() -> {
+                Action publishBookToWebAction = serviceRegistry.getActionService().createAction(
+                        PublishBookAction.NAME);
+                publishBookToWebAction.setParameterValue(PublishBookAction.PARAM_FORCE, force);
+                serviceRegistry.getActionService().executeAction(
+                        publishBookToWebAction, isbnFolderNodeRef, false, false);
+                return (String) publishBookToWebAction.getParameterValue(PublishBookAction.PARAM_RESULT);
+            }, false, true);
+        } catch (Throwable t) {
+            LOG.error("Bulk publish of book " + isbn + " failed", t);
+            return new BulkPublishRun.BookResult(isbn, isbnFolderNodeRef, BulkPublishRun.BookStatus.FAILED,
+                    System.currentTimeMillis() - start, -1,
+                    t.getMessage() != null ? t.getMessage() : t.getClass().getName());
+        }
+        long durationMs = System.currentTimeMillis() - start;
+        if (PublishBookAction.RESULT_CURRENT.equals(result)) {
+            // Changed according to the content change marker, but the chapter files are the published ones
+            return new BulkPublishRun.BookResult(isbn, isbnFolderNodeRef, BulkPublishRun.BookStatus.SKIPPED,
+                    durationMs, -1, null);
+        }
+
+        long bytes = -1;
+        if (epubPublishingService.isEnabled()) {
+            File artifactFile = epubPublishingService.getArtifactFile(isbn);
+            if (artifactFile != null && artifactFile.isFile()) {
+                bytes = artifactFile.length();
+                ioThrottle.acquire(bytes);
+            }
+        }
+
+        return new BulkPublishRun.BookResult(isbn, isbnFolderNodeRef, BulkPublishRun.BookStatus.PUBLISHED,
+                durationMs, bytes, null);
+    }
+
+    private void record(BulkPublishRun run, BulkPublishRun.BookResult result) {
+        LOG.debug("Bulk publish {} book {} [durationMs={}, bytes={}]", result.getStatus(), result.getIsbn(),
+                result.getDurationMs(), result.getBytes());
+        if (bestPubMetrics != null) {
+            bestPubMetrics.count("bestpub_bulk_publish_" +
+                    result.getStatus().toString().toLowerCase(Locale.ENGLISH) + "_total", 1);
+        }
+
+        if (run.addResult(result) % checkpointInterval == 0) {
+            checkpoint(run);
+        }
+    }
+
+    private void checkpoint(BulkPublishRun run) {
+        File checkpointFile = getCheckpointFile(run.getYearFolderNodeRef());
+        synchronized (run) {
+            try {
+                checkpointFile.getParentFile().mkdirs();
+                run.save(checkpointFile);
+            } catch (IOException ioe) {
+                LOG.warn("Could not checkpoint bulk publish {}: {}", run, ioe.getMessage());
+            }
+        }
+    }
+
+    private File getCheckpointFile(NodeRef yearFolderNodeRef) {
+        return new File(checkpointDir, CHECKPOINT_FILE_PREFIX + yearFolderNodeRef.getId() + CHECKPOINT_FILE_SUFFIX);
+    }
+
+    /**
+     * Resume the runs whose checkpoint says they were still running when the repository stopped
+     */
+    private void resumeInterruptedRuns() {
+        File[] checkpointFiles = new File(checkpointDir).listFiles((dir, name) ->
+                name.startsWith(CHECKPOINT_FILE_PREFIX) && name.endsWith(CHECKPOINT_FILE_SUFFIX));
+        if (checkpointFiles == null) {
+            return;
+        }
+
+        for (File checkpointFile : checkpointFiles) {
+            BulkPublishRun run = BulkPublishRun.load(checkpointFile);
+            if (run != null && run.getStatus() == BulkPublishRun.Status.RUNNING) {
+                LOG.info("Resuming interrupted bulk publish {}", run);
+                try {
+                    submit(run);
+                } catch (BulkPublishRunningException bpre) {
+                    LOG.info(bpre.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Paces writers to an average number of bytes per second. A writer that has just written
+     * is held back until the bytes written so far fit within the limit.
+     */
+    static class IoThrottle {
+        private final long maxBytesPerSecond;
+        private long nextFreeNanos;
+
+        IoThrottle(long maxBytesPerSecond) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+        }
+
+        void acquire(long bytes) {
+            if (maxBytesPerSecond <= 0 || bytes <= 0) {
+                return;
+            }
+
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long costNanos = (long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / maxBytesPerSecond);
+                nextFreeNanos = Math.max(nextFreeNanos, now) + costNanos;
+                waitNanos = nextFreeNanos - now;
+            }
+
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the cluster lock of a run refreshed in the background while the run is active,
+     * and stops the run if the lock is lost
+     */
+    private static class RunLock implements JobLockService.JobLockRefreshCallback {
+        private final BulkPublishRun run;
+        private volatile boolean active = true;
+        private volatile boolean lost;
+
+        RunLock(BulkPublishRun run) {
+            this.run = run;
+        }
+
+        @Override
+        public boolean isActive() {
+            return active;
+        }
+
+        @Override
+        public void lockReleased() {
+            if (active) {
+                lost = true;
+                LOG.error("Bulk publish {} lost its cluster lock, stopping", run);
+            }
+        }
+    }
+
+    /**
+     * Thrown when a year folder is already being published, on another repository node or by a run
+     * on this node that a forced start cannot join
+     */
+    public static class BulkPublishRunningException extends AlfrescoRuntimeException {
+        public BulkPublishRunningException(String msg) {
+            super(msg);
+        }
+    }
+}
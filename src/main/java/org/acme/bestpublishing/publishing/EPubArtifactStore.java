@@ -0,0 +1,371 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.util.GUID;
+import org.apache.commons.codec.binary.Hex;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Content addressed store for published EPubs. Each book has its own directory under the
+ * output directory, where every stored version of the EPub is named after the SHA-256 of its bytes,
+ * <code>{outputDir}/{isbn}/{sha256}.epub</code>.
+ * <p/>
+ * A newly packaged EPub is hashed before it is moved into the store. If the book already has a
+ * version with the same hash the package is identical to it, and is discarded instead of replacing
+ * the stored file. New versions are moved in atomically from a temporary file in the same directory.
+ * <p/>
+ * Versions are listed newest first in <code>{isbn}/versions.json</code>, the first one is the
+ * current EPub. Only the configured number of versions are kept, older ones are deleted.
+ * The {@link EPubManifest} of the current EPub is kept in <code>{isbn}/manifest.json</code>, it is
+ * written in the same locked step as the version list, so concurrent publishes of a book cannot
+ * leave a manifest for another version behind.
+ * <p/>
+ * EPubs stored before the content addressed layout, <code>{outputDir}/{isbn}.epub</code> and its
+ * <code>{isbn}.manifest.json</code>, are deleted when the book is first stored in this layout.
+ * The other way round, a book published by the legacy publishing service has its versions cleared
+ * from the store, as none of them is the published EPub any more.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class EPubArtifactStore {
+    private static final Logger LOG = LoggerFactory.getLogger(EPubArtifactStore.class);
+
+    private static final String ARTIFACT_SUFFIX = ".epub";
+    private static final String VERSIONS_FILE_NAME = "versions.json";
+    private static final String MANIFEST_FILE_NAME = "manifest.json";
+    private static final String LEGACY_MANIFEST_SUFFIX = ".manifest.json";
+    private static final int HASH_BUFFER_SIZE = 65536;
+
+    /**
+     * One stored version of the EPub for a book
+     */
+    public static class Version {
+        private final String sha256;
+        private final long size;
+        private final long storedAt;
+
+        public Version(String sha256, long size, long storedAt) {
+            this.sha256 = sha256;
+            this.size = size;
+            this.storedAt = storedAt;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+
+    /**
+     * Outcome of storing a packaged EPub
+     */
+    public static class StoredArtifact {
+        private final String sha256;
+        private final long size;
+        private final File file;
+        private final boolean unchanged;
+
+        public StoredArtifact(String sha256, long size, File file, boolean unchanged) {
+            this.sha256 = sha256;
+            this.size = size;
+            this.file = file;
+            this.unchanged = unchanged;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return true if an identical version was stored already, and the package was not written to the store
+         */
+        public boolean isUnchanged() {
+            return unchanged;
+        }
+
+        @Override
+        public String toString() {
+            return "[sha256=" + sha256 + "][size=" + size + "][unchanged=" + unchanged + "]";
+        }
+    }
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private String outputDir;
+    private int retainVersions = 3;
+
+    /**
+     * Spring DI
+     */
+
+    public void setOutputDir(String outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    public void setRetainVersions(int retainVersions) {
+        this.retainVersions = retainVersions;
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @return the directory holding the stored versions of the EPub for the book
+     */
+    public File getBookDir(String isbn) {
+        return new File(outputDir, isbn);
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @param sha256 the hex SHA-256 of the version
+     * @return where the version is stored, whether it exists or not
+     */
+    public File getArtifactFile(String isbn, String sha256) {
+        return new File(getBookDir(isbn), sha256 + ARTIFACT_SUFFIX);
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @return where the manifest describing the entries of the current EPub for the book is stored
+     */
+    public File getManifestFile(String isbn) {
+        return new File(getBookDir(isbn), MANIFEST_FILE_NAME);
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @return the current EPub for the book, or null if the book has not been published
+     */
+    public File getCurrentArtifactFile(String isbn) {
+        List<Version> versions = getVersions(isbn);
+        return versions.isEmpty() ? null : getArtifactFile(isbn, versions.get(0).getSha256());
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @return a new, uniquely named, file to package an EPub into before it is stored
+     */
+    public File createTempFile(String isbn) {
+        File bookDir = getBookDir(isbn);
+        if (!bookDir.isDirectory() && !bookDir.mkdirs()) {
+            throw new AlfrescoRuntimeException("Could not create EPub output directory " + bookDir);
+        }
+        return new File(bookDir, GUID.generate() + ARTIFACT_SUFFIX + ".tmp");
+    }
+
+    /**
+     * Store a packaged EPub as the current version for the book. The package file is moved into
+     * the store, or left as is if an identical version is stored already.
+     *
+     * @param isbn the book ISBN
+     * @param packageFile the packaged EPub, from {@link #createTempFile(String)}
+     * @param manifestEntries the entries of the packaged EPub, for its manifest
+     * @return the stored version
+     */
+    public StoredArtifact store(String isbn, File packageFile, List<EPubManifest.Entry> manifestEntries)
+            throws IOException {
+        // Hash outside the lock, it reads the whole package
+        String sha256 = sha256(packageFile);
+        long size = packageFile.length();
+        File artifactFile = getArtifactFile(isbn, sha256);
+
+        synchronized (this) {
+            boolean unchanged = artifactFile.isFile() && artifactFile.length() == size;
+            if (!unchanged) {
+                Files.move(packageFile.toPath(), artifactFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            List<Version> versions = new ArrayList<>(getVersions(isbn));
+            versions.removeIf(version -> version.getSha256().equals(sha256));
+            versions.add(0, new Version(sha256, size, System.currentTimeMillis()));
+            List<Version> evicted = new ArrayList<>();
+            while (versions.size() > Math.max(1, retainVersions)) {
+                evicted.add(versions.remove(versions.size() - 1));
+            }
+            saveVersions(isbn, versions);
+            saveManifest(isbn, artifactFile, manifestEntries);
+            deleteLegacyFiles(isbn);
+
+            for (Version version : evicted) {
+                File evictedFile = getArtifactFile(isbn, version.getSha256());
+                if (!evictedFile.delete() && evictedFile.exists()) {
+                    LOG.warn("Could not delete old EPub version {}", evictedFile);
+                }
+            }
+
+            return new StoredArtifact(sha256, size, artifactFile, unchanged);
+        }
+    }
+
+    /**
+     * Delete the stored versions of the EPub for a book, and its manifest. The version list goes
+     * first, so a reader finds no current EPub before the files it named are gone.
+     *
+     * @param isbn the book ISBN
+     * @return true if the book had stored versions
+     */
+    public synchronized boolean clear(String isbn) {
+        List<Version> versions = getVersions(isbn);
+        List<File> files = new ArrayList<>();
+        files.add(new File(getBookDir(isbn), VERSIONS_FILE_NAME));
+        files.add(getManifestFile(isbn));
+        for (Version version : versions) {
+            files.add(getArtifactFile(isbn, version.getSha256()));
+        }
+
+        for (File file : files) {
+            if (!file.delete() && file.exists()) {
+                LOG.warn("Could not delete stored EPub file {}", file);
+            }
+        }
+        return !versions.isEmpty();
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @return the stored versions of the EPub for the book, newest first
+     */
+    public List<Version> getVersions(String isbn) {
+        File versionsFile = new File(getBookDir(isbn), VERSIONS_FILE_NAME);
+        if (!versionsFile.isFile()) {
+            return Collections.emptyList();
+        }
+
+        try {
+            JSONArray jsonVersions = new JSONObject(new String(
+                    Files.readAllBytes(versionsFile.toPath()), StandardCharsets.UTF_8)).getJSONArray("versions");
+            List<Version> versions = new ArrayList<>(jsonVersions.length());
+            for (int i = 0; i < jsonVersions.length(); i++) {
+                JSONObject jsonVersion = jsonVersions.getJSONObject(i);
+                versions.add(new Version(jsonVersion.getString("sha256"), jsonVersion.getLong("size"),
+                        jsonVersion.getLong("storedAt")));
+            }
+            return versions;
+        } catch (IOException | JSONException e) {
+            LOG.warn("Could not read EPub versions {}, ignoring them: {}", versionsFile, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * A manifest that cannot be saved only costs the next publish a full build
+     */
+    private void saveManifest(String isbn, File artifactFile, List<EPubManifest.Entry> manifestEntries) {
+        File manifestFile = getManifestFile(isbn);
+        try {
+            new EPubManifest(isbn, artifactFile.length(), artifactFile.lastModified(), manifestEntries)
+                    .save(manifestFile);
+        } catch (IOException ioe) {
+            LOG.warn("Could not save EPub manifest {}: {}", manifestFile, ioe.getMessage());
+            manifestFile.delete();
+        }
+    }
+
+    private void deleteLegacyFiles(String isbn) {
+        for (File legacyFile : new File[] {
+                new File(outputDir, isbn + ARTIFACT_SUFFIX), new File(outputDir, isbn + LEGACY_MANIFEST_SUFFIX)}) {
+            if (legacyFile.isFile()) {
+                if (legacyFile.delete()) {
+                    LOG.info("Deleted EPub file {} from before the content addressed layout", legacyFile);
+                } else {
+                    LOG.warn("Could not delete EPub file {} from before the content addressed layout", legacyFile);
+                }
+            }
+        }
+    }
+
+    private void saveVersions(String isbn, List<Version> versions) throws IOException {
+        File versionsFile = new File(getBookDir(isbn), VERSIONS_FILE_NAME);
+        try {
+            JSONArray jsonVersions = new JSONArray();
+            for (Version version : versions) {
+                JSONObject jsonVersion = new JSONObject();
+                jsonVersion.put("sha256", version.getSha256());
+                jsonVersion.put("size", version.getSize());
+                jsonVersion.put("storedAt", version.getStoredAt());
+                jsonVersions.put(jsonVersion);
+            }
+            JSONObject json = new JSONObject();
+            json.put("isbn", isbn);
+            json.put("versions", jsonVersions);
+
+            File tempFile = new File(versionsFile.getParentFile(), versionsFile.getName() + ".tmp");
+            Files.write(tempFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), versionsFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (JSONException je) {
+            throw new IOException("Could not write EPub versions " + versionsFile, je);
+        }
+    }
+
+    /**
+     * @return the hex SHA-256 of the file, read in one streaming pass
+     */
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AlfrescoRuntimeException("SHA-256 not available", nsae);
+        }
+
+        byte[] buffer = new byte[HASH_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+}
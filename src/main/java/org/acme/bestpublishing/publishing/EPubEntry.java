@@ -0,0 +1,84 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.Date;
+
+/**
+ * A chapter file that goes into the EPub package.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class EPubEntry {
+    private final String entryName;
+    private final NodeRef nodeRef;
+    private final NodeRef chapterFolderNodeRef;
+    private final String mimetype;
+    private final long size;
+    private final String contentUrl;
+    private final Date modified;
+
+    public EPubEntry(String entryName, NodeRef nodeRef, NodeRef chapterFolderNodeRef,
+                     String mimetype, long size, String contentUrl, Date modified) {
+        this.entryName = entryName;
+        this.nodeRef = nodeRef;
+        this.chapterFolderNodeRef = chapterFolderNodeRef;
+        this.mimetype = mimetype;
+        this.size = size;
+        this.contentUrl = contentUrl;
+        this.modified = modified;
+    }
+
+    /**
+     * @return the path of the entry in the EPub (ZIP) file
+     */
+    public String getEntryName() {
+        return entryName;
+    }
+
+    public NodeRef getNodeRef() {
+        return nodeRef;
+    }
+
+    public NodeRef getChapterFolderNodeRef() {
+        return chapterFolderNodeRef;
+    }
+
+    public String getMimetype() {
+        return mimetype;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getContentUrl() {
+        return contentUrl;
+    }
+
+    public Date getModified() {
+        return modified;
+    }
+
+    @Override
+    public String toString() {
+        return "EPubEntry[" + entryName + ", " + nodeRef + ", " + mimetype + ", " + size + " bytes]";
+    }
+}
@@ -0,0 +1,196 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Describes the chapter file entries of a published EPub artifact, so the next publish of the
+ * same book can tell which entries are unchanged and copy them from the previous artifact.
+ * Stored as JSON next to the artifact.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class EPubManifest {
+    private static final Logger LOG = LoggerFactory.getLogger(EPubManifest.class);
+
+    /**
+     * One chapter file entry in the artifact
+     */
+    public static class Entry {
+        private final String entryName;
+        private final NodeRef nodeRef;
+        private final long modified;
+        private final String contentUrl;
+        private final long size;
+        private final String sha256;
+
+        public Entry(String entryName, NodeRef nodeRef, long modified, String contentUrl, long size, String sha256) {
+            this.entryName = entryName;
+            this.nodeRef = nodeRef;
+            this.modified = modified;
+            this.contentUrl = contentUrl;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        public String getEntryName() {
+            return entryName;
+        }
+
+        public NodeRef getNodeRef() {
+            return nodeRef;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public String getContentUrl() {
+            return contentUrl;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        /**
+         * @param ePubEntry a chapter file about to be packaged
+         * @return true if the chapter file is the same as the one this entry was built from
+         */
+        public boolean matches(EPubEntry ePubEntry) {
+            return entryName.equals(ePubEntry.getEntryName()) &&
+                    nodeRef.equals(ePubEntry.getNodeRef()) &&
+                    ePubEntry.getModified() != null && modified == ePubEntry.getModified().getTime() &&
+                    contentUrl.equals(ePubEntry.getContentUrl()) &&
+                    size == ePubEntry.getSize();
+        }
+    }
+
+    private final String isbn;
+    private final long artifactSize;
+    private final long artifactLastModified;
+    private final Map<String, Entry> entries;
+
+    public EPubManifest(String isbn, long artifactSize, long artifactLastModified, List<Entry> entries) {
+        this.isbn = isbn;
+        this.artifactSize = artifactSize;
+        this.artifactLastModified = artifactLastModified;
+        this.entries = new LinkedHashMap<>();
+        for (Entry entry : entries) {
+            this.entries.put(entry.getEntryName(), entry);
+        }
+    }
+
+    public String getIsbn() {
+        return isbn;
+    }
+
+    public Entry getEntry(String entryName) {
+        return entries.get(entryName);
+    }
+
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * @param artifactFile the artifact this manifest is supposed to describe
+     * @return true if the artifact is still the one this manifest was written for
+     */
+    public boolean describes(File artifactFile) {
+        return artifactFile.isFile() && artifactFile.length() == artifactSize &&
+                artifactFile.lastModified() == artifactLastModified;
+    }
+
+    /**
+     * Save the manifest, replacing any previous manifest atomically.
+     */
+    public void save(File manifestFile) throws IOException {
+        try {
+            JSONArray jsonEntries = new JSONArray();
+            for (Entry entry : entries.values()) {
+                JSONObject jsonEntry = new JSONObject();
+                jsonEntry.put("entryName", entry.getEntryName());
+                jsonEntry.put("nodeRef", entry.getNodeRef().toString());
+                jsonEntry.put("modified", entry.getModified());
+                jsonEntry.put("contentUrl", entry.getContentUrl());
+                jsonEntry.put("size", entry.getSize());
+                jsonEntry.put("sha256", entry.getSha256());
+                jsonEntries.put(jsonEntry);
+            }
+            JSONObject json = new JSONObject();
+            json.put("isbn", isbn);
+            json.put("artifactSize", artifactSize);
+            json.put("artifactLastModified", artifactLastModified);
+            json.put("entries", jsonEntries);
+
+            File tempFile = new File(manifestFile.getParentFile(), manifestFile.getName() + ".tmp");
+            Files.write(tempFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), manifestFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (JSONException je) {
+            throw new IOException("Could not write EPub manifest " + manifestFile, je);
+        }
+    }
+
+    /**
+     * Load a manifest.
+     *
+     * @return the manifest, or null if there is no manifest or it could not be read
+     */
+    public static EPubManifest load(File manifestFile) {
+        if (!manifestFile.isFile()) {
+            return null;
+        }
+
+        try {
+            JSONObject json = new JSONObject(new String(
+                    Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8));
+            JSONArray jsonEntries = json.getJSONArray("entries");
+            List<Entry> entries = new ArrayList<>(jsonEntries.length());
+            for (int i = 0; i < jsonEntries.length(); i++) {
+                JSONObject jsonEntry = jsonEntries.getJSONObject(i);
+                entries.add(new Entry(jsonEntry.getString("entryName"),
+                        new NodeRef(jsonEntry.getString("nodeRef")), jsonEntry.getLong("modified"),
+                        jsonEntry.getString("contentUrl"), jsonEntry.getLong("size"), jsonEntry.getString("sha256")));
+            }
+            return new EPubManifest(json.getString("isbn"), json.getLong("artifactSize"),
+                    json.getLong("artifactLastModified"), entries);
+        } catch (IOException | JSONException | RuntimeException e) {
+            LOG.warn("Could not read EPub manifest {}, ignoring it: {}", manifestFile, e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,725 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.acme.bestpublishing.chapters.ChapterIndexService;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.MLText;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringEscapeUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the EPub (ZIP) package for a book by streaming each chapter file straight from the
+ * content store channel into the ZIP output, using one small reusable buffer, so heap use stays
+ * flat whatever the size of the book.
+ * <p/>
+ * Files that are already compressed (JPEG, PNG, MP4, ...) are stored as is instead of being deflated
+ * again. The ZIP is written to a random access file so stored entries can be streamed without first
+ * computing their CRC, the local headers are patched when each entry is closed.
+ * <p/>
+ * With a parallelism above one the chapters are compressed concurrently into segment files that are
+ * then copied into the EPub in chapter order, the resulting EPub is byte for byte the same as when
+ * the chapters are written one after the other.
+ * <p/>
+ * EPub layout: <code>mimetype</code>, <code>META-INF/container.xml</code>, the chapter files under
+ * <code>OEBPS/{chapter folder name}/</code>, the navigation document <code>OEBPS/nav.xhtml</code>
+ * listing the XHTML chapter files, and <code>OEBPS/content.opf</code>.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class EPubPackager {
+    public static final String EPUB_MIMETYPE = "application/epub+zip";
+    public static final String CONTENT_DIR = "OEBPS/";
+    public static final String OPF_ENTRY_NAME = CONTENT_DIR + "content.opf";
+    public static final String NAV_ENTRY_NAME = CONTENT_DIR + "nav.xhtml";
+
+    private static final String XHTML_MIMETYPE = "application/xhtml+xml";
+    private static final DateTimeFormatter MODIFIED_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+
+    private static final String CONTAINER_XML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<container version=\"1.0\" xmlns=\"urn:oasis:names:tc:opendocument:xmlns:container\">\n" +
+            "  <rootfiles>\n" +
+            "    <rootfile full-path=\"" + OPF_ENTRY_NAME + "\" media-type=\"application/oebps-package+xml\"/>\n" +
+            "  </rootfiles>\n" +
+            "</container>\n";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private Set<String> storedMimetypes = new HashSet<>();
+    private int bufferSize = 64 * 1024;
+    private int parallelism = 0;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private ChapterIndexService chapterIndexService;
+    private IoExecutorService ioExecutorService;
+
+    /**
+     * Compresses chapter segments, null when chapters are written sequentially
+     */
+    private ExecutorService executor;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setChapterIndexService(ChapterIndexService chapterIndexService) {
+        this.chapterIndexService = chapterIndexService;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    /**
+     * @param storedMimetypes comma separated list of mimetypes that are already compressed
+     */
+    public void setStoredMimetypes(String storedMimetypes) {
+        this.storedMimetypes = new HashSet<>();
+        for (String mimetype : storedMimetypes.split(",")) {
+            if (!mimetype.trim().isEmpty()) {
+                this.storedMimetypes.add(mimetype.trim());
+            }
+        }
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param parallelism number of chapters compressed concurrently, 0 or 1 to write chapters sequentially
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void init() {
+        if (parallelism > 1) {
+            executor = ioExecutorService.newExecutor("BestPubEPubAssembler", parallelism);
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param isbnFolderProps the ISBN folder properties
+     * @return the title for the EPub, the ISBN folder title, or the ISBN when it has no title
+     */
+    public static String getBookTitle(Map<QName, Serializable> isbnFolderProps) {
+        Serializable title = isbnFolderProps.get(ContentModel.PROP_TITLE);
+        if (title instanceof MLText) {
+            title = ((MLText) title).getDefaultValue();
+        }
+        return title != null && !title.toString().trim().isEmpty() ?
+                title.toString() : (String) isbnFolderProps.get(ContentModel.PROP_NAME);
+    }
+
+    /**
+     * List the chapter files that go into the EPub for a book, in chapter order and then file name order.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return the EPub entries for the chapter files
+     */
+    public List<EPubEntry> listEntries(NodeRef isbnFolderNodeRef) {
+        List<EPubEntry> entries = new ArrayList<>();
+        for (NodeRef chapterFolderNodeRef : chapterIndexService.getChapterIndex(isbnFolderNodeRef).getChapterFolders()) {
+            entries.addAll(listChapterEntries(chapterFolderNodeRef));
+        }
+        return entries;
+    }
+
+    /**
+     * List the files that go into the EPub for one chapter folder, in file name order.
+     *
+     * @param chapterFolderNodeRef the chapter folder
+     * @return the EPub entries for the chapter files
+     */
+    public List<EPubEntry> listChapterEntries(NodeRef chapterFolderNodeRef) {
+        String chapterFolderName = (String) serviceRegistry.getNodeService().getProperty(
+                chapterFolderNodeRef, ContentModel.PROP_NAME);
+        List<FileInfo> chapterFiles = new ArrayList<>(
+                serviceRegistry.getFileFolderService().listFiles(chapterFolderNodeRef));
+        chapterFiles.sort(Comparator.comparing(FileInfo::getName));
+
+        List<EPubEntry> entries = new ArrayList<>(chapterFiles.size());
+        for (FileInfo chapterFile : chapterFiles) {
+            ContentData contentData = chapterFile.getContentData();
+            if (contentData == null || contentData.getContentUrl() == null) {
+                continue;
+            }
+            entries.add(new EPubEntry(CONTENT_DIR + chapterFolderName + "/" + chapterFile.getName(),
+                    chapterFile.getNodeRef(), chapterFolderNodeRef, contentData.getMimetype(),
+                    contentData.getSize(), contentData.getContentUrl(), chapterFile.getModifiedDate()));
+        }
+        return entries;
+    }
+
+    /**
+     * Write the complete EPub package for a book.
+     *
+     * @param isbn the book ISBN, used as package identifier
+     * @param title the book title
+     * @param entries the chapter file entries, as returned by {@link #listEntries(NodeRef)}
+     * @param targetFile the file to write the EPub to
+     * @return packaging statistics
+     */
+    public PackagingReport pack(String isbn, String title, List<EPubEntry> entries, File targetFile) {
+        return pack(isbn, title, entries, targetFile, null, null);
+    }
+
+    /**
+     * Write the EPub package for a book, copying the compressed bytes of chapter files that have not
+     * changed since the previous artifact was built, and only compressing new and changed chapter files.
+     *
+     * @param isbn the book ISBN, used as package identifier
+     * @param title the book title
+     * @param entries the chapter file entries, as returned by {@link #listEntries(NodeRef)}
+     * @param targetFile the file to write the EPub to
+     * @param previousManifest manifest for the previous artifact, or null to build everything
+     * @param previousArtifact the previous artifact described by the manifest, or null to build everything
+     * @return packaging statistics, including the manifest for the new artifact
+     */
+    public PackagingReport pack(String isbn, String title, List<EPubEntry> entries, File targetFile,
+                                EPubManifest previousManifest, File previousArtifact) {
+        long allocatedAtStart = getThreadAllocatedBytes();
+        long start = System.currentTimeMillis();
+        PackState state = new PackState(entries.size());
+
+        ZipFile previousZip = null;
+        try (ZipArchiveOutputStream zip = createZipOutput(targetFile)) {
+            if (previousManifest != null && previousArtifact != null) {
+                previousZip = new ZipFile(previousArtifact);
+            }
+
+            writeHeaderEntries(zip);
+            Map<NodeRef, List<EPubEntry>> chapters = groupByChapter(entries);
+            if (executor != null && chapters.size() > 1) {
+                writeChaptersInParallel(zip, chapters, previousManifest, previousZip, targetFile, state);
+            } else {
+                byte[] buffer = new byte[bufferSize];
+                for (EPubEntry entry : entries) {
+                    ZipArchiveEntry previousZipEntry = getReusableEntry(entry, previousManifest, previousZip);
+                    if (previousZipEntry != null) {
+                        copyRawEntry(zip, previousZip, previousZipEntry);
+                        state.reused(previousManifest.getEntry(entry.getEntryName()));
+                    } else {
+                        state.written(writeEntry(zip, entry, buffer));
+                    }
+                }
+            }
+            writeNavEntry(zip, title, entries);
+            writeOpfEntry(zip, isbn, title, entries);
+        } catch (IOException ioe) {
+            throw new AlfrescoRuntimeException("Could not write EPub for ISBN " + isbn + " to " + targetFile, ioe);
+        } finally {
+            ZipFile.closeQuietly(previousZip);
+        }
+
+        return new PackagingReport(entries.size(), state.reusedEntries, state.contentBytes, targetFile.length(),
+                System.currentTimeMillis() - start, state.allocatedBytes(allocatedAtStart), state.manifestEntries);
+    }
+
+    /**
+     * Compress the chapters concurrently, one segment file per chapter, each worker running as system
+     * in its own read only transaction. The segments are then copied raw into the EPub in chapter order,
+     * which gives exactly the same bytes as compressing the chapter files straight into the EPub.
+     */
+    private void writeChaptersInParallel(ZipArchiveOutputStream zip, Map<NodeRef, List<EPubEntry>> chapters,
+                                         EPubManifest previousManifest, ZipFile previousZip, File targetFile,
+                                         PackState state) throws IOException {
+        List<File> segmentFiles = new ArrayList<>(chapters.size());
+        List<Future<Map<String, EPubManifest.Entry>>> segments = new ArrayList<>(chapters.size());
+        try {
+            for (List<EPubEntry> chapterEntries : chapters.values()) {
+                File segmentFile = File.createTempFile(
+                        targetFile.getName() + "-segment-", ".zip", targetFile.getParentFile());
+                segmentFiles.add(segmentFile);
+                segments.add(executor.submit(() -> AuthenticationUtil.runAsSystem(() ->
+                        serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                                () -> writeSegment(chapterEntries, previousManifest, previousZip, segmentFile, state),
+                                true, true))));
+            }
+
+            int chapterIndex = 0;
+            for (List<EPubEntry> chapterEntries : chapters.values()) {
+                Map<String, EPubManifest.Entry> writtenEntries = getSegment(segments.get(chapterIndex));
+                try (ZipFile segmentZip = new ZipFile(segmentFiles.get(chapterIndex))) {
+                    for (EPubEntry entry : chapterEntries) {
+                        EPubManifest.Entry writtenEntry = writtenEntries.get(entry.getEntryName());
+                        if (writtenEntry != null) {
+                            copyRawEntry(zip, segmentZip, segmentZip.getEntry(entry.getEntryName()));
+                            state.written(writtenEntry);
+                        } else {
+                            copyRawEntry(zip, previousZip, previousZip.getEntry(entry.getEntryName()));
+                            state.reused(previousManifest.getEntry(entry.getEntryName()));
+                        }
+                    }
+                }
+                segmentFiles.get(chapterIndex).delete();
+                chapterIndex++;
+            }
+        } finally {
+            for (Future<Map<String, EPubManifest.Entry>> segment : segments) {
+                segment.cancel(true);
+            }
+            for (File segmentFile : segmentFiles) {
+                segmentFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Compress the new and changed files of one chapter into a segment file.
+     *
+     * @return the manifest entries for the files written to the segment, by entry name
+     */
+    private Map<String, EPubManifest.Entry> writeSegment(List<EPubEntry> chapterEntries,
+                                                         EPubManifest previousManifest, ZipFile previousZip,
+                                                         File segmentFile, PackState state) throws IOException {
+        long allocatedAtStart = getThreadAllocatedBytes();
+        Map<String, EPubManifest.Entry> writtenEntries = new HashMap<>();
+        byte[] buffer = new byte[bufferSize];
+        try (ZipArchiveOutputStream segmentZip = createZipOutput(segmentFile)) {
+            for (EPubEntry entry : chapterEntries) {
+                if (getReusableEntry(entry, previousManifest, previousZip) == null) {
+                    writtenEntries.put(entry.getEntryName(), writeEntry(segmentZip, entry, buffer));
+                }
+            }
+        }
+        state.workerAllocated(allocatedAtStart);
+        return writtenEntries;
+    }
+
+    private Map<String, EPubManifest.Entry> getSegment(Future<Map<String, EPubManifest.Entry>> segment)
+            throws IOException {
+        try {
+            return segment.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for EPub chapter segment", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Could not write EPub chapter segment", ee.getCause());
+        }
+    }
+
+    /**
+     * Chapter files that have not changed since the previous artifact was built can be copied
+     * from it as is, still compressed.
+     *
+     * @return the entry in the previous artifact, or null if the file has to be written from the content store
+     */
+    private ZipArchiveEntry getReusableEntry(EPubEntry entry, EPubManifest previousManifest, ZipFile previousZip) {
+        if (previousZip == null) {
+            return null;
+        }
+        EPubManifest.Entry previousEntry = previousManifest.getEntry(entry.getEntryName());
+        if (previousEntry == null || !previousEntry.matches(entry)) {
+            return null;
+        }
+        ZipArchiveEntry previousZipEntry = previousZip.getEntry(entry.getEntryName());
+        if (previousZipEntry == null || previousZipEntry.getSize() != previousEntry.getSize()) {
+            // Manifest and artifact disagree, build the entry from scratch
+            return null;
+        }
+        return previousZipEntry;
+    }
+
+    private void copyRawEntry(ZipArchiveOutputStream zip, ZipFile fromZip, ZipArchiveEntry fromEntry)
+            throws IOException {
+        try (InputStream rawStream = fromZip.getRawInputStream(fromEntry)) {
+            zip.addRawArchiveEntry(fromEntry, rawStream);
+        }
+    }
+
+    /**
+     * Entries are written to a random access file so local headers are patched instead of followed by
+     * data descriptors. Zip64 is used as needed, so books over 4 GB or with more than 65535 entries can
+     * be packaged. Entries are put with their size from the content data, an entry of unknown size
+     * would always get a Zip64 extra field that raw copied entries do not have, and parallel and
+     * sequential builds would differ.
+     */
+    private ZipArchiveOutputStream createZipOutput(File file) throws IOException {
+        ZipArchiveOutputStream zip = new ZipArchiveOutputStream(file);
+        zip.setUseZip64(Zip64Mode.AsNeeded);
+        return zip;
+    }
+
+    private Map<NodeRef, List<EPubEntry>> groupByChapter(List<EPubEntry> entries) {
+        Map<NodeRef, List<EPubEntry>> chapters = new LinkedHashMap<>();
+        for (EPubEntry entry : entries) {
+            chapters.computeIfAbsent(entry.getChapterFolderNodeRef(), chapter -> new ArrayList<>()).add(entry);
+        }
+        return chapters;
+    }
+
+    /**
+     * Write the <code>mimetype</code> entry, which must be first and stored, and <code>META-INF/container.xml</code>.
+     */
+    public void writeHeaderEntries(ZipArchiveOutputStream zip) throws IOException {
+        byte[] mimetype = EPUB_MIMETYPE.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(mimetype);
+        ZipArchiveEntry mimetypeEntry = new ZipArchiveEntry("mimetype");
+        mimetypeEntry.setMethod(ZipEntry.STORED);
+        mimetypeEntry.setSize(mimetype.length);
+        mimetypeEntry.setCrc(crc.getValue());
+        mimetypeEntry.setTime(0);
+        zip.putArchiveEntry(mimetypeEntry);
+        zip.write(mimetype);
+        zip.closeArchiveEntry();
+
+        writeTextEntry(zip, "META-INF/container.xml", CONTAINER_XML);
+    }
+
+    /**
+     * Stream one chapter file from the content store into the ZIP,
+     * computing its SHA-256 on the way.
+     *
+     * @return the manifest entry for the written chapter file
+     */
+    public EPubManifest.Entry writeEntry(ZipArchiveOutputStream zip, EPubEntry entry, byte[] buffer)
+            throws IOException {
+        ContentReader reader = serviceRegistry.getContentService().getReader(entry.getNodeRef(), ContentModel.PROP_CONTENT);
+        if (reader == null || !reader.exists()) {
+            throw new AlfrescoRuntimeException("Content missing for EPub entry " + entry);
+        }
+
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getEntryName());
+        zipEntry.setMethod(isStored(entry.getMimetype()) ? ZipEntry.STORED : ZipEntry.DEFLATED);
+        if (entry.getModified() != null) {
+            zipEntry.setTime(entry.getModified().getTime());
+        }
+        if (entry.getSize() >= 0) {
+            // The real size is patched in when the entry is closed
+            zipEntry.setSize(entry.getSize());
+        }
+        zip.putArchiveEntry(zipEntry);
+
+        long bytes = 0;
+        MessageDigest digest = newSha256Digest();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        try (ReadableByteChannel channel = reader.getReadableChannel()) {
+            int read;
+            while ((read = channel.read(byteBuffer)) != -1) {
+                if (read > 0) {
+                    zip.write(buffer, 0, read);
+                    digest.update(buffer, 0, read);
+                    bytes += read;
+                }
+                byteBuffer.clear();
+            }
+        }
+        zip.closeArchiveEntry();
+
+        return new EPubManifest.Entry(entry.getEntryName(), entry.getNodeRef(),
+                entry.getModified() != null ? entry.getModified().getTime() : 0L,
+                entry.getContentUrl(), bytes, Hex.encodeHexString(digest.digest()));
+    }
+
+    /**
+     * Write the EPUB 3 navigation document, a table of contents with the XHTML chapter files in spine order.
+     */
+    public void writeNavEntry(ZipArchiveOutputStream zip, String title, List<EPubEntry> entries) throws IOException {
+        writeTextEntry(zip, NAV_ENTRY_NAME, createNav(title, entries));
+    }
+
+    /**
+     * Write the OPF package document listing all chapter files and the navigation document.
+     */
+    public void writeOpfEntry(ZipArchiveOutputStream zip, String isbn, String title, List<EPubEntry> entries)
+            throws IOException {
+        writeTextEntry(zip, OPF_ENTRY_NAME, createOpf(isbn, title, entries));
+    }
+
+    public boolean isStored(String mimetype) {
+        return mimetype != null && storedMimetypes.contains(mimetype);
+    }
+
+    private void writeTextEntry(ZipArchiveOutputStream zip, String name, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        entry.setMethod(ZipEntry.DEFLATED);
+        entry.setTime(0);
+        entry.setSize(bytes.length);
+        zip.putArchiveEntry(entry);
+        zip.write(bytes);
+        zip.closeArchiveEntry();
+    }
+
+    private String createNav(String title, List<EPubEntry> entries) {
+        StringBuilder toc = new StringBuilder();
+        for (EPubEntry entry : entries) {
+            if (XHTML_MIMETYPE.equals(entry.getMimetype())) {
+                String href = StringEscapeUtils.escapeXml(entry.getEntryName().substring(CONTENT_DIR.length()));
+                toc.append("        <li><a href=\"").append(href).append("\">").append(href).append("</a></li>\n");
+            }
+        }
+
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<html xmlns=\"http://www.w3.org/1999/xhtml\" xmlns:epub=\"http://www.idpf.org/2007/ops\">\n" +
+                "  <head><title>" + StringEscapeUtils.escapeXml(title) + "</title></head>\n" +
+                "  <body>\n" +
+                "    <nav epub:type=\"toc\">\n" +
+                "      <h1>" + StringEscapeUtils.escapeXml(title) + "</h1>\n" +
+                // An empty list is not allowed, a book without XHTML chapter files links the navigation document
+                "      <ol>\n" + (toc.length() > 0 ? toc.toString() :
+                        "        <li><a href=\"nav.xhtml\">" + StringEscapeUtils.escapeXml(title) + "</a></li>\n") +
+                "      </ol>\n" +
+                "    </nav>\n" +
+                "  </body>\n" +
+                "</html>\n";
+    }
+
+    private String createOpf(String isbn, String title, List<EPubEntry> entries) {
+        StringBuilder manifest = new StringBuilder();
+        StringBuilder spine = new StringBuilder();
+        long modified = 0;
+        int itemNumber = 0;
+        for (EPubEntry entry : entries) {
+            if (entry.getModified() != null) {
+                modified = Math.max(modified, entry.getModified().getTime());
+            }
+            String itemId = "item" + (++itemNumber);
+            manifest.append("    <item id=\"").append(itemId)
+                    .append("\" href=\"").append(StringEscapeUtils.escapeXml(
+                            entry.getEntryName().substring(CONTENT_DIR.length())))
+                    .append("\" media-type=\"").append(StringEscapeUtils.escapeXml(entry.getMimetype()))
+                    .append("\"/>\n");
+            if (XHTML_MIMETYPE.equals(entry.getMimetype())) {
+                spine.append("    <itemref idref=\"").append(itemId).append("\"/>\n");
+            }
+        }
+        manifest.append("    <item id=\"nav\" href=\"").append(NAV_ENTRY_NAME.substring(CONTENT_DIR.length()))
+                .append("\" media-type=\"").append(XHTML_MIMETYPE).append("\" properties=\"nav\"/>\n");
+        if (spine.length() == 0) {
+            // The spine must not be empty
+            spine.append("    <itemref idref=\"nav\"/>\n");
+        }
+
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<package xmlns=\"http://www.idpf.org/2007/opf\" version=\"3.0\" unique-identifier=\"bookid\">\n" +
+                "  <metadata xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n" +
+                "    <dc:identifier id=\"bookid\">urn:isbn:" + StringEscapeUtils.escapeXml(isbn) + "</dc:identifier>\n" +
+                "    <dc:title>" + StringEscapeUtils.escapeXml(title) + "</dc:title>\n" +
+                "    <dc:language>en</dc:language>\n" +
+                // Latest chapter file change, not the build time, so an unchanged book gives the same EPub
+                "    <meta property=\"dcterms:modified\">" + MODIFIED_FORMAT.format(Instant.ofEpochMilli(modified)) +
+                "</meta>\n" +
+                "  </metadata>\n" +
+                "  <manifest>\n" + manifest + "  </manifest>\n" +
+                "  <spine>\n" + spine + "  </spine>\n" +
+                "</package>\n";
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AlfrescoRuntimeException("SHA-256 not available", nsae);
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the current thread so far, or -1 if the JVM does not measure it
+     */
+    private static long getThreadAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (allocationMXBean.isThreadAllocatedMemorySupported() &&
+                    allocationMXBean.isThreadAllocatedMemoryEnabled()) {
+                return allocationMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Running totals while writing one EPub
+     */
+    private static class PackState {
+        private final List<EPubManifest.Entry> manifestEntries;
+        private int reusedEntries;
+        private long contentBytes;
+        private final AtomicLong workerAllocatedBytes = new AtomicLong();
+        private volatile boolean allocationUnknown;
+
+        PackState(int entries) {
+            manifestEntries = new ArrayList<>(entries);
+        }
+
+        void written(EPubManifest.Entry entry) {
+            manifestEntries.add(entry);
+            contentBytes += entry.getSize();
+        }
+
+        void reused(EPubManifest.Entry entry) {
+            manifestEntries.add(entry);
+            reusedEntries++;
+        }
+
+        /**
+         * Add the bytes allocated by a segment worker thread since it started on its segment
+         */
+        void workerAllocated(long allocatedAtStart) {
+            long allocatedNow = getThreadAllocatedBytes();
+            if (allocatedAtStart < 0 || allocatedNow < 0) {
+                allocationUnknown = true;
+            } else {
+                workerAllocatedBytes.addAndGet(allocatedNow - allocatedAtStart);
+            }
+        }
+
+        /**
+         * @return the bytes allocated for this build by the packaging thread and the segment workers, or -1 if unknown
+         */
+        long allocatedBytes(long allocatedAtStart) {
+            long allocatedNow = getThreadAllocatedBytes();
+            if (allocatedAtStart < 0 || allocatedNow < 0 || allocationUnknown) {
+                return -1;
+            }
+            return allocatedNow - allocatedAtStart + workerAllocatedBytes.get();
+        }
+    }
+
+    /**
+     * Statistics for one EPub build
+     */
+    public static class PackagingReport {
+        private final int entries;
+        private final int reusedEntries;
+        private final long contentBytes;
+        private final long artifactBytes;
+        private final long durationMs;
+        private final long allocatedBytes;
+        private final List<EPubManifest.Entry> manifestEntries;
+
+        public PackagingReport(int entries, int reusedEntries, long contentBytes, long artifactBytes,
+                               long durationMs, long allocatedBytes, List<EPubManifest.Entry> manifestEntries) {
+            this.entries = entries;
+            this.reusedEntries = reusedEntries;
+            this.contentBytes = contentBytes;
+            this.artifactBytes = artifactBytes;
+            this.durationMs = durationMs;
+            this.allocatedBytes = allocatedBytes;
+            this.manifestEntries = manifestEntries;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return number of chapter file entries copied unchanged from the previous artifact
+         */
+        public int getReusedEntries() {
+            return reusedEntries;
+        }
+
+        /**
+         * @return number of content bytes read from the content store
+         */
+        public long getContentBytes() {
+            return contentBytes;
+        }
+
+        public long getArtifactBytes() {
+            return artifactBytes;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        /**
+         * @return heap bytes allocated by the threads that built this EPub, -1 if the JVM does not measure it
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public List<EPubManifest.Entry> getManifestEntries() {
+            return manifestEntries;
+        }
+
+        public double getBytesPerSecond() {
+            return contentBytes * 1000.0 / Math.max(1, durationMs);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[entries=%d][reusedEntries=%d][contentBytes=%d][artifactBytes=%d][durationMs=%d]" +
+                            "[bytesPerSec=%.0f][allocatedBytes=%d]",
+                    entries, reusedEntries, contentBytes, artifactBytes, durationMs, getBytesPerSecond(),
+                    allocatedBytes);
+        }
+    }
+}
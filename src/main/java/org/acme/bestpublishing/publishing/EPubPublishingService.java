@@ -0,0 +1,232 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the EPub artifact for a book with the streaming {@link EPubPackager} and stores it
+ * in the {@link EPubArtifactStore}. This is the streaming alternative to
+ * {@link org.acme.bestpublishing.services.PublishingService#createAndStoreEPubArtifact(NodeRef)},
+ * which {@link org.acme.bestpublishing.actions.PublishBookAction} uses when the packaging mode is
+ * set to <code>streaming</code>.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class EPubPublishingService {
+    private static final Logger LOG = LoggerFactory.getLogger(EPubPublishingService.class);
+
+    public static final String PACKAGING_MODE_LEGACY = "legacy";
+    public static final String PACKAGING_MODE_STREAMING = "streaming";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private String packagingMode = PACKAGING_MODE_LEGACY;
+    private boolean incremental = true;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private EPubPackager epubPackager;
+    private EPubArtifactStore epubArtifactStore;
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setEpubPackager(EPubPackager epubPackager) {
+        this.epubPackager = epubPackager;
+    }
+
+    public void setEpubArtifactStore(EPubArtifactStore epubArtifactStore) {
+        this.epubArtifactStore = epubArtifactStore;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setPackagingMode(String packagingMode) {
+        this.packagingMode = packagingMode;
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @return true if books should be packaged by this service rather than the legacy publishing service
+     */
+    public boolean isEnabled() {
+        return !PACKAGING_MODE_LEGACY.equalsIgnoreCase(packagingMode);
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @return the currently published EPub for the book, or null if it has not been published, or
+     * books are packaged by the legacy publishing service, which does not use the artifact store
+     */
+    public File getArtifactFile(String isbn) {
+        return isEnabled() ? epubArtifactStore.getCurrentArtifactFile(isbn) : null;
+    }
+
+    /**
+     * Clear the artifact store for a book that the legacy publishing service has just published.
+     * An EPub stored while the packaging mode was streaming is older than that publish, and must not
+     * be served, or taken as the published EPub when the mode is switched to streaming again.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     */
+    public void discardStoredArtifact(NodeRef isbnFolderNodeRef) {
+        String isbn = (String) serviceRegistry.getNodeService().getProperty(isbnFolderNodeRef, ContentModel.PROP_NAME);
+        if (epubArtifactStore.clear(isbn)) {
+            LOG.info("Cleared the stored EPub versions for ISBN {}, it was published by the legacy publishing service",
+                    isbn);
+        }
+        if (serviceRegistry.getNodeService().hasAspect(isbnFolderNodeRef,
+                BestPubActionsModel.PublishedArtifactAspect.QNAME)) {
+            serviceRegistry.getNodeService().removeAspect(isbnFolderNodeRef,
+                    BestPubActionsModel.PublishedArtifactAspect.QNAME);
+        }
+    }
+
+    /**
+     * @param isbn the book ISBN
+     * @return where the manifest describing the entries of the current EPub for the book is stored
+     */
+    public File getManifestFile(String isbn) {
+        return epubArtifactStore.getManifestFile(isbn);
+    }
+
+    /**
+     * Package the book in the ISBN folder as an EPub, store it in the artifact store, and
+     * record the stored EPub and the web published date on the ISBN folder.
+     * <p/>
+     * When incremental packaging is on, and the manifest written by the previous publish still
+     * describes the current EPub, chapter files that have not changed are copied from the previous
+     * EPub without being read from the content store or compressed again. If the new EPub turns out
+     * identical to a stored version it is not written to the store again.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return packaging statistics
+     */
+    public EPubPackager.PackagingReport createAndStoreEPubArtifact(NodeRef isbnFolderNodeRef) {
+        return createAndStoreEPubArtifact(isbnFolderNodeRef, null);
+    }
+
+    /**
+     * Package and store the EPub for a book, as {@link #createAndStoreEPubArtifact(NodeRef)},
+     * from chapter files that have already been listed.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param entries the chapter file entries, as returned by {@link EPubPackager#listEntries(NodeRef)},
+     *                or null to list them
+     * @return packaging statistics
+     */
+    public EPubPackager.PackagingReport createAndStoreEPubArtifact(NodeRef isbnFolderNodeRef, List<EPubEntry> entries) {
+        Map<QName, Serializable> isbnFolderProps = serviceRegistry.getNodeService().getProperties(isbnFolderNodeRef);
+        String isbn = (String) isbnFolderProps.get(ContentModel.PROP_NAME);
+        String title = EPubPackager.getBookTitle(isbnFolderProps);
+        File tempFile = epubArtifactStore.createTempFile(isbn);
+        File currentFile = epubArtifactStore.getCurrentArtifactFile(isbn);
+
+        File manifestFile = getManifestFile(isbn);
+        EPubManifest previousManifest = incremental && currentFile != null ?
+                loadPreviousManifest(isbn, manifestFile, currentFile) : null;
+
+        if (entries == null) {
+            entries = epubPackager.listEntries(isbnFolderNodeRef);
+            bestPubMetrics.lap("list");
+        }
+        EPubPackager.PackagingReport report;
+        EPubArtifactStore.StoredArtifact storedArtifact;
+        try {
+            report = epubPackager.pack(isbn, title, entries, tempFile, previousManifest,
+                    previousManifest != null ? currentFile : null);
+            bestPubMetrics.lap("package");
+            storedArtifact = epubArtifactStore.store(isbn, tempFile, report.getManifestEntries());
+        } catch (IOException ioe) {
+            throw new AlfrescoRuntimeException("Could not store EPub for ISBN " + isbn, ioe);
+        } finally {
+            tempFile.delete();
+        }
+
+        File targetFile = storedArtifact.getFile();
+
+        Map<QName, Serializable> artifactProps = new HashMap<>();
+        artifactProps.put(BestPubActionsModel.PublishedArtifactAspect.Prop.ARTIFACT_SHA256, storedArtifact.getSha256());
+        artifactProps.put(BestPubActionsModel.PublishedArtifactAspect.Prop.ARTIFACT_SIZE, storedArtifact.getSize());
+        serviceRegistry.getNodeService().addAspect(isbnFolderNodeRef,
+                BestPubActionsModel.PublishedArtifactAspect.QNAME, artifactProps);
+        serviceRegistry.getNodeService().setProperty(isbnFolderNodeRef,
+                BestPubContentModel.WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE, new Date());
+        bestPubMetrics.lap("store");
+        if (storedArtifact.isUnchanged()) {
+            bestPubMetrics.count("bestpub_artifacts_unchanged_total", 1);
+        } else {
+            bestPubMetrics.count("bestpub_bytes_written_total", report.getArtifactBytes());
+        }
+
+        LOG.info("Published EPub for ISBN {} to {} {} {}", isbn, targetFile, storedArtifact, report);
+
+        return report;
+    }
+
+    /**
+     * @return the manifest for the stored EPub, or null if there is none or it is out of date
+     */
+    private EPubManifest loadPreviousManifest(String isbn, File manifestFile, File artifactFile) {
+        EPubManifest manifest = EPubManifest.load(manifestFile);
+        if (manifest == null) {
+            return null;
+        }
+        if (!isbn.equals(manifest.getIsbn()) || !manifest.describes(artifactFile)) {
+            LOG.debug("EPub manifest {} does not describe {}, doing a full build", manifestFile, artifactFile);
+            return null;
+        }
+        return manifest;
+    }
+}
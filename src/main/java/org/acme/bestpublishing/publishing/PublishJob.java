@@ -0,0 +1,124 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.Date;
+
+/**
+ * A request to publish a book, as tracked by the {@link PublishJobScheduler}.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class PublishJob {
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String id;
+    private final NodeRef isbnFolderNodeRef;
+    private final String requestedBy;
+    private final Date queuedAt;
+    private volatile boolean force;
+    private volatile Status status = Status.QUEUED;
+    private volatile Date startedAt;
+    private volatile Date finishedAt;
+    private volatile String error;
+    private volatile String result;
+
+    PublishJob(String id, NodeRef isbnFolderNodeRef, String requestedBy, boolean force) {
+        this.id = id;
+        this.isbnFolderNodeRef = isbnFolderNodeRef;
+        this.requestedBy = requestedBy;
+        this.force = force;
+        this.queuedAt = new Date();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public NodeRef getIsbnFolderNodeRef() {
+        return isbnFolderNodeRef;
+    }
+
+    public String getRequestedBy() {
+        return requestedBy;
+    }
+
+    /**
+     * @return true if the book is published even if the published EPub is current
+     */
+    public boolean isForce() {
+        return force;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Date getQueuedAt() {
+        return queuedAt;
+    }
+
+    public Date getStartedAt() {
+        return startedAt;
+    }
+
+    public Date getFinishedAt() {
+        return finishedAt;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the publish action result when done, "published", or "current" if the published
+     * EPub was already current, see {@link org.acme.bestpublishing.actions.PublishBookAction}
+     */
+    public String getResult() {
+        return result;
+    }
+
+    /**
+     * A forced request was merged into this job
+     */
+    void forced() {
+        force = true;
+    }
+
+    void started() {
+        startedAt = new Date();
+        status = Status.RUNNING;
+    }
+
+    void finished(String result, String error) {
+        this.result = result;
+        this.error = error;
+        finishedAt = new Date();
+        status = error == null ? Status.DONE : Status.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return "PublishJob[id=" + id + ", isbnFolder=" + isbnFolderNodeRef + ", status=" + status + "]";
+    }
+}
@@ -0,0 +1,281 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.acme.bestpublishing.actions.PublishBookAction;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.util.GUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link PublishBookAction} on a dedicated, bounded executor instead of the shared
+ * asynchronous action thread pool, coalescing publish requests per ISBN folder. The executor
+ * comes from the {@link IoExecutorService}, platform threads or virtual threads.
+ * <p/>
+ * If a book already has a queued publish job a new request is merged into it. If the book is
+ * being published at the moment at most one rerun is scheduled, further requests are merged into
+ * that rerun. When the number of queued jobs reaches the configured limit new requests are rejected,
+ * so a publish storm cannot pile up unbounded work. A forced request merged into a job makes the job forced.
+ * <p/>
+ * Job state is kept in memory on the repository node that received the request.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class PublishJobScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(PublishJobScheduler.class);
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int threads = 2;
+    private int maxQueuedJobs = 50;
+    private int maxFinishedJobs = 1000;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubMetrics bestPubMetrics;
+    private IoExecutorService ioExecutorService;
+
+    private ExecutorService executor;
+
+    /**
+     * Job bookkeeping, guarded by this
+     */
+    private final Map<NodeRef, PublishJob> queuedJobs = new HashMap<>();
+    private final Map<NodeRef, PublishJob> runningJobs = new HashMap<>();
+    private final Map<NodeRef, PublishJob> rerunJobs = new HashMap<>();
+    private final Map<String, PublishJob> jobsById = new HashMap<>();
+    private final LinkedHashMap<String, PublishJob> finishedJobs = new LinkedHashMap<String, PublishJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PublishJob> eldest) {
+            return size() > maxFinishedJobs;
+        }
+    };
+    private final AtomicInteger mergedRequests = new AtomicInteger();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setMaxQueuedJobs(int maxQueuedJobs) {
+        this.maxQueuedJobs = maxQueuedJobs;
+    }
+
+    public void setMaxFinishedJobs(int maxFinishedJobs) {
+        this.maxFinishedJobs = maxFinishedJobs;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    public void init() {
+        executor = ioExecutorService.newExecutor("BestPubPublisher", threads);
+
+        if (bestPubMetrics != null) {
+            bestPubMetrics.registerGauge("bestpub_publish_queue_depth",
+                    "Publish jobs waiting to run", this::getQueueDepth);
+            bestPubMetrics.registerGauge("bestpub_publish_running_jobs",
+                    "Publish jobs running", this::getRunningJobs);
+            bestPubMetrics.registerGauge("bestpub_publish_merged_requests",
+                    "Publish requests merged into an already queued job", this::getMergedRequests);
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Request publishing of a book, as the current user. The book is not packaged again if the
+     * published EPub is current.
+     *
+     * @param isbnFolderNodeRef the ISBN folder for the book
+     * @return the job that will publish the book, can be a job that was already queued for the book
+     * @throws PublishQueueFullException if too many jobs are queued already
+     */
+    public PublishJob submit(NodeRef isbnFolderNodeRef) {
+        return submit(isbnFolderNodeRef, false);
+    }
+
+    /**
+     * Request publishing of a book, as the current user.
+     *
+     * @param isbnFolderNodeRef the ISBN folder for the book
+     * @param force true to publish the book even if the published EPub is current
+     * @return the job that will publish the book, can be a job that was already queued for the book
+     * @throws PublishQueueFullException if too many jobs are queued already
+     */
+    public synchronized PublishJob submit(NodeRef isbnFolderNodeRef, boolean force) {
+        PublishJob queuedJob = queuedJobs.get(isbnFolderNodeRef);
+        if (queuedJob != null) {
+            if (force) {
+                queuedJob.forced();
+            }
+            mergedRequests.incrementAndGet();
+            LOG.debug("Merged publish request into queued job {}", queuedJob);
+            return queuedJob;
+        }
+
+        boolean running = runningJobs.containsKey(isbnFolderNodeRef);
+        if (running) {
+            PublishJob rerunJob = rerunJobs.get(isbnFolderNodeRef);
+            if (rerunJob != null) {
+                if (force) {
+                    rerunJob.forced();
+                }
+                mergedRequests.incrementAndGet();
+                LOG.debug("Merged publish request into rerun job {}", rerunJob);
+                return rerunJob;
+            }
+        }
+
+        if (getQueueDepth() >= maxQueuedJobs) {
+            throw new PublishQueueFullException("Publish queue is full (" + maxQueuedJobs +
+                    " jobs), cannot publish " + isbnFolderNodeRef);
+        }
+
+        PublishJob job = new PublishJob(GUID.generate(), isbnFolderNodeRef, AuthenticationUtil.getRunAsUser(), force);
+        jobsById.put(job.getId(), job);
+        if (running) {
+            // Started when the running job finishes
+            rerunJobs.put(isbnFolderNodeRef, job);
+            LOG.debug("Scheduled publish rerun {}", job);
+        } else {
+            queue(job);
+        }
+
+        return job;
+    }
+
+    /**
+     * @param jobId the job id as returned from {@link #submit(NodeRef)}
+     * @return the job, or null if there is no such job or it finished a long time ago
+     */
+    public synchronized PublishJob getJob(String jobId) {
+        PublishJob job = jobsById.get(jobId);
+        return job != null ? job : finishedJobs.get(jobId);
+    }
+
+    /**
+     * @return the number of jobs waiting to run, including scheduled reruns
+     */
+    public synchronized int getQueueDepth() {
+        return queuedJobs.size() + rerunJobs.size();
+    }
+
+    /**
+     * @return the number of jobs currently publishing
+     */
+    public synchronized int getRunningJobs() {
+        return runningJobs.size();
+    }
+
+    /**
+     * @return the number of publish requests that were merged into an existing job
+     */
+    public int getMergedRequests() {
+        return mergedRequests.get();
+    }
+
+    private void queue(final PublishJob job) {
+        queuedJobs.put(job.getIsbnFolderNodeRef(), job);
+        executor.execute(() -> run(job));
+    }
+
+    private void run(PublishJob job) {
+        synchronized (this) {
+            queuedJobs.remove(job.getIsbnFolderNodeRef());
+            runningJobs.put(job.getIsbnFolderNodeRef(), job);
+        }
+
+        job.started();
+        String result = null;
+        String error = null;
+        try {
+            result = AuthenticationUtil.runAs(() -> serviceRegistry.getTransactionService()
+                    .getRetryingTransactionHelper().doInTransaction(() -> {
+                        Action publishBookToWebAction = serviceRegistry.getActionService().createAction(
+                                PublishBookAction.NAME);
+                        publishBookToWebAction.setParameterValue(PublishBookAction.PARAM_FORCE, job.isForce());
+                        serviceRegistry.getActionService().executeAction(
+                                publishBookToWebAction, job.getIsbnFolderNodeRef(), false, false);
+                        return (String) publishBookToWebAction.getParameterValue(PublishBookAction.PARAM_RESULT);
+                    }, false, true), job.getRequestedBy());
+        } catch (Throwable t) {
+            LOG.error("Publish job " + job + " failed", t);
+            error = t.getMessage() != null ? t.getMessage() : t.getClass().getName();
+        }
+        job.finished(result, error);
+        LOG.debug("Publish job finished {} [durationMs={}]", job,
+                job.getFinishedAt().getTime() - job.getStartedAt().getTime());
+
+        synchronized (this) {
+            runningJobs.remove(job.getIsbnFolderNodeRef());
+            jobsById.remove(job.getId());
+            finishedJobs.put(job.getId(), job);
+
+            PublishJob rerunJob = rerunJobs.remove(job.getIsbnFolderNodeRef());
+            if (rerunJob != null) {
+                queue(rerunJob);
+            }
+        }
+    }
+
+    /**
+     * Thrown when a publish request is rejected because too many jobs are waiting
+     */
+    public static class PublishQueueFullException extends AlfrescoRuntimeException {
+        public PublishQueueFullException(String msg) {
+            super(msg);
+        }
+    }
+}
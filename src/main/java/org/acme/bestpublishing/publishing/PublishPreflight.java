@@ -0,0 +1,239 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.publishing;
+
+import org.acme.bestpublishing.model.BestPubActionsModel.ContentChangeTrackingAspect;
+import org.acme.bestpublishing.model.BestPubActionsModel.PublishFingerprintAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.WebPublishingInfoAspect;
+import org.acme.bestpublishing.tracking.IsbnFolderBookkeeping;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides, before a book is packaged, if the published EPub is already current, so republishing
+ * an unchanged book does not cost a full EPub build.
+ * <p/>
+ * When a book is published the fingerprint of its chapter files is recorded on the ISBN folder
+ * ({@link PublishFingerprintAspect}), together with the content change marker at that time.
+ * The fingerprint is a SHA-256 over the ISBN, the book title, and, for each chapter file in EPub order, the entry
+ * name, node reference, content URL, and modified date, so it is made from the metadata listed
+ * for packaging anyway and no content is read. The check is done in two steps:
+ * <ol>
+ *     <li>If the content change marker is the same as when the fingerprint was recorded, nothing
+ *     in the book has changed, and the book is current without listing the chapter files.</li>
+ *     <li>Otherwise the chapter files are listed and fingerprinted. If the fingerprint matches the
+ *     recorded one the change did not touch the EPub content (e.g. a title was edited and changed
+ *     back), the book is current, and the new marker is recorded so the next check stops at step 1.</li>
+ * </ol>
+ * A book that has not been published with a fingerprint, or whose EPub is missing from the
+ * artifact store, is never current.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class PublishPreflight {
+    private static final Logger LOG = LoggerFactory.getLogger(PublishPreflight.class);
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private boolean enabled = true;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private EPubPackager epubPackager;
+    private EPubPublishingService epubPublishingService;
+    private IsbnFolderBookkeeping isbnFolderBookkeeping;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setEpubPackager(EPubPackager epubPackager) {
+        this.epubPackager = epubPackager;
+    }
+
+    public void setEpubPublishingService(EPubPublishingService epubPublishingService) {
+        this.epubPublishingService = epubPublishingService;
+    }
+
+    public void setIsbnFolderBookkeeping(IsbnFolderBookkeeping isbnFolderBookkeeping) {
+        this.isbnFolderBookkeeping = isbnFolderBookkeeping;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Check if the published EPub of a book is current.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param force true to report the book as changed whatever the fingerprint says
+     * @return the outcome, with the listed chapter files when they had to be listed
+     */
+    public Result check(NodeRef isbnFolderNodeRef, boolean force) {
+        Map<QName, Serializable> isbnFolderProps = serviceRegistry.getNodeService().getProperties(isbnFolderNodeRef);
+        String isbn = (String) isbnFolderProps.get(ContentModel.PROP_NAME);
+        Date lastContentChange = (Date) isbnFolderProps.get(ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE);
+        String publishedFingerprint = (String) isbnFolderProps.get(PublishFingerprintAspect.Prop.CONTENT_FINGERPRINT);
+        boolean checkable = enabled && !force && publishedFingerprint != null &&
+                isbnFolderProps.get(WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE) != null &&
+                isArtifactAvailable(isbn);
+
+        if (checkable && lastContentChange != null &&
+                lastContentChange.equals(isbnFolderProps.get(PublishFingerprintAspect.Prop.CONTENT_CHANGE))) {
+            LOG.debug("Book {} is unchanged since it was published", isbn);
+            return new Result(true, null, publishedFingerprint, lastContentChange);
+        }
+
+        List<EPubEntry> entries = epubPackager.listEntries(isbnFolderNodeRef);
+        String fingerprint = fingerprint(isbn, EPubPackager.getBookTitle(isbnFolderProps), entries);
+        if (checkable && fingerprint.equals(publishedFingerprint)) {
+            LOG.debug("Book {} has changed since it was published, but not its chapter files", isbn);
+            record(isbnFolderNodeRef, fingerprint, lastContentChange);
+            return new Result(true, entries, fingerprint, lastContentChange);
+        }
+
+        return new Result(false, entries, fingerprint, lastContentChange);
+    }
+
+    /**
+     * Record what a book was published from, call when the book has been published after a
+     * {@link #check(NodeRef, boolean)} that found it changed.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param preflight the result of the check done before publishing
+     */
+    public void recordPublished(NodeRef isbnFolderNodeRef, Result preflight) {
+        record(isbnFolderNodeRef, preflight.getFingerprint(), preflight.getLastContentChange());
+    }
+
+    /**
+     * @return the fingerprint of the chapter files of a book, as listed by {@link EPubPackager#listEntries(NodeRef)}
+     */
+    static String fingerprint(String isbn, String title, List<EPubEntry> entries) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new AlfrescoRuntimeException("SHA-256 not available", nsae);
+        }
+
+        StringBuilder line = new StringBuilder(256);
+        digest.update(String.valueOf(isbn).getBytes(StandardCharsets.UTF_8));
+        digest.update(("\0" + title).getBytes(StandardCharsets.UTF_8));
+        for (EPubEntry entry : entries) {
+            line.setLength(0);
+            line.append('\n').append(entry.getEntryName())
+                    .append('\0').append(entry.getNodeRef())
+                    .append('\0').append(entry.getContentUrl())
+                    .append('\0').append(entry.getModified() == null ? -1 : entry.getModified().getTime());
+            digest.update(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * Store the fingerprint and content change marker the published EPub was built from,
+     * for the next check to compare with.
+     */
+    private void record(NodeRef isbnFolderNodeRef, String fingerprint, Date lastContentChange) {
+        Map<QName, Serializable> fingerprintProps = new HashMap<>();
+        fingerprintProps.put(PublishFingerprintAspect.Prop.CONTENT_FINGERPRINT, fingerprint);
+        fingerprintProps.put(PublishFingerprintAspect.Prop.CONTENT_CHANGE, lastContentChange);
+
+        isbnFolderBookkeeping.addAspect(isbnFolderNodeRef, PublishFingerprintAspect.QNAME, fingerprintProps);
+    }
+
+    /**
+     * The legacy publishing service keeps its EPubs to itself, so they are taken to be there
+     */
+    private boolean isArtifactAvailable(String isbn) {
+        return !epubPublishingService.isEnabled() || epubPublishingService.getArtifactFile(isbn) != null;
+    }
+
+    /**
+     * Outcome of a publish pre-flight check
+     */
+    public static class Result {
+        private final boolean current;
+        private final List<EPubEntry> entries;
+        private final String fingerprint;
+        private final Date lastContentChange;
+
+        Result(boolean current, List<EPubEntry> entries, String fingerprint, Date lastContentChange) {
+            this.current = current;
+            this.entries = entries;
+            this.fingerprint = fingerprint;
+            this.lastContentChange = lastContentChange;
+        }
+
+        /**
+         * @return true if the published EPub is current and the book does not need publishing
+         */
+        public boolean isCurrent() {
+            return current;
+        }
+
+        /**
+         * @return the chapter files of the book, or null if they did not have to be listed
+         */
+        public List<EPubEntry> getEntries() {
+            return entries;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public Date getLastContentChange() {
+            return lastContentChange;
+        }
+
+        @Override
+        public String toString() {
+            return "PublishPreflight.Result[current=" + current + ", fingerprint=" + fingerprint +
+                    ", lastContentChange=" + lastContentChange + "]";
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * What a book level view needs to know about a book, without reading its chapter folders:
+ * the ISBN, the chapter number and metadata status of each chapter, when the book was last
+ * changed, and when it was published.
+ * <p/>
+ * Immutable, so it can be shared through the cache. Chapter statuses are interned, there are only
+ * a handful of distinct values. The JSON form is what is stored on the ISBN folder.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BookSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Stored JSON properties
+     */
+    private static final String JSON_ISBN = "isbn";
+    private static final String JSON_LAST_MODIFIED = "lastModified";
+    private static final String JSON_PUBLISHED_DATE = "publishedDate";
+    private static final String JSON_CHAPTER_NUMBERS = "chapterNumbers";
+    private static final String JSON_CHAPTER_STATUSES = "chapterStatuses";
+
+    private final String isbn;
+    private final long lastModified;
+    private final long publishedDate;
+    private final int[] chapterNumbers;
+    private final String[] chapterStatuses;
+
+    /**
+     * @param isbn the ISBN folder name
+     * @param lastModified when anything in the book was last changed, or null if not known
+     * @param publishedDate when the book was last published, or null if it has not been published
+     * @param chapterNumbers chapter numbers, in chapter order
+     * @param chapterStatuses metadata status of each chapter, same order as the chapter numbers
+     */
+    public BookSummary(String isbn, Date lastModified, Date publishedDate,
+                       int[] chapterNumbers, String[] chapterStatuses) {
+        if (chapterNumbers.length != chapterStatuses.length) {
+            throw new IllegalArgumentException("Got " + chapterNumbers.length + " chapter numbers and " +
+                    chapterStatuses.length + " chapter statuses");
+        }
+        this.isbn = isbn;
+        this.lastModified = toTime(lastModified);
+        this.publishedDate = toTime(publishedDate);
+        this.chapterNumbers = chapterNumbers.clone();
+        this.chapterStatuses = new String[chapterStatuses.length];
+        for (int i = 0; i < chapterStatuses.length; i++) {
+            this.chapterStatuses[i] = chapterStatuses[i] == null ? null : chapterStatuses[i].intern();
+        }
+    }
+
+    public String getIsbn() {
+        return isbn;
+    }
+
+    public int getChapterCount() {
+        return chapterNumbers.length;
+    }
+
+    public int getChapterNumber(int position) {
+        return chapterNumbers[position];
+    }
+
+    public String getChapterStatus(int position) {
+        return chapterStatuses[position];
+    }
+
+    /**
+     * @return when anything in the book was last changed, or null if not known
+     */
+    public Date getLastModified() {
+        return toDate(lastModified);
+    }
+
+    /**
+     * @return when the book was last published, or null if it has not been published
+     */
+    public Date getPublishedDate() {
+        return toDate(publishedDate);
+    }
+
+    /**
+     * @param lastModified when anything in the book was last changed, according to the ISBN folder
+     * @param publishedDate when the book was last published, according to the ISBN folder
+     * @return true if the summary was made for the book as it is now
+     */
+    public boolean isCurrent(Date lastModified, Date publishedDate) {
+        return this.lastModified == toTime(lastModified) && this.publishedDate == toTime(publishedDate);
+    }
+
+    /**
+     * @return the summary as stored on the ISBN folder
+     */
+    public String toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(JSON_ISBN, isbn);
+        json.put(JSON_LAST_MODIFIED, lastModified);
+        json.put(JSON_PUBLISHED_DATE, publishedDate);
+        JSONArray numbers = new JSONArray();
+        JSONArray statuses = new JSONArray();
+        for (int i = 0; i < chapterNumbers.length; i++) {
+            numbers.put(chapterNumbers[i]);
+            statuses.put(chapterStatuses[i] == null ? JSONObject.NULL : chapterStatuses[i]);
+        }
+        json.put(JSON_CHAPTER_NUMBERS, numbers);
+        json.put(JSON_CHAPTER_STATUSES, statuses);
+        return json.toString();
+    }
+
+    /**
+     * @param json a summary as stored on the ISBN folder
+     * @return the summary
+     * @throws JSONException if the stored summary cannot be read
+     */
+    public static BookSummary fromJSON(String json) throws JSONException {
+        JSONObject jsonSummary = new JSONObject(json);
+        JSONArray numbers = jsonSummary.getJSONArray(JSON_CHAPTER_NUMBERS);
+        JSONArray statuses = jsonSummary.getJSONArray(JSON_CHAPTER_STATUSES);
+        int[] chapterNumbers = new int[numbers.length()];
+        String[] chapterStatuses = new String[numbers.length()];
+        for (int i = 0; i < chapterNumbers.length; i++) {
+            chapterNumbers[i] = numbers.getInt(i);
+            chapterStatuses[i] = statuses.isNull(i) ? null : statuses.getString(i);
+        }
+        return new BookSummary(jsonSummary.getString(JSON_ISBN),
+                toDate(jsonSummary.getLong(JSON_LAST_MODIFIED)), toDate(jsonSummary.getLong(JSON_PUBLISHED_DATE)),
+                chapterNumbers, chapterStatuses);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        BookSummary that = (BookSummary) o;
+        return lastModified == that.lastModified && publishedDate == that.publishedDate &&
+                isbn.equals(that.isbn) && Arrays.equals(chapterNumbers, that.chapterNumbers) &&
+                Arrays.equals(chapterStatuses, that.chapterStatuses);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * isbn.hashCode() + Arrays.hashCode(chapterNumbers);
+    }
+
+    @Override
+    public String toString() {
+        return "BookSummary[isbn=" + isbn + ", chapters=" + chapterNumbers.length +
+                ", lastModified=" + getLastModified() + ", publishedDate=" + getPublishedDate() + "]";
+    }
+
+    private static long toTime(Date date) {
+        return date == null ? 0L : date.getTime();
+    }
+
+    private static Date toDate(long time) {
+        return time == 0L ? null : new Date(time);
+    }
+}
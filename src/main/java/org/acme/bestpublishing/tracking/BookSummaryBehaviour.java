@@ -0,0 +1,164 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.acme.bestpublishing.model.BestPubActionsModel.ContentChangeTrackingAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.BookInfoAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterFolderType;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterInfoAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.WebPublishingInfoAspect;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Schedules a refresh of the {@link BookSummary} of a book when one of its chapter folders is
+ * created, deleted, moved, renumbered, or changes metadata status, or when the ISBN folder gets
+ * a new name, content change marker, or published date. Removes the cached summary when the
+ * ISBN folder is deleted.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BookSummaryBehaviour implements
+        NodeServicePolicies.OnCreateNodePolicy,
+        NodeServicePolicies.OnUpdatePropertiesPolicy,
+        NodeServicePolicies.OnDeleteNodePolicy,
+        NodeServicePolicies.OnMoveNodePolicy {
+
+    /**
+     * Chapter folder properties held in the book summary
+     */
+    private static final List<QName> CHAPTER_PROPERTIES = Arrays.asList(
+            ChapterInfoAspect.Prop.CHAPTER_NUMBER, ChapterInfoAspect.Prop.CHAPTER_METADATA_STATUS);
+
+    /**
+     * ISBN folder properties the book summary is made from
+     */
+    private static final List<QName> BOOK_PROPERTIES = Arrays.asList(
+            ContentModel.PROP_NAME, ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE,
+            WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private PolicyComponent policyComponent;
+
+    /**
+     * BestPub Services
+     */
+    private BookSummaryService bookSummaryService;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setPolicyComponent(PolicyComponent policyComponent) {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setBookSummaryService(BookSummaryService bookSummaryService) {
+        this.bookSummaryService = bookSummaryService;
+    }
+
+    public void init() {
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnCreateNodePolicy.QNAME, ChapterFolderType.QNAME,
+                new JavaBehaviour(this, "onCreateNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, ChapterFolderType.QNAME,
+                new JavaBehaviour(this, "onMoveNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnDeleteNodePolicy.QNAME, ChapterFolderType.QNAME,
+                new JavaBehaviour(this, "onDeleteNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+
+        // ISBN folders and chapter folders both carry book info
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, BookInfoAspect.QNAME,
+                new JavaBehaviour(this, "onUpdateProperties", Behaviour.NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnDeleteNodePolicy.QNAME, BookInfoAspect.QNAME,
+                new JavaBehaviour(this, "onDeleteNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Behaviour implementations
+     */
+
+    @Override
+    public void onCreateNode(ChildAssociationRef childAssocRef) {
+        bookSummaryService.scheduleRefresh(childAssocRef.getParentRef());
+    }
+
+    @Override
+    public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+        boolean chapterChanged = isChanged(CHAPTER_PROPERTIES, before, after);
+        boolean bookChanged = isChanged(BOOK_PROPERTIES, before, after);
+        if (!chapterChanged && !bookChanged) {
+            return;
+        }
+
+        if (isChapterFolder(nodeRef)) {
+            if (chapterChanged) {
+                bookSummaryService.scheduleRefresh(
+                        serviceRegistry.getNodeService().getPrimaryParent(nodeRef).getParentRef());
+            }
+        } else if (bookChanged) {
+            bookSummaryService.scheduleRefresh(nodeRef);
+        }
+    }
+
+    @Override
+    public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived) {
+        // Either a chapter folder of the parent book, or a book itself, refreshing a parent
+        // that is not a book does nothing
+        bookSummaryService.invalidate(childAssocRef.getChildRef());
+        bookSummaryService.scheduleRefresh(childAssocRef.getParentRef());
+    }
+
+    @Override
+    public void onMoveNode(ChildAssociationRef oldChildAssocRef, ChildAssociationRef newChildAssocRef) {
+        bookSummaryService.scheduleRefresh(oldChildAssocRef.getParentRef());
+        bookSummaryService.scheduleRefresh(newChildAssocRef.getParentRef());
+    }
+
+    private boolean isChapterFolder(NodeRef nodeRef) {
+        return ChapterFolderType.QNAME.equals(serviceRegistry.getNodeService().getType(nodeRef));
+    }
+
+    private static boolean isChanged(List<QName> propNames, Map<QName, Serializable> before,
+                                     Map<QName, Serializable> after) {
+        for (QName propName : propNames) {
+            if (!Objects.equals(before.get(propName), after.get(propName))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.acme.bestpublishing.chapters.ChapterIndex;
+import org.acme.bestpublishing.chapters.ChapterIndexService;
+import org.acme.bestpublishing.execution.AfterCommitBookUpdater;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubActionsModel.BookSummaryAspect;
+import org.acme.bestpublishing.model.BestPubActionsModel.ContentChangeTrackingAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.BookInfoAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.ChapterInfoAspect;
+import org.acme.bestpublishing.model.BestPubContentModel.WebPublishingInfoAspect;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maintains a {@link BookSummary} per ISBN folder, so book level views cost one cache read per book
+ * instead of a walk of its chapter folders.
+ * <p/>
+ * Summaries are looked up in a bounded, cluster invalidated LRU cache first. On a miss the summary
+ * stored on the ISBN folder ({@link BookSummaryAspect}) is used, if it was made for the current
+ * content change marker and published date of the book. Otherwise the summary is built from the
+ * {@link ChapterIndex} and the chapter folders, and stored again.
+ * <p/>
+ * {@link BookSummaryBehaviour}, and the chapter create and delete code, schedule a refresh when a
+ * chapter folder comes, goes, is renumbered, or changes status, or when the book is changed or
+ * published. The cached summary is dropped in that transaction, and the summary is built and stored
+ * on the ISBN folder after commit in the background, once for all the transactions that asked before
+ * it started, like the chapter count sync. The ISBN folder is not written in the transaction of the user.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BookSummaryService {
+    private static final Logger LOG = LoggerFactory.getLogger(BookSummaryService.class);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private NodeDAO nodeDAO;
+    private SimpleCache<NodeRef, BookSummary> bookSummaryCache;
+
+    /**
+     * BestPub Services
+     */
+    private ChapterIndexService chapterIndexService;
+    private BestPubMetrics bestPubMetrics;
+    private IoExecutorService ioExecutorService;
+    private IsbnFolderBookkeeping isbnFolderBookkeeping;
+
+    private AfterCommitBookUpdater bookSummaryUpdater;
+
+    /**
+     * Where the summaries served by this repository node came from: the cache, the stored
+     * summary property, or a build from the chapter index
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong storedHits = new AtomicLong();
+    private final AtomicLong builds = new AtomicLong();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setNodeDAO(NodeDAO nodeDAO) {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void setBookSummaryCache(SimpleCache<NodeRef, BookSummary> bookSummaryCache) {
+        this.bookSummaryCache = bookSummaryCache;
+    }
+
+    public void setChapterIndexService(ChapterIndexService chapterIndexService) {
+        this.chapterIndexService = chapterIndexService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    public void setIsbnFolderBookkeeping(IsbnFolderBookkeeping isbnFolderBookkeeping) {
+        this.isbnFolderBookkeeping = isbnFolderBookkeeping;
+    }
+
+    public void init() {
+        bookSummaryUpdater = new AfterCommitBookUpdater("Book summary refresh", serviceRegistry,
+                ioExecutorService.newExecutor("BestPubBookSummaryRefresh", 1), this::refresh);
+
+        if (bestPubMetrics != null) {
+            bestPubMetrics.registerGauge("bestpub_book_summary_cache_hits",
+                    "Book summaries served from the cache", hits::get);
+            bestPubMetrics.registerGauge("bestpub_book_summary_stored_hits",
+                    "Book summaries read from the ISBN folder", storedHits::get);
+            bestPubMetrics.registerGauge("bestpub_book_summary_builds",
+                    "Book summaries built from the chapter folders", builds::get);
+        }
+    }
+
+    public void shutdown() {
+        if (bookSummaryUpdater != null) {
+            bookSummaryUpdater.shutdown();
+        }
+    }
+
+    /**
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return the summary of the book, or null if the node does not exist or is not a book
+     */
+    public BookSummary getBookSummary(NodeRef isbnFolderNodeRef) {
+        BookSummary bookSummary = bookSummaryCache.get(isbnFolderNodeRef);
+        if (bookSummary != null) {
+            hits.incrementAndGet();
+            return bookSummary;
+        }
+
+        return loadBookSummary(isbnFolderNodeRef);
+    }
+
+    /**
+     * Batch lookup, the ISBN folders that are not in the cache are loaded in one go.
+     *
+     * @param isbnFolderNodeRefs the ISBN folders
+     * @return the summaries in the passed in order, nodes that do not exist or are not books are left out
+     */
+    public Map<NodeRef, BookSummary> getBookSummaries(List<NodeRef> isbnFolderNodeRefs) {
+        Map<NodeRef, BookSummary> bookSummaries = new LinkedHashMap<>();
+        List<NodeRef> misses = new ArrayList<>();
+        for (NodeRef isbnFolderNodeRef : isbnFolderNodeRefs) {
+            BookSummary bookSummary = bookSummaryCache.get(isbnFolderNodeRef);
+            if (bookSummary != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.add(isbnFolderNodeRef);
+            }
+            bookSummaries.put(isbnFolderNodeRef, bookSummary);
+        }
+
+        if (!misses.isEmpty()) {
+            nodeDAO.cacheNodes(misses);
+            for (NodeRef isbnFolderNodeRef : misses) {
+                bookSummaries.put(isbnFolderNodeRef, loadBookSummary(isbnFolderNodeRef));
+            }
+        }
+
+        bookSummaries.values().removeIf(bookSummary -> bookSummary == null);
+        return bookSummaries;
+    }
+
+    /**
+     * Drop the cached summary of a book as part of the current transaction, and refresh it in the
+     * background once the transaction has committed, or as soon as possible if there is no transaction.
+     * Until then the summary is built on the next read.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     */
+    public void scheduleRefresh(NodeRef isbnFolderNodeRef) {
+        bookSummaryCache.remove(isbnFolderNodeRef);
+        bookSummaryUpdater.schedule(isbnFolderNodeRef);
+    }
+
+    /**
+     * Build the summary of a book from its chapter folders, store it on the ISBN folder, and cache it.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return the new summary, or null if the node does not exist or is not a book
+     */
+    public BookSummary refresh(NodeRef isbnFolderNodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        if (!nodeService.exists(isbnFolderNodeRef) || !nodeService.hasAspect(isbnFolderNodeRef, BookInfoAspect.QNAME)) {
+            bookSummaryCache.remove(isbnFolderNodeRef);
+            return null;
+        }
+
+        Map<QName, Serializable> isbnFolderProps = nodeService.getProperties(isbnFolderNodeRef);
+        BookSummary bookSummary = buildBookSummary(isbnFolderNodeRef, isbnFolderProps);
+        store(isbnFolderNodeRef, isbnFolderProps, bookSummary);
+        bookSummaryCache.put(isbnFolderNodeRef, bookSummary);
+        return bookSummary;
+    }
+
+    /**
+     * Remove the cached summary of a book, e.g. when the ISBN folder is deleted.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     */
+    public void invalidate(NodeRef isbnFolderNodeRef) {
+        bookSummaryCache.remove(isbnFolderNodeRef);
+    }
+
+    /**
+     * Cache miss, use the stored summary if it is current, otherwise build one.
+     */
+    private BookSummary loadBookSummary(NodeRef isbnFolderNodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        if (!nodeService.exists(isbnFolderNodeRef) || !nodeService.hasAspect(isbnFolderNodeRef, BookInfoAspect.QNAME)) {
+            return null;
+        }
+
+        Map<QName, Serializable> isbnFolderProps = nodeService.getProperties(isbnFolderNodeRef);
+        BookSummary bookSummary = readStoredSummary(isbnFolderNodeRef, isbnFolderProps);
+        if (bookSummary != null) {
+            storedHits.incrementAndGet();
+        } else {
+            bookSummary = buildBookSummary(isbnFolderNodeRef, isbnFolderProps);
+            // Stored in the background, reads do not write
+            scheduleRefresh(isbnFolderNodeRef);
+        }
+
+        bookSummaryCache.put(isbnFolderNodeRef, bookSummary);
+        return bookSummary;
+    }
+
+    /**
+     * @return the summary stored on the ISBN folder, or null if there is none or it is out of date
+     */
+    private BookSummary readStoredSummary(NodeRef isbnFolderNodeRef, Map<QName, Serializable> isbnFolderProps) {
+        String storedSummary = (String) isbnFolderProps.get(BookSummaryAspect.Prop.SUMMARY);
+        if (storedSummary == null) {
+            return null;
+        }
+
+        try {
+            BookSummary bookSummary = BookSummary.fromJSON(storedSummary);
+            if (bookSummary.isCurrent(getLastModified(isbnFolderProps), getPublishedDate(isbnFolderProps))) {
+                return bookSummary;
+            }
+            LOG.debug("Stored book summary of {} is out of date", isbnFolderNodeRef);
+        } catch (JSONException je) {
+            LOG.warn("Could not read the stored book summary of {}: {}", isbnFolderNodeRef, je.getMessage());
+        }
+        return null;
+    }
+
+    private BookSummary buildBookSummary(NodeRef isbnFolderNodeRef, Map<QName, Serializable> isbnFolderProps) {
+        builds.incrementAndGet();
+        NodeService nodeService = serviceRegistry.getNodeService();
+        ChapterIndex chapterIndex = chapterIndexService.getChapterIndex(isbnFolderNodeRef);
+
+        // Load the chapter folders in bulk, the status reads below are then served from the node cache
+        nodeDAO.cacheNodes(chapterIndex.getChapterFolders());
+        int[] chapterNumbers = new int[chapterIndex.size()];
+        String[] chapterStatuses = new String[chapterIndex.size()];
+        for (int i = 0; i < chapterIndex.size(); i++) {
+            chapterNumbers[i] = chapterIndex.getChapterNumber(i);
+            chapterStatuses[i] = (String) nodeService.getProperty(
+                    chapterIndex.getNodeRef(i), ChapterInfoAspect.Prop.CHAPTER_METADATA_STATUS);
+        }
+
+        BookSummary bookSummary = new BookSummary((String) isbnFolderProps.get(ContentModel.PROP_NAME),
+                getLastModified(isbnFolderProps), getPublishedDate(isbnFolderProps), chapterNumbers, chapterStatuses);
+        LOG.debug("Built book summary for {} {}", isbnFolderNodeRef, bookSummary);
+        return bookSummary;
+    }
+
+    /**
+     * Store the summary on the ISBN folder, unless it is already there. The summary is a copy of
+     * what the chapter folders say, it does not count as a change of the book.
+     */
+    private void store(NodeRef isbnFolderNodeRef, Map<QName, Serializable> isbnFolderProps, BookSummary bookSummary) {
+        String summary;
+        try {
+            summary = bookSummary.toJSON();
+        } catch (JSONException je) {
+            LOG.warn("Could not store the book summary of {}: {}", isbnFolderNodeRef, je.getMessage());
+            return;
+        }
+        if (summary.equals(isbnFolderProps.get(BookSummaryAspect.Prop.SUMMARY))) {
+            return;
+        }
+
+        isbnFolderBookkeeping.setProperty(isbnFolderNodeRef, BookSummaryAspect.Prop.SUMMARY, summary);
+    }
+
+    private static Date getLastModified(Map<QName, Serializable> isbnFolderProps) {
+        Date lastContentChange = (Date) isbnFolderProps.get(ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE);
+        return lastContentChange != null ? lastContentChange : (Date) isbnFolderProps.get(ContentModel.PROP_MODIFIED);
+    }
+
+    private static Date getPublishedDate(Map<QName, Serializable> isbnFolderProps) {
+        return (Date) isbnFolderProps.get(WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.dictionary.AspectDefinition;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Stamps the "last content change" marker on an ISBN folder whenever the ISBN folder,
+ * one of its chapter folders, or a file in a chapter folder is created, updated, or deleted.
+ * <p/>
+ * Changes are collected per transaction and each affected ISBN folder is stamped once just before commit,
+ * so a renumbering touching 60 chapter folders results in one write to the ISBN folder.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ContentChangeTrackingBehaviour implements
+        NodeServicePolicies.OnCreateNodePolicy,
+        NodeServicePolicies.OnUpdatePropertiesPolicy,
+        NodeServicePolicies.OnDeleteNodePolicy {
+
+    private static final String TXN_KEY_CHANGED_BOOKS = ContentChangeTrackingBehaviour.class.getName() + ".changedBooks";
+
+    /**
+     * Properties that change without the book content changing
+     */
+    private final Set<QName> ignoredProperties = new HashSet<>(Arrays.asList(
+            ContentModel.PROP_MODIFIED, ContentModel.PROP_MODIFIER, ContentModel.PROP_ACCESSED,
+            BestPubActionsModel.ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE,
+            BestPubActionsModel.PublishedArtifactAspect.Prop.ARTIFACT_SHA256,
+            BestPubActionsModel.PublishedArtifactAspect.Prop.ARTIFACT_SIZE,
+            BestPubActionsModel.BookSummaryAspect.Prop.SUMMARY,
+            BestPubActionsModel.PublishFingerprintAspect.Prop.CONTENT_FINGERPRINT,
+            BestPubActionsModel.PublishFingerprintAspect.Prop.CONTENT_CHANGE));
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private PolicyComponent policyComponent;
+
+    /**
+     * BestPub Services
+     */
+    private ContentChangeTrackingService contentChangeTrackingService;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setPolicyComponent(PolicyComponent policyComponent) {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setContentChangeTrackingService(ContentChangeTrackingService contentChangeTrackingService) {
+        this.contentChangeTrackingService = contentChangeTrackingService;
+    }
+
+    public void init() {
+        // Publishing the book must not make it look changed
+        AspectDefinition webPublishingInfo = serviceRegistry.getDictionaryService().getAspect(
+                BestPubContentModel.WebPublishingInfoAspect.QNAME);
+        if (webPublishingInfo != null) {
+            ignoredProperties.addAll(webPublishingInfo.getProperties().keySet());
+        }
+
+        // ISBN folders and chapter folders carry book info, files can be anything under a chapter folder
+        for (QName className : new QName[] {
+                BestPubContentModel.BookInfoAspect.QNAME,
+                BestPubContentModel.ChapterFolderType.QNAME,
+                ContentModel.TYPE_CONTENT}) {
+            policyComponent.bindClassBehaviour(NodeServicePolicies.OnCreateNodePolicy.QNAME, className,
+                    new JavaBehaviour(this, "onCreateNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+            policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, className,
+                    new JavaBehaviour(this, "onUpdateProperties", Behaviour.NotificationFrequency.EVERY_EVENT));
+            policyComponent.bindClassBehaviour(NodeServicePolicies.OnDeleteNodePolicy.QNAME, className,
+                    new JavaBehaviour(this, "onDeleteNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+        }
+    }
+
+    /**
+     * Behaviour implementations
+     */
+
+    @Override
+    public void onCreateNode(ChildAssociationRef childAssocRef) {
+        bookChanged(childAssocRef.getChildRef());
+    }
+
+    @Override
+    public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+        if (hasContentChanges(before, after)) {
+            bookChanged(nodeRef);
+        }
+    }
+
+    @Override
+    public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived) {
+        bookChanged(childAssocRef.getParentRef());
+    }
+
+    private boolean hasContentChanges(Map<QName, Serializable> before, Map<QName, Serializable> after) {
+        Set<QName> propNames = new HashSet<>(before.keySet());
+        propNames.addAll(after.keySet());
+        for (QName propName : propNames) {
+            if (!ignoredProperties.contains(propName) && !Objects.equals(before.get(propName), after.get(propName))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void bookChanged(NodeRef nodeRef) {
+        NodeRef isbnFolderNodeRef = contentChangeTrackingService.resolveIsbnFolder(nodeRef);
+        if (isbnFolderNodeRef == null) {
+            return;
+        }
+
+        ChangedBooks changedBooks = AlfrescoTransactionSupport.getResource(TXN_KEY_CHANGED_BOOKS);
+        if (changedBooks == null) {
+            changedBooks = new ChangedBooks();
+            AlfrescoTransactionSupport.bindResource(TXN_KEY_CHANGED_BOOKS, changedBooks);
+            AlfrescoTransactionSupport.bindListener(changedBooks);
+        }
+        changedBooks.isbnFolders.add(isbnFolderNodeRef);
+    }
+
+    /**
+     * The books changed in the current transaction, stamped just before commit
+     */
+    private class ChangedBooks extends TransactionListenerAdapter {
+        private final Set<NodeRef> isbnFolders = new LinkedHashSet<>();
+
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            final Date now = new Date();
+            final List<NodeRef> isbnFoldersToStamp = new ArrayList<>(isbnFolders);
+            // The user changing a file might not be allowed to write to the ISBN folder
+            AuthenticationUtil.runAsSystem(() -> {
+                for (NodeRef isbnFolderNodeRef : isbnFoldersToStamp) {
+                    if (serviceRegistry.getNodeService().exists(isbnFolderNodeRef)) {
+                        contentChangeTrackingService.markChanged(isbnFolderNodeRef, now);
+                    }
+                }
+                return null;
+            });
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.acme.bestpublishing.chapters.BookNaming;
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.acme.bestpublishing.services.BestPubUtilsService;
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.site.SiteService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.namespace.RegexQNamePattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of when a book, i.e. the ISBN folder or anything in it, was last changed.
+ * <p/>
+ * The time of the last change is stored as a marker on the ISBN folder
+ * ({@link BestPubActionsModel.ContentChangeTrackingAspect}), maintained by the
+ * {@link ContentChangeTrackingBehaviour}. Checking if a book has been updated since it was published
+ * is then a single property read instead of a walk of all chapter folders and files.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ContentChangeTrackingService {
+    private static final Logger LOG = LoggerFactory.getLogger(ContentChangeTrackingService.class);
+
+    /**
+     * Levels to walk up from a node to find its ISBN folder, file -> chapter folder -> ISBN folder
+     */
+    private static final int MAX_ISBN_FOLDER_DEPTH = 3;
+
+    /**
+     * Name of the Share site where books are managed, used when rebuilding markers for all books
+     */
+    private String bookManagementSiteName = "book-management";
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubUtilsService bestPubUtilsService;
+    private IsbnFolderBookkeeping isbnFolderBookkeeping;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setBestPubUtilsService(BestPubUtilsService bestPubUtilsService) {
+        this.bestPubUtilsService = bestPubUtilsService;
+    }
+
+    public void setIsbnFolderBookkeeping(IsbnFolderBookkeeping isbnFolderBookkeeping) {
+        this.isbnFolderBookkeeping = isbnFolderBookkeeping;
+    }
+
+    public void setBookManagementSiteName(String bookManagementSiteName) {
+        this.bookManagementSiteName = bookManagementSiteName;
+    }
+
+    /**
+     * Find the ISBN folder that a node belongs to, the node can be the ISBN folder itself,
+     * a chapter folder, or a file in a chapter folder.
+     *
+     * @param nodeRef the node to start looking from
+     * @return the ISBN folder node reference, or null if the node is not part of a book
+     */
+    public NodeRef resolveIsbnFolder(NodeRef nodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        NodeRef currentNodeRef = nodeRef;
+        for (int level = 0; level < MAX_ISBN_FOLDER_DEPTH && currentNodeRef != null; level++) {
+            if (!nodeService.exists(currentNodeRef)) {
+                return null;
+            }
+            if (isIsbnFolder(currentNodeRef)) {
+                return currentNodeRef;
+            }
+            ChildAssociationRef parentAssoc = nodeService.getPrimaryParent(currentNodeRef);
+            currentNodeRef = parentAssoc == null ? null : parentAssoc.getParentRef();
+        }
+
+        return null;
+    }
+
+    /**
+     * @param nodeRef the node to check
+     * @return true if the node is an ISBN (book) folder
+     */
+    public boolean isIsbnFolder(NodeRef nodeRef) {
+        QName type = serviceRegistry.getNodeService().getType(nodeRef);
+        if (BestPubContentModel.ChapterFolderType.QNAME.equals(type) ||
+                !serviceRegistry.getDictionaryService().isSubClass(type, ContentModel.TYPE_FOLDER)) {
+            return false;
+        }
+        Serializable name = serviceRegistry.getNodeService().getProperty(nodeRef, ContentModel.PROP_NAME);
+        return name != null && BookNaming.isISBN((String) name);
+    }
+
+    /**
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return when anything in the book was last changed, or null if changes have not been tracked for the book
+     */
+    public Date getLastContentChange(NodeRef isbnFolderNodeRef) {
+        return (Date) serviceRegistry.getNodeService().getProperty(isbnFolderNodeRef,
+                BestPubActionsModel.ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE);
+    }
+
+    /**
+     * Check if a book has been changed after the passed in date. Books that have not had their
+     * changes tracked yet (i.e. created before tracking was introduced, and not rebuilt) are
+     * checked the old way by walking the book.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param date the date to compare with, typically the web published date
+     * @return true if the book has been changed after the date
+     */
+    public boolean isChangedSince(NodeRef isbnFolderNodeRef, Date date) {
+        Date lastContentChange = getLastContentChange(isbnFolderNodeRef);
+        if (lastContentChange == null) {
+            LOG.debug("No content change marker for {}, walking the book", isbnFolderNodeRef);
+            return bestPubUtilsService.checkModifiedDates(isbnFolderNodeRef, date) != null;
+        }
+
+        return lastContentChange.after(date);
+    }
+
+    /**
+     * Check if a book has been changed since it was last published, using already loaded
+     * ISBN folder properties. Books that have not been published are always reported as changed.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param isbnFolderProps the ISBN folder properties, e.g. from {@link NodeService#getProperties(NodeRef)}
+     * @return true if the book has been changed since it was published, or has never been published
+     */
+    public boolean isChangedSincePublished(NodeRef isbnFolderNodeRef, Map<QName, Serializable> isbnFolderProps) {
+        Date publishedDate = (Date) isbnFolderProps.get(
+                BestPubContentModel.WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE);
+        if (publishedDate == null) {
+            return true;
+        }
+
+        Date lastContentChange = (Date) isbnFolderProps.get(
+                BestPubActionsModel.ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE);
+        if (lastContentChange == null) {
+            return bestPubUtilsService.checkModifiedDates(isbnFolderNodeRef, publishedDate) != null;
+        }
+
+        return lastContentChange.after(publishedDate);
+    }
+
+    /**
+     * Stamp the ISBN folder with the time of the last content change. A file changing in the book
+     * moves the stamp, the folder itself has not been edited.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param lastContentChange when the book was last changed
+     */
+    public void markChanged(NodeRef isbnFolderNodeRef, Date lastContentChange) {
+        isbnFolderBookkeeping.setProperty(isbnFolderNodeRef,
+                BestPubActionsModel.ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE, lastContentChange);
+    }
+
+    /**
+     * Recompute the content change marker for a book by walking it and picking the latest modified date.
+     *
+     * @param isbnFolderNodeRef the ISBN folder
+     * @return the recomputed last content change
+     */
+    public Date rebuildMarker(NodeRef isbnFolderNodeRef) {
+        Date lastContentChange = getLatestModifiedDate(isbnFolderNodeRef);
+        markChanged(isbnFolderNodeRef, lastContentChange);
+        return lastContentChange;
+    }
+
+    /**
+     * Recompute the content change markers for all books under a node, each book in its own transaction.
+     *
+     * @param rootNodeRef an ISBN folder, a year folder, or the site document library, if null the
+     *                    document library of the book management site is used
+     * @return the number of books that got their marker recomputed
+     */
+    public int rebuildMarkers(NodeRef rootNodeRef) {
+        final NodeRef startNodeRef = rootNodeRef != null ? rootNodeRef :
+                serviceRegistry.getSiteService().getContainer(bookManagementSiteName, SiteService.DOCUMENT_LIBRARY);
+        if (startNodeRef == null) {
+            throw new AlfrescoRuntimeException("Cannot find document library for site " + bookManagementSiteName);
+        }
+
+        RetryingTransactionHelper txnHelper = serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+        List<NodeRef> isbnFolders = txnHelper.doInTransaction(() -> findIsbnFolders(startNodeRef), true, true);
+
+        int rebuilt = 0;
+        for (final NodeRef isbnFolderNodeRef : isbnFolders) {
+            try {
+                Date lastContentChange = txnHelper.doInTransaction(() -> rebuildMarker(isbnFolderNodeRef), false, true);
+                LOG.debug("Rebuilt content change marker {} for {}", lastContentChange, isbnFolderNodeRef);
+                rebuilt++;
+            } catch (Exception e) {
+                LOG.error("Could not rebuild content change marker for " + isbnFolderNodeRef, e);
+            }
+        }
+
+        LOG.info("Rebuilt content change markers for {} of {} books under {}",
+                rebuilt, isbnFolders.size(), startNodeRef);
+
+        return rebuilt;
+    }
+
+    /**
+     * Find the ISBN folders at or below a node, looking at most two folder levels down (site -> year -> ISBN).
+     */
+    private List<NodeRef> findIsbnFolders(NodeRef nodeRef) {
+        List<NodeRef> isbnFolders = new ArrayList<>();
+        if (isIsbnFolder(nodeRef)) {
+            isbnFolders.add(nodeRef);
+            return isbnFolders;
+        }
+
+        for (NodeRef childNodeRef : getFolderChildren(nodeRef)) {
+            if (isIsbnFolder(childNodeRef)) {
+                isbnFolders.add(childNodeRef);
+            } else {
+                for (NodeRef grandChildNodeRef : getFolderChildren(childNodeRef)) {
+                    if (isIsbnFolder(grandChildNodeRef)) {
+                        isbnFolders.add(grandChildNodeRef);
+                    }
+                }
+            }
+        }
+
+        return isbnFolders;
+    }
+
+    private List<NodeRef> getFolderChildren(NodeRef nodeRef) {
+        List<NodeRef> children = new ArrayList<>();
+        for (ChildAssociationRef childAssoc : serviceRegistry.getNodeService().getChildAssocs(
+                nodeRef, ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL)) {
+            NodeRef childNodeRef = childAssoc.getChildRef();
+            if (serviceRegistry.getDictionaryService().isSubClass(
+                    serviceRegistry.getNodeService().getType(childNodeRef), ContentModel.TYPE_FOLDER)) {
+                children.add(childNodeRef);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Walk a node and everything below it and return the latest modified date.
+     */
+    private Date getLatestModifiedDate(NodeRef nodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        Date latest = (Date) nodeService.getProperty(nodeRef, ContentModel.PROP_MODIFIED);
+        for (ChildAssociationRef childAssoc : nodeService.getChildAssocs(
+                nodeRef, ContentModel.ASSOC_CONTAINS, RegexQNamePattern.MATCH_ALL)) {
+            Date childLatest = getLatestModifiedDate(childAssoc.getChildRef());
+            if (childLatest != null && (latest == null || childLatest.after(latest))) {
+                latest = childLatest;
+            }
+        }
+        return latest;
+    }
+}
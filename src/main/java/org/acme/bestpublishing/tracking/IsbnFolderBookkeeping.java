@@ -0,0 +1,86 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Writes the metadata BestPub keeps about a book onto its ISBN folder, such as the last content
+ * change marker, the fingerprint of the published chapter files, and the book summary.
+ * <p/>
+ * This metadata is derived from the book, it is not an edit of the ISBN folder, so the auditable
+ * behaviour is disabled for the folder while it is written. The folder's cm:modified and cm:modifier
+ * stay as the last real edit left them, and so does every ETag and change check based on them.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class IsbnFolderBookkeeping {
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private BehaviourFilter behaviourFilter;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+        this.behaviourFilter = behaviourFilter;
+    }
+
+    /**
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param propName the bookkeeping property
+     * @param value the new value
+     */
+    public void setProperty(NodeRef isbnFolderNodeRef, QName propName, Serializable value) {
+        behaviourFilter.disableBehaviour(isbnFolderNodeRef, ContentModel.ASPECT_AUDITABLE);
+        try {
+            serviceRegistry.getNodeService().setProperty(isbnFolderNodeRef, propName, value);
+        } finally {
+            behaviourFilter.enableBehaviour(isbnFolderNodeRef, ContentModel.ASPECT_AUDITABLE);
+        }
+    }
+
+    /**
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param aspect the bookkeeping aspect, added if the folder does not have it yet
+     * @param props the aspect properties to set
+     */
+    public void addAspect(NodeRef isbnFolderNodeRef, QName aspect, Map<QName, Serializable> props) {
+        behaviourFilter.disableBehaviour(isbnFolderNodeRef, ContentModel.ASPECT_AUDITABLE);
+        try {
+            serviceRegistry.getNodeService().addAspect(isbnFolderNodeRef, aspect, props);
+        } finally {
+            behaviourFilter.enableBehaviour(isbnFolderNodeRef, ContentModel.ASPECT_AUDITABLE);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.model.BestPubActionsModel;
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the check metadata updates response per ISBN folder, together with the ETag it was
+ * computed for, in a transactional cache.
+ * <p/>
+ * The ETag is derived from the ISBN folder modified date, the last content change marker, and the
+ * web published date. Any change in the book moves the marker, and publishing moves the published
+ * date, so the ETag changes whenever the response can change, and it can be computed from the ISBN
+ * folder properties alone. Books without a content change marker that have been published need a
+ * walk of the book to answer, so they get no ETag and are not cached.
+ * <p/>
+ * Entries are also removed by {@link MetadataUpdateCacheBehaviour} when the ISBN folder is
+ * updated or deleted, so stale responses do not take up room in the cache.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class MetadataUpdateCache {
+
+    /**
+     * A cached response and the ETag it is valid for
+     */
+    public static class CachedResponse implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String etag;
+        private final String body;
+
+        public CachedResponse(String etag, String body) {
+            this.etag = etag;
+            this.body = body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Alfresco Services
+     */
+    private SimpleCache<NodeRef, CachedResponse> responseCache;
+
+    /**
+     * BestPub Services
+     */
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Responses found and not found in the cache by this repository node
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Spring DI
+     */
+
+    public void setResponseCache(SimpleCache<NodeRef, CachedResponse> responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void init() {
+        if (bestPubMetrics != null) {
+            bestPubMetrics.registerGauge("bestpub_metadata_update_cache_hits",
+                    "Check metadata updates responses served from the cache", hits::get);
+            bestPubMetrics.registerGauge("bestpub_metadata_update_cache_misses",
+                    "Check metadata updates responses that were computed", misses::get);
+        }
+    }
+
+    /**
+     * @param isbnFolderProps the ISBN folder properties
+     * @return the ETag for the check metadata updates response, or null if the book cannot be validated
+     * from the ISBN folder properties alone
+     */
+    public String getETag(Map<QName, Serializable> isbnFolderProps) {
+        Date publishedDate = (Date) isbnFolderProps.get(
+                BestPubContentModel.WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE);
+        Date lastContentChange = (Date) isbnFolderProps.get(
+                BestPubActionsModel.ContentChangeTrackingAspect.Prop.LAST_CONTENT_CHANGE);
+        if (publishedDate != null && lastContentChange == null) {
+            return null;
+        }
+
+        Date modified = (Date) isbnFolderProps.get(ContentModel.PROP_MODIFIED);
+        return "\"" + toHex(modified) + "-" + toHex(lastContentChange) + "-" + toHex(publishedDate) + "\"";
+    }
+
+    /**
+     * @param isbnFolderNodeRef the ISBN folder
+     * @param etag the current ETag for the book
+     * @return the cached response body, or null if there is none for the ETag
+     */
+    public String get(NodeRef isbnFolderNodeRef, String etag) {
+        CachedResponse cachedResponse = responseCache.get(isbnFolderNodeRef);
+        if (cachedResponse != null && cachedResponse.getEtag().equals(etag)) {
+            hits.incrementAndGet();
+            return cachedResponse.getBody();
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(NodeRef isbnFolderNodeRef, String etag, String body) {
+        responseCache.put(isbnFolderNodeRef, new CachedResponse(etag, body));
+    }
+
+    public void invalidate(NodeRef isbnFolderNodeRef) {
+        responseCache.remove(isbnFolderNodeRef);
+    }
+
+    private static String toHex(Date date) {
+        return date == null ? "0" : Long.toHexString(date.getTime());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.tracking;
+
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.Behaviour;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Removes the cached check metadata updates response of a book when its ISBN folder is updated,
+ * which includes the content change marker being moved and the book being published, or deleted.
+ * Chapter folders carry the book info aspect too, removing them is a harmless cache miss.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class MetadataUpdateCacheBehaviour implements
+        NodeServicePolicies.OnUpdatePropertiesPolicy,
+        NodeServicePolicies.OnDeleteNodePolicy {
+
+    /**
+     * Alfresco Services
+     */
+    private PolicyComponent policyComponent;
+
+    /**
+     * BestPub Services
+     */
+    private MetadataUpdateCache metadataUpdateCache;
+
+    /**
+     * Spring DI
+     */
+
+    public void setPolicyComponent(PolicyComponent policyComponent) {
+        this.policyComponent = policyComponent;
+    }
+
+    public void setMetadataUpdateCache(MetadataUpdateCache metadataUpdateCache) {
+        this.metadataUpdateCache = metadataUpdateCache;
+    }
+
+    public void init() {
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME,
+                BestPubContentModel.BookInfoAspect.QNAME,
+                new JavaBehaviour(this, "onUpdateProperties", Behaviour.NotificationFrequency.EVERY_EVENT));
+        policyComponent.bindClassBehaviour(NodeServicePolicies.OnDeleteNodePolicy.QNAME,
+                BestPubContentModel.BookInfoAspect.QNAME,
+                new JavaBehaviour(this, "onDeleteNode", Behaviour.NotificationFrequency.EVERY_EVENT));
+    }
+
+    /**
+     * Behaviour implementations
+     */
+
+    @Override
+    public void onUpdateProperties(NodeRef nodeRef, Map<QName, Serializable> before, Map<QName, Serializable> after) {
+        metadataUpdateCache.invalidate(nodeRef);
+    }
+
+    @Override
+    public void onDeleteNode(ChildAssociationRef childAssocRef, boolean isNodeArchived) {
+        metadataUpdateCache.invalidate(childAssocRef.getChildRef());
+    }
+}
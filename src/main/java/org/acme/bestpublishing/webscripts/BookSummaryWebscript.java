@@ -0,0 +1,272 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.tracking.BookSummary;
+import org.acme.bestpublishing.tracking.BookSummaryService;
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.Pair;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Returns the {@link BookSummary} of many books in one request, for book level views such as
+ * Share dashboards. Summaries come from the {@link BookSummaryService} cache, so the cost is one
+ * cache read per book, the chapter folders are not read.
+ * <p/>
+ * The books are passed in either as a list of ISBN folder node references or as a year folder
+ * whose ISBN folders are enumerated, the same way as for the bulk check metadata updates web script.
+ * Books that do not exist, or that the current user cannot read, are reported as failed items,
+ * as the cached summaries are not permission checked.
+ * <p/>
+ * Request body:
+ * <pre>
+ * {
+ *   "nodeRefs": ["workspace://SpacesStore/...", ...],  (or)
+ *   "yearFolderNodeRef": "workspace://SpacesStore/...",
+ *   "skipCount": 0,
+ *   "maxItems": 100
+ * }
+ * </pre>
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BookSummaryWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(BookSummaryWebscript.class);
+
+    /**
+     * Request body properties
+     */
+    private final String JSON_NODE_REFS = "nodeRefs";
+    private final String JSON_YEAR_FOLDER_NODE_REF = "yearFolderNodeRef";
+    private final String JSON_SKIP_COUNT = "skipCount";
+    private final String JSON_MAX_ITEMS = "maxItems";
+
+    private static final String METRICS_OPERATION = "bookSummary";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int defaultMaxItems = 100;
+    private int maxItemsLimit = 1000;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * BestPub Services
+     */
+    private BookSummaryService bookSummaryService;
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setBookSummaryService(BookSummaryService bookSummaryService) {
+        this.bookSummaryService = bookSummaryService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    public void setDefaultMaxItems(int defaultMaxItems) {
+        this.defaultMaxItems = defaultMaxItems;
+    }
+
+    public void setMaxItemsLimit(int maxItemsLimit) {
+        this.maxItemsLimit = maxItemsLimit;
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            getBookSummaries(req, res);
+            timer.success();
+        }
+    }
+
+    private void getBookSummaries(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        if (req.getContent() == null) {
+            String msg = "The request body is missing.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        JSONObject jsonRequest;
+        try {
+            jsonRequest = new JSONObject(req.getContent().getContent());
+        } catch (JSONException je) {
+            String msg = "Could not parse request body as JSON: " + je.getMessage();
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        int skipCount = Math.max(0, jsonRequest.optInt(JSON_SKIP_COUNT, 0));
+        int maxItems = Math.min(maxItemsLimit, Math.max(1, jsonRequest.optInt(JSON_MAX_ITEMS, defaultMaxItems)));
+
+        // Work out the page of ISBN folders to summarize
+        List<NodeRef> isbnNodeRefs;
+        boolean hasMoreItems;
+        int totalItems;
+        try {
+            JSONArray nodeRefsArray = jsonRequest.optJSONArray(JSON_NODE_REFS);
+            String yearFolderNodeRef = jsonRequest.optString(JSON_YEAR_FOLDER_NODE_REF, null);
+            if (nodeRefsArray != null) {
+                totalItems = nodeRefsArray.length();
+                isbnNodeRefs = new ArrayList<>(maxItems);
+                for (int i = skipCount; i < totalItems && isbnNodeRefs.size() < maxItems; i++) {
+                    isbnNodeRefs.add(new NodeRef(nodeRefsArray.getString(i)));
+                }
+                hasMoreItems = skipCount + isbnNodeRefs.size() < totalItems;
+            } else if (StringUtils.isNotBlank(yearFolderNodeRef)) {
+                PagingResults<FileInfo> isbnFolders = listIsbnFolders(
+                        new NodeRef(yearFolderNodeRef), skipCount, maxItems);
+                isbnNodeRefs = new ArrayList<>(isbnFolders.getPage().size());
+                for (FileInfo isbnFolder : isbnFolders.getPage()) {
+                    isbnNodeRefs.add(isbnFolder.getNodeRef());
+                }
+                hasMoreItems = isbnFolders.hasMoreItems();
+                Pair<Integer, Integer> totalCount = isbnFolders.getTotalResultCount();
+                totalItems = totalCount != null && totalCount.getFirst() != null ? totalCount.getFirst() : -1;
+            } else {
+                String msg = "Either '" + JSON_NODE_REFS + "' or '" + JSON_YEAR_FOLDER_NODE_REF + "' must be provided.";
+                LOG.error(msg);
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
+        }
+        bestPubMetrics.lap("lookup");
+
+        // Only summarize the books the current user can read, the rest are reported per item
+        Map<NodeRef, String> itemErrors = new HashMap<>();
+        List<NodeRef> readableNodeRefs = new ArrayList<>(isbnNodeRefs.size());
+        for (NodeRef isbnNodeRef : isbnNodeRefs) {
+            if (!serviceRegistry.getNodeService().exists(isbnNodeRef)) {
+                itemErrors.put(isbnNodeRef, "Node does not exist");
+            } else if (serviceRegistry.getPermissionService().hasPermission(
+                    isbnNodeRef, PermissionService.READ) != AccessStatus.ALLOWED) {
+                itemErrors.put(isbnNodeRef, "Access denied");
+            } else {
+                readableNodeRefs.add(isbnNodeRef);
+            }
+        }
+
+        Map<NodeRef, BookSummary> bookSummaries = bookSummaryService.getBookSummaries(readableNodeRefs);
+        bestPubMetrics.lap("summarize");
+
+        try {
+            res.setContentType("application/json");
+            res.setContentEncoding("UTF-8");
+            Writer writer = res.getWriter();
+            JSONWriter jsonWriter = new JSONWriter(writer);
+            jsonWriter.object()
+                    .key("success").value(true)
+                    .key("skipCount").value(skipCount)
+                    .key("maxItems").value(maxItems)
+                    .key("totalItems").value(totalItems)
+                    .key("hasMoreItems").value(hasMoreItems)
+                    .key("items").array();
+            for (NodeRef isbnNodeRef : isbnNodeRefs) {
+                jsonWriter.object().key("nodeRef").value(isbnNodeRef.toString());
+                BookSummary bookSummary = bookSummaries.get(isbnNodeRef);
+                if (itemErrors.containsKey(isbnNodeRef)) {
+                    jsonWriter.key("success").value(false).key("error").value(itemErrors.get(isbnNodeRef));
+                } else if (bookSummary == null) {
+                    jsonWriter.key("success").value(false).key("error").value("Node is not an ISBN folder");
+                } else {
+                    writeBookSummary(jsonWriter.key("success").value(true), bookSummary);
+                }
+                jsonWriter.endObject();
+            }
+            jsonWriter.endArray().endObject();
+            writer.flush();
+        } catch (JSONException je) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, je.getMessage());
+        }
+    }
+
+    private void writeBookSummary(JSONWriter jsonWriter, BookSummary bookSummary) throws JSONException {
+        jsonWriter.key("isbn").value(bookSummary.getIsbn())
+                .key("chapterCount").value(bookSummary.getChapterCount())
+                .key("lastModified").value(formatDate(bookSummary.getLastModified()))
+                .key("publishedDate").value(formatDate(bookSummary.getPublishedDate()))
+                .key("chapters").array();
+        for (int i = 0; i < bookSummary.getChapterCount(); i++) {
+            jsonWriter.object()
+                    .key("chapterNumber").value(bookSummary.getChapterNumber(i))
+                    .key("status").value(bookSummary.getChapterStatus(i) == null ?
+                            JSONObject.NULL : bookSummary.getChapterStatus(i))
+                    .endObject();
+        }
+        jsonWriter.endArray();
+    }
+
+    /**
+     * List a page of ISBN folders in a year folder with the canned paging query, sorted on name.
+     */
+    private PagingResults<FileInfo> listIsbnFolders(NodeRef yearFolderNodeRef, int skipCount, int maxItems) {
+        PagingRequest pagingRequest = new PagingRequest(skipCount, maxItems);
+        pagingRequest.setRequestTotalCountMax(maxItemsLimit * 10);
+        List<Pair<QName, Boolean>> sortProps = Collections.singletonList(
+                new Pair<>(ContentModel.PROP_NAME, true));
+        return serviceRegistry.getFileFolderService().list(
+                yearFolderNodeRef, false, true, null, null, sortProps, pagingRequest);
+    }
+
+    private static Object formatDate(Date date) {
+        return date == null ? JSONObject.NULL : ISO8601DateFormat.format(date);
+    }
+}
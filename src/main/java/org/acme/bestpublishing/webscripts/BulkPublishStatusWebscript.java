@@ -0,0 +1,108 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.publishing.BulkPublishRun;
+import org.acme.bestpublishing.publishing.BulkPublishService;
+import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+
+/**
+ * This Web Script returns the progress of the bulk publish run for a year folder, or the report
+ * of the last run when it has finished: totals plus status, duration, and EPub size per book.
+ * Only users who may start bulk publish runs for the year folder can read their status.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BulkPublishStatusWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkPublishStatusWebscript.class);
+
+    /**
+     * Web Script parameters
+     */
+    private final String PARAM_YEAR_FOLDER_NODE_REF = "yearFolderNodeRef";
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Best Publishing Services
+     */
+    private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private BulkPublishService bulkPublishService;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
+        this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
+    }
+
+    public void setBulkPublishService(BulkPublishService bulkPublishService) {
+        this.bulkPublishService = bulkPublishService;
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        String paramYearFolderNodeRef = req.getParameter(PARAM_YEAR_FOLDER_NODE_REF);
+        if (StringUtils.isBlank(paramYearFolderNodeRef) || !NodeRef.isNodeRef(paramYearFolderNodeRef)) {
+            String msg = "The 'yearFolderNodeRef' parameter is missing or not a node reference.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        NodeRef yearFolderNodeRef = new NodeRef(paramYearFolderNodeRef);
+        if (!serviceRegistry.getNodeService().exists(yearFolderNodeRef)) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Year folder not found: " + yearFolderNodeRef);
+        }
+        if (!bulkPublishService.isAllowedToStart(yearFolderNodeRef)) {
+            throw new WebScriptException(Status.STATUS_FORBIDDEN,
+                    "Not allowed to read the bulk publish status of year folder: " + yearFolderNodeRef);
+        }
+
+        BulkPublishRun run = bulkPublishService.getRun(yearFolderNodeRef);
+        if (run == null) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND,
+                    "No bulk publish run for year folder: " + paramYearFolderNodeRef);
+        }
+
+        try {
+            alfrescoRepoUtilsService.writeJsonResponse(res, run.toJson().toString());
+        } catch (Exception e) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+}
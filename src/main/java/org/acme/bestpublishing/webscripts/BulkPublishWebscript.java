@@ -0,0 +1,151 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.publishing.BulkPublishRun;
+import org.acme.bestpublishing.publishing.BulkPublishService;
+import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+
+/**
+ * This Web Script starts publishing all books in a year folder with the {@link BulkPublishService}.
+ * Books that have not changed since they were last published are skipped unless "force" is set.
+ * If the year folder has an unfinished run it is resumed. The user needs write permission on the
+ * year folder. Progress and the final report are
+ * returned by the bulk publish status web script.
+ * <p/>
+ * Request body:
+ * <pre>
+ * {
+ *   "yearFolderNodeRef": "workspace://SpacesStore/...",
+ *   "force": false
+ * }
+ * </pre>
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class BulkPublishWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkPublishWebscript.class);
+
+    /**
+     * Request body properties
+     */
+    private final String JSON_YEAR_FOLDER_NODE_REF = "yearFolderNodeRef";
+    private final String JSON_FORCE = "force";
+
+    private static final String METRICS_OPERATION = "bulkPublishRequest";
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Best Publishing Services
+     */
+    private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private BulkPublishService bulkPublishService;
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
+        this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
+    }
+
+    public void setBulkPublishService(BulkPublishService bulkPublishService) {
+        this.bulkPublishService = bulkPublishService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        if (req.getContent() == null) {
+            String msg = "The request body is missing.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        NodeRef yearFolderNodeRef;
+        boolean force;
+        try {
+            JSONObject jsonRequest = new JSONObject(req.getContent().getContent());
+            String nodeRef = jsonRequest.optString(JSON_YEAR_FOLDER_NODE_REF, null);
+            if (StringUtils.isBlank(nodeRef)) {
+                String msg = "The '" + JSON_YEAR_FOLDER_NODE_REF + "' property must be provided.";
+                LOG.error(msg);
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+            }
+            yearFolderNodeRef = new NodeRef(nodeRef);
+            force = jsonRequest.optBoolean(JSON_FORCE, false);
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
+        }
+
+        if (!serviceRegistry.getNodeService().exists(yearFolderNodeRef)) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Year folder not found: " + yearFolderNodeRef);
+        }
+        if (!bulkPublishService.isAllowedToStart(yearFolderNodeRef)) {
+            throw new WebScriptException(Status.STATUS_FORBIDDEN,
+                    "Not allowed to bulk publish year folder: " + yearFolderNodeRef);
+        }
+
+        BulkPublishRun run;
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            run = bulkPublishService.start(yearFolderNodeRef, force);
+            timer.success();
+        } catch (BulkPublishService.BulkPublishRunningException bpre) {
+            LOG.warn(bpre.getMessage());
+            throw new WebScriptException(Status.STATUS_CONFLICT, bpre.getMessage());
+        }
+
+        try {
+            JSONObject jsonResult = new JSONObject();
+            jsonResult.put("runId", run.getId());
+            jsonResult.put("yearFolderNodeRef", yearFolderNodeRef.toString());
+            jsonResult.put("status", run.getStatus().toString());
+            jsonResult.put("force", run.isForce());
+            alfrescoRepoUtilsService.writeJsonResponse(res, jsonResult.toString());
+        } catch (Exception e) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.chapters.ChapterDeletionJob;
+import org.acme.bestpublishing.chapters.ChapterDeletionService;
+import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
+import org.alfresco.util.ISO8601DateFormat;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * This Web Script returns the status of a background chapter deletion (queued, running, done, failed),
+ * as returned by the delete chapter folder web script in async mode.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class ChapterDeletionStatusWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(ChapterDeletionStatusWebscript.class);
+
+    /**
+     * Web Script parameters
+     */
+    private final String PARAM_JOB_ID = "jobId";
+
+    /**
+     * Best Publishing Services
+     */
+    private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private ChapterDeletionService chapterDeletionService;
+
+    /**
+     * Spring DI
+     */
+
+    public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
+        this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
+    }
+
+    public void setChapterDeletionService(ChapterDeletionService chapterDeletionService) {
+        this.chapterDeletionService = chapterDeletionService;
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        String paramJobId = req.getParameter(PARAM_JOB_ID);
+        if (StringUtils.isBlank(paramJobId)) {
+            String msg = "The 'jobId' parameter is null.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        ChapterDeletionJob job = chapterDeletionService.getJob(paramJobId);
+        if (job == null) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Chapter deletion job not found: " + paramJobId);
+        }
+
+        try {
+            JSONObject jsonResult = new JSONObject();
+            jsonResult.put("jobId", job.getId());
+            jsonResult.put("nodeRef", job.getChapterFolderNodeRef().toString());
+            jsonResult.put("isbnNodeRef", job.getIsbnFolderNodeRef() == null ?
+                    JSONObject.NULL : job.getIsbnFolderNodeRef().toString());
+            jsonResult.put("purge", job.isPurge());
+            jsonResult.put("status", job.getStatus().toString());
+            jsonResult.put("deletedNodes", job.getDeletedNodes());
+            jsonResult.put("queuedAt", formatDate(job.getQueuedAt()));
+            jsonResult.put("startedAt", formatDate(job.getStartedAt()));
+            jsonResult.put("finishedAt", formatDate(job.getFinishedAt()));
+            jsonResult.put("error", job.getError());
+
+            alfrescoRepoUtilsService.writeJsonResponse(res, jsonResult.toString());
+        } catch (Exception e) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    private Object formatDate(Date date) {
+        return date == null ? JSONObject.NULL : ISO8601DateFormat.format(date);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.chapters.BookNaming;
+import org.acme.bestpublishing.tracking.ContentChangeTrackingService;
+import org.alfresco.model.ContentModel;
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.domain.node.NodeDAO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.model.FileInfo;
+import org.alfresco.service.cmr.repository.MalformedNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Bulk version of {@link CheckMetadataUpdatesWebscript}, checks if metadata has been updated
+ * since last publishing for many books in one request.
+ * <p/>
+ * The books are passed in either as a list of ISBN folder node references or as a year folder
+ * whose ISBN folders are enumerated. All books are evaluated in one read-only transaction, or,
+ * when parallel evaluation is requested, in slices on a bounded worker pool, each slice in its own
+ * read-only transaction. The nodes are pre-cached in bulk in the transaction that evaluates them. The result is streamed back as a JSON array.
+ * <p/>
+ * Request body:
+ * <pre>
+ * {
+ *   "nodeRefs": ["workspace://SpacesStore/...", ...],  (or)
+ *   "yearFolderNodeRef": "workspace://SpacesStore/...",
+ *   "skipCount": 0,
+ *   "maxItems": 100,
+ *   "parallel": false
+ * }
+ * </pre>
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class CheckMetadataUpdatesBulkWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(CheckMetadataUpdatesBulkWebscript.class);
+
+    /**
+     * Request body properties
+     */
+    private final String JSON_NODE_REFS = "nodeRefs";
+    private final String JSON_YEAR_FOLDER_NODE_REF = "yearFolderNodeRef";
+    private final String JSON_SKIP_COUNT = "skipCount";
+    private final String JSON_MAX_ITEMS = "maxItems";
+    private final String JSON_PARALLEL = "parallel";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int defaultMaxItems = 100;
+    private int maxItemsLimit = 1000;
+    private int parallelism = 0;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private NodeDAO nodeDAO;
+
+    /**
+     * Best Publishing Services
+     */
+    private ContentChangeTrackingService contentChangeTrackingService;
+
+    /**
+     * Worker pool for parallel evaluation
+     */
+    private ExecutorService executor;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setNodeDAO(NodeDAO nodeDAO) {
+        this.nodeDAO = nodeDAO;
+    }
+
+    public void setContentChangeTrackingService(ContentChangeTrackingService contentChangeTrackingService) {
+        this.contentChangeTrackingService = contentChangeTrackingService;
+    }
+
+    public void setDefaultMaxItems(int defaultMaxItems) {
+        this.defaultMaxItems = defaultMaxItems;
+    }
+
+    public void setMaxItemsLimit(int maxItemsLimit) {
+        this.maxItemsLimit = maxItemsLimit;
+    }
+
+    /**
+     * @param parallelism number of worker threads for parallel evaluation, 0 means one per core
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void init() {
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        parallelism = threads;
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(threads * 4), runnable -> {
+                    Thread thread = new Thread(runnable, "BestPubCheckMetadataUpdates");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        if (req.getContent() == null) {
+            String msg = "The request body is missing.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        JSONObject jsonRequest;
+        try {
+            jsonRequest = new JSONObject(req.getContent().getContent());
+        } catch (JSONException je) {
+            String msg = "Could not parse request body as JSON: " + je.getMessage();
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        int skipCount = Math.max(0, jsonRequest.optInt(JSON_SKIP_COUNT, 0));
+        int maxItems = Math.min(maxItemsLimit, Math.max(1, jsonRequest.optInt(JSON_MAX_ITEMS, defaultMaxItems)));
+        boolean parallel = jsonRequest.optBoolean(JSON_PARALLEL, false);
+
+        // Work out the page of ISBN folders to check
+        List<NodeRef> isbnNodeRefs;
+        boolean hasMoreItems;
+        int totalItems;
+        try {
+            JSONArray nodeRefsArray = jsonRequest.optJSONArray(JSON_NODE_REFS);
+            String yearFolderNodeRef = jsonRequest.optString(JSON_YEAR_FOLDER_NODE_REF, null);
+            if (nodeRefsArray != null) {
+                totalItems = nodeRefsArray.length();
+                isbnNodeRefs = new ArrayList<>(maxItems);
+                for (int i = skipCount; i < totalItems && isbnNodeRefs.size() < maxItems; i++) {
+                    isbnNodeRefs.add(new NodeRef(nodeRefsArray.getString(i)));
+                }
+                hasMoreItems = skipCount + isbnNodeRefs.size() < totalItems;
+            } else if (StringUtils.isNotBlank(yearFolderNodeRef)) {
+                PagingResults<FileInfo> isbnFolders = listIsbnFolders(
+                        new NodeRef(yearFolderNodeRef), skipCount, maxItems);
+                isbnNodeRefs = new ArrayList<>(isbnFolders.getPage().size());
+                for (FileInfo isbnFolder : isbnFolders.getPage()) {
+                    isbnNodeRefs.add(isbnFolder.getNodeRef());
+                }
+                hasMoreItems = isbnFolders.hasMoreItems();
+                Pair<Integer, Integer> totalCount = isbnFolders.getTotalResultCount();
+                totalItems = totalCount != null && totalCount.getFirst() != null ? totalCount.getFirst() : -1;
+            } else {
+                String msg = "Either '" + JSON_NODE_REFS + "' or '" + JSON_YEAR_FOLDER_NODE_REF + "' must be provided.";
+                LOG.error(msg);
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+            }
+        } catch (JSONException | IllegalArgumentException | MalformedNodeRefException e) {
+            String msg = "Invalid request: " + e.getMessage();
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        List<BookStatus> statuses = parallel && isbnNodeRefs.size() > 1 ?
+                evaluateInParallel(isbnNodeRefs) : evaluate(isbnNodeRefs);
+
+        try {
+            res.setContentType("application/json");
+            res.setContentEncoding("UTF-8");
+            Writer writer = res.getWriter();
+            JSONWriter jsonWriter = new JSONWriter(writer);
+            jsonWriter.object()
+                    .key("success").value(true)
+                    .key("skipCount").value(skipCount)
+                    .key("maxItems").value(maxItems)
+                    .key("totalItems").value(totalItems)
+                    .key("hasMoreItems").value(hasMoreItems)
+                    .key("items").array();
+            for (BookStatus status : statuses) {
+                jsonWriter.object().key("nodeRef").value(status.nodeRef.toString());
+                if (status.error != null) {
+                    jsonWriter.key("success").value(false).key("error").value(status.error);
+                } else {
+                    jsonWriter.key("success").value(true).key("isMetadataUpdated").value(status.metadataUpdated);
+                }
+                jsonWriter.endObject();
+            }
+            jsonWriter.endArray().endObject();
+            writer.flush();
+        } catch (JSONException je) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, je.getMessage());
+        }
+    }
+
+    /**
+     * List a page of ISBN folders in a year folder with the canned paging query, sorted on name.
+     */
+    private PagingResults<FileInfo> listIsbnFolders(NodeRef yearFolderNodeRef, int skipCount, int maxItems) {
+        PagingRequest pagingRequest = new PagingRequest(skipCount, maxItems);
+        pagingRequest.setRequestTotalCountMax(maxItemsLimit * 10);
+        List<Pair<QName, Boolean>> sortProps = Collections.singletonList(
+                new Pair<>(ContentModel.PROP_NAME, true));
+        return serviceRegistry.getFileFolderService().list(
+                yearFolderNodeRef, false, true, null, null, sortProps, pagingRequest);
+    }
+
+    /**
+     * Evaluate the books one by one in the current transaction
+     */
+    private List<BookStatus> evaluate(List<NodeRef> isbnNodeRefs) {
+        // Load all the ISBN folders in one go, so the property lookups below are cache hits
+        nodeDAO.cacheNodes(isbnNodeRefs);
+
+        List<BookStatus> statuses = new ArrayList<>(isbnNodeRefs.size());
+        for (NodeRef isbnNodeRef : isbnNodeRefs) {
+            statuses.add(evaluate(isbnNodeRef));
+        }
+        return statuses;
+    }
+
+    /**
+     * Split the books in one slice per worker, and evaluate each slice in its own read-only
+     * transaction, as the calling user, keeping the original order in the result.
+     */
+    private List<BookStatus> evaluateInParallel(final List<NodeRef> isbnNodeRefs) {
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        int sliceSize = (isbnNodeRefs.size() + parallelism - 1) / parallelism;
+        List<Future<List<BookStatus>>> slices = new ArrayList<>();
+        for (int from = 0; from < isbnNodeRefs.size(); from += sliceSize) {
+            final List<NodeRef> slice = isbnNodeRefs.subList(from, Math.min(from + sliceSize, isbnNodeRefs.size()));
+            slices.add(executor.submit(() -> AuthenticationUtil.runAs(() ->
+                    serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                            () -> evaluate(slice), true, true), runAsUser)));
+        }
+
+        List<BookStatus> statuses = new ArrayList<>(isbnNodeRefs.size());
+        for (Future<List<BookStatus>> slice : slices) {
+            try {
+                statuses.addAll(slice.get());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Interrupted while checking books");
+            } catch (ExecutionException ee) {
+                throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, ee.getCause().getMessage());
+            }
+        }
+        return statuses;
+    }
+
+    private BookStatus evaluate(NodeRef isbnNodeRef) {
+        try {
+            if (!serviceRegistry.getNodeService().exists(isbnNodeRef)) {
+                return new BookStatus(isbnNodeRef, false, "Node does not exist");
+            }
+            Map<QName, Serializable> props = serviceRegistry.getNodeService().getProperties(isbnNodeRef);
+            if (!BookNaming.isISBN((String) props.get(ContentModel.PROP_NAME))) {
+                return new BookStatus(isbnNodeRef, false, "Node is not an ISBN folder");
+            }
+            return new BookStatus(isbnNodeRef,
+                    contentChangeTrackingService.isChangedSincePublished(isbnNodeRef, props), null);
+        } catch (Exception e) {
+            LOG.error("Could not check metadata updates for " + isbnNodeRef, e);
+            return new BookStatus(isbnNodeRef, false, e.getMessage());
+        }
+    }
+
+    /**
+     * Result for one book
+     */
+    private static class BookStatus {
+        private final NodeRef nodeRef;
+        private final boolean metadataUpdated;
+        private final String error;
+
+        BookStatus(NodeRef nodeRef, boolean metadataUpdated, String error) {
+            this.nodeRef = nodeRef;
+            this.metadataUpdated = metadataUpdated;
+            this.error = error;
+        }
+    }
+}
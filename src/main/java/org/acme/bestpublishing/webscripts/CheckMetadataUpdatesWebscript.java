@@ -16,11 +16,17 @@ limitations under the License.
 */
 package org.acme.bestpublishing.webscripts;
 
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
 import org.acme.bestpublishing.model.BestPubContentModel;
-import org.acme.bestpublishing.services.BestPubUtilsService;
+import org.acme.bestpublishing.tracking.ContentChangeTrackingService;
+import org.acme.bestpublishing.tracking.MetadataUpdateCache;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
 import org.apache.commons.lang.StringUtils;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,11 +35,20 @@ import org.springframework.extensions.webscripts.*;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Map;
 
 /**
- * The webscript compare the isbn book folder modified date with the published date.
- * If the modified date is after published date then the metadata has been
+ * The webscript compare the isbn book folder last content change with the published date.
+ * If the last content change is after published date then the metadata has been
  * updated since the last published date.
+ * <p/>
+ * Responses carry an ETag computed from the ISBN folder properties, see {@link MetadataUpdateCache}.
+ * A request with a matching If-None-Match header is answered with 304 Not Modified, and other
+ * requests are answered from the response cache when the ETag still matches, in both cases
+ * without looking further than the ISBN folder.
+ * <p/>
+ * Requests take a turn with the {@link IoExecutorService} request limit, and read the repository
+ * in a read-only transaction of their own.
  *
  * @author martin.bergljung@marversolutions.org
  * @version 1.0
@@ -46,6 +61,11 @@ public class CheckMetadataUpdatesWebscript extends AbstractWebScript {
      */
     private final String PARAM_NODE_REF = "nodeRef";
 
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String METRICS_OPERATION = "checkMetadataUpdates";
+
     /**
      * Alfresco Services
      */
@@ -54,27 +74,51 @@ public class CheckMetadataUpdatesWebscript extends AbstractWebScript {
     /**
      * Best Publishing Services
      */
-    private BestPubUtilsService bestPubUtilsService;
-
+    private ContentChangeTrackingService contentChangeTrackingService;
+    private MetadataUpdateCache metadataUpdateCache;
+    private IoExecutorService ioExecutorService;
+    private BestPubMetrics bestPubMetrics;
 
     /**
      * Spring DI
      */
 
-    public void setBestPubUtilsService(final BestPubUtilsService bestPubUtilsService) {
-        this.bestPubUtilsService = bestPubUtilsService;
+    public void setContentChangeTrackingService(final ContentChangeTrackingService contentChangeTrackingService) {
+        this.contentChangeTrackingService = contentChangeTrackingService;
+    }
+
+    public void setMetadataUpdateCache(final MetadataUpdateCache metadataUpdateCache) {
+        this.metadataUpdateCache = metadataUpdateCache;
+    }
+
+    public void setIoExecutorService(final IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
     }
 
     public void setServiceRegistry(final ServiceRegistry serviceRegistry) {
         this.serviceRegistry = serviceRegistry;
     }
 
+    public void setBestPubMetrics(final BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
     /**
      * Interface Implementation
      */
 
     @Override
     public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            ioExecutorService.runRequest(() -> checkMetadataUpdates(req, res));
+            timer.success();
+        } catch (IoExecutorService.TooManyRequestsException tmre) {
+            LOG.warn(tmre.getMessage());
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, tmre.getMessage());
+        }
+    }
+
+    private void checkMetadataUpdates(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
         String paramNodeRef = req.getParameter(PARAM_NODE_REF);
 
         if (StringUtils.isBlank(paramNodeRef)) {
@@ -83,28 +127,100 @@ public class CheckMetadataUpdatesWebscript extends AbstractWebScript {
             throw new WebScriptException(msg);
         }
 
-        JSONObject jsonResult = new JSONObject();
         NodeRef isbnNodeRef = new NodeRef(paramNodeRef);
+        String ifNoneMatch = req.getHeader(HEADER_IF_NONE_MATCH);
 
+        Pair<String, String> etagAndBody;
         try {
-            jsonResult.put("success", false);
-            jsonResult.put("isMetadataUpdated", false);
-            Serializable propVal = serviceRegistry.getNodeService().getProperty(isbnNodeRef,
-                    BestPubContentModel.WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE);
-            if (propVal != null) {
-                // Book has been published before, check if anything has been updated since publishing date?
-                Date publishedDate = (Date) propVal;
-                jsonResult.put("isMetadataUpdated", (
-                        bestPubUtilsService.checkModifiedDates(isbnNodeRef, publishedDate) == null ? false : true));
-            } else {
-                // Book has not been published yet, so set metadata as being updated so we can allow publishing
-                jsonResult.put("isMetadataUpdated", true);
-            }
-            jsonResult.put("success", true);
-            res.setContentType("application/json");
-            res.getWriter().append(jsonResult.toString());
+            // The web script runs without a transaction, so a request waiting for its turn holds no connection
+            etagAndBody = serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                    () -> checkMetadataUpdates(isbnNodeRef, ifNoneMatch), true);
         } catch (Exception e) {
             throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
         }
+
+        String etag = etagAndBody.getFirst();
+        String body = etagAndBody.getSecond();
+        if (etag != null) {
+            // Clients must revalidate, the ETag header is set here as the runtime would quote it again
+            Cache cache = new Cache();
+            cache.setNeverCache(false);
+            cache.setIsPublic(false);
+            cache.setMustRevalidate(true);
+            res.setCache(cache);
+            res.setHeader(HEADER_ETAG, etag);
+        }
+
+        if (body == null) {
+            res.setStatus(Status.STATUS_NOT_MODIFIED);
+            bestPubMetrics.lap("notModified");
+            return;
+        }
+
+        res.setContentType("application/json");
+        res.getWriter().append(body);
+        bestPubMetrics.lap("write");
+    }
+
+    /**
+     * Check the book, answering from the response cache when the ETag still matches.
+     *
+     * @return the ETag, null if the response cannot be cached, and the response body,
+     * null if the If-None-Match header already has the current response
+     */
+    private Pair<String, String> checkMetadataUpdates(NodeRef isbnNodeRef, String ifNoneMatch) throws JSONException {
+        Map<QName, Serializable> isbnFolderProps = serviceRegistry.getNodeService().getProperties(isbnNodeRef);
+        String etag = metadataUpdateCache.getETag(isbnFolderProps);
+        if (etag != null) {
+            if (matchesIfNoneMatch(ifNoneMatch, etag)) {
+                return new Pair<>(etag, null);
+            }
+
+            String cachedBody = metadataUpdateCache.get(isbnNodeRef, etag);
+            if (cachedBody != null) {
+                bestPubMetrics.lap("cached");
+                return new Pair<>(etag, cachedBody);
+            }
+        }
+
+        JSONObject jsonResult = new JSONObject();
+        jsonResult.put("success", false);
+        jsonResult.put("isMetadataUpdated", false);
+        Serializable propVal = isbnFolderProps.get(BestPubContentModel.WebPublishingInfoAspect.Prop.WEB_PUBLISHED_DATE);
+        if (propVal != null) {
+            // Book has been published before, check if anything has been updated since publishing date?
+            Date publishedDate = (Date) propVal;
+            jsonResult.put("isMetadataUpdated",
+                    contentChangeTrackingService.isChangedSince(isbnNodeRef, publishedDate));
+        } else {
+            // Book has not been published yet, so set metadata as being updated so we can allow publishing
+            jsonResult.put("isMetadataUpdated", true);
+        }
+        bestPubMetrics.lap("check");
+        jsonResult.put("success", true);
+        String body = jsonResult.toString();
+        if (etag != null) {
+            metadataUpdateCache.put(isbnNodeRef, etag, body);
+        }
+        return new Pair<>(etag, body);
+    }
+
+    /**
+     * @return true if the If-None-Match header lists the ETag, or is *
+     */
+    private boolean matchesIfNoneMatch(String ifNoneMatch, String etag) {
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
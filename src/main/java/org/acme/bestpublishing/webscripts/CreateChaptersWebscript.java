@@ -0,0 +1,170 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.chapters.ChapterCountService;
+import org.acme.bestpublishing.chapters.ChapterCreationService;
+import org.acme.bestpublishing.chapters.ChapterLockService;
+import org.acme.bestpublishing.chapters.NewChapter;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.MalformedNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * This Web Script creates many chapter folders for an ISBN folder in one transaction,
+ * existing chapter folders are renumbered to make room for the new ones.
+ * <p/>
+ * Request body:
+ * <pre>
+ * {
+ *   "nodeRef": "workspace://SpacesStore/...",  (ISBN folder)
+ *   "chapters": [{"chapterNumber": 1, "chapterTitle": "...", "chapterAuthor": "..."}, ...]
+ * }
+ * </pre>
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class CreateChaptersWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(CreateChaptersWebscript.class);
+
+    /**
+     * Request body properties
+     */
+    private final String JSON_NODE_REF = "nodeRef";
+    private final String JSON_CHAPTERS = "chapters";
+
+    private static final String METRICS_OPERATION = "createChapters";
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Best Publishing Services
+     */
+    private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private ChapterCreationService chapterCreationService;
+    private ChapterCountService chapterCountService;
+    private BestPubMetrics bestPubMetrics;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
+        this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
+    }
+
+    public void setChapterCreationService(ChapterCreationService chapterCreationService) {
+        this.chapterCreationService = chapterCreationService;
+    }
+
+    public void setChapterCountService(ChapterCountService chapterCountService) {
+        this.chapterCountService = chapterCountService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        if (req.getContent() == null) {
+            String msg = "The request body is missing.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        NodeRef isbnFolderNodeRef;
+        List<NewChapter> newChapters;
+        try {
+            JSONObject jsonRequest = new JSONObject(req.getContent().getContent());
+            String nodeRef = jsonRequest.optString(JSON_NODE_REF, null);
+            JSONArray chapters = jsonRequest.optJSONArray(JSON_CHAPTERS);
+            if (StringUtils.isBlank(nodeRef) || chapters == null) {
+                String msg = "Both '" + JSON_NODE_REF + "' and '" + JSON_CHAPTERS + "' must be provided.";
+                LOG.error(msg);
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+            }
+            isbnFolderNodeRef = new NodeRef(nodeRef);
+            newChapters = NewChapter.fromJson(chapters);
+        } catch (JSONException | IllegalArgumentException | MalformedNodeRefException e) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
+        }
+
+        if (!serviceRegistry.getNodeService().exists(isbnFolderNodeRef)) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "ISBN folder not found: " + isbnFolderNodeRef);
+        }
+
+        SortedMap<Integer, NodeRef> createdChapters;
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            createdChapters = chapterCreationService.createChapters(isbnFolderNodeRef, newChapters);
+            timer.success();
+        } catch (ChapterLockService.ChapterLockedException cle) {
+            LOG.warn(cle.getMessage());
+            throw new WebScriptException(Status.STATUS_CONFLICT, cle.getMessage());
+        } catch (ChapterCreationService.InvalidChaptersException ice) {
+            LOG.error(ice.getMessage());
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, ice.getMessage());
+        } catch (AccessDeniedException ade) {
+            LOG.warn(ade.getMessage());
+            throw new WebScriptException(Status.STATUS_FORBIDDEN, ade.getMessage());
+        }
+
+        try {
+            JSONArray jsonChapters = new JSONArray();
+            for (Map.Entry<Integer, NodeRef> createdChapter : createdChapters.entrySet()) {
+                JSONObject jsonChapter = new JSONObject();
+                jsonChapter.put("chapterNumber", createdChapter.getKey());
+                jsonChapter.put("nodeRef", createdChapter.getValue().toString());
+                jsonChapters.put(jsonChapter);
+            }
+            JSONObject jsonResult = new JSONObject();
+            jsonResult.put("success", true);
+            jsonResult.put("chapters", jsonChapters);
+            jsonResult.put("numberOfChapters", chapterCountService.getChapterCount(isbnFolderNodeRef));
+            alfrescoRepoUtilsService.writeJsonResponse(res, jsonResult.toString());
+        } catch (Exception e) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+}
@@ -16,12 +16,21 @@ limitations under the License.
 */
 package org.acme.bestpublishing.webscripts;
 
+import org.acme.bestpublishing.chapters.ChapterDeletionJob;
+import org.acme.bestpublishing.chapters.ChapterDeletionService;
+import org.acme.bestpublishing.chapters.ChapterIndex;
+import org.acme.bestpublishing.chapters.ChapterIndexService;
+import org.acme.bestpublishing.chapters.ChapterLockService;
+import org.acme.bestpublishing.chapters.ChapterRenumberingPlan;
+import org.acme.bestpublishing.chapters.ChapterRenumberingService;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
 import org.acme.bestpublishing.model.BestPubContentModel;
-import org.acme.bestpublishing.model.BestPubMetadataFileModel;
-import org.acme.bestpublishing.props.ChapterFolderProperties;
 import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
-import org.acme.bestpublishing.services.BestPubUtilsService;
+import org.acme.bestpublishing.tracking.BookSummaryService;
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.ServiceRegistry;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.apache.commons.lang.StringUtils;
@@ -31,10 +40,17 @@ import org.slf4j.LoggerFactory;
 import org.springframework.extensions.webscripts.*;
 
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * This web script deletes a chapter folder and then re-orders the other chapter folders accordingly.
+ * The chapters of the book are locked with the {@link ChapterLockService} while this is done.
+ * <p/>
+ * With <code>async=true</code> the chapter folder is only taken out of the book while the chapters are
+ * renumbered, and its subtree is deleted in the background by the {@link ChapterDeletionService}. The
+ * returned job id can be used with the chapter deletion status web script. With <code>purge=true</code>
+ * the deleted nodes bypass the archive store (trashcan).
+ * <p/>
+ * Requests take a turn with the {@link IoExecutorService} request limit.
  *
  * @author martin.bergljung@marversolutions.org
  * @version 1.0
@@ -46,6 +62,10 @@ public class DeleteChapterFolderWebscript extends AbstractWebScript {
      * Web Script parameters/URL parameters
      */
     private final String PARAM_NODE_REF = "nodeRef";
+    private final String PARAM_ASYNC = "async";
+    private final String PARAM_PURGE = "purge";
+
+    private static final String METRICS_OPERATION = "deleteChapterFolder";
 
     /**
      * Alfresco Services
@@ -56,7 +76,13 @@ public class DeleteChapterFolderWebscript extends AbstractWebScript {
      * BestPub Services
      */
     private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
-    private BestPubUtilsService bestPubUtilsService;
+    private ChapterRenumberingService chapterRenumberingService;
+    private ChapterIndexService chapterIndexService;
+    private ChapterLockService chapterLockService;
+    private ChapterDeletionService chapterDeletionService;
+    private BookSummaryService bookSummaryService;
+    private IoExecutorService ioExecutorService;
+    private BestPubMetrics bestPubMetrics;
 
     /**
      * Spring DI
@@ -70,8 +96,32 @@ public class DeleteChapterFolderWebscript extends AbstractWebScript {
         this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
     }
 
-    public void setBestPubUtilsService(BestPubUtilsService bestPubUtilsService) {
-        this.bestPubUtilsService = bestPubUtilsService;
+    public void setChapterRenumberingService(ChapterRenumberingService chapterRenumberingService) {
+        this.chapterRenumberingService = chapterRenumberingService;
+    }
+
+    public void setChapterIndexService(ChapterIndexService chapterIndexService) {
+        this.chapterIndexService = chapterIndexService;
+    }
+
+    public void setChapterLockService(ChapterLockService chapterLockService) {
+        this.chapterLockService = chapterLockService;
+    }
+
+    public void setChapterDeletionService(ChapterDeletionService chapterDeletionService) {
+        this.chapterDeletionService = chapterDeletionService;
+    }
+
+    public void setBookSummaryService(BookSummaryService bookSummaryService) {
+        this.bookSummaryService = bookSummaryService;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
     }
 
     /**
@@ -80,6 +130,16 @@ public class DeleteChapterFolderWebscript extends AbstractWebScript {
 
     @Override
     public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            ioExecutorService.runRequest(() -> deleteChapterFolder(req, res));
+            timer.success();
+        } catch (IoExecutorService.TooManyRequestsException tmre) {
+            LOG.warn(tmre.getMessage());
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, tmre.getMessage());
+        }
+    }
+
+    private void deleteChapterFolder(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
         String paramNodeRef = req.getParameter(PARAM_NODE_REF);
         if (StringUtils.isBlank(paramNodeRef)) {
             String msg = "NodeRef parameter for chapter folder is missing, cannot delete chapter folder";
@@ -87,58 +147,38 @@ public class DeleteChapterFolderWebscript extends AbstractWebScript {
             throw new WebScriptException(msg);
         }
 
+        final boolean async = Boolean.parseBoolean(req.getParameter(PARAM_ASYNC));
+        final boolean purge = Boolean.parseBoolean(req.getParameter(PARAM_PURGE));
+
         JSONObject jsonResult = new JSONObject();
-        NodeRef chapterFolder2DeleteNodeRef = new NodeRef(paramNodeRef);
+        final NodeRef chapterFolder2DeleteNodeRef = new NodeRef(paramNodeRef);
+        final RetryingTransactionHelper txnHelper =
+                serviceRegistry.getTransactionService().getRetryingTransactionHelper();
 
         try {
             jsonResult.put("success", false);
-            if (serviceRegistry.getNodeService().exists(chapterFolder2DeleteNodeRef) == true) {
-
-                // Get the chapter number for the chapter folder we are deleting so we can use it in the loop below
-                int deletedFolderChapterNumber = (Integer) serviceRegistry.getNodeService().getProperty(
-                        chapterFolder2DeleteNodeRef, BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER);
-
-                // Get the parent ISBN folder node reference so we can get to the rest of the chapter folders
-                NodeRef isbnFolderNodeRef = serviceRegistry.getNodeService().getPrimaryParent(
-                        chapterFolder2DeleteNodeRef).getParentRef();
-
-                // Now delete the chapter folder before we start adjusting the rest of the chapter folders
-                serviceRegistry.getNodeService().deleteNode(chapterFolder2DeleteNodeRef);
-
-                // Adjust existing chapter folders, unless we are deleting the last one.
-                // Get the existing chapter folders for the ISBN.
-                Map<ChapterFolderProperties, NodeRef> chapterFolders = bestPubUtilsService.getSortedChapterFolders(
-                        isbnFolderNodeRef);
-                for (Map.Entry<ChapterFolderProperties, NodeRef> existingChapterFolder : chapterFolders.entrySet()) {
-                    NodeRef existingChapterFolderNodeRef = existingChapterFolder.getValue();
-                    // First, make sure the node exists, could be the one we just deleted
-                    if (serviceRegistry.getNodeService().exists(existingChapterFolderNodeRef) == true) {
-                        Integer existingFolderChapterNumber = (Integer)existingChapterFolder.getKey().get(
-                                BestPubMetadataFileModel.CHAPTER_METADATA_NUMBER_PROP_NAME);
-                        if (existingFolderChapterNumber > deletedFolderChapterNumber) {
-                            // This chapter folder comes after the one that was deleted,
-                            // so adjust chapter folder name and chapter number
-                            int updatedChapterNumber = existingFolderChapterNumber - 1;
-                            String updatedChapterFolderName =
-                                    bestPubUtilsService.getChapterFolderName(updatedChapterNumber);
-                            serviceRegistry.getNodeService().setProperty(
-                                    existingChapterFolderNodeRef, ContentModel.PROP_NAME, updatedChapterFolderName);
-                            serviceRegistry.getNodeService().setProperty(existingChapterFolderNodeRef,
-                                    BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER, updatedChapterNumber);
-
-                            // Update chapter number metadata for any files in chapter folder
-                            // TODO:
-                        }
-                    }
-                }
-
-                // Update ISBN folder metadata and set the number of chapters to one less
-                int currenNumberOfChapters = (Integer) serviceRegistry.getNodeService().getProperty(
-                        isbnFolderNodeRef, BestPubContentModel.BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS);
-                serviceRegistry.getNodeService().setProperty(isbnFolderNodeRef,
-                        BestPubContentModel.BookInfoAspect.Prop.BOOK_NUMBER_OF_CHAPTERS, currenNumberOfChapters - 1);
 
+            // Get the parent ISBN folder node reference so we can lock the book and get to the rest of the chapter folders
+            final NodeRef isbnFolderNodeRef = txnHelper.doInTransaction(() ->
+                    serviceRegistry.getNodeService().exists(chapterFolder2DeleteNodeRef) ?
+                            serviceRegistry.getNodeService().getPrimaryParent(chapterFolder2DeleteNodeRef).getParentRef() :
+                            null, true, false);
+            bestPubMetrics.lap("lookup");
+
+            // Delete and renumber with the chapters of the book locked, so concurrent chapter changes
+            // to the same book wait for this transaction to commit instead of clashing with it
+            boolean deleted = isbnFolderNodeRef != null && chapterLockService.doWithLock(isbnFolderNodeRef,
+                    () -> txnHelper.doInTransaction(() -> deleteAndRenumber(
+                            chapterFolder2DeleteNodeRef, isbnFolderNodeRef, async, purge), false, true));
+            if (deleted) {
                 jsonResult.put("success", true);
+                if (async) {
+                    // Staged and committed, the subtree can now be deleted in the background
+                    ChapterDeletionJob job = chapterDeletionService.submit(
+                            chapterFolder2DeleteNodeRef, isbnFolderNodeRef, purge);
+                    jsonResult.put("jobId", job.getId());
+                    jsonResult.put("status", job.getStatus().toString());
+                }
                 LOG.debug("Deleted chapter folder successfully [chapFolderNodeRef={}][isbnNodeRef={}]",
                         chapterFolder2DeleteNodeRef, isbnFolderNodeRef);
             } else {
@@ -148,8 +188,57 @@ public class DeleteChapterFolderWebscript extends AbstractWebScript {
             }
 
             alfrescoRepoUtilsService.writeJsonResponse(res, jsonResult.toString());
+        } catch (ChapterLockService.ChapterLockedException cle) {
+            LOG.warn(cle.getMessage());
+            throw new WebScriptException(Status.STATUS_CONFLICT, cle.getMessage());
+        } catch (AccessDeniedException ade) {
+            throw new WebScriptException(Status.STATUS_FORBIDDEN, ade.getMessage());
         } catch (Exception e) {
             throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
         }
     }
+
+    /**
+     * Delete the chapter folder, or stage it for deletion in the background, and move the chapters
+     * after it one step down.
+     *
+     * @return false if the chapter folder no longer exists
+     */
+    private boolean deleteAndRenumber(NodeRef chapterFolder2DeleteNodeRef, NodeRef isbnFolderNodeRef,
+                                      boolean async, boolean purge) {
+        // Deleted by someone else while we waited for the lock
+        if (!serviceRegistry.getNodeService().exists(chapterFolder2DeleteNodeRef)) {
+            return false;
+        }
+
+        // Get the chapter number for the chapter folder we are deleting
+        int deletedFolderChapterNumber = (Integer) serviceRegistry.getNodeService().getProperty(
+                chapterFolder2DeleteNodeRef, BestPubContentModel.ChapterInfoAspect.Prop.CHAPTER_NUMBER);
+
+        // Now delete the chapter folder before we start adjusting the rest of the chapter folders
+        if (async) {
+            chapterDeletionService.stage(chapterFolder2DeleteNodeRef, purge);
+            bestPubMetrics.lap("stage");
+        } else {
+            if (purge) {
+                serviceRegistry.getNodeService().addAspect(chapterFolder2DeleteNodeRef, ContentModel.ASPECT_TEMPORARY, null);
+            }
+            serviceRegistry.getNodeService().deleteNode(chapterFolder2DeleteNodeRef);
+            bestPubMetrics.lap("delete");
+        }
+
+        // Adjust existing chapter folders, unless we are deleting the last one.
+        // Get the existing chapter folders for the ISBN.
+        ChapterIndex chapterIndex = chapterIndexService.getChapterIndex(isbnFolderNodeRef);
+        ChapterRenumberingPlan renumberingPlan = chapterRenumberingService.planDelete(
+                isbnFolderNodeRef, chapterIndex, deletedFolderChapterNumber);
+        chapterRenumberingService.apply(renumberingPlan);
+        bestPubMetrics.lap("renumber");
+
+        // The number of chapters on the ISBN folder is synced after commit, see ChapterCountService,
+        // and so is the book summary
+        bookSummaryService.scheduleRefresh(isbnFolderNodeRef);
+
+        return true;
+    }
 }
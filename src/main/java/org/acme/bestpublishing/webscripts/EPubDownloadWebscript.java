@@ -0,0 +1,448 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.chapters.BookNaming;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.publishing.EPubArtifactStore;
+import org.acme.bestpublishing.publishing.EPubPackager;
+import org.acme.bestpublishing.publishing.EPubPublishingService;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.MalformedNodeRefException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This Web Script downloads the published EPub of a book from the {@link EPubArtifactStore},
+ * <code>GET /bestpub/epub/{isbn}?nodeRef={isbnFolderNodeRef}</code>. Only books published with streaming
+ * packaging are in the store, while the packaging mode is legacy every download is answered with 404.
+ * <p/>
+ * The store is outside the repository, so the ISBN folder node reference is passed in and the current
+ * user must be able to read it, and it must be the folder named after the ISBN, before the EPub is opened.
+ * A book that does not exist or cannot be read is answered with 404, so its existence is not given away.
+ * <p/>
+ * The EPub is sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so it is
+ * never read onto the heap as a whole. A single byte range can be requested with the Range header,
+ * so an interrupted download of a large book can be resumed, If-Range makes sure the resumed part
+ * comes from the same EPub version. The ETag is the SHA-256 of the EPub and Last-Modified the time
+ * it was stored, a request with a matching If-None-Match or If-Modified-Since header is answered
+ * with 304 Not Modified.
+ * <p/>
+ * A download holds its request thread for as long as the client takes to read the EPub, so at most
+ * <code>maxConcurrentStreams</code> downloads run at the same time, further downloads wait
+ * <code>streamWaitMs</code> for a turn and are then answered with 503. Downloads do not take a turn
+ * with the {@link org.acme.bestpublishing.execution.IoExecutorService} request limit, so slow
+ * downloads cannot hold up the other BestPub web scripts.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class EPubDownloadWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(EPubDownloadWebscript.class);
+
+    /**
+     * Web Script URL template variables
+     */
+    private final String TEMPLATE_VAR_ISBN = "isbn";
+
+    /**
+     * Web Script request parameters
+     */
+    private final String PARAM_NODE_REF = "nodeRef";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_CONTENT_DISPOSITION = "Content-Disposition";
+
+    private static final String BYTES_UNIT = "bytes";
+    private static final DateTimeFormatter HTTP_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static final String METRICS_OPERATION = "epubDownload";
+
+    /**
+     * Configuration, see alfresco-global.properties
+     */
+    private int maxConcurrentStreams = 16;
+    private long streamWaitMs = 1000;
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Best Publishing Services
+     */
+    private EPubArtifactStore epubArtifactStore;
+    private EPubPublishingService epubPublishingService;
+    private BestPubMetrics bestPubMetrics;
+
+    private Semaphore streamPermits;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+
+    public void setEpubArtifactStore(EPubArtifactStore epubArtifactStore) {
+        this.epubArtifactStore = epubArtifactStore;
+    }
+
+    public void setEpubPublishingService(EPubPublishingService epubPublishingService) {
+        this.epubPublishingService = epubPublishingService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
+    }
+
+    /**
+     * @param maxConcurrentStreams EPub downloads running at the same time, 0 = no limit
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+
+    public void setStreamWaitMs(long streamWaitMs) {
+        this.streamWaitMs = streamWaitMs;
+    }
+
+    public void init() {
+        if (maxConcurrentStreams > 0) {
+            streamPermits = new Semaphore(maxConcurrentStreams, true);
+        }
+
+        bestPubMetrics.registerGauge("bestpub_epub_download_active_streams",
+                "EPub downloads running", activeStreams::get);
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            download(req, res);
+            timer.success();
+        }
+    }
+
+    private void download(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        String isbn = req.getServiceMatch().getTemplateVars().get(TEMPLATE_VAR_ISBN);
+        // The ISBN is a directory name in the artifact store, so nothing but an ISBN gets through
+        if (!BookNaming.isISBN(isbn)) {
+            String msg = "Not an ISBN: " + isbn;
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+        checkReadable(req.getParameter(PARAM_NODE_REF), isbn);
+
+        // The legacy publishing service does not store its EPubs here, what is left is from an older publish
+        List<EPubArtifactStore.Version> versions = epubPublishingService.isEnabled() ?
+                epubArtifactStore.getVersions(isbn) : Collections.<EPubArtifactStore.Version>emptyList();
+        if (versions.isEmpty()) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "No published EPub for ISBN " + isbn);
+        }
+        EPubArtifactStore.Version version = versions.get(0);
+        File artifactFile = epubArtifactStore.getArtifactFile(isbn, version.getSha256());
+        String etag = "\"" + version.getSha256() + "\"";
+        // HTTP dates have whole seconds
+        long lastModified = version.getStoredAt() / 1000 * 1000;
+
+        // Clients must revalidate, the ETag header is set here as the runtime would quote it again
+        Cache cache = new Cache();
+        cache.setNeverCache(false);
+        cache.setIsPublic(false);
+        cache.setMustRevalidate(true);
+        res.setCache(cache);
+        res.setHeader(HEADER_ETAG, etag);
+        res.setHeader(HEADER_LAST_MODIFIED, HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(lastModified)));
+        res.setHeader(HEADER_ACCEPT_RANGES, BYTES_UNIT);
+
+        if (isNotModified(req, etag, lastModified)) {
+            res.setStatus(Status.STATUS_NOT_MODIFIED);
+            bestPubMetrics.lap("notModified");
+            return;
+        }
+        bestPubMetrics.lap("lookup");
+
+        acquireStream(isbn);
+        activeStreams.incrementAndGet();
+        try {
+            stream(req, res, isbn, artifactFile, etag, lastModified);
+        } finally {
+            activeStreams.decrementAndGet();
+            if (streamPermits != null) {
+                streamPermits.release();
+            }
+        }
+    }
+
+    private void stream(WebScriptRequest req, WebScriptResponse res, String isbn, File artifactFile,
+                        String etag, long lastModified) throws IOException {
+        // Once open the file can be read to the end, even if a newer publish evicts this version meanwhile
+        try (FileChannel channel = FileChannel.open(artifactFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteRange range = isRangeCurrent(req.getHeader(HEADER_IF_RANGE), etag, lastModified) ?
+                    ByteRange.parse(req.getHeader(HEADER_RANGE), size) : null;
+            if (range == ByteRange.UNSATISFIABLE) {
+                res.setHeader(HEADER_CONTENT_RANGE, BYTES_UNIT + " */" + size);
+                throw new WebScriptException(Status.STATUS_REQUESTED_RANGE_NOT_SATISFIABLE,
+                        "Requested range not satisfiable, the EPub for ISBN " + isbn + " is " + size + " bytes");
+            }
+
+            long start = 0;
+            long length = size;
+            if (range != null) {
+                start = range.start;
+                length = range.end - range.start + 1;
+                res.setStatus(Status.STATUS_PARTIAL_CONTENT);
+                res.setHeader(HEADER_CONTENT_RANGE, BYTES_UNIT + " " + range.start + "-" + range.end + "/" + size);
+            }
+            res.setContentType(EPubPackager.EPUB_MIMETYPE);
+            res.setHeader(HEADER_CONTENT_LENGTH, Long.toString(length));
+            res.setHeader(HEADER_CONTENT_DISPOSITION, "attachment; filename=\"" + isbn + ".epub\"");
+
+            long transferred = 0;
+            try {
+                WritableByteChannel out = Channels.newChannel(res.getOutputStream());
+                while (transferred < length) {
+                    long count = channel.transferTo(start + transferred, length - transferred, out);
+                    if (count <= 0) {
+                        // The file is shorter than when it was opened, which the store never does
+                        LOG.warn("EPub {} ended after {} of {} bytes", artifactFile, transferred, length);
+                        break;
+                    }
+                    transferred += count;
+                }
+                res.getOutputStream().flush();
+            } catch (IOException ioe) {
+                // The client went away, the response is committed so there is no one to tell
+                LOG.debug("EPub download for ISBN {} aborted after {} bytes: {}", isbn, transferred, ioe.getMessage());
+                bestPubMetrics.count("bestpub_epub_download_aborted_total", 1);
+            } finally {
+                bestPubMetrics.count("bestpub_epub_download_bytes_total", transferred);
+            }
+            bestPubMetrics.lap("stream");
+        } catch (NoSuchFileException nsfe) {
+            // Evicted by a newer publish between reading the versions and opening the file
+            throw new WebScriptException(Status.STATUS_NOT_FOUND,
+                    "The EPub for ISBN " + isbn + " has just been replaced, try again");
+        }
+    }
+
+    /**
+     * Check that the node reference is the ISBN folder of the book and that the current user can read it.
+     *
+     * @throws WebScriptException with 400 for a missing or malformed node reference, and 404 if the folder
+     * does not exist, cannot be read, or is not the folder of this ISBN
+     */
+    private void checkReadable(String paramNodeRef, String isbn) {
+        if (StringUtils.isBlank(paramNodeRef)) {
+            String msg = "The '" + PARAM_NODE_REF + "' parameter is null.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        NodeRef isbnFolderNodeRef;
+        try {
+            isbnFolderNodeRef = new NodeRef(paramNodeRef);
+        } catch (MalformedNodeRefException mnre) {
+            String msg = "Invalid request: " + mnre.getMessage();
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        boolean readable = serviceRegistry.getTransactionService().getRetryingTransactionHelper().doInTransaction(
+                () -> {
+                    NodeService nodeService = serviceRegistry.getNodeService();
+                    return nodeService.exists(isbnFolderNodeRef) &&
+                            serviceRegistry.getPermissionService().hasPermission(
+                                    isbnFolderNodeRef, PermissionService.READ) == AccessStatus.ALLOWED &&
+                            isbn.equals(nodeService.getProperty(isbnFolderNodeRef, ContentModel.PROP_NAME));
+                }, true);
+        if (!readable) {
+            LOG.debug("EPub download for ISBN {} refused, {} is not a readable ISBN folder", isbn, paramNodeRef);
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "No published EPub for ISBN " + isbn);
+        }
+    }
+
+    private void acquireStream(String isbn) {
+        if (streamPermits == null) {
+            return;
+        }
+
+        boolean acquired;
+        try {
+            acquired = streamPermits.tryAcquire(streamWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            bestPubMetrics.count("bestpub_epub_download_rejected_total", 1);
+            String msg = "More than " + maxConcurrentStreams + " EPub downloads are running, " +
+                    "try downloading ISBN " + isbn + " again later";
+            LOG.warn(msg);
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, msg);
+        }
+    }
+
+    /**
+     * If-None-Match wins over If-Modified-Since when both are sent
+     */
+    private boolean isNotModified(WebScriptRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader(HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                String trimmed = candidate.trim();
+                if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        Long ifModifiedSince = parseHttpDate(req.getHeader(HEADER_IF_MODIFIED_SINCE));
+        return ifModifiedSince != null && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * @return true if a Range header should be honoured, i.e. there is no If-Range header or it
+     * names the current EPub version
+     */
+    private boolean isRangeCurrent(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        String trimmed = ifRange.trim();
+        if (trimmed.startsWith("\"")) {
+            return trimmed.equals(etag);
+        }
+        Long ifRangeDate = parseHttpDate(trimmed);
+        return ifRangeDate != null && ifRangeDate == lastModified;
+    }
+
+    private static Long parseHttpDate(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException dtpe) {
+            return null;
+        }
+    }
+
+    /**
+     * A single byte range, first and last byte inclusive
+     */
+    static final class ByteRange {
+        static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+        final long start;
+        final long end;
+
+        private ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Parse a Range header for one range, "bytes=500-999", "bytes=500-", or "bytes=-500".
+         *
+         * @param header the Range header
+         * @param size the size of the EPub
+         * @return the range, null to send the whole EPub (no, malformed, or multiple ranges),
+         * or {@link #UNSATISFIABLE} if the range starts beyond the end of the EPub
+         */
+        static ByteRange parse(String header, long size) {
+            if (header == null || !header.startsWith(BYTES_UNIT + "=")) {
+                return null;
+            }
+            String spec = header.substring(BYTES_UNIT.length() + 1).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0 || spec.indexOf(',') >= 0) {
+                return null;
+            }
+
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // Suffix range, the last n bytes
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength <= 0) {
+                        return UNSATISFIABLE;
+                    }
+                    return new ByteRange(Math.max(0, size - suffixLength), size - 1);
+                }
+
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+                    return null;
+                }
+                if (start >= size) {
+                    return UNSATISFIABLE;
+                }
+                return new ByteRange(start, end);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+    }
+}
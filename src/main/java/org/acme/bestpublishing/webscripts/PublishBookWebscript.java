@@ -16,9 +16,10 @@ limitations under the License.
 */
 package org.acme.bestpublishing.webscripts;
 
-import org.acme.bestpublishing.actions.PublishBookAction;
-import org.alfresco.service.ServiceRegistry;
-import org.alfresco.service.cmr.action.Action;
+import org.acme.bestpublishing.execution.IoExecutorService;
+import org.acme.bestpublishing.metrics.BestPubMetrics;
+import org.acme.bestpublishing.publishing.PublishJob;
+import org.acme.bestpublishing.publishing.PublishJobScheduler;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.apache.commons.lang.StringUtils;
 import org.json.JSONObject;
@@ -30,6 +31,10 @@ import java.io.IOException;
 
 /**
  * This Web Script will publish the Book as an EPub file.
+ * Publishing is queued with the {@link PublishJobScheduler}, the returned job id can be
+ * used with the publish job status web script to follow the progress. A book whose published
+ * EPub is current is not packaged again, unless the "force" parameter is true.
+ * Requests take a turn with the {@link IoExecutorService} request limit.
  * 
  * @author martin.bergljung@marversolutions.org
  * @version 1.0
@@ -42,18 +47,31 @@ public class PublishBookWebscript extends AbstractWebScript {
      */
     private final String PARAM_NODE_REF = "nodeRef";
     private final String PARAM_BOOK_ISBN = "bookIsbn";
+    private final String PARAM_FORCE = "force";
+
+    private static final String METRICS_OPERATION = "publishBookRequest";
 
     /**
-     * Alfresco Services
+     * Best Publishing Services
      */
-    private ServiceRegistry serviceRegistry;
+    private PublishJobScheduler publishJobScheduler;
+    private IoExecutorService ioExecutorService;
+    private BestPubMetrics bestPubMetrics;
 
     /**
      * Spring DI
      */
 
-    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
-        this.serviceRegistry = serviceRegistry;
+    public void setPublishJobScheduler(PublishJobScheduler publishJobScheduler) {
+        this.publishJobScheduler = publishJobScheduler;
+    }
+
+    public void setIoExecutorService(IoExecutorService ioExecutorService) {
+        this.ioExecutorService = ioExecutorService;
+    }
+
+    public void setBestPubMetrics(BestPubMetrics bestPubMetrics) {
+        this.bestPubMetrics = bestPubMetrics;
     }
 
     /**
@@ -62,8 +80,19 @@ public class PublishBookWebscript extends AbstractWebScript {
 
     @Override
     public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        try (BestPubMetrics.Timer timer = bestPubMetrics.start(METRICS_OPERATION)) {
+            ioExecutorService.runRequest(() -> queuePublishing(req, res));
+            timer.success();
+        } catch (IoExecutorService.TooManyRequestsException tmre) {
+            LOG.warn(tmre.getMessage());
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, tmre.getMessage());
+        }
+    }
+
+    private void queuePublishing(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
         String paramNodeRef = req.getParameter(PARAM_NODE_REF);
         String paramBookIsbn = req.getParameter(PARAM_BOOK_ISBN);
+        boolean force = Boolean.parseBoolean(req.getParameter(PARAM_FORCE));
 
         if (StringUtils.isBlank(paramNodeRef)) {
             String msg = "The 'nodeRef' parameter is null.";
@@ -72,25 +101,26 @@ public class PublishBookWebscript extends AbstractWebScript {
         }
 
         try {
-            // Trigger the publishing action, shows invocation of a Repo Action from Java code
-            // And shows how to invoke an action async.
-            Action publishBookToWebAction = serviceRegistry.getActionService().createAction(PublishBookAction.NAME);
-            publishBookToWebAction.setExecuteAsynchronously(false);
-            boolean executeAsynchronoulsy = true;
-            boolean checkConditions = false;
+            // Queue the publishing action, requests for a book that is already queued are merged
             NodeRef nodeRef = new NodeRef(paramNodeRef);
-            serviceRegistry.getActionService().executeAction(
-                    publishBookToWebAction, nodeRef, checkConditions, executeAsynchronoulsy);
+            PublishJob publishJob = publishJobScheduler.submit(nodeRef, force);
+            bestPubMetrics.lap("queue");
 
             JSONObject jsonResult = new JSONObject();
             jsonResult.put("isbn", paramBookIsbn);
             jsonResult.put("publishingInitiated", true);
+            jsonResult.put("jobId", publishJob.getId());
+            jsonResult.put("force", publishJob.isForce());
+            jsonResult.put("status", publishJob.getStatus().toString());
             res.setContentType("application/json");
             res.getWriter().append(jsonResult.toString());
+        } catch (PublishJobScheduler.PublishQueueFullException qfe) {
+            LOG.warn(qfe.getMessage());
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, qfe.getMessage());
         } catch (Exception e) {
             throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
         }
 
-        LOG.debug("The content for Book [{}] has been manually published with success", paramBookIsbn);
+        LOG.debug("The content for Book [{}] has been queued for publishing", paramBookIsbn);
     }
 }
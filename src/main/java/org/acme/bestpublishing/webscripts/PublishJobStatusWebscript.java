@@ -0,0 +1,104 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.publishing.PublishJob;
+import org.acme.bestpublishing.publishing.PublishJobScheduler;
+import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
+import org.alfresco.util.ISO8601DateFormat;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * This Web Script returns the status of a publish job (queued, running, done, failed),
+ * as returned by the publish book web script.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class PublishJobStatusWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(PublishJobStatusWebscript.class);
+
+    /**
+     * Web Script parameters
+     */
+    private final String PARAM_JOB_ID = "jobId";
+
+    /**
+     * Best Publishing Services
+     */
+    private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private PublishJobScheduler publishJobScheduler;
+
+    /**
+     * Spring DI
+     */
+
+    public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
+        this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
+    }
+
+    public void setPublishJobScheduler(PublishJobScheduler publishJobScheduler) {
+        this.publishJobScheduler = publishJobScheduler;
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        String paramJobId = req.getParameter(PARAM_JOB_ID);
+        if (StringUtils.isBlank(paramJobId)) {
+            String msg = "The 'jobId' parameter is null.";
+            LOG.error(msg);
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, msg);
+        }
+
+        PublishJob job = publishJobScheduler.getJob(paramJobId);
+        if (job == null) {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Publish job not found: " + paramJobId);
+        }
+
+        try {
+            JSONObject jsonResult = new JSONObject();
+            jsonResult.put("jobId", job.getId());
+            jsonResult.put("nodeRef", job.getIsbnFolderNodeRef().toString());
+            jsonResult.put("status", job.getStatus().toString());
+            jsonResult.put("queuedAt", formatDate(job.getQueuedAt()));
+            jsonResult.put("startedAt", formatDate(job.getStartedAt()));
+            jsonResult.put("finishedAt", formatDate(job.getFinishedAt()));
+            jsonResult.put("error", job.getError());
+            jsonResult.put("result", job.getResult() == null ? JSONObject.NULL : job.getResult());
+            jsonResult.put("queueDepth", publishJobScheduler.getQueueDepth());
+
+            alfrescoRepoUtilsService.writeJsonResponse(res, jsonResult.toString());
+        } catch (Exception e) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    private Object formatDate(Date date) {
+        return date == null ? JSONObject.NULL : ISO8601DateFormat.format(date);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.webscripts;
+
+import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
+import org.acme.bestpublishing.tracking.ContentChangeTrackingService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.extensions.webscripts.*;
+
+import java.io.IOException;
+
+/**
+ * Admin web script that recomputes the "last content change" markers for existing books,
+ * for example after the module has been upgraded on a repository that already contains books.
+ * Pass in an ISBN folder or a year folder to limit the rebuild, otherwise all books in the
+ * book management site are rebuilt.
+ *
+ * @author martin.bergljung@marversolutions.org
+ * @version 1.0
+ */
+public class RebuildContentChangeMarkersWebscript extends AbstractWebScript {
+    private static final Logger LOG = LoggerFactory.getLogger(RebuildContentChangeMarkersWebscript.class);
+
+    /**
+     * Web Script parameters/URL parameters
+     */
+    private final String PARAM_NODE_REF = "nodeRef";
+
+    /**
+     * BestPub Services
+     */
+    private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private ContentChangeTrackingService contentChangeTrackingService;
+
+    /**
+     * Spring DI
+     */
+
+    public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
+        this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
+    }
+
+    public void setContentChangeTrackingService(ContentChangeTrackingService contentChangeTrackingService) {
+        this.contentChangeTrackingService = contentChangeTrackingService;
+    }
+
+    /**
+     * Web Script Interface implementation
+     */
+
+    @Override
+    public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+        String paramNodeRef = req.getParameter(PARAM_NODE_REF);
+        NodeRef rootNodeRef = StringUtils.isBlank(paramNodeRef) ? null : new NodeRef(paramNodeRef);
+
+        try {
+            JSONObject jsonResult = new JSONObject();
+            int rebuiltBooks = contentChangeTrackingService.rebuildMarkers(rootNodeRef);
+            jsonResult.put("success", true);
+            jsonResult.put("rebuiltBooks", rebuiltBooks);
+            LOG.debug("Rebuilt content change markers for {} books [rootNodeRef={}]", rebuiltBooks, rootNodeRef);
+
+            alfrescoRepoUtilsService.writeJsonResponse(res, jsonResult.toString());
+        } catch (Exception e) {
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+}